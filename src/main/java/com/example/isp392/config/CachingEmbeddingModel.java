@@ -0,0 +1,423 @@
+package com.example.isp392.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * EmbeddingModel có bộ nhớ đệm hai tầng đặt trước mô hình thật:
+ * tầng 1 là LRU trên heap, tầng 2 là file nhật ký nhị phân trên đĩa.
+ * Khóa là SHA-256 của mã mô hình và văn bản đã chuẩn hóa, nên câu hỏi lặp lại
+ * và tài liệu sách không đổi không phải gọi lại mô hình embedding.
+ */
+public class CachingEmbeddingModel implements EmbeddingModel, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingEmbeddingModel.class);
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int KEY_SIZE = 32;
+
+    private final EmbeddingModel delegate;
+    private final String modelId;
+    private final Map<String, float[]> memory;
+    private final DiskTier disk;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param delegate          Mô hình embedding thật
+     * @param modelId           Mã mô hình, thuộc khóa cache để đổi mô hình không dùng nhầm vector cũ
+     * @param maxMemoryEntries  Số vector tối đa giữ trên heap
+     * @param diskFile          File cache trên đĩa, null để chỉ dùng cache trên heap
+     * @param maxDiskEntries    Số vector tối đa giữ trên đĩa trước khi gộp file
+     */
+    public CachingEmbeddingModel(EmbeddingModel delegate, String modelId, int maxMemoryEntries,
+                                 Path diskFile, int maxDiskEntries) {
+        this.delegate = delegate;
+        this.modelId = modelId;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+
+        DiskTier diskTier = null;
+        if (diskFile != null) {
+            try {
+                diskTier = new DiskTier(diskFile, maxDiskEntries);
+                logger.info("Embedding disk cache opened: {} ({} entries)", diskFile.toAbsolutePath(), diskTier.size());
+            } catch (IOException e) {
+                logger.warn("Could not open embedding disk cache {}, using memory only: {}", diskFile, e.getMessage());
+            }
+        }
+        this.disk = diskTier;
+    }
+
+    public EmbeddingModel getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<String> instructions = request.getInstructions();
+        float[][] vectors = new float[instructions.size()][];
+        List<String> missKeys = new ArrayList<>();
+        List<String> missTexts = new ArrayList<>();
+        List<Integer> missPositions = new ArrayList<>();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            String text = normalize(instructions.get(i));
+            String key = keyOf(text);
+            float[] cached = lookup(key);
+            if (cached != null) {
+                vectors[i] = cached;
+            } else {
+                missKeys.add(key);
+                missTexts.add(text);
+                missPositions.add(i);
+            }
+        }
+
+        if (!missTexts.isEmpty()) {
+            EmbeddingResponse response = delegate.call(new EmbeddingRequest(missTexts, request.getOptions()));
+            List<Embedding> results = response.getResults();
+            // Kết quả trả về theo đúng thứ tự của các văn bản chưa có trong cache
+            for (int j = 0; j < results.size() && j < missTexts.size(); j++) {
+                float[] vector = results.get(j).getOutput();
+                vectors[missPositions.get(j)] = vector;
+                store(missKeys.get(j), vector);
+            }
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(vectors.length);
+        for (int i = 0; i < vectors.length; i++) {
+            embeddings.add(new Embedding(vectors[i], i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        String text = normalize(document.getContent());
+        String key = keyOf(text);
+        float[] cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        Document normalized = text.equals(document.getContent())
+                ? document
+                : new Document(document.getId(), text, document.getMetadata());
+        float[] vector = delegate.embed(normalized);
+        store(key, vector);
+        return vector;
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    /**
+     * Thống kê hit/miss của cache
+     */
+    public Map<String, Object> getStats() {
+        long memoryHitCount = memoryHits.sum();
+        long diskHitCount = diskHits.sum();
+        long missCount = misses.sum();
+        long total = memoryHitCount + diskHitCount + missCount;
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("modelId", modelId);
+        stats.put("memoryHits", memoryHitCount);
+        stats.put("diskHits", diskHitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) (memoryHitCount + diskHitCount) / total);
+        synchronized (memory) {
+            stats.put("memoryEntries", memory.size());
+        }
+        stats.put("diskEntries", disk != null ? disk.size() : 0);
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        if (disk != null) {
+            disk.close();
+        }
+        logger.info("Embedding cache stats: {}", getStats());
+    }
+
+    private float[] lookup(String key) {
+        float[] vector;
+        synchronized (memory) {
+            vector = memory.get(key);
+        }
+        if (vector != null) {
+            memoryHits.increment();
+            return vector.clone();
+        }
+
+        if (disk != null) {
+            vector = disk.get(key);
+            if (vector != null) {
+                diskHits.increment();
+                synchronized (memory) {
+                    memory.put(key, vector);
+                }
+                return vector.clone();
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    private void store(String key, float[] vector) {
+        // Lưu bản sao vì người gọi có thể chuẩn hóa vector tại chỗ
+        synchronized (memory) {
+            memory.put(key, vector.clone());
+        }
+        if (disk != null) {
+            disk.put(key, vector);
+        }
+    }
+
+    /**
+     * Chuẩn hóa khoảng trắng; văn bản đã chuẩn hóa cũng là văn bản gửi cho mô hình
+     */
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(text.trim()).replaceAll(" ");
+    }
+
+    private String keyOf(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Cache trên đĩa dạng nhật ký chỉ ghi nối: mỗi bản ghi gồm khóa (32 byte), số chiều,
+     * các float32 little-endian và CRC32. Chỉ mục khóa -> vị trí được giữ trong bộ nhớ.
+     * Khi vượt quá giới hạn, file được viết lại chỉ với các bản ghi mới nhất.
+     */
+    private static class DiskTier {
+        private final Path file;
+        private final int maxEntries;
+        // Thứ tự chèn = thứ tự ghi, dùng để giữ lại bản ghi mới nhất khi gộp file
+        private final LinkedHashMap<String, Long> offsets = new LinkedHashMap<>();
+        private FileChannel channel;
+
+        DiskTier(Path file, int maxEntries) throws IOException {
+            this.file = file;
+            this.maxEntries = Math.max(1, maxEntries);
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            long validLength = load();
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() > validLength) {
+                // Bỏ phần đuôi ghi dở khi ứng dụng dừng đột ngột
+                logger.warn("Truncating corrupt embedding cache tail at byte {}", validLength);
+                channel.truncate(validLength);
+            }
+        }
+
+        synchronized int size() {
+            return offsets.size();
+        }
+
+        synchronized float[] get(String key) {
+            Long offset = offsets.get(key);
+            if (offset == null) {
+                return null;
+            }
+            try {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(header, offset + KEY_SIZE);
+                int dimensions = header.flip().getInt();
+                ByteBuffer body = ByteBuffer.allocate(dimensions * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(body, offset + KEY_SIZE + Integer.BYTES);
+                float[] vector = new float[dimensions];
+                body.flip().asFloatBuffer().get(vector);
+                return vector;
+            } catch (IOException e) {
+                logger.warn("Error reading embedding cache entry: {}", e.getMessage());
+                offsets.remove(key);
+                return null;
+            }
+        }
+
+        synchronized void put(String key, float[] vector) {
+            if (offsets.containsKey(key)) {
+                return;
+            }
+            try {
+                long offset = channel.size();
+                ByteBuffer record = encode(key, vector);
+                while (record.hasRemaining()) {
+                    channel.write(record, offset + record.position());
+                }
+                offsets.put(key, offset);
+                if (offsets.size() > maxEntries) {
+                    compact();
+                }
+            } catch (IOException e) {
+                logger.warn("Error writing embedding cache entry: {}", e.getMessage());
+            }
+        }
+
+        synchronized void close() {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Error closing embedding cache: {}", e.getMessage());
+            }
+        }
+
+        /**
+         * Đọc chỉ mục từ file, dừng ở bản ghi hỏng đầu tiên
+         *
+         * @return Độ dài phần file hợp lệ
+         */
+        private long load() throws IOException {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            long position = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+                 DataInputStream data = new DataInputStream(in)) {
+                byte[] keyBytes = new byte[KEY_SIZE];
+                while (true) {
+                    try {
+                        data.readFully(keyBytes);
+                        int dimensions = Integer.reverseBytes(data.readInt());
+                        if (dimensions <= 0 || dimensions > 65536) {
+                            break;
+                        }
+                        byte[] body = new byte[dimensions * Float.BYTES];
+                        data.readFully(body);
+                        long storedCrc = Long.reverseBytes(data.readLong());
+
+                        CRC32 crc = new CRC32();
+                        crc.update(keyBytes);
+                        crc.update(ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(dimensions).array());
+                        crc.update(body);
+                        if (crc.getValue() != storedCrc) {
+                            break;
+                        }
+
+                        offsets.put(HexFormat.of().formatHex(keyBytes), position);
+                        position += recordSize(dimensions);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Viết lại file chỉ với 3/4 số bản ghi mới nhất (qua file tạm + đổi tên nguyên tử)
+         */
+        private void compact() throws IOException {
+            int keep = maxEntries * 3 / 4;
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(offsets.entrySet());
+            List<Map.Entry<String, Long>> retained = entries.subList(entries.size() - keep, entries.size());
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            LinkedHashMap<String, Long> newOffsets = new LinkedHashMap<>();
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (Map.Entry<String, Long> entry : retained) {
+                    float[] vector = get(entry.getKey());
+                    if (vector == null) {
+                        continue;
+                    }
+                    ByteBuffer record = encode(entry.getKey(), vector);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    newOffsets.put(entry.getKey(), position);
+                    position += recordSize(vector.length);
+                }
+                out.force(true);
+            }
+
+            channel.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            offsets.clear();
+            offsets.putAll(newOffsets);
+            logger.info("Compacted embedding disk cache to {} entries", offsets.size());
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of embedding cache file");
+                }
+            }
+        }
+
+        private static ByteBuffer encode(String key, float[] vector) {
+            ByteBuffer record = ByteBuffer.allocate(recordSize(vector.length)).order(ByteOrder.LITTLE_ENDIAN);
+            record.put(HexFormat.of().parseHex(key));
+            record.putInt(vector.length);
+            for (float value : vector) {
+                record.putFloat(value);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, record.position());
+            record.putLong(crc.getValue());
+            return record.flip();
+        }
+
+        private static int recordSize(int dimensions) {
+            return KEY_SIZE + Integer.BYTES + dimensions * Float.BYTES + Long.BYTES;
+        }
+    }
+}
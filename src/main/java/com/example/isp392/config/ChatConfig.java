@@ -27,6 +27,34 @@ public class ChatConfig {
     @Value("${chat.max-results:5}")
     private int maxResults;
 
+    // Số phản hồi streaming được xử lý đồng thời (vector search + gọi mô hình)
+    @Value("${chat.stream.max-concurrency:64}")
+    private int streamMaxConcurrency;
+
+    @Value("${chat.stream.timeout-ms:120000}")
+    private long streamTimeoutMs;
+
+    // Luồng lưu tin nhắn; mỗi phiên chat luôn đi vào cùng một luồng để giữ thứ tự
+    @Value("${chat.persist.threads:4}")
+    private int persistThreads;
+
+    // Số lượt lưu chờ tối đa mỗi luồng; khi đầy, luồng streaming phải chờ thay vì làm đầy bộ nhớ
+    @Value("${chat.persist.queue-capacity:500}")
+    private int persistQueueCapacity;
+
+    // Cache ngữ nghĩa cho câu trả lời của các câu hỏi không mang tính cá nhân
+    @Value("${chat.cache.enabled:true}")
+    private boolean responseCacheEnabled;
+
+    @Value("${chat.cache.similarity-threshold:0.95}")
+    private double responseCacheSimilarityThreshold;
+
+    @Value("${chat.cache.max-entries:500}")
+    private int responseCacheMaxEntries;
+
+    @Value("${chat.cache.ttl-minutes:60}")
+    private int responseCacheTtlMinutes;
+
     /**
      * ChatClient bean cho Spring AI - sử dụng Vertex AI Gemini
      */
@@ -60,5 +88,37 @@ public class ChatConfig {
         return maxResults;
     }
 
+    public int getStreamMaxConcurrency() {
+        return streamMaxConcurrency;
+    }
+
+    public long getStreamTimeoutMs() {
+        return streamTimeoutMs;
+    }
+
+    public int getPersistThreads() {
+        return persistThreads;
+    }
+
+    public int getPersistQueueCapacity() {
+        return persistQueueCapacity;
+    }
+
+    public boolean isResponseCacheEnabled() {
+        return responseCacheEnabled;
+    }
+
+    public double getResponseCacheSimilarityThreshold() {
+        return responseCacheSimilarityThreshold;
+    }
+
+    public int getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    public int getResponseCacheTtlMinutes() {
+        return responseCacheTtlMinutes;
+    }
+
 
 }
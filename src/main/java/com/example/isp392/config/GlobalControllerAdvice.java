@@ -4,6 +4,7 @@ import com.example.isp392.model.Cart;
 import com.example.isp392.model.User;
 import com.example.isp392.service.CartService;
 import com.example.isp392.service.SystemSettingService;
+import com.example.isp392.service.UserPrincipalCache;
 import com.example.isp392.service.UserService;
 import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,6 +28,9 @@ public class GlobalControllerAdvice {
 
     private static final Logger log = LoggerFactory.getLogger(GlobalControllerAdvice.class);
 
+    // Người dùng hiện tại được tra cứu một lần cho mỗi request (từ UserPrincipalCache) và dùng chung cho mọi model attribute
+    private static final String CURRENT_PRINCIPAL_ATTRIBUTE = GlobalControllerAdvice.class.getName() + ".currentPrincipal";
+
     @Autowired
     private CartService cartService;
 
@@ -35,24 +39,17 @@ public class GlobalControllerAdvice {
 
     @ModelAttribute("cart")
     public Cart addCartToModel() {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (authentication != null && authentication.isAuthenticated() && !(authentication instanceof AnonymousAuthenticationToken)) {
-            // Assuming your CartService has a method to get the cart for the authenticated user
-            // You might need to adjust this based on how your CartService identifies the user
-            return cartService.getCartForCurrentUser();
-        }
-        return new Cart(); // Return an empty cart if not authenticated or anonymous
+        // Only the cart page renders cart items, and its controller adds the full cart itself.
+        // Other pages only need the summary (cartTotalQuantity), so no cart query is made here.
+        return new Cart();
     }
 
     @ModelAttribute("cartTotalQuantity")
-    public int addCartTotalQuantityToModel() {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if (authentication != null && authentication.isAuthenticated() && !(authentication instanceof AnonymousAuthenticationToken)) {
+    public int addCartTotalQuantityToModel(HttpServletRequest request) {
+        UserPrincipalCache.Principal principal = resolveCurrentPrincipal(request);
+        if (principal != null) {
             try {
-                Optional<User> userOpt = userService.findByEmail(authentication.getName());
-                if (userOpt.isPresent()) {
-                    return cartService.getUniqueItemCount(userOpt.get());
-                }
+                return cartService.getUniqueItemCount(userService.getUserReference(principal.getUserId()));
             } catch (Exception e) {
                 log.warn("Error calculating cart unique item count: {}", e.getMessage());
             }
@@ -101,8 +98,30 @@ public class GlobalControllerAdvice {
             return defaultSettings;
         }
     }
+    /**
+     * The current user as a lazy reference: templates mostly compare IDs, so no query is made
+     * unless another property is actually rendered.
+     */
     @ModelAttribute("currentUser")
-    public User addCurrentUserToModel() {
+    public User addCurrentUserToModel(HttpServletRequest request) {
+        UserPrincipalCache.Principal principal = resolveCurrentPrincipal(request);
+        return principal != null ? userService.getUserReference(principal.getUserId()) : null;
+    }
+
+    /**
+     * Resolve the authenticated user once per request; later calls reuse the stored result
+     */
+    private UserPrincipalCache.Principal resolveCurrentPrincipal(HttpServletRequest request) {
+        Object cached = request.getAttribute(CURRENT_PRINCIPAL_ATTRIBUTE);
+        if (cached instanceof Optional<?> resolved) {
+            return (UserPrincipalCache.Principal) resolved.orElse(null);
+        }
+        UserPrincipalCache.Principal principal = lookupCurrentPrincipal();
+        request.setAttribute(CURRENT_PRINCIPAL_ATTRIBUTE, Optional.ofNullable(principal));
+        return principal;
+    }
+
+    private UserPrincipalCache.Principal lookupCurrentPrincipal() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         if (authentication == null || !authentication.isAuthenticated() || authentication instanceof AnonymousAuthenticationToken) {
             return null;
@@ -122,20 +141,21 @@ public class GlobalControllerAdvice {
             return null;
         }
 
-        return userService.findByEmail(username).orElse(null);
+        return userService.findPrincipal(username).orElse(null);
     }
 
     /**
      * Adds a list of roles for the currently authenticated user to the model.
      * This makes the 'currentUserRoles' list available in all Thymeleaf templates.
      *
-     * @param currentUser The User object provided by the addCurrentUserToModel method.
+     * @param request The current request, holding the resolved principal.
      * @return A list of role names (e.g., "ADMIN", "SELLER"), or an empty list.
      */
     @ModelAttribute("currentUserRoles")
-    public List<String> addCurrentUserRolesToModel(@ModelAttribute("currentUser") User currentUser) {
-        if (currentUser != null) {
-            return userService.getUserRoles(currentUser);
+    public List<String> addCurrentUserRolesToModel(HttpServletRequest request) {
+        UserPrincipalCache.Principal principal = resolveCurrentPrincipal(request);
+        if (principal != null) {
+            return new ArrayList<>(principal.getRoles());
         }
         return Collections.emptyList();
     }
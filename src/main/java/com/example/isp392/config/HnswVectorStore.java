@@ -0,0 +1,1217 @@
+package com.example.isp392.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.Filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Vector Store dùng chỉ mục đồ thị HNSW (Hierarchical Navigable Small World)
+ * trên mảng float nguyên thủy, thay cho việc so sánh cosine với toàn bộ tài liệu
+ * như SimpleVectorStore. Bộ lọc metadata được áp dụng ngay trong lúc duyệt đồ thị.
+ *
+ * Lưu trữ bền vững (khi gọi {@link #open(Path)}):
+ * - Segment nhị phân "vector-store.&lt;gen&gt;.seg": header, ma trận float32 liên tục, đồ thị, khối metadata.
+ *   Ma trận được mở bằng FileChannel.map nên embedding nằm ngoài heap và khởi động gần như tức thì.
+ *   Header ghi cả M và số chiều; segment khác cấu hình hiện tại bị bỏ qua và chỉ mục được xây lại.
+ * - Journal "vector-store.wal": các thao tác thêm/xóa/sửa metadata kể từ segment gần nhất, được ghi nối tiếp
+ *   định kỳ bởi {@link #checkpoint(long)} và phát lại khi khởi động.
+ */
+public class HnswVectorStore implements VectorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(HnswVectorStore.class);
+
+    // Khi tỉ lệ node đã xóa vượt ngưỡng này, đồ thị được xây dựng lại từ các node còn sống
+    private static final double COMPACTION_RATIO = 0.3;
+
+    // Định dạng segment: "RHVS", phiên bản 2 (header có thêm M), header cố định 64 byte
+    private static final int SEGMENT_MAGIC = 0x52485653;
+    private static final int SEGMENT_VERSION = 2;
+    // Phiên bản 1 không lưu M nên không biết kích thước danh sách láng giềng; chỉ nhận ra để bỏ qua và xây lại
+    private static final int SEGMENT_VERSION_WITHOUT_M = 1;
+    private static final int SEGMENT_HEADER_SIZE = 64;
+    private static final String SEGMENT_PREFIX = "vector-store.";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String JOURNAL_FILE = "vector-store.wal";
+
+    private static final byte JOURNAL_ADD = 1;
+    private static final byte JOURNAL_DELETE = 2;
+    private static final byte JOURNAL_METADATA = 3;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final EmbeddingModel embeddingModel;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<String, Integer> nodeIndexById = new HashMap<>();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private int deletedCount = 0;
+    private int dimensions = -1;
+
+    // Trạng thái lưu trữ bền vững (null khi store chỉ nằm trong bộ nhớ)
+    private Path dataDir;
+    private long segmentGeneration = 0;
+    private FloatBuffer mappedVectors;
+    private final List<byte[]> pendingJournal = new ArrayList<>();
+    private long journalRecords = 0;
+
+    /**
+     * Một tài liệu trong đồ thị cùng danh sách láng giềng ở từng tầng
+     */
+    private static class Node {
+        private final String id;
+        // Vector trên heap cho node mới thêm; null nếu node nằm trong ma trận của segment đã map
+        private float[] vector;
+        private int mappedRow = -1;
+        private final String content;
+        private final Map<String, Object> metadata;
+        private final int[][] neighbors;
+        private final int[] neighborCounts;
+        private boolean deleted;
+
+        Node(String id, float[] vector, String content, Map<String, Object> metadata, int level, int m, int maxM0) {
+            this.id = id;
+            this.vector = vector;
+            this.content = content;
+            this.metadata = metadata;
+            this.neighbors = new int[level + 1][];
+            this.neighborCounts = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                // Chừa thêm một chỗ để thêm láng giềng trước khi cắt bớt
+                neighbors[l] = new int[(l == 0 ? maxM0 : m) + 1];
+            }
+        }
+
+        int level() {
+            return neighbors.length - 1;
+        }
+    }
+
+    /**
+     * Cặp (node, độ tương đồng) dùng trong hàng đợi ưu tiên khi duyệt đồ thị
+     */
+    private static class Candidate {
+        private final int node;
+        private final float similarity;
+
+        Candidate(int node, float similarity) {
+            this.node = node;
+            this.similarity = similarity;
+        }
+    }
+
+    private static final Comparator<Candidate> NEAREST_FIRST = (c1, c2) -> Float.compare(c2.similarity, c1.similarity);
+    private static final Comparator<Candidate> FARTHEST_FIRST = NEAREST_FIRST.reversed();
+
+    /**
+     * @param embeddingModel Mô hình embedding dùng cho tài liệu và câu truy vấn
+     * @param m              Số láng giềng tối đa của mỗi node ở các tầng trên (tầng 0 dùng 2*m)
+     * @param efConstruction Kích thước danh sách ứng viên khi chèn node
+     * @param efSearch       Kích thước danh sách ứng viên khi tìm kiếm
+     */
+    public HnswVectorStore(EmbeddingModel embeddingModel, int m, int efConstruction, int efSearch) {
+        this.embeddingModel = embeddingModel;
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.efSearch = Math.max(1, efSearch);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+    }
+
+    @Override
+    public void add(List<Document> documents) {
+        // Tính embedding bên ngoài khóa vì đây là thao tác chậm nhất
+        List<float[]> vectors = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            float[] embedding = document.getEmbedding();
+            if (embedding == null || embedding.length == 0) {
+                embedding = embeddingModel.embed(document);
+                document.setEmbedding(embedding);
+            }
+            vectors.add(normalize(embedding));
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                Map<String, Object> metadata = new HashMap<>(document.getMetadata());
+                addLocked(document.getId(), vectors.get(i), document.getContent(), metadata);
+                journal(encodeAdd(document.getId(), vectors.get(i), document.getContent(), metadata));
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Boolean> delete(List<String> idList) {
+        lock.writeLock().lock();
+        try {
+            boolean removed = false;
+            for (String id : idList) {
+                removed |= markDeleted(id);
+                journal(encodeDelete(id));
+            }
+            compactIfNeeded();
+            return Optional.of(removed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Document> similaritySearch(SearchRequest request) {
+        return similaritySearch(request, embeddingModel.embed(request.getQuery()));
+    }
+
+    /**
+     * Tìm kiếm với embedding của câu truy vấn đã được tính sẵn, để người gọi dùng lại
+     * cùng một vector cho việc khác (ví dụ cache câu trả lời của chatbot)
+     *
+     * @param request        Yêu cầu tìm kiếm (topK, ngưỡng, bộ lọc)
+     * @param queryEmbedding Embedding của request.getQuery()
+     */
+    public List<Document> similaritySearch(SearchRequest request, float[] queryEmbedding) {
+        float[] query = normalize(queryEmbedding);
+        Filter.Expression filter = request.hasFilterExpression() ? request.getFilterExpression() : null;
+
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return new ArrayList<>();
+            }
+
+            int current = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                current = greedyClosest(query, current, level);
+            }
+
+            IntPredicate accept = node -> !nodes.get(node).deleted
+                    && (filter == null || matches(filter, nodes.get(node).metadata));
+            int ef = Math.max(efSearch, request.getTopK());
+            List<Candidate> found = searchLayer(query, current, ef, 0, accept);
+
+            List<Document> results = new ArrayList<>();
+            for (Candidate candidate : found) {
+                if (results.size() >= request.getTopK()) {
+                    break;
+                }
+                if (candidate.similarity < request.getSimilarityThreshold()) {
+                    break;
+                }
+                Node node = nodes.get(candidate.node);
+                Map<String, Object> metadata = new HashMap<>(node.metadata);
+                metadata.put("distance", 1.0f - candidate.similarity);
+                results.add(new Document(node.id, node.content, metadata));
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Số tài liệu đang có trong store (không tính tài liệu đã xóa)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodeIndexById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Giá trị của một khóa metadata cho mọi tài liệu đang có (bỏ qua tài liệu không có khóa này)
+     *
+     * @param key Khóa metadata
+     * @return Map từ ID tài liệu sang giá trị
+     */
+    public Map<String, Object> metadataValues(String key) {
+        lock.readLock().lock();
+        try {
+            Map<String, Object> values = new HashMap<>();
+            for (Map.Entry<String, Integer> entry : nodeIndexById.entrySet()) {
+                Object value = nodes.get(entry.getValue()).metadata.get(key);
+                if (value != null) {
+                    values.put(entry.getKey(), value);
+                }
+            }
+            return values;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ghi đè một số khóa metadata của các tài liệu đang có mà không embedding lại
+     * (dùng cho giá trị thay đổi thường xuyên như tồn kho, lượt xem)
+     *
+     * @param updates Map từ ID tài liệu sang các khóa metadata cần ghi đè
+     * @return Số tài liệu đã được cập nhật
+     */
+    public int updateMetadata(Map<String, Map<String, Object>> updates) {
+        lock.writeLock().lock();
+        try {
+            int updated = 0;
+            for (Map.Entry<String, Map<String, Object>> entry : updates.entrySet()) {
+                if (applyMetadata(entry.getKey(), entry.getValue())) {
+                    journal(encodeMetadata(entry.getKey(), entry.getValue()));
+                    updated++;
+                }
+            }
+            return updated;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Nạp dữ liệu từ file JSON theo định dạng cũ của SimpleVectorStore (dùng lại embedding đã lưu).
+     * Chỉ dùng để chuyển đổi dữ liệu sang định dạng segment nhị phân.
+     */
+    public void importJson(File file) throws IOException {
+        Map<String, Document> documents = objectMapper.readValue(file, new TypeReference<HashMap<String, Document>>() { });
+        add(new ArrayList<>(documents.values()));
+        logger.info("Imported {} documents into HNSW index from {}", documents.size(), file.getAbsolutePath());
+    }
+
+    // ===== PERSISTENCE =====
+
+    /**
+     * Mở thư mục dữ liệu: map segment mới nhất (nếu có) rồi phát lại journal.
+     * Sau khi mở, mọi thao tác thêm/xóa được ghi vào journal ở lần checkpoint kế tiếp.
+     *
+     * @param dataDir Thư mục chứa segment và journal
+     * @return true nếu đã nạp được dữ liệu từ segment hoặc journal
+     */
+    public synchronized boolean open(Path dataDir) throws IOException {
+        Files.createDirectories(dataDir);
+        boolean loaded = false;
+
+        lock.writeLock().lock();
+        try {
+            this.dataDir = dataDir;
+            int expectedDimensions = expectedDimensions();
+            Path segment = latestSegment(dataDir);
+            if (segment != null) {
+                // Segment mới sẽ có generation lớn hơn nên segment không dùng được sẽ bị xóa ở lần snapshot kế tiếp
+                segmentGeneration = generationOf(segment);
+                loaded = readSegment(segment, expectedDimensions);
+                if (!loaded) {
+                    discardLocked();
+                }
+            }
+            if (dimensions < 0 && expectedDimensions > 0) {
+                dimensions = expectedDimensions;
+            }
+
+            int replayed;
+            if (segment != null && !loaded) {
+                // Journal là phần thay đổi trên segment vừa bỏ, không còn ý nghĩa
+                replayed = 0;
+            } else {
+                try {
+                    replayed = replayJournal(dataDir.resolve(JOURNAL_FILE));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Vector store journal does not match the embedding model ({}), rebuilding the index", e.getMessage());
+                    discardLocked();
+                    replayed = 0;
+                    loaded = false;
+                }
+            }
+            journalRecords = replayed;
+            loaded |= replayed > 0;
+            pendingJournal.clear();
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        deleteOldSegments();
+        logger.info("Opened vector store in {}: {} documents (segment generation {}, {} journal records replayed)",
+                dataDir.toAbsolutePath(), size(), segmentGeneration, journalRecords);
+        return loaded;
+    }
+
+    /**
+     * Ghi nối tiếp các thao tác chưa lưu vào journal và fsync.
+     * Nếu journal đã lớn, gộp toàn bộ thành một segment mới.
+     *
+     * @param maxJournalRecords Số bản ghi journal tối đa trước khi gộp thành segment
+     */
+    public synchronized void checkpoint(long maxJournalRecords) throws IOException {
+        if (dataDir == null) {
+            return;
+        }
+
+        List<byte[]> records;
+        lock.writeLock().lock();
+        try {
+            records = new ArrayList<>(pendingJournal);
+            pendingJournal.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (!records.isEmpty()) {
+            try (FileChannel channel = FileChannel.open(dataDir.resolve(JOURNAL_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+                for (byte[] record : records) {
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    out.writeInt(record.length);
+                    out.write(record);
+                    out.writeLong(crc.getValue());
+                }
+                out.flush();
+                channel.force(false);
+            }
+            journalRecords += records.size();
+            logger.debug("Vector store checkpoint: {} journal records appended", records.size());
+        }
+
+        if (journalRecords > maxJournalRecords) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Ghi toàn bộ store thành segment mới, map lại embedding từ segment đó và xóa journal
+     */
+    public synchronized void writeSnapshot() throws IOException {
+        if (dataDir == null) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            long generation = segmentGeneration + 1;
+            Path segment = dataDir.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX);
+            List<Node> live = writeSegment(segment);
+
+            // Chuyển embedding của các node còn sống sang segment mới, giải phóng vector trên heap
+            FloatBuffer newVectors = mapVectors(segment);
+            for (int row = 0; row < live.size(); row++) {
+                live.get(row).vector = null;
+                live.get(row).mappedRow = row;
+            }
+            mappedVectors = newVectors;
+            segmentGeneration = generation;
+
+            pendingJournal.clear();
+            Files.write(dataDir.resolve(JOURNAL_FILE), new byte[0]);
+            journalRecords = 0;
+            logger.info("Vector store snapshot written: {} ({} documents)", segment.toAbsolutePath(), live.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        deleteOldSegments();
+    }
+
+    /**
+     * Ghi segment: header | ma trận float32 (little-endian) | đồ thị | metadata
+     *
+     * @return Danh sách node còn sống theo thứ tự dòng trong ma trận
+     */
+    private List<Node> writeSegment(Path segment) throws IOException {
+        List<Node> live = new ArrayList<>();
+        Map<Integer, Integer> rowByNode = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (!nodes.get(i).deleted) {
+                rowByNode.put(i, live.size());
+                live.add(nodes.get(i));
+            }
+        }
+        int dim = Math.max(dimensions, 0);
+
+        // Các láng giềng đã xóa bị bỏ qua; đồ thị vẫn liên thông nhờ các cạnh còn lại
+        List<int[][]> graph = new ArrayList<>(live.size());
+        long graphSize = 0;
+        for (Node node : live) {
+            int[][] levels = new int[node.level() + 1][];
+            graphSize += 4;
+            for (int level = 0; level <= node.level(); level++) {
+                int[] kept = new int[node.neighborCounts[level]];
+                int count = 0;
+                for (int i = 0; i < node.neighborCounts[level]; i++) {
+                    Integer row = rowByNode.get(node.neighbors[level][i]);
+                    if (row != null) {
+                        kept[count++] = row;
+                    }
+                }
+                levels[level] = Arrays.copyOf(kept, count);
+                graphSize += 4 + 4L * count;
+            }
+            graph.add(levels);
+        }
+
+        int newEntryPoint = -1;
+        int newMaxLevel = -1;
+        for (int row = 0; row < live.size(); row++) {
+            if (live.get(row).level() > newMaxLevel) {
+                newMaxLevel = live.get(row).level();
+                newEntryPoint = row;
+            }
+        }
+
+        long vectorsOffset = SEGMENT_HEADER_SIZE;
+        long graphOffset = vectorsOffset + 4L * dim * live.size();
+        long metadataOffset = graphOffset + graphSize;
+
+        Path tmp = segment.resolveSibling(segment.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(SEGMENT_VERSION);
+            out.writeInt(dim);
+            out.writeInt(live.size());
+            out.writeInt(newEntryPoint);
+            out.writeInt(newMaxLevel);
+            out.writeLong(vectorsOffset);
+            out.writeLong(graphOffset);
+            out.writeLong(metadataOffset);
+            out.writeInt(m);
+            out.write(new byte[SEGMENT_HEADER_SIZE - 52]);
+
+            for (Node node : live) {
+                for (float v : copyVector(node)) {
+                    out.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(v)));
+                }
+            }
+
+            for (int[][] levels : graph) {
+                out.writeInt(levels.length - 1);
+                for (int[] neighbors : levels) {
+                    out.writeInt(neighbors.length);
+                    for (int neighbor : neighbors) {
+                        out.writeInt(neighbor);
+                    }
+                }
+            }
+
+            for (Node node : live) {
+                writeBytes(out, node.id.getBytes(StandardCharsets.UTF_8));
+                writeBytes(out, node.content != null ? node.content.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+                writeBytes(out, objectMapper.writeValueAsBytes(node.metadata));
+            }
+
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp, segment, StandardCopyOption.ATOMIC_MOVE);
+
+        // Thay đồ thị trong bộ nhớ bằng phiên bản đã nén (đúng thứ tự dòng trong segment)
+        List<Node> rebuilt = new ArrayList<>(live.size());
+        nodeIndexById.clear();
+        for (int row = 0; row < live.size(); row++) {
+            Node old = live.get(row);
+            Node node = new Node(old.id, null, old.content, old.metadata, old.level(), m, maxM0);
+            node.vector = old.vector;
+            node.mappedRow = old.mappedRow;
+            int[][] levels = graph.get(row);
+            for (int level = 0; level < levels.length; level++) {
+                System.arraycopy(levels[level], 0, node.neighbors[level], 0, levels[level].length);
+                node.neighborCounts[level] = levels[level].length;
+            }
+            rebuilt.add(node);
+            nodeIndexById.put(node.id, row);
+        }
+        nodes.clear();
+        nodes.addAll(rebuilt);
+        entryPoint = newEntryPoint;
+        maxLevel = newMaxLevel;
+        deletedCount = 0;
+        return rebuilt;
+    }
+
+    /**
+     * Nạp segment. Trả về false (không thay đổi store) nếu segment được ghi với M hoặc số chiều khác cấu hình
+     * hiện tại: danh sách láng giềng được cấp phát theo M hiện tại và vector phải cùng số chiều với mô hình.
+     *
+     * @param expectedDimensions Số chiều của mô hình embedding, hoặc -1 nếu không xác định được
+     */
+    private boolean readSegment(Path segment, int expectedDimensions) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != SEGMENT_MAGIC) {
+            throw new IOException("Not a vector store segment: " + segment);
+        }
+        int version = buffer.getInt();
+        if (version == SEGMENT_VERSION_WITHOUT_M) {
+            logger.warn("Vector store segment {} does not record M, rebuilding the index", segment);
+            return false;
+        }
+        if (version != SEGMENT_VERSION) {
+            throw new IOException("Unsupported vector store segment version " + version + ": " + segment);
+        }
+        int dim = buffer.getInt();
+        int count = buffer.getInt();
+        int segmentEntryPoint = buffer.getInt();
+        int segmentMaxLevel = buffer.getInt();
+        long vectorsOffset = buffer.getLong();
+        long graphOffset = buffer.getLong();
+        long metadataOffset = buffer.getLong();
+        int segmentM = buffer.getInt();
+
+        if (segmentM != m) {
+            logger.warn("Vector store segment {} was built with M={} but M={} is configured, rebuilding the index",
+                    segment, segmentM, m);
+            return false;
+        }
+        if (count > 0 && expectedDimensions > 0 && dim != expectedDimensions) {
+            logger.warn("Vector store segment {} has {}-dimensional embeddings but the model produces {}, rebuilding the index",
+                    segment, dim, expectedDimensions);
+            return false;
+        }
+
+        FloatBuffer vectors = buffer.slice((int) vectorsOffset, (int) (graphOffset - vectorsOffset))
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+
+        List<Node> loaded = new ArrayList<>(count);
+        buffer.position((int) metadataOffset);
+        for (int row = 0; row < count; row++) {
+            String id = new String(readBytes(buffer), StandardCharsets.UTF_8);
+            String content = new String(readBytes(buffer), StandardCharsets.UTF_8);
+            Map<String, Object> metadata = objectMapper.readValue(readBytes(buffer), new TypeReference<HashMap<String, Object>>() { });
+            loaded.add(new Node(id, null, content, metadata, 0, m, maxM0));
+        }
+
+        buffer.position((int) graphOffset);
+        nodes.clear();
+        nodeIndexById.clear();
+        for (int row = 0; row < count; row++) {
+            int level = buffer.getInt();
+            Node node = new Node(loaded.get(row).id, null, loaded.get(row).content, loaded.get(row).metadata, level, m, maxM0);
+            node.mappedRow = row;
+            for (int l = 0; l <= level; l++) {
+                int neighborCount = buffer.getInt();
+                for (int i = 0; i < neighborCount; i++) {
+                    node.neighbors[l][i] = buffer.getInt();
+                }
+                node.neighborCounts[l] = neighborCount;
+            }
+            nodes.add(node);
+            nodeIndexById.put(node.id, row);
+        }
+
+        mappedVectors = vectors;
+        dimensions = count > 0 ? dim : dimensions;
+        entryPoint = segmentEntryPoint;
+        maxLevel = segmentMaxLevel;
+        deletedCount = 0;
+        return true;
+    }
+
+    /**
+     * Số chiều của mô hình embedding; -1 nếu mô hình không trả lời được (ví dụ dịch vụ embedding chưa sẵn sàng)
+     */
+    private int expectedDimensions() {
+        try {
+            return embeddingModel.dimensions();
+        } catch (RuntimeException e) {
+            logger.debug("Could not determine embedding dimensions: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Bỏ toàn bộ dữ liệu đã nạp và journal; store bắt đầu rỗng và được nạp lại từ cơ sở dữ liệu
+     */
+    private void discardLocked() throws IOException {
+        nodes.clear();
+        nodeIndexById.clear();
+        entryPoint = -1;
+        maxLevel = -1;
+        deletedCount = 0;
+        dimensions = -1;
+        mappedVectors = null;
+        pendingJournal.clear();
+        Files.deleteIfExists(dataDir.resolve(JOURNAL_FILE));
+    }
+
+    private FloatBuffer mapVectors(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SEGMENT_HEADER_SIZE);
+            header.position(24);
+            long vectorsOffset = header.getLong();
+            long graphOffset = header.getLong();
+            return channel.map(FileChannel.MapMode.READ_ONLY, vectorsOffset, graphOffset - vectorsOffset)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+        }
+    }
+
+    /**
+     * Phát lại journal; dừng ở bản ghi đầu tiên bị cắt cụt hoặc sai checksum (ghi dở khi crash)
+     */
+    private int replayJournal(Path journal) throws IOException {
+        if (!Files.exists(journal)) {
+            return 0;
+        }
+
+        int replayed = 0;
+        long validBytes = 0;
+        try (InputStream fileIn = Files.newInputStream(journal);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (true) {
+                byte[] record;
+                long checksum;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    logger.warn("Vector store journal has a corrupt record after {} entries, ignoring the rest", replayed);
+                    break;
+                }
+                applyJournalRecord(record);
+                replayed++;
+                validBytes += 4 + record.length + 8;
+            }
+        }
+
+        // Cắt bỏ phần đuôi hỏng để các bản ghi nối thêm sau này vẫn đọc được
+        if (validBytes < Files.size(journal)) {
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+        return replayed;
+    }
+
+    private void applyJournalRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        if (type == JOURNAL_DELETE) {
+            markDeleted(id);
+            return;
+        }
+        if (type == JOURNAL_METADATA) {
+            byte[] metadata = new byte[in.readInt()];
+            in.readFully(metadata);
+            applyMetadata(id, objectMapper.readValue(metadata, new TypeReference<HashMap<String, Object>>() { }));
+            return;
+        }
+
+        float[] vector = new float[in.readInt()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = in.readFloat();
+        }
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        byte[] metadata = new byte[in.readInt()];
+        in.readFully(metadata);
+        addLocked(id, vector, new String(content, StandardCharsets.UTF_8),
+                objectMapper.readValue(metadata, new TypeReference<HashMap<String, Object>>() { }));
+    }
+
+    private void journal(byte[] record) {
+        if (dataDir != null) {
+            pendingJournal.add(record);
+        }
+    }
+
+    private static byte[] encodeAdd(String id, float[] vector, String content, Map<String, Object> metadata) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(vector.length * 4 + 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(JOURNAL_ADD);
+            out.writeUTF(id);
+            out.writeInt(vector.length);
+            for (float v : vector) {
+                out.writeFloat(v);
+            }
+            writeBytes(out, content != null ? content.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+            writeBytes(out, objectMapper.writeValueAsBytes(metadata));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode vector store journal record", e);
+        }
+    }
+
+    private static byte[] encodeDelete(String id) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(JOURNAL_DELETE);
+            out.writeUTF(id);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode vector store journal record", e);
+        }
+    }
+
+    private static byte[] encodeMetadata(String id, Map<String, Object> metadata) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(JOURNAL_METADATA);
+            out.writeUTF(id);
+            writeBytes(out, objectMapper.writeValueAsBytes(metadata));
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode vector store journal record", e);
+        }
+    }
+
+    private boolean applyMetadata(String id, Map<String, Object> metadata) {
+        Integer index = nodeIndexById.get(id);
+        if (index == null) {
+            return false;
+        }
+        nodes.get(index).metadata.putAll(metadata);
+        return true;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static Path latestSegment(Path dataDir) throws IOException {
+        try (Stream<Path> files = Files.list(dataDir)) {
+            return files.filter(HnswVectorStore::isSegment)
+                    .max(Comparator.comparingLong(HnswVectorStore::generationOf))
+                    .orElse(null);
+        }
+    }
+
+    /**
+     * Xóa các segment cũ hơn segment hiện tại. Trên Windows file đang được map có thể chưa xóa được;
+     * khi đó sẽ thử lại ở lần sau.
+     */
+    private void deleteOldSegments() {
+        try (Stream<Path> files = Files.list(dataDir)) {
+            files.filter(HnswVectorStore::isSegment)
+                    .filter(file -> generationOf(file) < segmentGeneration)
+                    .forEach(file -> {
+                        try {
+                            Files.deleteIfExists(file);
+                        } catch (IOException e) {
+                            logger.debug("Could not delete old vector store segment {}: {}", file, e.getMessage());
+                        }
+                    });
+        } catch (IOException e) {
+            logger.warn("Could not clean up old vector store segments: {}", e.getMessage());
+        }
+    }
+
+    private static boolean isSegment(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && generationOf(file) >= 0;
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // ===== HNSW GRAPH OPERATIONS (gọi khi đã giữ khóa) =====
+
+    private void addLocked(String id, float[] vector, String content, Map<String, Object> metadata) {
+        if (dimensions < 0) {
+            dimensions = vector.length;
+        } else if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Embedding dimension mismatch: expected " + dimensions + " but got " + vector.length);
+        }
+        markDeleted(id);
+        insert(new Node(id, vector, content, metadata, randomLevel(), m, maxM0));
+    }
+
+    private void insert(Node node) {
+        int index = nodes.size();
+        nodes.add(node);
+        nodeIndexById.put(node.id, index);
+
+        if (entryPoint < 0) {
+            entryPoint = index;
+            maxLevel = node.level();
+            return;
+        }
+
+        float[] query = copyVector(node);
+        int current = entryPoint;
+        for (int level = maxLevel; level > node.level(); level--) {
+            current = greedyClosest(query, current, level);
+        }
+
+        for (int level = Math.min(node.level(), maxLevel); level >= 0; level--) {
+            List<Candidate> found = searchLayer(query, current, efConstruction, level, n -> true);
+            int maxNeighbors = level == 0 ? maxM0 : m;
+            for (int i = 0; i < found.size() && i < maxNeighbors; i++) {
+                int neighbor = found.get(i).node;
+                connect(index, neighbor, level, maxNeighbors);
+                connect(neighbor, index, level, maxNeighbors);
+            }
+            if (!found.isEmpty()) {
+                current = found.get(0).node;
+            }
+        }
+
+        if (node.level() > maxLevel) {
+            entryPoint = index;
+            maxLevel = node.level();
+        }
+    }
+
+    /**
+     * Thêm cạnh from -> to; nếu vượt quá số láng giềng cho phép thì giữ lại các láng giềng gần nhất
+     */
+    private void connect(int from, int to, int level, int maxNeighbors) {
+        Node node = nodes.get(from);
+        int[] list = node.neighbors[level];
+        int count = node.neighborCounts[level];
+        for (int i = 0; i < count; i++) {
+            if (list[i] == to) {
+                return;
+            }
+        }
+        list[count++] = to;
+
+        if (count > maxNeighbors) {
+            // Loại bỏ láng giềng xa nhất
+            int farthest = 0;
+            float farthestSimilarity = Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                float similarity = similarity(node, nodes.get(list[i]));
+                if (similarity < farthestSimilarity) {
+                    farthestSimilarity = similarity;
+                    farthest = i;
+                }
+            }
+            list[farthest] = list[count - 1];
+            count--;
+        }
+        node.neighborCounts[level] = count;
+    }
+
+    private int greedyClosest(float[] query, int start, int level) {
+        int current = start;
+        float best = dot(query, nodes.get(current));
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            Node node = nodes.get(current);
+            for (int i = 0; i < node.neighborCounts[level]; i++) {
+                int neighbor = node.neighbors[level][i];
+                float similarity = dot(query, nodes.get(neighbor));
+                if (similarity > best) {
+                    best = similarity;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Tìm kiếm theo chùm trên một tầng. Mọi node đều được dùng để điều hướng,
+     * nhưng chỉ các node thỏa mãn accept mới được đưa vào kết quả.
+     *
+     * @return Các node thỏa mãn, sắp xếp theo độ tương đồng giảm dần
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int level, IntPredicate accept) {
+        BitSet visited = new BitSet(nodes.size());
+        PriorityQueue<Candidate> candidates = new PriorityQueue<>(NEAREST_FIRST);
+        PriorityQueue<Candidate> results = new PriorityQueue<>(FARTHEST_FIRST);
+
+        Candidate first = new Candidate(start, dot(query, nodes.get(start)));
+        visited.set(start);
+        candidates.add(first);
+        if (accept.test(start)) {
+            results.add(first);
+        }
+
+        while (!candidates.isEmpty()) {
+            Candidate closest = candidates.poll();
+            if (results.size() >= ef && closest.similarity < results.peek().similarity) {
+                break;
+            }
+
+            Node node = nodes.get(closest.node);
+            if (node.level() < level) {
+                continue;
+            }
+            for (int i = 0; i < node.neighborCounts[level]; i++) {
+                int neighbor = node.neighbors[level][i];
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+
+                float similarity = dot(query, nodes.get(neighbor));
+                if (results.size() < ef || similarity > results.peek().similarity) {
+                    Candidate candidate = new Candidate(neighbor, similarity);
+                    candidates.add(candidate);
+                    if (accept.test(neighbor)) {
+                        results.add(candidate);
+                        if (results.size() > ef) {
+                            results.poll();
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(results);
+        sorted.sort(NEAREST_FIRST);
+        return sorted;
+    }
+
+    private boolean markDeleted(String id) {
+        Integer index = nodeIndexById.remove(id);
+        if (index == null) {
+            return false;
+        }
+        nodes.get(index).deleted = true;
+        deletedCount++;
+        return true;
+    }
+
+    /**
+     * Xây dựng lại đồ thị khi có quá nhiều node đã xóa (node xóa vẫn được giữ để điều hướng)
+     */
+    private void compactIfNeeded() {
+        if (deletedCount == 0 || deletedCount < nodes.size() * COMPACTION_RATIO) {
+            return;
+        }
+
+        List<Node> live = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!node.deleted) {
+                live.add(node);
+            }
+        }
+        logger.info("Compacting HNSW index: {} live nodes, {} deleted", live.size(), deletedCount);
+
+        nodes.clear();
+        nodeIndexById.clear();
+        entryPoint = -1;
+        maxLevel = -1;
+        deletedCount = 0;
+        for (Node node : live) {
+            Node copy = new Node(node.id, node.vector, node.content, node.metadata, node.level(), m, maxM0);
+            copy.mappedRow = node.mappedRow;
+            insert(copy);
+        }
+    }
+
+    private int randomLevel() {
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return (int) Math.floor(-Math.log(random) * levelMultiplier);
+    }
+
+    // ===== VECTOR MATH =====
+
+    /**
+     * Tích vô hướng giữa vector truy vấn và vector của node (trên heap hoặc trong segment đã map)
+     */
+    private float dot(float[] query, Node node) {
+        float sum = 0f;
+        if (node.vector != null) {
+            float[] vector = node.vector;
+            for (int i = 0; i < query.length; i++) {
+                sum += query[i] * vector[i];
+            }
+        } else {
+            FloatBuffer vectors = mappedVectors;
+            int base = node.mappedRow * dimensions;
+            for (int i = 0; i < query.length; i++) {
+                sum += query[i] * vectors.get(base + i);
+            }
+        }
+        return sum;
+    }
+
+    private float similarity(Node a, Node b) {
+        if (a.vector != null) {
+            return dot(a.vector, b);
+        }
+        if (b.vector != null) {
+            return dot(b.vector, a);
+        }
+        return dot(copyVector(a), b);
+    }
+
+    private float[] copyVector(Node node) {
+        if (node.vector != null) {
+            return node.vector;
+        }
+        float[] vector = new float[dimensions];
+        mappedVectors.get(node.mappedRow * dimensions, vector);
+        return vector;
+    }
+
+    /**
+     * Chuẩn hóa vector về độ dài 1 để tích vô hướng chính là độ tương đồng cosine
+     */
+    private static float[] normalize(float[] vector) {
+        float norm = 0f;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = (float) Math.sqrt(norm);
+
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = norm > 0 ? vector[i] / norm : 0f;
+        }
+        return normalized;
+    }
+
+    // ===== METADATA FILTER EVALUATION =====
+
+    /**
+     * Đánh giá biểu thức lọc của Spring AI trên metadata của một tài liệu.
+     * Metadata dạng danh sách (ví dụ "category") khớp nếu chứa giá trị cần so sánh.
+     */
+    private static boolean matches(Filter.Operand operand, Map<String, Object> metadata) {
+        if (operand instanceof Filter.Group group) {
+            return matches(group.content(), metadata);
+        }
+        if (!(operand instanceof Filter.Expression expression)) {
+            throw new IllegalArgumentException("Unsupported filter operand: " + operand);
+        }
+
+        switch (expression.type()) {
+            case AND:
+                return matches(expression.left(), metadata) && matches(expression.right(), metadata);
+            case OR:
+                return matches(expression.left(), metadata) || matches(expression.right(), metadata);
+            case NOT:
+                return !matches(expression.left(), metadata);
+            default:
+                break;
+        }
+
+        String key = ((Filter.Key) expression.left()).key();
+        Object expected = ((Filter.Value) expression.right()).value();
+        Object actual = metadata.get(key);
+
+        switch (expression.type()) {
+            case EQ:
+                return valueEquals(actual, expected);
+            case NE:
+                return !valueEquals(actual, expected);
+            case IN:
+                return ((Collection<?>) expected).stream().anyMatch(v -> valueEquals(actual, v));
+            case NIN:
+                return ((Collection<?>) expected).stream().noneMatch(v -> valueEquals(actual, v));
+            case GT:
+                return compare(actual, expected) > 0;
+            case GTE:
+                return compare(actual, expected) >= 0;
+            case LT:
+                return compare(actual, expected) < 0;
+            case LTE:
+                return compare(actual, expected) <= 0;
+            default:
+                throw new IllegalArgumentException("Unsupported filter expression type: " + expression.type());
+        }
+    }
+
+    private static boolean valueEquals(Object actual, Object expected) {
+        if (actual instanceof Collection<?> values) {
+            return values.stream().anyMatch(v -> valueEquals(v, expected));
+        }
+        if (actual == null || expected == null) {
+            return actual == expected;
+        }
+        // Metadata thường lưu số dưới dạng chuỗi (ví dụ shopId), nên so sánh theo chuỗi khi khác kiểu
+        return Objects.equals(actual, expected) || actual.toString().equals(expected.toString());
+    }
+
+    private static int compare(Object actual, Object expected) {
+        if (actual == null) {
+            return -1;
+        }
+        try {
+            return Double.compare(Double.parseDouble(actual.toString()), Double.parseDouble(expected.toString()));
+        } catch (NumberFormatException e) {
+            return actual.toString().compareTo(expected.toString());
+        }
+    }
+}
@@ -4,10 +4,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 
+import java.nio.file.Paths;
+
 /**
  * Configuration for EmbeddingModel with real embeddings support
  */
@@ -16,6 +19,18 @@ public class RealEmbeddingConfig {
 
     private static final Logger logger = LoggerFactory.getLogger(RealEmbeddingConfig.class);
 
+    @Value("${embedding.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${embedding.cache.max-memory-entries:10000}")
+    private int cacheMaxMemoryEntries;
+
+    @Value("${embedding.cache.max-disk-entries:200000}")
+    private int cacheMaxDiskEntries;
+
+    @Value("${embedding.cache.path:data/embedding-cache.bin}")
+    private String cachePath;
+
     /**
      * Primary EmbeddingModel bean
      * Uses fallback model for now to avoid circular dependencies
@@ -24,7 +39,15 @@ public class RealEmbeddingConfig {
     @Primary
     public EmbeddingModel embeddingModel() {
         logger.info("Using enhanced fallback embedding model with improved semantic matching");
-        return new FallbackEmbeddingModel();
+        EmbeddingModel model = new FallbackEmbeddingModel();
+        if (!cacheEnabled) {
+            return model;
+        }
+
+        // Cache hai tầng (heap + đĩa) cho cả truy vấn chat và tài liệu sách
+        String modelId = model.getClass().getSimpleName() + "-" + model.dimensions();
+        return new CachingEmbeddingModel(model, modelId, cacheMaxMemoryEntries,
+                Paths.get(cachePath), cacheMaxDiskEntries);
     }
 
     /**
@@ -6,8 +6,10 @@ import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.SimpleVectorStore;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.Scheduled;
 
 import java.io.File;
 import java.nio.file.Path;
@@ -24,13 +26,32 @@ public class VectorStoreConfig {
     @Autowired
     private EmbeddingModel embeddingModel;
 
+    // "hnsw" (chỉ mục đồ thị, mặc định) hoặc "simple" (SimpleVectorStore, so sánh toàn bộ)
+    @Value("${vectorstore.type:hnsw}")
+    private String vectorStoreType;
+
+    @Value("${vectorstore.hnsw.m:16}")
+    private int hnswM;
+
+    @Value("${vectorstore.hnsw.ef-construction:100}")
+    private int hnswEfConstruction;
+
+    @Value("${vectorstore.hnsw.ef-search:64}")
+    private int hnswEfSearch;
+
+    // Số bản ghi journal tối đa trước khi gộp thành segment mới
+    @Value("${vectorstore.journal.max-records:5000}")
+    private long maxJournalRecords;
+
+    private HnswVectorStore hnswVectorStore;
+
     /**
-     * Create SimpleVectorStore with file persistence
+     * Create the configured Vector Store with file persistence
      */
     @Bean
     public VectorStore vectorStore() {
         try {
-            logger.info("Initializing Simple Vector Store...");
+            logger.info("Initializing Vector Store ({})...", vectorStoreType);
             
             // Create data directory if it doesn't exist
             Path dataDir = Paths.get("data");
@@ -43,35 +64,97 @@ public class VectorStoreConfig {
             File vectorStoreFile = new File("data/vector-store.json");
             logger.info("Vector store path: {}", vectorStoreFile.getAbsolutePath());
             
-            // Create SimpleVectorStore
-            SimpleVectorStore vectorStore = new SimpleVectorStore(embeddingModel);
-            
-            // Load existing data if file exists
-            if (vectorStoreFile.exists()) {
-                try {
-                    vectorStore.load(vectorStoreFile);
-                    logger.info("Loaded existing vector store from: {}", vectorStoreFile.getAbsolutePath());
-                } catch (Exception e) {
-                    logger.warn("Could not load existing vector store, starting fresh: {}", e.getMessage());
-                }
+            if ("simple".equalsIgnoreCase(vectorStoreType)) {
+                return createSimpleVectorStore(vectorStoreFile);
             }
-            
-            // Save on shutdown
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                try {
-                    vectorStore.save(vectorStoreFile);
-                    logger.info("Vector store saved to: {}", vectorStoreFile.getAbsolutePath());
-                } catch (Exception e) {
-                    logger.error("Error saving vector store: {}", e.getMessage());
-                }
-            }));
-            
-            logger.info("Simple Vector Store initialized successfully");
-            return vectorStore;
-            
+            return createHnswVectorStore(vectorStoreFile);
+
         } catch (Exception e) {
             logger.error("Failed to initialize Vector Store: {}", e.getMessage(), e);
             throw new RuntimeException("Vector Store initialization failed", e);
         }
     }
+
+    /**
+     * Create HNSW graph-based Vector Store
+     */
+    private VectorStore createHnswVectorStore(File vectorStoreFile) {
+        logger.info("Using HNSW Vector Store (M={}, efConstruction={}, efSearch={})",
+                hnswM, hnswEfConstruction, hnswEfSearch);
+        HnswVectorStore vectorStore = new HnswVectorStore(embeddingModel, hnswM, hnswEfConstruction, hnswEfSearch);
+
+        try {
+            boolean loaded = vectorStore.open(Paths.get("data"));
+
+            // Chuyển đổi một lần từ file JSON cũ sang segment nhị phân
+            if (!loaded && vectorStoreFile.exists()) {
+                vectorStore.importJson(vectorStoreFile);
+                vectorStore.writeSnapshot();
+                logger.info("Migrated {} to binary vector store segment", vectorStoreFile.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            logger.warn("Could not load existing vector store, starting fresh: {}", e.getMessage());
+        }
+
+        // Ghi segment đầy đủ khi tắt ứng dụng
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                vectorStore.writeSnapshot();
+            } catch (Exception e) {
+                logger.error("Error saving vector store: {}", e.getMessage());
+            }
+        }));
+
+        hnswVectorStore = vectorStore;
+        logger.info("HNSW Vector Store initialized successfully");
+        return vectorStore;
+    }
+
+    /**
+     * Periodically append pending vector store changes to the journal,
+     * so a crash only loses changes made since the last checkpoint
+     */
+    @Scheduled(fixedDelayString = "${vectorstore.checkpoint.interval-ms:30000}",
+            initialDelayString = "${vectorstore.checkpoint.interval-ms:30000}")
+    public void checkpointVectorStore() {
+        if (hnswVectorStore == null) {
+            return;
+        }
+        try {
+            hnswVectorStore.checkpoint(maxJournalRecords);
+        } catch (Exception e) {
+            logger.error("Error checkpointing vector store: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Create SimpleVectorStore (brute-force cosine similarity)
+     */
+    private VectorStore createSimpleVectorStore(File vectorStoreFile) {
+        // Create SimpleVectorStore
+        SimpleVectorStore vectorStore = new SimpleVectorStore(embeddingModel);
+        
+        // Load existing data if file exists
+        if (vectorStoreFile.exists()) {
+            try {
+                vectorStore.load(vectorStoreFile);
+                logger.info("Loaded existing vector store from: {}", vectorStoreFile.getAbsolutePath());
+            } catch (Exception e) {
+                logger.warn("Could not load existing vector store, starting fresh: {}", e.getMessage());
+            }
+        }
+        
+        // Save on shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                vectorStore.save(vectorStoreFile);
+                logger.info("Vector store saved to: {}", vectorStoreFile.getAbsolutePath());
+            } catch (Exception e) {
+                logger.error("Error saving vector store: {}", e.getMessage());
+            }
+        }));
+        
+        logger.info("Simple Vector Store initialized successfully");
+        return vectorStore;
+    }
 }
@@ -13,7 +13,6 @@ import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 
 @Configuration
@@ -43,10 +42,7 @@ public class WebMvcConfig implements WebMvcConfigurer {
                 .setCacheControl(CacheControl.maxAge(365, TimeUnit.DAYS))
                 .setCachePeriod(31556926);
 
-        // Add handler for uploaded files
-        String uploadDir = Paths.get(System.getProperty("user.dir"), "uploads").toFile().getAbsolutePath();
-        registry.addResourceHandler("/uploads/**")
-                .addResourceLocations("file:/" + uploadDir + "/");
+        // Uploaded files (/uploads/**) are served by UploadController (ETag, Range, sendfile)
     }
 
     @Bean
@@ -536,7 +536,6 @@ AdminController {
             Book existingBook = existingBookOpt.get();
 
             existingBook.setTitle(bookFromForm.getTitle());
-            existingBook.setStockQuantity(bookFromForm.getStockQuantity());
             existingBook.setAuthors(bookFromForm.getAuthors());
             existingBook.setDescription(bookFromForm.getDescription());
             existingBook.setSellingPrice(bookFromForm.getSellingPrice());
@@ -548,13 +547,15 @@ AdminController {
             existingBook.setOriginalPrice(bookFromForm.getOriginalPrice());
 
             // Xử lý upload ảnh mới nếu có
+            String previousCoverUrl = existingBook.getCoverImgUrl();
+            String uploadedCoverUrl = null;
             if (coverImageFile != null && !coverImageFile.isEmpty()) {
                 try {
                     // Use FileStorageService for consistent upload handling
-                    String imageUrl = fileStorageService.storeFile(coverImageFile, "book-covers");
+                    uploadedCoverUrl = fileStorageService.storeFile(coverImageFile, "book-covers");
 
                     // Cập nhật đường dẫn ảnh mới cho sách
-                    existingBook.setCoverImgUrl(imageUrl);
+                    existingBook.setCoverImgUrl(uploadedCoverUrl);
 
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -564,7 +565,20 @@ AdminController {
             }
             // Nếu không có tệp mới, đường dẫn ảnh cũ sẽ được giữ nguyên
 
-            bookService.save(existingBook);
+            try {
+                bookService.save(existingBook);
+            } catch (RuntimeException e) {
+                // Ảnh vừa tải lên không được gắn vào sách: trả lại tham chiếu storeFile đã lấy
+                fileStorageService.release(uploadedCoverUrl);
+                throw e;
+            }
+            if (bookFromForm.getStockQuantity() != null) {
+                bookService.setStockQuantity(bookId, bookFromForm.getStockQuantity());
+            }
+            // Tải lên luôn lấy một tham chiếu mới (kể cả khi trùng nội dung ảnh cũ) nên ảnh cũ luôn được trả lại
+            if (uploadedCoverUrl != null) {
+                fileStorageService.release(previousCoverUrl);
+            }
             redirectAttributes.addFlashAttribute("successMessage", "Book updated successfully!");
         } else {
             redirectAttributes.addFlashAttribute("errorMessage", "Book not found!");
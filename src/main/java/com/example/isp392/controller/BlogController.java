@@ -318,12 +318,23 @@ public class BlogController {
             existingBlog.setUser(currentUser); // vẫn gán lại user
 
             // Nếu người dùng upload ảnh mới, lưu ảnh và cập nhật imageUrl
+            String previousImageUrl = existingBlog.getImageUrl();
+            String uploadedImageUrl = null;
             if (imageFile != null && !imageFile.isEmpty()) {
-                String imageUrl = fileStorageService.storeFile(imageFile, "blogs");
-                existingBlog.setImageUrl(imageUrl);
+                uploadedImageUrl = fileStorageService.storeFile(imageFile, "blogs");
+                existingBlog.setImageUrl(uploadedImageUrl);
             }
 
-            blogService.save(existingBlog); // hoặc blogRepository.save(existingBlog)
+            try {
+                blogService.save(existingBlog); // hoặc blogRepository.save(existingBlog)
+            } catch (RuntimeException e) {
+                fileStorageService.release(uploadedImageUrl);
+                throw e;
+            }
+            // Ảnh tải lên có tham chiếu riêng kể cả khi trùng ảnh hiện tại, nên ảnh cũ luôn được trả lại
+            if (uploadedImageUrl != null) {
+                fileStorageService.release(previousImageUrl);
+            }
 
             redirectAttributes.addFlashAttribute("success", "Blog post updated successfully!");
             return "redirect:/blog/" + blogId;
@@ -1,5 +1,6 @@
 package com.example.isp392.controller;
 
+import com.example.isp392.config.ChatConfig;
 import com.example.isp392.model.ChatMessage;
 import com.example.isp392.model.ChatSession;
 import com.example.isp392.model.User;
@@ -9,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.ui.Model;
 import org.springframework.security.core.Authentication;
@@ -18,11 +20,15 @@ import org.springframework.security.oauth2.client.authentication.OAuth2Authentic
 import org.springframework.security.oauth2.core.user.OAuth2User;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * REST Controller for chat functionality
@@ -35,11 +41,13 @@ public class ChatController {
 
     private final ChatService chatService;
     private final UserService userService;
+    private final ChatConfig chatConfig;
 
     @Autowired
-    public ChatController(ChatService chatService, UserService userService) {
+    public ChatController(ChatService chatService, UserService userService, ChatConfig chatConfig) {
         this.chatService = chatService;
         this.userService = userService;
+        this.chatConfig = chatConfig;
     }
 
     /**
@@ -102,6 +110,84 @@ public class ChatController {
         }
     }
 
+    /**
+     * Send a message and stream the reply as server-sent events.
+     * Events: "session" (token), "token" (text fragment), "done" (final cleaned message) or "error".
+     * The request thread returns immediately; the reply is produced on the chat stream executor.
+     */
+    @PostMapping(value = "/api/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    public SseEmitter streamMessage(@RequestBody Map<String, String> payload) {
+        SseEmitter emitter = new SseEmitter(chatConfig.getStreamTimeoutMs());
+
+        String message = payload.get("message");
+        if (message == null || message.trim().isEmpty()) {
+            return failStream(emitter, "Message cannot be empty");
+        }
+        if (message.length() > 2000) {
+            return failStream(emitter, "Message too long. Please keep it under 2000 characters.");
+        }
+
+        // Lấy người dùng trên luồng request vì SecurityContext không có ở luồng xử lý nền
+        User user = getAuthenticatedUser();
+        if (user == null) {
+            return failStream(emitter, "Bạn cần đăng nhập để sử dụng chatbot");
+        }
+
+        String requestedToken = payload.get("sessionToken");
+        String sessionToken = requestedToken == null || requestedToken.trim().isEmpty()
+                ? chatService.generateSessionToken()
+                : requestedToken;
+        sendEvent(emitter, "session", Map.of("sessionToken", sessionToken));
+
+        try {
+            CompletableFuture<String> reply = chatService.streamMessage(message.trim(), sessionToken, user,
+                    chunk -> sendEvent(emitter, "token", Map.of("text", chunk)));
+
+            // Client ngắt kết nối hoặc hết thời gian chờ: dừng đọc luồng từ mô hình thay vì chạy đến hết
+            emitter.onTimeout(() -> reply.cancel(false));
+            emitter.onError(error -> reply.cancel(false));
+            emitter.onCompletion(() -> reply.cancel(false));
+
+            reply.whenComplete((botResponse, error) -> {
+                if (reply.isCancelled()) {
+                    return;
+                }
+                if (error != null) {
+                    logger.error("Error streaming chat message: {}", error.getMessage(), error);
+                    failStream(emitter, "An error occurred while processing your message");
+                    return;
+                }
+                Map<String, Object> done = new HashMap<>();
+                done.put("message", botResponse);
+                done.put("sessionToken", sessionToken);
+                done.put("timestamp", LocalDateTime.now().toString());
+                sendEvent(emitter, "done", done);
+                emitter.complete();
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Chat stream executor is saturated, rejecting message for session {}", sessionToken);
+            return failStream(emitter, "Hệ thống đang bận, vui lòng thử lại sau giây lát");
+        }
+
+        return emitter;
+    }
+
+    private SseEmitter failStream(SseEmitter emitter, String message) {
+        sendEvent(emitter, "error", Map.of("message", message));
+        emitter.complete();
+        return emitter;
+    }
+
+    private void sendEvent(SseEmitter emitter, String name, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data));
+        } catch (IOException | IllegalStateException e) {
+            // Client đã đóng kết nối; phản hồi vẫn được lưu khi stream kết thúc
+            logger.debug("Could not send '{}' event: {}", name, e.getMessage());
+        }
+    }
+
     /**
      * Get chat history for a session
      */
@@ -1,19 +1,14 @@
 package com.example.isp392.controller;
 
 import com.example.isp392.model.User;
+import com.example.isp392.service.UserPrincipalCache;
 import com.example.isp392.service.UserService;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.authentication.OAuth2AuthenticationToken;
 import org.springframework.security.oauth2.core.user.OAuth2User;
 
-import com.example.isp392.model.Blog;
-import com.example.isp392.model.Book;
-import com.example.isp392.model.Category;
-import com.example.isp392.repository.CategoryRepository;
-import com.example.isp392.service.BlogService;
-import com.example.isp392.service.BookService;
-import org.springframework.data.domain.Page;
+import com.example.isp392.service.HomepageSectionCache;
 
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -21,8 +16,8 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
+import java.util.ArrayList;
 import java.util.Optional;
-import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,18 +30,13 @@ public class HomepageController {
     private static final Logger log = LoggerFactory.getLogger(HomepageController.class);
     
     private final UserService userService;
-    private final BookService bookService;
-    private final CategoryRepository categoryRepository;
-    private final BlogService blogService;
+    private final HomepageSectionCache homepageSectionCache;
 
     /**
      * Constructor with explicit dependency injection
      */
-    public HomepageController(BookService bookService, CategoryRepository categoryRepository, 
-                             BlogService blogService, UserService userService) {
-        this.bookService = bookService;
-        this.categoryRepository = categoryRepository;
-        this.blogService = blogService;
+    public HomepageController(HomepageSectionCache homepageSectionCache, UserService userService) {
+        this.homepageSectionCache = homepageSectionCache;
         this.userService = userService;
     }
 
@@ -60,25 +50,19 @@ public class HomepageController {
         // Load user information if authenticated
         loadAuthenticatedUserInfo(model);
         
-        // Get top rated books (People's Choice)
-        List<Book> topRatedBooks = bookService.getTopRatedBooks(5);
-        model.addAttribute("topRatedBooks", topRatedBooks);
+        // Homepage sections are served from memory and refreshed in the background
+        HomepageSectionCache.Sections sections = homepageSectionCache.getSections();
 
-        // Get new additions
-        List<Book> newAdditions = bookService.getNewAdditions(5);
-        model.addAttribute("newAdditions", newAdditions);
+        // Top rated books (People's Choice), new additions and discounted books
+        model.addAttribute("topRatedBooks", sections.getTopRatedBooks());
+        model.addAttribute("newAdditions", sections.getNewAdditions());
+        model.addAttribute("discountedBooks", sections.getDiscountedBooks());
 
-        // Get discounted books
-        List<Book> discountedBooks = bookService.getDiscountedBooks(5);
-        model.addAttribute("discountedBooks", discountedBooks);
-
-        // Get active categories
-        List<Category> categories = categoryRepository.findByIsActiveTrue();
-        model.addAttribute("categories", categories);
+        // Active categories
+        model.addAttribute("categories", sections.getCategories());
         
-        // Get recent blog posts
-        Page<Blog> recentBlogs = blogService.getBlogsSorted("latest", 0, 4);
-        model.addAttribute("recentBlogs", recentBlogs.getContent());
+        // Recent blog posts
+        model.addAttribute("recentBlogs", sections.getRecentBlogs());
 
         return "home";
     }
@@ -113,19 +97,19 @@ public class HomepageController {
                 log.info("Form login user detected: {}", email);
             }
             
-            // Find user by email in the database
-            Optional<User> userOptional = userService.findByEmail(email);
+            // Resolve user from the principal cache (the entity is only loaded if the page renders its details)
+            Optional<UserPrincipalCache.Principal> principalOptional = userService.findPrincipal(email);
             
             // Add user and roles to model if found
-            if (userOptional.isPresent()) {
-                User user = userOptional.get();
+            if (principalOptional.isPresent()) {
+                UserPrincipalCache.Principal principal = principalOptional.get();
+                User user = userService.getUserReference(principal.getUserId());
                 model.addAttribute("user", user);
-                model.addAttribute("userRoles", userService.getUserRoles(user));
+                model.addAttribute("userRoles", new ArrayList<>(principal.getRoles()));
                 model.addAttribute("isOAuth2User", isOAuth2User);
                 
                 // Debug user information
-                log.info("User loaded: id={}, name={}", 
-                        user.getUserId(), user.getFullName());
+                log.info("User loaded: id={}", user.getUserId());
             } else {
                 log.warn("No user found for email: {}", email);
             }
@@ -1,9 +1,13 @@
 package com.example.isp392.controller;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -17,6 +21,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,14 +62,17 @@ import com.example.isp392.model.OrderItem;
 import com.example.isp392.model.OrderStatus;
 import com.example.isp392.model.Shop;
 import com.example.isp392.model.User;
+import com.example.isp392.service.BookImportService;
 import com.example.isp392.service.BookReviewService;
 import com.example.isp392.service.BookService;
 import com.example.isp392.service.CategoryService;
 import com.example.isp392.service.DataImportExportService;
 import com.example.isp392.service.EmailService;
+import com.example.isp392.service.FileStorageService;
 import com.example.isp392.service.OrderService;
 import com.example.isp392.service.OtpService;
 import com.example.isp392.service.PublisherService;
+import com.example.isp392.service.SellerDashboardService;
 import com.example.isp392.service.ShopService;
 import com.example.isp392.service.UserService;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -89,6 +97,9 @@ public class SellerController {
     private final EmailService emailService;
     private final DataImportExportService dataImportExportService;
     private final BookReviewService bookReviewService;
+    private final SellerDashboardService sellerDashboardService;
+    private final FileStorageService fileStorageService;
+    private final BookImportService bookImportService;
 
     /**
      * Constructor for dependency injection
@@ -102,7 +113,8 @@ public class SellerController {
     public SellerController(UserService userService, BookService bookService, ShopService shopService,
                             CategoryService categoryService, PublisherService publisherService,
                             OrderService orderService, OtpService otpService, EmailService emailService, DataImportExportService dataImportExportService
-            , BookReviewService bookReviewService) {
+            , BookReviewService bookReviewService, SellerDashboardService sellerDashboardService,
+                            FileStorageService fileStorageService, BookImportService bookImportService) {
         this.userService = userService;
         this.bookService = bookService;
         this.shopService = shopService;
@@ -113,6 +125,9 @@ public class SellerController {
         this.emailService = emailService;
         this.dataImportExportService = dataImportExportService;
         this.bookReviewService = bookReviewService;
+        this.sellerDashboardService = sellerDashboardService;
+        this.fileStorageService = fileStorageService;
+        this.bookImportService = bookImportService;
     }
 
     @GetMapping("/login")
@@ -162,38 +177,18 @@ public class SellerController {
                 return "seller/dashboard";
             }
 
-            // Get dashboard statistics from real data
-            // 1. Recent orders count (last 7 days)
-            int newOrdersCount = orderService.getNewOrdersCount(shop.getShopId(), 7);
+            // Get dashboard statistics from real data (widgets are loaded concurrently)
+            SellerDashboardService.Dashboard dashboard = sellerDashboardService.load(shop.getShopId());
+            int newOrdersCount = dashboard.getNewOrdersCount();
+            BigDecimal todayRevenue = dashboard.getTodayRevenue();
+            long activeProductsCount = dashboard.getActiveProductsCount();
+            List<Book> lowStockProducts = dashboard.getLowStockProducts();
+            List<Map<String, Object>> recentOrders = dashboard.getRecentOrders();
+            List<BigDecimal> weeklyRevenue = dashboard.getWeeklyRevenue();
 
-            // 2. Today's revenue
-            BigDecimal todayRevenue = orderService.getTodayRevenue(shop.getShopId());
-
-            // 3. Active products count
-            long activeProductsCount = bookService.countActiveBooksByShopId(shop.getShopId());
-
-            // 4. Low stock products
-            List<Book> lowStockProducts = bookService.findLowStockBooksByShopId(shop.getShopId(), 5);
-
-            // 5. Recent orders for activity feed
-            List<Map<String, Object>> recentOrders = orderService.getRecentOrders(shop.getShopId(), 5);
-
-            // 6. Weekly revenue data for chart
-            List<BigDecimal> weeklyRevenue = orderService.getWeeklyRevenue(shop.getShopId());
-
-            // NEW: Get total revenue and total orders for the shop (all time)
-            LocalDate registrationDate;
-            LocalDateTime regDateTime = shopService.getRegistrationDateByShopId(shop.getShopId());
-            if (regDateTime != null) {
-                registrationDate = regDateTime.toLocalDate();
-            } else {
-                registrationDate = LocalDate.of(2000, 1, 1);
-            }
-            LocalDate now = LocalDate.now();
-            BigDecimal totalRevenue = orderService.getTotalRevenue(shop.getShopId(), registrationDate, now);
-            Long totalOrders = orderService.getTotalOrders(shop.getShopId(), registrationDate, now);
-            if (totalRevenue == null) totalRevenue = BigDecimal.ZERO;
-            if (totalOrders == null) totalOrders = 0L;
+            // Total revenue and total orders for the shop (all time)
+            BigDecimal totalRevenue = dashboard.getTotalRevenue();
+            long totalOrders = dashboard.getTotalOrders();
             BigDecimal averageOrderValue = BigDecimal.ZERO;
             if (totalOrders > 0) {
                 averageOrderValue = totalRevenue.divide(BigDecimal.valueOf(totalOrders), 0, RoundingMode.HALF_UP);
@@ -201,8 +196,8 @@ public class SellerController {
             model.addAttribute("averageOrderValue", averageOrderValue);
 
             // Views: total and per-product
-            int totalViews = bookService.getTotalViewsByShopId(shop.getShopId());
-            List<Map<String, Object>> productViews = bookService.getViewsByProductInShop(shop.getShopId());
+            int totalViews = dashboard.getTotalViews();
+            List<Map<String, Object>> productViews = dashboard.getProductViews();
             model.addAttribute("totalViews", totalViews);
             model.addAttribute("productViews", productViews);
             // For chart.js: push product titles and views as JSON arrays
@@ -1152,8 +1147,13 @@ public class SellerController {
                 return "seller/seller-add-product";
             }
 
-            // Create the book
-            Book createdBook = bookService.createBook(bookForm, coverImageUrl);
+            // Create the book; if that fails, drop the reference storeFile took for the new cover
+            try {
+                bookService.createBook(bookForm, coverImageUrl);
+            } catch (RuntimeException e) {
+                fileStorageService.release(coverImageUrl);
+                throw e;
+            }
 
             // Add success message
             redirectAttributes.addFlashAttribute("successMessage", "Product added successfully!");
@@ -1350,7 +1350,18 @@ public class SellerController {
             }
 
             // Update the book
-            bookService.updateBook(id, bookForm, coverImageUrl);
+            String previousCoverUrl = book.getCoverImgUrl();
+            try {
+                bookService.updateBook(id, bookForm, coverImageUrl);
+            } catch (RuntimeException e) {
+                fileStorageService.release(coverImageUrl);
+                throw e;
+            }
+            // storeFile took its own reference for the upload, even when it has the same content as
+            // the current cover, so the previous cover's reference is always given back
+            if (coverImageUrl != null) {
+                fileStorageService.release(previousCoverUrl);
+            }
 
             // Add success message
             redirectAttributes.addFlashAttribute("successMessage", "Product updated successfully!");
@@ -1472,7 +1483,8 @@ public class SellerController {
     }
 
     /**
-     * Handle file upload for product images
+     * Handle file upload for product images.
+     * Ảnh gốc được lưu nguyên, các bản thu nhỏ (thumb/card/detail) được tạo ở nền.
      *
      * @param file File to upload
      * @param subDirectory Subdirectory to save the file in
@@ -1480,65 +1492,7 @@ public class SellerController {
      * @throws IOException If file upload fails
      */
     private String handleFileUpload(MultipartFile file, String subDirectory) throws IOException {
-        // Generate unique filename
-        String originalFilename = file.getOriginalFilename();
-        String extension = "";
-        if (originalFilename != null && originalFilename.contains(".")) {
-            extension = originalFilename.substring(originalFilename.lastIndexOf(".") + 1).toLowerCase();
-        }
-        String fileName = System.currentTimeMillis() + "_" +
-                (originalFilename != null ? originalFilename : "file.jpg");
-
-        // Get upload directory path - use project root uploads directory to match resource handler
-        String uploadDir = System.getProperty("user.dir") + "/uploads/" + subDirectory + "/";
-        File uploadDirectory = new File(uploadDir);
-        if (!uploadDirectory.exists()) {
-            uploadDirectory.mkdirs();
-        }
-
-        // Check if image resizing is needed
-        byte[] fileBytes = file.getBytes();
-        if (file.getContentType() != null && file.getContentType().startsWith("image/")) {
-            // Determine image format
-            String format = extension;
-            if (format.isEmpty() || !isValidImageFormat(format)) {
-                format = "jpg"; // Default to jpg if unknown format
-            }
-
-            try {
-                // Try to resize the image
-                log.debug("Attempting to resize image: {} ({} bytes)", fileName, fileBytes.length);
-                fileBytes = com.example.isp392.config.FileUploadConfig.resizeImage(fileBytes, format);
-                log.debug("Image resized: {} ({} bytes)", fileName, fileBytes.length);
-            } catch (Exception e) {
-                // If resize fails, use original
-                log.error("Error resizing image: {}", e.getMessage());
-            }
-        }
-
-        // Save file to server
-        java.nio.file.Path destPath = java.nio.file.Path.of(uploadDir + File.separator + fileName);
-        java.nio.file.Files.write(destPath, fileBytes);
-        log.debug("File saved to: {}", destPath);
-
-        // Return URL that will be mapped by resource handler
-        return "/uploads/" + subDirectory + "/" + fileName;
-    }
-
-    /**
-     * Check if the format is a valid image format
-     *
-     * @param format File extension or format string
-     * @return true if valid image format
-     */
-    private boolean isValidImageFormat(String format) {
-        String[] validFormats = {"jpg", "jpeg", "png", "gif", "webp"};
-        for (String validFormat : validFormats) {
-            if (validFormat.equalsIgnoreCase(format)) {
-                return true;
-            }
-        }
-        return false;
+        return fileStorageService.storeFile(file, subDirectory);
     }
 
     @GetMapping("/cart")
@@ -1584,7 +1538,7 @@ public class SellerController {
         } else {
             username = principal.toString();
         }
-        return userService.findByEmailDirectly(username);
+        return userService.findUserReferenceByEmail(username).orElse(null);
     }
 
     //all order
@@ -1603,7 +1557,7 @@ public class SellerController {
             Authentication authentication
     ) {
         UserDetails userDetails = (UserDetails) authentication.getPrincipal();
-        User seller = userService.findByEmail(userDetails.getUsername())
+        User seller = userService.findUserReferenceByEmail(userDetails.getUsername())
                 .orElseThrow(() -> new RuntimeException("Seller not found"));
         Integer sellerId = seller.getUserId();
 
@@ -1667,7 +1621,7 @@ public class SellerController {
             Authentication authentication
     ) {
         UserDetails userDetails = (UserDetails) authentication.getPrincipal();
-        User seller = userService.findByEmail(userDetails.getUsername())
+        User seller = userService.findUserReferenceByEmail(userDetails.getUsername())
                 .orElseThrow(() -> new RuntimeException("Seller not found"));
 
         // Convert dates
@@ -1715,7 +1669,7 @@ public class SellerController {
                                     RedirectAttributes redirectAttributes) {
 
         UserDetails userDetails = (UserDetails) authentication.getPrincipal();
-        User seller = userService.findByEmail(userDetails.getUsername())
+        User seller = userService.findUserReferenceByEmail(userDetails.getUsername())
                 .orElseThrow(() -> new RuntimeException("Seller not found"));
 
         Optional<Order> orderOptional = orderService.findOrderByIdForSeller(orderId, seller.getUserId());
@@ -1744,7 +1698,7 @@ public class SellerController {
     public String showPrintLabelPage(@PathVariable("id") Integer orderId, Model model, Authentication authentication, RedirectAttributes redirectAttributes) {
         // 1. Lấy thông tin người bán đang đăng nhập
         UserDetails userDetails = (UserDetails) authentication.getPrincipal();
-        User seller = userService.findByEmail(userDetails.getUsername())
+        User seller = userService.findUserReferenceByEmail(userDetails.getUsername())
                 .orElseThrow(() -> new RuntimeException("Seller not found"));
 
         // 2. Tìm đơn hàng, đảm bảo đơn hàng này thuộc về người bán đang đăng nhập
@@ -1817,6 +1771,7 @@ public class SellerController {
 
     /**
      * 2. Handles the import of products for the seller's shop from a CSV file.
+     * The import runs in the background; the page polls its progress by job ID.
      */
     @PostMapping("/data-management/import/products")
     public String importProducts(@RequestParam("file") MultipartFile file, RedirectAttributes redirectAttributes) {
@@ -1837,9 +1792,12 @@ public class SellerController {
                 return "redirect:/seller/data-management";
             }
 
-            dataImportExportService.importBooksFromCsvForSeller(file, shop.getShopId());
-            redirectAttributes.addFlashAttribute("successMessage", "Products imported successfully!");
+            BookImportService.ImportJob job = bookImportService.submit(file, shop.getShopId());
+            redirectAttributes.addFlashAttribute("importJobId", job.getJobId());
+            redirectAttributes.addFlashAttribute("successMessage", "Import started. Progress is shown below.");
 
+        } catch (IllegalStateException e) {
+            redirectAttributes.addFlashAttribute("errorMessage", e.getMessage());
         } catch (IOException e) {
             log.error("Error processing CSV file during import: {}", e.getMessage());
             redirectAttributes.addFlashAttribute("errorMessage", "Error processing file: " + e.getMessage());
@@ -1850,13 +1808,44 @@ public class SellerController {
         return "redirect:/seller/data-management";
     }
 
+    /**
+     * Progress and per-row errors of a product import job of the current seller's shop
+     */
+    @GetMapping("/data-management/import/jobs/{jobId}")
+    @ResponseBody
+    public Map<String, Object> getImportJob(@PathVariable String jobId) {
+        Map<String, Object> response = new HashMap<>();
+        User currentUser = getCurrentUser();
+        Shop shop = currentUser != null ? shopService.getShopByUserId(currentUser.getUserId()) : null;
+        BookImportService.ImportJob job = shop != null ? bookImportService.getJob(jobId, shop.getShopId()) : null;
+        if (job == null) {
+            response.put("success", false);
+            response.put("message", "Import job not found.");
+            return response;
+        }
+
+        response.put("success", true);
+        response.put("jobId", job.getJobId());
+        response.put("fileName", job.getFileName());
+        response.put("status", job.getStatus());
+        response.put("finished", job.isFinished());
+        response.put("message", job.getMessage());
+        response.put("totalRows", job.getTotalRows());
+        response.put("processedRows", job.getProcessedRows());
+        response.put("importedRows", job.getImportedRows());
+        response.put("skippedRows", job.getSkippedRows());
+        response.put("failedRows", job.getFailedRows());
+        response.put("progressPercent", job.getProgressPercent());
+        response.put("errors", job.getErrors());
+        return response;
+    }
+
     /**
      * 3. Handles the export of the seller's products to a CSV file.
      */
     @GetMapping("/data-management/export/products")
-    public void exportProducts(HttpServletResponse response) {
+    public void exportProducts(HttpServletResponse response, @RequestParam(defaultValue = "false") boolean gzip) {
         response.setContentType("text/csv; charset=UTF-8");
-        response.setHeader("Content-Disposition", "attachment; filename=\"my_products_export_" + LocalDate.now() + ".csv\"");
 
         try {
             // FIX: Robustly get the shop ID for the current user.
@@ -1872,7 +1861,10 @@ public class SellerController {
                 return;
             }
 
-            dataImportExportService.exportBooksToCsvForSeller(response.getWriter(), shop.getShopId());
+            try (Writer writer = openExportWriter(response, "my_products_export_" + LocalDate.now(), gzip)) {
+                long rows = dataImportExportService.exportBooksToCsvForSeller(writer, shop.getShopId());
+                log.info("Exported {} products for shop {}", rows, shop.getShopId());
+            }
 
         } catch (Exception e) {
             log.error("Error exporting products: {}", e.getMessage(), e);
@@ -1883,9 +1875,8 @@ public class SellerController {
      * 4. Handles the export of the seller's orders to a CSV file.
      */
     @GetMapping("/data-management/export/orders")
-    public void exportOrders(HttpServletResponse response) {
+    public void exportOrders(HttpServletResponse response, @RequestParam(defaultValue = "false") boolean gzip) {
         response.setContentType("text/csv; charset=UTF-8");
-        response.setHeader("Content-Disposition", "attachment; filename=\"my_orders_export_" + LocalDate.now() + ".csv\"");
 
         try {
             User currentUser = getCurrentUser();
@@ -1900,12 +1891,31 @@ public class SellerController {
                 return;
             }
 
-            dataImportExportService.exportOrdersToCsvForSeller(response.getWriter(), shop.getShopId());
+            try (Writer writer = openExportWriter(response, "my_orders_export_" + LocalDate.now(), gzip)) {
+                long rows = dataImportExportService.exportOrdersToCsvForSeller(writer, shop.getShopId());
+                log.info("Exported {} orders for shop {}", rows, shop.getShopId());
+            }
 
         } catch (Exception e) {
             log.error("Error exporting orders: {}", e.getMessage(), e);
         }
     }
+
+    /**
+     * Mở luồng ghi file xuất CSV trực tiếp ra response (tùy chọn nén gzip).
+     * Dữ liệu được đẩy ra theo từng đoạn thay vì dựng toàn bộ file trong bộ nhớ.
+     */
+    private Writer openExportWriter(HttpServletResponse response, String baseName, boolean gzip) throws IOException {
+        if (gzip) {
+            response.setContentType("application/gzip");
+            response.setHeader("Content-Disposition", "attachment; filename=\"" + baseName + ".csv.gz\"");
+            // syncFlush để mỗi đoạn đã ghi được gửi ngay tới client
+            GZIPOutputStream out = new GZIPOutputStream(response.getOutputStream(), 8192, true);
+            return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + baseName + ".csv\"");
+        return new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+    }
     @ModelAttribute
     public void addCommonAttributes(Model model, Authentication authentication) {
         if (authentication != null && authentication.isAuthenticated()) {
@@ -0,0 +1,213 @@
+package com.example.isp392.controller;
+
+import com.example.isp392.service.FileStorageService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Phục vụ file trong thư mục uploads.
+ * File lưu theo nội dung (tên là SHA-256) có ETag mạnh lấy từ hash và được cache vĩnh viễn;
+ * file cũ dùng ETag yếu theo kích thước + thời điểm sửa. Hỗ trợ conditional GET và Range một đoạn.
+ * Nội dung được gửi bằng sendfile của Tomcat khi connector hỗ trợ, ngược lại bằng FileChannel.transferTo.
+ */
+@Controller
+public class UploadController {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadController.class);
+
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String LEGACY_CACHE_CONTROL = "public, max-age=86400";
+
+    // Thuộc tính request của Tomcat cho sendfile (org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private final FileStorageService fileStorageService;
+    private final long sendfileMinBytes;
+
+    public UploadController(FileStorageService fileStorageService,
+                            @Value("${upload.serve.sendfile-min-bytes:49152}") long sendfileMinBytes) {
+        this.fileStorageService = fileStorageService;
+        this.sendfileMinBytes = sendfileMinBytes;
+    }
+
+    @RequestMapping(value = "/uploads/**", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String url = UriUtils.decode(request.getRequestURI().substring(request.getContextPath().length()),
+                StandardCharsets.UTF_8);
+        Path file = fileStorageService.resolveUploadUrl(url);
+        if (file == null || !Files.isRegularFile(file)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String fileName = file.getFileName().toString();
+        boolean immutable = FileStorageService.isContentAddressed(fileName);
+        String etag = immutable
+                ? "\"" + fileName.substring(0, fileName.contains(".") ? fileName.lastIndexOf('.') : fileName.length()) + "\""
+                : "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+        String contentType = request.getServletContext().getMimeType(fileName);
+        response.setContentType(contentType != null ? contentType : "application/octet-stream");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, immutable ? IMMUTABLE_CACHE_CONTROL : LEGACY_CACHE_CONTROL);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (notModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && rangeApplies(request, etag)) {
+            long[] parsed = parseRange(range, length);
+            if (parsed == null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (parsed.length == 2) {
+                start = parsed[0];
+                end = parsed[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        long count = end - start + 1;
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        if (count >= sendfileMinBytes && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            // Tomcat tự gửi file từ kernel sau khi handler trả về, không đi qua bộ đệm của ứng dụng
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        } catch (IOException e) {
+            // Thường là client đóng kết nối giữa chừng
+            log.debug("Upload {} not fully sent: {}", url, e.getMessage());
+        }
+    }
+
+    private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            String opaque = stripWeak(etag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if ("*".equals(tag) || stripWeak(tag).equals(opaque)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = headerDate(request, HttpHeaders.IF_MODIFIED_SINCE);
+        // Header HTTP chỉ chính xác tới giây
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * If-Range: chỉ trả về một đoạn khi client còn giữ đúng phiên bản (so sánh ETag mạnh)
+     */
+    private static boolean rangeApplies(HttpServletRequest request, String etag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        return !etag.startsWith("W/") && ifRange.trim().equals(etag);
+    }
+
+    /**
+     * @return {start, end} (bao gồm end); mảng rỗng nếu header không hợp lệ hoặc có nhiều đoạn (trả cả file);
+     * null nếu đoạn yêu cầu nằm ngoài file
+     */
+    private static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // "bytes=-N": N byte cuối
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static long headerDate(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.example.isp392.controller;
 
+import com.example.isp392.config.CachingEmbeddingModel;
+import com.example.isp392.service.BookLockManager;
+import com.example.isp392.service.UserPrincipalCache;
 import com.example.isp392.service.VectorStoreService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -24,6 +28,15 @@ public class VectorStoreController {
     @Autowired
     private VectorStoreService vectorStoreService;
 
+    @Autowired
+    private EmbeddingModel embeddingModel;
+
+    @Autowired
+    private BookLockManager bookLockManager;
+
+    @Autowired
+    private UserPrincipalCache userPrincipalCache;
+
     /**
      * Admin Vector Store Management Page
      */
@@ -34,7 +47,7 @@ public class VectorStoreController {
     }
 
     /**
-     * Load tất cả sách vào Vector Store
+     * Bắt đầu load tất cả sách vào Vector Store ở nền; tiến độ được lấy qua /load-books/progress
      */
     @PostMapping("/api/admin/vectorstore/load-books")
     @PreAuthorize("hasRole('ADMIN')")
@@ -49,17 +62,15 @@ public class VectorStoreController {
                 return ResponseEntity.badRequest().body(response);
             }
 
-            vectorStoreService.loadBooksToVectorStore();
-            
-            int documentCount = vectorStoreService.getDocumentCount();
+            VectorStoreService.LoadProgress progress = vectorStoreService.startLoadBooks();
             
             response.put("success", true);
-            response.put("message", "Đã load sách vào Vector Store thành công");
-            response.put("documentCount", documentCount);
+            response.put("message", "Đã bắt đầu load sách vào Vector Store");
+            response.put("progress", progress.toMap());
             
-            logger.info("Admin đã load {} documents vào Vector Store", documentCount);
+            logger.info("Admin đã bắt đầu load sách vào Vector Store");
             
-            return ResponseEntity.ok(response);
+            return ResponseEntity.accepted().body(response);
             
         } catch (Exception e) {
             logger.error("Lỗi khi load sách vào Vector Store: {}", e.getMessage(), e);
@@ -69,6 +80,18 @@ public class VectorStoreController {
         }
     }
 
+    /**
+     * Tiến độ của lần load sách gần nhất
+     */
+    @GetMapping("/api/admin/vectorstore/load-books/progress")
+    @PreAuthorize("hasRole('ADMIN')")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getLoadProgress() {
+        Map<String, Object> response = vectorStoreService.getLoadProgress().toMap();
+        response.put("documentCount", vectorStoreService.getDocumentCount());
+        return ResponseEntity.ok(response);
+    }
+
     /**
      * Kiểm tra trạng thái Vector Store
      */
@@ -83,6 +106,11 @@ public class VectorStoreController {
         
         response.put("available", isAvailable);
         response.put("documentCount", documentCount);
+        if (embeddingModel instanceof CachingEmbeddingModel cachingModel) {
+            response.put("embeddingCache", cachingModel.getStats());
+        }
+        response.put("bookLocks", bookLockManager.getStats());
+        response.put("principalCache", userPrincipalCache.getStats());
         
         if (isAvailable) {
             response.put("message", "Vector Store đang hoạt động");
@@ -4,6 +4,7 @@ import com.example.isp392.dto.CartItemDTO;
 import com.example.isp392.dto.CheckoutDiscountBreakdown;
 import com.example.isp392.dto.OrderDTO;
 import com.example.isp392.model.*;
+import com.example.isp392.model.enums.WalletReferenceType;
 import com.example.isp392.service.*;
 import com.example.isp392.service.InventoryReservationService;
 import jakarta.servlet.http.HttpSession;
@@ -11,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Controller;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -45,6 +47,9 @@ public class ProcessCheckoutController {
     private final PaymentReservationService paymentReservationService;
     private final DiscountDistributionService discountDistributionService;
     private final PromotionCalculationService promotionCalculationService;
+    private final WalletService walletService;
+    private final FileStorageService fileStorageService;
+    private final TransactionTemplate transactionTemplate;
 
     public ProcessCheckoutController(UserService userService,
                                      UserAddressService userAddressService,
@@ -57,7 +62,10 @@ public class ProcessCheckoutController {
                                      InventoryReservationService inventoryReservationService,
                                      PaymentReservationService paymentReservationService,
                                      DiscountDistributionService discountDistributionService,
-                                     PromotionCalculationService promotionCalculationService) {
+                                     PromotionCalculationService promotionCalculationService,
+                                     WalletService walletService,
+                                     FileStorageService fileStorageService,
+                                     TransactionTemplate transactionTemplate) {
         this.userService = userService;
         this.userAddressService = userAddressService;
         this.orderService = orderService;
@@ -70,6 +78,9 @@ public class ProcessCheckoutController {
         this.paymentReservationService = paymentReservationService;
         this.discountDistributionService = discountDistributionService;
         this.promotionCalculationService = promotionCalculationService;
+        this.walletService = walletService;
+        this.fileStorageService = fileStorageService;
+        this.transactionTemplate = transactionTemplate;
     }
 
     @PostMapping("/process-checkout")
@@ -87,6 +98,10 @@ public class ProcessCheckoutController {
             return "redirect:/login";
         }
 
+        // Mã giảm giá đã giành lượt nhưng chưa gắn vào đơn hàng đã lưu; được trả lại ở finally
+        String reservedPromotionCode = null;
+        Integer reservedPromotionUserId = null;
+
         try {
             // Get current user
             String email = authentication.getName();
@@ -212,6 +227,20 @@ public class ProcessCheckoutController {
                 }
             }
 
+            // Take the promotion usage slot before anything is saved, so an exhausted code fails checkout
+            CheckoutDiscountBreakdown appliedPromotion = (CheckoutDiscountBreakdown) session.getAttribute("appliedPromotion");
+            if (appliedPromotion != null && appliedPromotion.isSuccess()) {
+                if (!promotionCalculationService.reservePromotionUsage(appliedPromotion.getPromoCode(), user.getUserId())) {
+                    logger.warn("COD: Promotion {} has no usage left for user {}", appliedPromotion.getPromoCode(), user.getUserId());
+                    session.removeAttribute("appliedPromotion");
+                    redirectAttributes.addFlashAttribute("errorMessage",
+                        "Mã giảm giá " + appliedPromotion.getPromoCode() + " đã hết lượt sử dụng. Vui lòng đặt hàng lại.");
+                    return "redirect:/buyer/checkout?error";
+                }
+                reservedPromotionCode = appliedPromotion.getPromoCode();
+                reservedPromotionUserId = user.getUserId();
+            }
+
             // Save the customer order first
             customerOrder = customerOrderService.save(customerOrder);
 
@@ -272,6 +301,8 @@ public class ProcessCheckoutController {
                     orderItem.setBookTitle(book.getTitle());
                     orderItem.setBookAuthors(book.getAuthors());
                     orderItem.setBookImageUrl(book.getCoverImgUrl());
+                    // The order history snapshot keeps the cover file alive if the seller replaces it
+                    fileStorageService.retain(book.getCoverImgUrl());
 
                     orderItems.add(orderItem);
                     subtotal = subtotal.add(orderItem.getSubtotal());
@@ -314,7 +345,6 @@ public class ProcessCheckoutController {
             }
 
             // Apply discount distribution if promotion exists in session
-            CheckoutDiscountBreakdown appliedPromotion = (CheckoutDiscountBreakdown) session.getAttribute("appliedPromotion");
             if (appliedPromotion != null && appliedPromotion.isSuccess() && !orders.isEmpty()) {
                 logger.info("Applying discount distribution for promotion code: {} across {} orders", appliedPromotion.getPromoCode(), orders.size());
 
@@ -397,15 +427,18 @@ public class ProcessCheckoutController {
             // Don't call setOrders() - orders are already added to the collection above
             customerOrder = customerOrderService.save(customerOrder);
 
-            // Record promotion usage if a promotion was applied
-            if (customerOrder.getPromotionCode() != null && !customerOrder.getPromotionCode().isEmpty()) {
+            // Record promotion usage if a promotion was applied; the slot now belongs to the saved order
+            if (customerOrder.getPromotionCode() != null && customerOrder.getPromotionCode().equals(reservedPromotionCode)) {
+                reservedPromotionCode = null;
                 try {
-                    promotionCalculationService.recordPromotionUsage(
+                    if (!promotionCalculationService.recordPromotionUsage(
                         customerOrder.getPromotionCode(),
                         user.getUserId(),
                         customerOrder.getCustomerOrderId(),
                         customerOrder.getDiscountAmount()
-                    );
+                    )) {
+                        throw new IllegalStateException("promotion no longer exists");
+                    }
                     logger.info("Successfully recorded promotion usage for code: {} by user: {} with customer order: {} and discount: {}",
                                customerOrder.getPromotionCode(), user.getUserId(),
                                customerOrder.getCustomerOrderId(), customerOrder.getDiscountAmount());
@@ -459,6 +492,11 @@ public class ProcessCheckoutController {
 
             redirectAttributes.addFlashAttribute("errorMessage", errorMessage);
             return "redirect:/buyer/checkout?error";
+        } finally {
+            // Đơn hàng không dùng mã (lỗi hoặc không phân bổ được giảm giá): trả lại lượt đã giành
+            if (reservedPromotionCode != null) {
+                promotionCalculationService.releasePromotionUsage(reservedPromotionCode, reservedPromotionUserId);
+            }
         }
     }
 
@@ -474,6 +512,10 @@ public class ProcessCheckoutController {
             return "redirect:/login";
         }
 
+        // Lượt dùng mã đã giành nhưng chưa được PaymentReservation giữ; được trả lại ở finally
+        String reservedPromotionCode = null;
+        Integer reservedPromotionUserId = null;
+
         try {
             // Get current user
             String email = authentication.getName();
@@ -551,6 +593,20 @@ public class ProcessCheckoutController {
             logger.info("VNPay: Final calculation - Subtotal: {}, Shipping: {}, Discount: {}, Final Total: {}",
                        subtotalAmount, totalShippingFee, totalDiscountAmount, finalTotalAmount);
 
+            // Take the promotion usage slot before the reservation is saved; it is held until payment
+            // succeeds and given back by InventoryReservationService if the payment fails or expires
+            if (orderDTO.getPromotionCode() != null) {
+                if (!promotionCalculationService.reservePromotionUsage(orderDTO.getPromotionCode(), user.getUserId())) {
+                    logger.warn("VNPay: Promotion {} has no usage left for user {}", orderDTO.getPromotionCode(), user.getUserId());
+                    session.removeAttribute("appliedPromotion");
+                    redirectAttributes.addFlashAttribute("errorMessage",
+                        "Mã giảm giá " + orderDTO.getPromotionCode() + " đã hết lượt sử dụng. Vui lòng đặt hàng lại.");
+                    return "redirect:/buyer/checkout?error";
+                }
+                reservedPromotionCode = orderDTO.getPromotionCode();
+                reservedPromotionUserId = user.getUserId();
+            }
+
             // Create payment reservation instead of order
             PaymentReservation paymentReservation = paymentReservationService.createVNPayReservation(
                 user, orderDTO, finalTotalAmount, totalShippingFee, totalDiscountAmount);
@@ -563,8 +619,12 @@ public class ProcessCheckoutController {
                 logger.info("VNPay: Reserving inventory for PaymentReservation ID: {}", paymentReservation.getReservationId());
                 inventoryReservationService.reserveInventoryForPayment(paymentReservation);
                 logger.info("VNPay: Successfully reserved inventory for PaymentReservation ID: {}", paymentReservation.getReservationId());
+                // From here the reservation's expiry or payment rollback gives the promotion slot back
+                reservedPromotionCode = null;
             } catch (Exception e) {
                 logger.error("VNPay: Failed to reserve inventory for PaymentReservation ID: {}", paymentReservation.getReservationId(), e);
+                // Không giữ được hàng: hủy reservation để nó không bị khôi phục như đang giữ hàng
+                paymentReservationService.cancelReservation(paymentReservation);
                 redirectAttributes.addFlashAttribute("errorMessage", "Một số sản phẩm đã hết hàng. Vui lòng thử lại.");
                 return "redirect:/buyer/cart";
             }
@@ -614,6 +674,10 @@ public class ProcessCheckoutController {
 
             redirectAttributes.addFlashAttribute("errorMessage", errorMessage);
             return "redirect:/buyer/checkout?error";
+        } finally {
+            if (reservedPromotionCode != null) {
+                promotionCalculationService.releasePromotionUsage(reservedPromotionCode, reservedPromotionUserId);
+            }
         }
     }
 
@@ -733,18 +797,32 @@ public class ProcessCheckoutController {
                 logger.info("VNPay payment successful for TxnRef: {}, creating order from reservation", vnpayTxnRef);
 
                 try {
-                    // Create CustomerOrder and Orders from PaymentReservation
-                    CustomerOrder customerOrder = createOrderFromReservation(paymentReservation, queryParams);
-
-                    // Confirm inventory reservation (permanently deduct inventory)
-                    inventoryReservationService.confirmReservationByTxnRef(vnpayTxnRef);
-
-                    // Mark payment reservation as confirmed
-                    paymentReservationService.confirmReservation(paymentReservation);
+                    // Claim the reserved stock and create the order in one transaction:
+                    // the order is never persisted without stock behind it
+                    CustomerOrder customerOrder = transactionTemplate.execute(status -> {
+                        if (!inventoryReservationService.claimPaymentReservation(paymentReservation)) {
+                            return null;
+                        }
+                        return createOrderFromReservation(paymentReservation, queryParams);
+                    });
+
+                    if (customerOrder == null) {
+                        // Late payment: the reservation expired and the stock went to other buyers
+                        refundUnfulfilledPayment(paymentReservation);
+                        session.removeAttribute("pendingReservationId");
+                        session.removeAttribute("pendingVnpayTxnRef");
+                        redirectAttributes.addFlashAttribute("errorMessage",
+                                "Thời gian giữ hàng đã hết và sản phẩm không còn đủ hàng. Số tiền đã thanh toán được hoàn vào ví của bạn.");
+                        return "redirect:/buyer/cart?error=reservation_expired";
+                    }
 
                     logger.info("VNPay: Successfully created order {} from payment reservation {}",
                                customerOrder.getCustomerOrderId(), paymentReservation.getReservationId());
 
+                    // Record promotion usage in its own transaction, after the paid order has committed:
+                    // a failed usage write must not roll the order back
+                    recordVnpayPromotionUsage(customerOrder, paymentReservation.getUser().getUserId());
+
                     // Remove items from cart (parse from reservation data)
                     try {
                         OrderDTO orderDTO = paymentReservationService.getOrderDTOFromReservation(paymentReservation);
@@ -770,9 +848,9 @@ public class ProcessCheckoutController {
                     logger.error("VNPay: Failed to create order from reservation after successful payment for TxnRef: {}", vnpayTxnRef, e);
 
                     // This is a critical error - payment succeeded but order creation failed
-                    // We need to handle this carefully
+                    // The order transaction rolled back; release the stock only if the reservation is still PENDING
+                    // (a repeated return for an already confirmed reservation must not cancel it)
                     try {
-                        paymentReservationService.cancelReservation(paymentReservation);
                         inventoryReservationService.rollbackReservationByTxnRef(vnpayTxnRef, paymentReservation);
                         logger.info("VNPay: Rolled back reservation after order creation failure for TxnRef: {}", vnpayTxnRef);
                     } catch (Exception rollbackException) {
@@ -807,6 +885,53 @@ public class ProcessCheckoutController {
         }
     }
 
+    /**
+     * Record the promotion usage of a committed VNPay order (the slot was reserved with the payment reservation)
+     */
+    private void recordVnpayPromotionUsage(CustomerOrder customerOrder, Integer userId) {
+        if (customerOrder.getPromotionCode() == null || customerOrder.getPromotionCode().isEmpty() ||
+            customerOrder.getDiscountAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            return;
+        }
+        try {
+            if (!promotionCalculationService.recordPromotionUsage(
+                customerOrder.getPromotionCode(),
+                userId,
+                customerOrder.getCustomerOrderId(),
+                customerOrder.getDiscountAmount()
+            )) {
+                throw new IllegalStateException("promotion no longer exists");
+            }
+            logger.info("Successfully recorded VNPay promotion usage for code: {} by user: {} with customer order: {} and discount: {}",
+                       customerOrder.getPromotionCode(), userId,
+                       customerOrder.getCustomerOrderId(), customerOrder.getDiscountAmount());
+        } catch (Exception e) {
+            logger.error("Failed to record VNPay promotion usage for code: {} by user: {}: {}",
+                       customerOrder.getPromotionCode(), userId, e.getMessage());
+            // Don't fail the order if usage tracking fails
+        }
+    }
+
+    /**
+     * Refund a VNPay payment that arrived after its reservation expired and whose stock could not be
+     * re-reserved. The amount is credited to the buyer's wallet; closing the reservation in the same
+     * transaction makes a replayed return URL a no-op.
+     */
+    private void refundUnfulfilledPayment(PaymentReservation paymentReservation) {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!inventoryReservationService.closeExpiredForRefund(paymentReservation)) {
+                logger.info("VNPay: Late payment for TxnRef: {} was already refunded", paymentReservation.getVnpayTxnRef());
+                return;
+            }
+            walletService.addFunds(paymentReservation.getUser(), paymentReservation.getTotalAmount(),
+                    "Hoàn tiền thanh toán VNPay " + paymentReservation.getVnpayTxnRef() + " (hết thời gian giữ hàng)",
+                    WalletReferenceType.SYSTEM_ADJUSTMENT, paymentReservation.getReservationId(), null);
+            logger.warn("VNPay: Refunded {} to wallet of user {} for unfulfilled late payment, TxnRef: {}",
+                       paymentReservation.getTotalAmount(), paymentReservation.getUser().getUserId(),
+                       paymentReservation.getVnpayTxnRef());
+        });
+    }
+
     /**
      * Create CustomerOrder and Orders from PaymentReservation after successful payment
      */
@@ -984,6 +1109,8 @@ public class ProcessCheckoutController {
                     orderItem.setBookTitle(book.getTitle());
                     orderItem.setBookAuthors(book.getAuthors());
                     orderItem.setBookImageUrl(book.getCoverImgUrl());
+                    // The order history snapshot keeps the cover file alive if the seller replaces it
+                    fileStorageService.retain(book.getCoverImgUrl());
 
                     orderItems.add(orderItem);
                     subtotal = subtotal.add(orderItem.getSubtotal());
@@ -1045,23 +1172,6 @@ public class ProcessCheckoutController {
                     logger.info("Successfully distributed VNPay discount of {} across {} orders using promotion: {}",
                                distributionResult.getTotalDiscountAmount(), orders.size(), customerOrder.getPromotionCode());
 
-                    // Record promotion usage for VNPay orders
-                    try {
-                        promotionCalculationService.recordPromotionUsage(
-                            customerOrder.getPromotionCode(),
-                            customerOrder.getUser().getUserId(),
-                            customerOrder.getCustomerOrderId(),
-                            customerOrder.getDiscountAmount()
-                        );
-                        logger.info("Successfully recorded VNPay promotion usage for code: {} by user: {} with customer order: {} and discount: {}",
-                                   customerOrder.getPromotionCode(), customerOrder.getUser().getUserId(),
-                                   customerOrder.getCustomerOrderId(), customerOrder.getDiscountAmount());
-                    } catch (Exception e) {
-                        logger.error("Failed to record VNPay promotion usage for code: {} by user: {}: {}",
-                                   customerOrder.getPromotionCode(), customerOrder.getUser().getUserId(), e.getMessage());
-                        // Don't fail the order if usage tracking fails
-                    }
-
                 } catch (Exception e) {
                     logger.error("Failed to apply VNPay discount distribution: {}", e.getMessage(), e);
                     // Continue without failing the order
@@ -0,0 +1,19 @@
+package com.example.isp392.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+/**
+ * Lightweight blog projection for the homepage, with the author name already resolved
+ */
+@Data
+@AllArgsConstructor
+public class HomepageBlogDTO {
+    private Integer blogId;
+    private String title;
+    private String imageUrl;
+    private LocalDateTime createdDate;
+    private String authorName;
+}
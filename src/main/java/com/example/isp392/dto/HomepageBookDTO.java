@@ -0,0 +1,20 @@
+package com.example.isp392.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * Lightweight book projection for homepage sections (no lazy associations)
+ */
+@Data
+@AllArgsConstructor
+public class HomepageBookDTO {
+    private Integer bookId;
+    private String title;
+    private String coverImgUrl;
+    private BigDecimal originalPrice;
+    private BigDecimal sellingPrice;
+    private BigDecimal averageRating;
+}
@@ -0,0 +1,14 @@
+package com.example.isp392.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Lightweight category projection for the homepage category strip
+ */
+@Data
+@AllArgsConstructor
+public class HomepageCategoryDTO {
+    private Integer categoryId;
+    private String categoryName;
+}
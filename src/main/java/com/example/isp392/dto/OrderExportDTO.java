@@ -0,0 +1,26 @@
+package com.example.isp392.dto;
+
+import com.example.isp392.model.OrderStatus;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Lightweight order projection for the seller CSV export (only the exported columns, no entities)
+ */
+@Data
+@AllArgsConstructor
+public class OrderExportDTO {
+    private Integer orderId;
+    private Integer userId;
+    private String customerName;
+    private LocalDateTime orderDate;
+    private BigDecimal totalAmount;
+    private OrderStatus orderStatus;
+    private String shippingAddressDetail;
+    private String shippingWard;
+    private String shippingDistrict;
+    private String shippingProvince;
+}
@@ -1,5 +1,6 @@
 package com.example.isp392.model;
 
+import com.example.isp392.service.HomepageSectionListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -12,6 +13,7 @@ import java.util.List;
 @Table(name = "blogs")
 @Getter
 @Setter
+@EntityListeners(HomepageSectionListener.class)
 public class Blog {
 
     @Id
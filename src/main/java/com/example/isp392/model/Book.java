@@ -1,6 +1,7 @@
 package com.example.isp392.model;
 
 
+import com.example.isp392.service.HomepageSectionListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -15,6 +16,7 @@ import java.util.Set;
 @Setter
 @Entity
 @Table(name = "books")
+@EntityListeners(HomepageSectionListener.class)
 public class Book {
 
     @Id
@@ -81,7 +83,8 @@ public class Book {
     @Column(name = "selling_price", precision = 18, scale = 0)
     private BigDecimal sellingPrice;
 
-    @Column(name = "stock_quantity")
+    // Chỉ được ghi qua StockLedger (chênh lệch theo lô, setStock khi sửa kho), không ghi đè khi lưu entity
+    @Column(name = "stock_quantity", updatable = false)
     private Integer stockQuantity;
 
     // Kiểm tra xem comment bài viết có bị khóa không?
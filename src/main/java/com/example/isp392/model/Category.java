@@ -1,6 +1,7 @@
 package com.example.isp392.model;
 
 
+import com.example.isp392.service.HomepageSectionListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -12,6 +13,7 @@ import java.util.Set;
 @Setter
 @Entity
 @Table(name = "categories")
+@EntityListeners(HomepageSectionListener.class)
 public class Category {
 
     @Id
@@ -1,5 +1,6 @@
 package com.example.isp392.model;
 
+import com.example.isp392.service.RevenueRollupListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -13,6 +14,7 @@ import java.util.List;
 @Setter
 @Entity
 @Table(name = "customer_orders")
+@EntityListeners(RevenueRollupListener.class)
 public class CustomerOrder {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -97,6 +99,10 @@ public class CustomerOrder {
     @Column(name = "notes", columnDefinition = "NVARCHAR(MAX)")
     private String notes;
 
+    // Hạn giữ hàng khi đơn chờ thanh toán; null khi không có giữ hàng nào đang mở
+    @Column(name = "reservation_expires_at")
+    private LocalDateTime reservationExpiresAt;
+
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
 
@@ -1,5 +1,6 @@
 package com.example.isp392.model;
 
+import com.example.isp392.service.RevenueRollupListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -14,6 +15,7 @@ import java.util.List;
 @Setter
 @Entity
 @Table(name = "orders")
+@EntityListeners(RevenueRollupListener.class)
 public class Order {
 
     @Id
@@ -1,5 +1,6 @@
 package com.example.isp392.model;
 
+import com.example.isp392.service.RevenueRollupListener;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
@@ -10,6 +11,7 @@ import java.math.BigDecimal;
 @Getter
 @Setter
 @Table(name = "order_items")
+@EntityListeners(RevenueRollupListener.class)
 public class OrderItem {
 
     @Id
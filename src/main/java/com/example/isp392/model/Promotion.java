@@ -128,7 +128,8 @@ public class Promotion {
     @Column(name = "total_usage_limit")
     private Integer totalUsageLimit;
 
-    @Column(name = "current_usage_count", nullable = false)
+    // Chỉ được tăng bởi PromotionQuotaService (ghi theo lô), không ghi đè khi lưu entity
+    @Column(name = "current_usage_count", nullable = false, updatable = false)
     private Integer currentUsageCount = 0;
 
     // Audit fields
@@ -39,6 +39,11 @@ public class Wallet {
     @Column(name = "updated_at")
     private LocalDateTime updatedAt;
     
+    // Optimistic locking: mỗi lần cập nhật số dư tăng version, tránh ghi đè giữa các instance
+    @Version
+    @Column(name = "version", nullable = false, columnDefinition = "BIGINT DEFAULT 0")
+    private Long version = 0L;
+    
     @OneToMany(mappedBy = "wallet", cascade = CascadeType.ALL, orphanRemoval = true, fetch = FetchType.LAZY)
     private List<WalletTransaction> transactions = new ArrayList<>();
     
@@ -1,6 +1,7 @@
 package com.example.isp392.repository;
 
 import com.example.isp392.model.Blog;
+import com.example.isp392.dto.HomepageBlogDTO;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -90,4 +91,8 @@ public interface BlogRepository extends JpaRepository<Blog, Integer>, JpaSpecifi
     @Query("SELECT b FROM Blog b WHERE b.blogId < :blogId ORDER BY b.blogId DESC")
     List<Blog> findPreviousBlog(@Param("blogId") int blogId, Pageable pageable);
     Page<Blog> findByTitleContainingIgnoreCase(String title, Pageable pageable);
+
+    @Query("SELECT new com.example.isp392.dto.HomepageBlogDTO(b.blogId, b.title, b.imageUrl, b.createdDate, u.fullName) " +
+           "FROM Blog b LEFT JOIN b.user u WHERE b.isLocked = false ORDER BY b.createdDate DESC")
+    List<HomepageBlogDTO> findLatestBlogSummaries(Pageable pageable);
 }
@@ -3,6 +3,7 @@ package com.example.isp392.repository;
 import com.example.isp392.model.Book;
 import com.example.isp392.model.BookReview;
 import com.example.isp392.model.Category;
+import com.example.isp392.dto.HomepageBookDTO;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -10,19 +11,32 @@ import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface BookRepository extends JpaRepository<Book, Integer>, JpaSpecificationExecutor<Book> {
     List<Book> findByIsActiveTrue();
+
+    /**
+     * Get the fields needed by the in-memory search index for all active books
+     * @return list of Object[]: [bookId, shopId, title, authors]
+     */
+    @Query("SELECT b.bookId, b.shop.shopId, b.title, b.authors FROM Book b WHERE b.isActive = true")
+    List<Object[]> findActiveBookSearchFields();
+
     /**
      * Find book by ID with pessimistic lock to prevent race conditions
      * This is used for inventory management to ensure atomic updates
@@ -108,6 +122,29 @@ public interface BookRepository extends JpaRepository<Book, Integer>, JpaSpecifi
 
     List<Book> findByShopShopId(Integer shopId);
 
+    /**
+     * Duyệt tiến toàn bộ sách của shop để xuất CSV (nhà xuất bản được nạp cùng, chỉ đọc).
+     * Phải dùng trong transaction và đóng Stream sau khi dùng.
+     *
+     * @param shopId ID of the shop
+     * @return stream of books ordered by ID
+     */
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT b FROM Book b LEFT JOIN FETCH b.publisher WHERE b.shop.shopId = :shopId ORDER BY b.bookId")
+    Stream<Book> streamByShopIdForExport(@Param("shopId") Integer shopId);
+
+    /**
+     * Tên danh mục của một nhóm sách, dùng khi xuất CSV theo từng đoạn
+     *
+     * @param bookIds IDs of the books
+     * @return rows of [bookId, categoryName]
+     */
+    @Query("SELECT b.bookId, c.categoryName FROM Book b JOIN b.categories c WHERE b.bookId IN :bookIds")
+    List<Object[]> findCategoryNamesByBookIds(@Param("bookIds") Collection<Integer> bookIds);
+
     /**
      * Count active books by shop ID
      *
@@ -376,4 +413,40 @@ public interface BookRepository extends JpaRepository<Book, Integer>, JpaSpecifi
         ORDER BY b.dateAdded DESC, b.averageRating DESC
         """)
     List<Book> findAllActiveWithCompleteInfo();
+
+    /**
+     * Find books by ID with the same associations as findAllActiveWithCompleteInfo,
+     * used by the vector store delta sync (inactive books are included so they can be removed)
+     */
+    @Query("""
+        SELECT DISTINCT b FROM Book b
+        LEFT JOIN FETCH b.categories c
+        LEFT JOIN FETCH b.shop s
+        LEFT JOIN FETCH b.publisher p
+        WHERE b.bookId IN :bookIds
+        """)
+    List<Book> findWithCompleteInfoByBookIdIn(@Param("bookIds") List<Integer> bookIds);
+
+    @Query("SELECT b.bookId FROM Book b WHERE b.isActive = true")
+    List<Integer> findActiveBookIds();
+
+    @Query("SELECT b.bookId FROM Book b WHERE b.shop.shopId = :shopId")
+    List<Integer> findBookIdsByShopId(@Param("shopId") Integer shopId);
+
+    // Tập ISBN của shop, nạp một lần cho mỗi lần nhập CSV
+    @Query("SELECT b.isbn FROM Book b WHERE b.shop.shopId = :shopId AND b.isbn IS NOT NULL")
+    List<String> findIsbnsByShopId(@Param("shopId") Integer shopId);
+
+    // Projection cho các mục trên trang chủ (không tải entity và quan hệ lazy)
+    @Query("SELECT new com.example.isp392.dto.HomepageBookDTO(b.bookId, b.title, b.coverImgUrl, b.originalPrice, b.sellingPrice, b.averageRating) " +
+           "FROM Book b WHERE b.isActive = true ORDER BY b.averageRating DESC")
+    List<HomepageBookDTO> findTopRatedBookSummaries(Pageable pageable);
+
+    @Query("SELECT new com.example.isp392.dto.HomepageBookDTO(b.bookId, b.title, b.coverImgUrl, b.originalPrice, b.sellingPrice, b.averageRating) " +
+           "FROM Book b WHERE b.isActive = true ORDER BY b.dateAdded DESC")
+    List<HomepageBookDTO> findNewAdditionSummaries(Pageable pageable);
+
+    @Query("SELECT new com.example.isp392.dto.HomepageBookDTO(b.bookId, b.title, b.coverImgUrl, b.originalPrice, b.sellingPrice, b.averageRating) " +
+           "FROM Book b WHERE b.sellingPrice < b.originalPrice AND b.isActive = true")
+    List<HomepageBookDTO> findDiscountedBookSummaries(Pageable pageable);
 }
@@ -53,5 +53,8 @@ public interface BookReviewRepository extends JpaRepository<BookReview, Integer>
     // Tính điểm đánh giá trung bình của các đánh giá đã được duyệt cho một quyển sách
     @Query("SELECT AVG(CAST(br.rating AS double)) FROM BookReview br WHERE br.orderItem.book.bookId = :bookId AND br.isApproved = true")
     Double calculateAverageRatingByBookId(@Param("bookId") Integer bookId);
-}
 
+    // Điểm trung bình và số đánh giá đã duyệt của các sách đang bán trong một cửa hàng (một dòng: [avg, count])
+    @Query("SELECT AVG(CAST(br.rating AS double)), COUNT(br) FROM BookReview br JOIN br.orderItem oi JOIN oi.book b WHERE b.shop.shopId = :shopId AND b.isActive = true AND br.isApproved = true")
+    List<Object[]> calculateApprovedRatingByShopId(@Param("shopId") Integer shopId);
+}
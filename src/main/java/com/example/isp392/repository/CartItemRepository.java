@@ -14,4 +14,10 @@ public interface CartItemRepository extends JpaRepository<CartItem, Integer> {
     
     @Query("SELECT ci FROM CartItem ci JOIN FETCH ci.book b JOIN FETCH b.shop s WHERE ci.cart.user = :user AND ci.book.bookId IN :bookIds")
     List<CartItem> findByCartUserAndBookIds(@Param("user") User user, @Param("bookIds") List<Integer> bookIds);
+
+    /**
+     * Number of distinct items and total quantity in a user's cart, as a single row
+     */
+    @Query("SELECT COUNT(ci), COALESCE(SUM(ci.quantity), 0) FROM CartItem ci WHERE ci.cart.user.userId = :userId")
+    List<Object[]> summarizeByUserId(@Param("userId") Integer userId);
 }
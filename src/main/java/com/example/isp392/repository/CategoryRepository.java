@@ -1,9 +1,11 @@
 package com.example.isp392.repository;
 
 import com.example.isp392.model.Category;
+import com.example.isp392.dto.HomepageCategoryDTO;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -28,5 +30,7 @@ public interface CategoryRepository extends JpaRepository<Category, Integer> {
 
     Optional<Category> findByCategoryName(String categoryName);
     Optional<Category> findByCategoryNameIgnoreCase(String categoryName);
-}
 
+    @Query("SELECT new com.example.isp392.dto.HomepageCategoryDTO(c.categoryId, c.categoryName) FROM Category c WHERE c.isActive = true")
+    List<HomepageCategoryDTO> findActiveCategorySummaries();
+}
@@ -2,13 +2,16 @@ package com.example.isp392.repository;
 
 import com.example.isp392.model.CustomerOrder;
 import com.example.isp392.model.OrderStatus;
+import com.example.isp392.model.PaymentStatus;
 import com.example.isp392.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -67,6 +70,36 @@ public interface CustomerOrderRepository extends JpaRepository<CustomerOrder, In
     @Query("SELECT co FROM CustomerOrder co WHERE co.paymentStatus = 'PENDING' AND co.status != 'CANCELLED'")
     List<CustomerOrder> findPendingPaymentOrders();
     
+    /**
+     * Find orders that still hold a stock reservation (used to restore expiry timers at startup)
+     * @param status the order status
+     * @param paymentStatus the payment status
+     * @return list of customer orders with an open reservation
+     */
+    @Query("SELECT co FROM CustomerOrder co WHERE co.reservationExpiresAt IS NOT NULL " +
+           "AND co.status = :status AND co.paymentStatus = :paymentStatus")
+    List<CustomerOrder> findWithOpenReservation(@Param("status") OrderStatus status,
+                                                @Param("paymentStatus") PaymentStatus paymentStatus);
+
+    /**
+     * Set the reservation deadline of a customer order
+     * @param customerOrderId the customer order ID
+     * @param expiresAt the deadline
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE CustomerOrder co SET co.reservationExpiresAt = :expiresAt WHERE co.customerOrderId = :customerOrderId")
+    int openReservation(@Param("customerOrderId") Integer customerOrderId, @Param("expiresAt") LocalDateTime expiresAt);
+
+    /**
+     * Clear the reservation deadline if it is still set
+     * @param customerOrderId the customer order ID
+     * @return 1 if this call closed the reservation, 0 if it was already closed
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE CustomerOrder co SET co.reservationExpiresAt = NULL " +
+           "WHERE co.customerOrderId = :customerOrderId AND co.reservationExpiresAt IS NOT NULL")
+    int closeReservation(@Param("customerOrderId") Integer customerOrderId);
+
     /**
      * Find customer orders by status
      * @param status the order status
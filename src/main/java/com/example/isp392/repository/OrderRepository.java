@@ -1,5 +1,6 @@
 package com.example.isp392.repository;
 
+import com.example.isp392.dto.OrderExportDTO;
 import com.example.isp392.model.Order;
 import com.example.isp392.model.OrderStatus;
 import com.example.isp392.model.User;
@@ -8,8 +9,11 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
@@ -17,6 +21,7 @@ import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Repository interface for Order entity
@@ -60,8 +65,20 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
     List<Order> findRecentOrdersByUserId(@Param("userId") Integer userId, @Param("limit") int limit);
 
 
-    @Query("SELECT DISTINCT o FROM Order o JOIN o.orderItems oi JOIN oi.book b WHERE b.shop.shopId = :shopId")
-    List<Order> findOrdersByShopId(@Param("shopId") Integer shopId);
+    /**
+     * Duyệt tiến toàn bộ đơn hàng của shop để xuất CSV, chỉ lấy các cột được xuất (không nạp entity
+     * User nên không kéo theo giỏ hàng, shop, ví của khách).
+     * Phải dùng trong transaction và đóng Stream sau khi dùng.
+     *
+     * @param shopId ID of the shop
+     * @return stream of order export rows ordered by order ID
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT new com.example.isp392.dto.OrderExportDTO(o.orderId, u.userId, u.fullName, o.orderDate, o.totalAmount, " +
+            "o.orderStatus, co.shippingAddressDetail, co.shippingWard, co.shippingDistrict, co.shippingProvince) " +
+            "FROM Order o JOIN o.customerOrder co JOIN co.user u " +
+            "WHERE o.shop.shopId = :shopId ORDER BY o.orderId")
+    Stream<OrderExportDTO> streamByShopIdForExport(@Param("shopId") Integer shopId);
 
     /**
      * Find a specific order by ID and eagerly fetch its items.
@@ -155,99 +172,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
             "ORDER BY CONVERT(date, o.order_date)", nativeQuery = true)
     List<Map<String, Object>> getWeeklyRevenue(@Param("shopId") Integer shopId);
     
-    /**
-     * Get bestselling books by quantity sold
-     *
-     * @param shopId ID of the shop
-     * @param limit Maximum number of books to return
-     * @return List of bestselling books with sales data
-     */
-    @Query(value = "SELECT TOP(:limit) b.book_id, b.title, SUM(oi.quantity) as total_quantity, " +
-            "SUM(oi.unit_price * oi.quantity) as total_revenue " +
-            "FROM books b " +
-            "JOIN order_items oi ON b.book_id = oi.book_id " +
-            "JOIN orders o ON oi.order_id = o.order_id " +
-            "WHERE b.shop_id = :shopId " +
-            "AND o.order_status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "GROUP BY b.book_id, b.title " +
-            "ORDER BY SUM(oi.quantity) DESC", nativeQuery = true)
-    List<Map<String, Object>> getBestsellingBooksByQuantity(@Param("shopId") Integer shopId, @Param("limit") int limit);
-    
-    /**
-     * Get revenue data for daily periods
-     * 
-     * @param shopId ID of the shop
-     * @param startDate Start date of the period
-     * @param endDate End date of the period
-     * @return List of revenue data grouped by day
-     */
-    @Query(value = "SELECT " +
-            "CONVERT(varchar, CONVERT(date, o.order_date), 120) AS time_period, " +
-            "SUM(oi.unit_price * oi.quantity) AS revenue, " +
-            "COUNT(DISTINCT o.order_id) AS order_count " +
-            "FROM orders o " +
-            "JOIN order_items oi ON o.order_id = oi.order_id " +
-            "JOIN books b ON oi.book_id = b.book_id " +
-            "WHERE b.shop_id = :shopId " +
-            "AND o.order_date BETWEEN :startDate AND :endDate " +
-            "AND o.order_status = 'DELIVERED' " +
-            "GROUP BY CONVERT(varchar, CONVERT(date, o.order_date), 120) " +
-            "ORDER BY time_period", nativeQuery = true)
-    List<Map<String, Object>> getRevenueByDay(
-            @Param("shopId") Integer shopId,
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate);
-
-    /**
-     * Get revenue data for weekly periods
-     * 
-     * @param shopId ID of the shop
-     * @param startDate Start date of the period
-     * @param endDate End date of the period
-     * @return List of revenue data grouped by week
-     */
-    @Query(value = "SELECT " +
-            "CONCAT(YEAR(o.order_date), '-W', DATEPART(week, o.order_date)) AS time_period, " +
-            "SUM(oi.unit_price * oi.quantity) AS revenue, " +
-            "COUNT(DISTINCT o.order_id) AS order_count " +
-            "FROM orders o " +
-            "JOIN order_items oi ON o.order_id = oi.order_id " +
-            "JOIN books b ON oi.book_id = b.book_id " +
-            "WHERE b.shop_id = :shopId " +
-            "AND o.order_date BETWEEN :startDate AND :endDate " +
-            "AND o.order_status = 'DELIVERED' " +
-            "GROUP BY CONCAT(YEAR(o.order_date), '-W', DATEPART(week, o.order_date)) " +
-            "ORDER BY time_period", nativeQuery = true)
-    List<Map<String, Object>> getRevenueByWeek(
-            @Param("shopId") Integer shopId,
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate);
-
-    /**
-     * Get revenue data for monthly periods
-     *
-     * @param shopId ID of the shop
-     * @param startDate Start date of the period
-     * @param endDate End date of the period
-     * @return List of revenue data grouped by month
-     */
-    @Query(value = "SELECT " +
-            "CONCAT(YEAR(o.order_date), '-', FORMAT(o.order_date, 'MM')) AS time_period, " +
-            "SUM(oi.unit_price * oi.quantity) AS revenue, " +
-            "COUNT(DISTINCT o.order_id) AS order_count " +
-            "FROM orders o " +
-            "JOIN order_items oi ON o.order_id = oi.order_id " +
-            "JOIN books b ON oi.book_id = b.book_id " +
-            "WHERE b.shop_id = :shopId " +
-            "AND o.order_date BETWEEN :startDate AND :endDate " +
-            "AND o.order_status = 'DELIVERED' " +
-            "GROUP BY CONCAT(YEAR(o.order_date), '-', FORMAT(o.order_date, 'MM')) " +
-            "ORDER BY time_period", nativeQuery = true)
-    List<Map<String, Object>> getRevenueByMonth(
-            @Param("shopId") Integer shopId, 
-            @Param("startDate") LocalDate startDate, 
-            @Param("endDate") LocalDate endDate);
-    
     /**
      * Get recent orders for a shop
      * 
@@ -267,25 +191,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
             "ORDER BY o.order_date DESC", nativeQuery = true)
     List<Map<String, Object>> getRecentOrders(@Param("shopId") Integer shopId, @Param("limit") int limit);
 
-    /**
-     * Get geographic distribution of orders
-     *
-     * @param shopId ID of the shop
-     * @return List of regions with order counts
-     */
-    @Query(value = "SELECT " +
-            "COALESCE(co.shipping_province, 'Unknown') AS region, " +
-            "COUNT(DISTINCT o.order_id) AS order_count " +
-            "FROM orders o " +
-            "JOIN customer_orders co ON o.customer_order_id = co.customer_order_id " +
-            "JOIN order_items oi ON o.order_id = oi.order_id " +
-            "JOIN books b ON oi.book_id = b.book_id " +
-            "WHERE b.shop_id = :shopId " +
-            "AND o.order_status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "GROUP BY co.shipping_province " +
-            "ORDER BY COUNT(DISTINCT o.order_id) DESC", nativeQuery = true)
-    List<Map<String, Object>> getGeographicDistribution(@Param("shopId") Integer shopId);
-
     /**
      * Get total revenue of orders
      *
@@ -339,25 +244,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
            "WHERE status NOT IN ('CANCELLED', 'REFUNDED')",
            nativeQuery = true)
     BigDecimal calculateTotalOrderValue();
-    
-    /**
-     * Get monthly revenue for the platform
-     * 
-     * @param startDate Start date for the data
-     * @param endDate End date for the data
-     * @return List of monthly revenue data
-     */
-    @Query(value = "SELECT FORMAT(order_date, 'yyyy-MM') AS month, " +
-            "COALESCE(SUM(total_amount), 0) AS revenue " +
-            "FROM orders " +
-            "WHERE order_status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "AND order_date BETWEEN :startDate AND :endDate " +
-            "GROUP BY FORMAT(order_date, 'yyyy-MM') " +
-            "ORDER BY month",
-            nativeQuery = true)
-    List<Map<String, Object>> getMonthlyRevenue(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate);
 
     /**
      * Get top selling products across the platform
@@ -427,24 +313,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
             nativeQuery = true)
     long countOrdersInLastDays(@Param("days") int days);
 
-    /**
-     * Calculate total platform revenue for a time period
-     * 
-     * @param startDate Start date of the period
-     * @param endDate End date of the period
-     * @param commissionRate Platform commission rate (decimal)
-     * @return Total platform revenue
-     */
-    @Query(value = "SELECT COALESCE(SUM(final_total_amount * :commissionRate), 0) " +
-           "FROM customer_orders " +
-           "WHERE status NOT IN ('CANCELLED', 'REFUNDED') " +
-           "AND CAST(created_at AS DATE) BETWEEN :startDate AND :endDate",
-           nativeQuery = true)
-    BigDecimal calculatePlatformRevenue(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate,
-            @Param("commissionRate") BigDecimal commissionRate);
-
     /**
      * Count total orders across the platform.
      * @return Total count of orders.
@@ -452,28 +320,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
     @Query(value = "SELECT COUNT(*) FROM customer_orders", nativeQuery = true)
     long countAllOrders();
 
-    /**
-     * Get daily platform revenue data for a date range
-     * 
-     * @param startDate Start date of the period
-     * @param endDate End date of the period
-     * @param commissionRate Platform commission rate (decimal)
-     * @return List of daily revenue data
-     */
-    @Query(value = "SELECT " +
-            "CAST(created_at AS DATE) AS order_date, " +
-            "COALESCE(SUM(total_amount * :commissionRate), 0) AS daily_revenue " +
-            "FROM customer_orders " +
-            "WHERE status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "AND CAST(created_at AS DATE) BETWEEN :startDate AND :endDate " +
-            "GROUP BY CAST(created_at AS DATE) " +
-            "ORDER BY CAST(created_at AS DATE)",
-            nativeQuery = true)
-    List<Map<String, Object>> getDailyPlatformRevenue(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate,
-            @Param("commissionRate") BigDecimal commissionRate);
-
     /**
      * Get top sellers by revenue for a specific period
      *
@@ -534,48 +380,6 @@ public interface OrderRepository extends JpaRepository<Order, Integer> {
             @Param("endDate") LocalDate endDate,
             @Param("commissionRate") BigDecimal commissionRate);
 
-    /**
-     * Count orders by date range
-     *
-     * @param startDate Start date
-     * @param endDate End date
-     * @return Count of orders
-     */
-    @Query(value = "SELECT COUNT(*) FROM customer_orders " +
-            "WHERE status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "AND CAST(created_at AS DATE) BETWEEN :startDate AND :endDate",
-            nativeQuery = true)
-    long countOrdersByDateRange(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate);
-
-    /**
-     * Calculate total order value by date range
-     *
-     * @param startDate Start date
-     * @param endDate End date
-     * @return Total order value
-     */
-    @Query(value = "SELECT COALESCE(SUM(total_amount), 0) FROM customer_orders " +
-            "WHERE status NOT IN ('CANCELLED', 'REFUNDED') " +
-            "AND CAST(created_at AS DATE) BETWEEN :startDate AND :endDate",
-            nativeQuery = true)
-    BigDecimal calculateTotalOrderValueByDateRange(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate);
-
-    @Query(value = "SELECT TOP(:limit) b.title, SUM(oi.quantity) as total_quantity, SUM(oi.unit_price * oi.quantity) as total_revenue " +
-            "FROM order_items oi JOIN books b ON oi.book_id = b.book_id JOIN orders o ON oi.order_id = o.order_id " +
-            "WHERE o.order_status = 'DELIVERED' AND o.order_date BETWEEN :startDate AND :endDate " +
-            "GROUP BY b.title ORDER BY total_revenue DESC", nativeQuery = true)
-    List<Map<String, Object>> getTopSellingProductsByDateRange(
-            @Param("startDate") LocalDate startDate,
-            @Param("endDate") LocalDate endDate,
-            @Param("limit") int limit);
-    @Query("SELECT SUM(oi.quantity) FROM OrderItem oi JOIN oi.order o " +
-            "WHERE o.orderStatus = com.example.isp392.model.OrderStatus.DELIVERED " +
-            "AND o.orderDate BETWEEN :startDate AND :endDate")
-    Long sumQuantitiesByDateRange(@Param("startDate") LocalDateTime startDate, @Param("endDate") LocalDateTime endDate);
     /**
      * Count active sellers by date range
      *
@@ -3,7 +3,11 @@ package com.example.isp392.repository;
 import com.example.isp392.model.PaymentReservation;
 import com.example.isp392.model.enums.PaymentReservationStatus;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -31,4 +35,42 @@ public interface PaymentReservationRepository extends JpaRepository<PaymentReser
      * Find reservations by status
      */
     List<PaymentReservation> findByStatus(PaymentReservationStatus status);
+    
+    /**
+     * Atomically move a reservation out of PENDING. Returns 1 only for the caller that wins
+     * the transition, so stock held by the reservation is released exactly once.
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentReservation r SET r.status = :newStatus, r.cancelledAt = :closedAt " +
+           "WHERE r.reservationId = :reservationId AND r.status = :expectedStatus")
+    int closeIfInStatus(@Param("reservationId") Integer reservationId,
+                        @Param("expectedStatus") PaymentReservationStatus expectedStatus,
+                        @Param("newStatus") PaymentReservationStatus newStatus,
+                        @Param("closedAt") LocalDateTime closedAt);
+    
+    /**
+     * Atomically confirm a reservation that is still PENDING
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentReservation r SET r.status = com.example.isp392.model.enums.PaymentReservationStatus.CONFIRMED, " +
+           "r.confirmedAt = :confirmedAt " +
+           "WHERE r.reservationId = :reservationId " +
+           "AND r.status = com.example.isp392.model.enums.PaymentReservationStatus.PENDING")
+    int confirmIfPending(@Param("reservationId") Integer reservationId,
+                         @Param("confirmedAt") LocalDateTime confirmedAt);
+
+    /**
+     * Atomically confirm a reservation that is still in the expected status
+     * (used for a late payment whose reservation already EXPIRED)
+     */
+    @Transactional
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE PaymentReservation r SET r.status = com.example.isp392.model.enums.PaymentReservationStatus.CONFIRMED, " +
+           "r.confirmedAt = :confirmedAt " +
+           "WHERE r.reservationId = :reservationId AND r.status = :expectedStatus")
+    int confirmIfInStatus(@Param("reservationId") Integer reservationId,
+                          @Param("expectedStatus") PaymentReservationStatus expectedStatus,
+                          @Param("confirmedAt") LocalDateTime confirmedAt);
 }
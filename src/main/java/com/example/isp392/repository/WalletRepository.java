@@ -3,10 +3,15 @@ package com.example.isp392.repository;
 import com.example.isp392.model.User;
 import com.example.isp392.model.Wallet;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -30,6 +35,14 @@ public interface WalletRepository extends JpaRepository<Wallet, Integer> {
     @Query("SELECT w FROM Wallet w WHERE w.user.userId = :userId")
     Optional<Wallet> findByUserId(@Param("userId") Integer userId);
     
+    /**
+     * Find wallets of several users in one query
+     * @param userIds The user IDs
+     * @return Wallets of the users that have one
+     */
+    @Query("SELECT w FROM Wallet w WHERE w.user.userId IN :userIds")
+    List<Wallet> findByUserIdIn(@Param("userIds") Collection<Integer> userIds);
+    
     /**
      * Check if wallet exists for user
      * @param user The user
@@ -52,4 +65,20 @@ public interface WalletRepository extends JpaRepository<Wallet, Integer> {
      */
     @Query("SELECT w FROM Wallet w LEFT JOIN FETCH w.transactions WHERE w.user.userId = :userId")
     Optional<Wallet> findByUserIdWithTransactions(@Param("userId") Integer userId);
+    
+    /**
+     * Update the balance only if the wallet still has the expected version
+     * @param walletId The wallet ID
+     * @param expectedVersion Version read before computing the new balance
+     * @param newBalance The new balance
+     * @param updatedAt Update timestamp
+     * @return 1 if updated, 0 if another transaction changed the wallet first
+     */
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE Wallet w SET w.balance = :newBalance, w.version = w.version + 1, w.updatedAt = :updatedAt " +
+           "WHERE w.walletId = :walletId AND w.version = :expectedVersion")
+    int updateBalanceIfVersionMatches(@Param("walletId") Integer walletId,
+                                      @Param("expectedVersion") Long expectedVersion,
+                                      @Param("newBalance") BigDecimal newBalance,
+                                      @Param("updatedAt") LocalDateTime updatedAt);
 }
@@ -43,7 +43,9 @@ public class AdminService {
     private final OrderRepository orderRepository;
     private final ShopRepository shopRepository;
     private final BlogRepository blogRepository;
+    private final ViewCounterService viewCounterService;
     private final BlogCommentRepository blogCommentRepository;
+    private final RevenueRollupService revenueRollupService;
 
     /**
      * Constructor with explicit dependency injection
@@ -58,7 +60,9 @@ public class AdminService {
                         OrderRepository orderRepository,
                         ShopRepository shopRepository,
                         BlogRepository blogRepository,
-                        BlogCommentRepository blogCommentRepository) {
+                        BlogCommentRepository blogCommentRepository,
+                        ViewCounterService viewCounterService,
+                        RevenueRollupService revenueRollupService) {
         this.userRepository = userRepository;
         this.userService = userService;
         this.userRoleRepository = userRoleRepository;
@@ -67,6 +71,8 @@ public class AdminService {
         this.shopRepository = shopRepository;
         this.blogRepository = blogRepository;
         this.blogCommentRepository = blogCommentRepository;
+        this.viewCounterService = viewCounterService;
+        this.revenueRollupService = revenueRollupService;
     }
     
     /**
@@ -167,7 +173,7 @@ public class AdminService {
         LocalDate startDate = LocalDate.now().minusMonths(months - 1).withDayOfMonth(1);
         LocalDate endDate = LocalDate.now();
 
-        List<Map<String, Object>> monthlyRevenue = orderRepository.getMonthlyRevenue(startDate, endDate);
+        List<Map<String, Object>> monthlyRevenue = revenueRollupService.getMonthlyOrderTotals(startDate, endDate);
         List<Map<String, Object>> result = new ArrayList<>();
 
         for (Map<String, Object> data : monthlyRevenue) {
@@ -335,7 +341,7 @@ public class AdminService {
     @Transactional(readOnly = true)
     public int getTotalPlatformViews() {
         Integer total = bookRepository.getTotalViewsAllBooks();
-        return total != null ? total : 0;
+        return (total != null ? total : 0) + (int) viewCounterService.getTotalPendingBookViews();
     }
 
     /**
@@ -351,7 +357,8 @@ public class AdminService {
             Map<String, Object> map = new HashMap<>();
             map.put("bookId", row[0]);
             map.put("title", row[1]);
-            map.put("viewsCount", row[2]);
+            int storedViews = row[2] != null ? ((Number) row[2]).intValue() : 0;
+            map.put("viewsCount", storedViews + (int) viewCounterService.getPendingBookViews(((Number) row[0]).intValue()));
             result.add(map);
         }
         return result;
@@ -376,11 +383,15 @@ public class AdminService {
             currentDate = currentDate.plusWeeks(1);
         }
 
+        // Đọc số liệu theo ngày một lần rồi cộng dồn theo tuần
+        NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days = revenueRollupService.getPlatformDays(
+                startDate, weekStartDates.get(weekStartDates.size() - 1).plusDays(6));
+
         // Create a map to store revenue by week
         Map<String, BigDecimal> revenueByWeek = new LinkedHashMap<>();
         for (LocalDate date : weekStartDates) {
             LocalDate weekEnd = date.plusDays(6);
-            BigDecimal weeklyRevenue = orderRepository.calculatePlatformRevenue(date, weekEnd, platformCommissionRate);
+            BigDecimal weeklyRevenue = sumPlatformRevenue(days, date, weekEnd);
             String weekLabel = date.format(java.time.format.DateTimeFormatter.ofPattern("dd MMM"));
             revenueByWeek.put(weekLabel, weeklyRevenue);
         }
@@ -414,17 +425,15 @@ public class AdminService {
             revenueByDay.put(dayLabel, BigDecimal.ZERO);
         }
 
-        // Query the database once for all days in the range using the new repository method
+        // Query the daily rollup once for all days in the range
         try {
-            List<Map<String, Object>> dailyRevenue = orderRepository.getDailyPlatformRevenue(
-                    startDate, endDate, platformCommissionRate);
+            NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> dailyRevenue =
+                    revenueRollupService.getPlatformDays(startDate, endDate);
 
             // Update the map with actual revenue data
-            for (Map<String, Object> day : dailyRevenue) {
-                java.sql.Date sqlDate = (java.sql.Date) day.get("order_date");
-                LocalDate date = sqlDate.toLocalDate();
-                String dayLabel = date.format(java.time.format.DateTimeFormatter.ofPattern("dd/M"));
-                BigDecimal revenue = (BigDecimal) day.get("daily_revenue");
+            for (Map.Entry<LocalDate, RevenueRollupService.PlatformTotals> day : dailyRevenue.entrySet()) {
+                String dayLabel = day.getKey().format(java.time.format.DateTimeFormatter.ofPattern("dd/M"));
+                BigDecimal revenue = day.getValue().getTotalAmount().multiply(platformCommissionRate);
                 revenueByDay.put(dayLabel, revenue);
             }
         } catch (Exception e) {
@@ -476,7 +485,7 @@ public class AdminService {
     public BigDecimal calculateLast7DaysRevenue() {
         LocalDate endDate = LocalDate.now();
         LocalDate startDate = endDate.minusDays(6); // Last 7 days including today
-        return orderRepository.calculatePlatformRevenue(startDate, endDate, platformCommissionRate);
+        return revenueRollupService.getPlatformTotals(startDate, endDate).getFinalTotalAmount().multiply(platformCommissionRate);
     }
 
     /**
@@ -492,19 +501,18 @@ public class AdminService {
     @Transactional(readOnly = true)
     public Map<String, Object> getRevenueAnalytics(LocalDate startDate, LocalDate endDate, String period, Integer sellerId, String compareMode) {
         Map<String, Object> analyticsData = new HashMap<>();
-        LocalDateTime startDateTime = startDate.atStartOfDay();
-        LocalDateTime endDateTime = endDate.atTime(23, 59, 59);
+        RevenueRollupService.PlatformTotals totals = revenueRollupService.getPlatformTotals(startDate, endDate);
 
         // Metric 1: Tổng Doanh thu (Tổng giá trị bán hàng)
-        BigDecimal totalRevenue = orderRepository.calculateTotalOrderValueByDateRange(startDate, endDate);
+        BigDecimal totalRevenue = totals.getTotalAmount();
         analyticsData.put("totalRevenue", totalRevenue);
 
         // Metric 2: Phí Hoa hồng Nền tảng (Doanh thu của nền tảng)
-        BigDecimal platformRevenue = orderRepository.calculatePlatformRevenue(startDate, endDate, platformCommissionRate);
+        BigDecimal platformRevenue = totals.getFinalTotalAmount().multiply(platformCommissionRate);
         analyticsData.put("platformRevenue", platformRevenue);
 
         // Metric 3: Tổng số Đơn hàng
-        long totalOrders = orderRepository.countOrdersByDateRange(startDate, endDate);
+        long totalOrders = totals.getOrderCount();
         analyticsData.put("totalOrders", totalOrders);
 
         // Metric 4: Giá trị Đơn hàng Trung bình
@@ -512,13 +520,14 @@ public class AdminService {
         analyticsData.put("averageOrderValue", averageOrderValue);
 
         // Metric 5: Tổng sản phẩm đã bán (Sử dụng phương thức mới)
-        Long totalProductsSold = orderRepository.sumQuantitiesByDateRange(startDateTime, endDateTime);
-        analyticsData.put("totalProductsSold", totalProductsSold != null ? totalProductsSold : 0L);
+        long totalProductsSold = revenueRollupService.getDeliveredItemsSold(startDate, endDate);
+        analyticsData.put("totalProductsSold", totalProductsSold);
 
         // Metric 6: Tăng trưởng Doanh thu
         long days = ChronoUnit.DAYS.between(startDate, endDate) + 1;
         LocalDate previousStartDate = startDate.minusDays(days);
-        BigDecimal previousPeriodRevenue = orderRepository.calculatePlatformRevenue(previousStartDate, startDate.minusDays(1), platformCommissionRate);
+        BigDecimal previousPeriodRevenue = revenueRollupService.getPlatformTotals(previousStartDate, startDate.minusDays(1))
+                .getFinalTotalAmount().multiply(platformCommissionRate);
         double revenueGrowth = 0.0;
         if (previousPeriodRevenue.compareTo(BigDecimal.ZERO) > 0) {
             revenueGrowth = platformRevenue.subtract(previousPeriodRevenue)
@@ -529,7 +538,7 @@ public class AdminService {
         analyticsData.put("revenueGrowth", revenueGrowth);
 
         // Metric 7 & 8: Top 5 Sản phẩm Bán chạy (Sử dụng phương thức mới)
-        List<Map<String, Object>> topProducts = orderRepository.getTopSellingProductsByDateRange(startDate, endDate, 5);
+        List<Map<String, Object>> topProducts = revenueRollupService.getTopSellingProducts(startDate, endDate, 5);
         analyticsData.put("topProducts", topProducts);
 
         // Metric 9 & 10+: Top 5 Người bán Tốt nhất
@@ -537,9 +546,10 @@ public class AdminService {
         analyticsData.put("topSellers", topSellers);
 
         // Dữ liệu cho biểu đồ
-        List<Map<String, Object>> revenueTrendData = orderRepository.getDailyPlatformRevenue(startDate, endDate, platformCommissionRate);
-        List<String> chartLabels = revenueTrendData.stream().map(d -> d.get("order_date").toString()).collect(Collectors.toList());
-        List<BigDecimal> chartData = revenueTrendData.stream().map(d -> (BigDecimal) d.get("daily_revenue")).collect(Collectors.toList());
+        NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> revenueTrendData = revenueRollupService.getPlatformDays(startDate, endDate);
+        List<String> chartLabels = revenueTrendData.keySet().stream().map(LocalDate::toString).collect(Collectors.toList());
+        List<BigDecimal> chartData = revenueTrendData.values().stream()
+                .map(d -> d.getTotalAmount().multiply(platformCommissionRate)).collect(Collectors.toList());
         analyticsData.put("revenueChartLabels", safeConvertToJsonArray(chartLabels));
         analyticsData.put("revenueChartData", safeConvertToJsonArray(chartData));
 
@@ -566,15 +576,20 @@ public class AdminService {
         List<Map<String, Object>> result = new ArrayList<>();
 
         try {
+            // Kỳ đầu tiên có thể bắt đầu trước startDate (đầu tuần/tháng/năm): đọc số liệu ngày từ đó một lần
             switch (period.toLowerCase()) {
                 case "daily":
-                    return getDailyRevenueTrend(startDate, endDate);
+                    return getDailyRevenueTrend(startDate, endDate,
+                            revenueRollupService.getPlatformDays(startDate, endDate));
                 case "weekly":
-                    return getWeeklyRevenueTrend(startDate, endDate);
+                    return getWeeklyRevenueTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.with(java.time.DayOfWeek.MONDAY), endDate));
                 case "yearly":
-                    return getYearlyRevenueTrend(startDate, endDate);
+                    return getYearlyRevenueTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.withDayOfYear(1), endDate));
                 default: // monthly
-                    return getMonthlyRevenueTrend(startDate, endDate);
+                    return getMonthlyRevenueTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.withDayOfMonth(1), endDate));
             }
         } catch (Exception e) {
             log.error("Error getting revenue trend data: {}", e.getMessage(), e);
@@ -585,12 +600,13 @@ public class AdminService {
     /**
      * Get daily revenue trend
      */
-    private List<Map<String, Object>> getDailyRevenueTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getDailyRevenueTrend(LocalDate startDate, LocalDate endDate,
+                                                          NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
             LocalDate nextDate = date.plusDays(1);
-            BigDecimal revenue = orderRepository.calculatePlatformRevenue(date, nextDate.minusDays(1), platformCommissionRate);
+            BigDecimal revenue = sumPlatformRevenue(days, date, nextDate.minusDays(1));
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", date.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM")));
@@ -605,7 +621,8 @@ public class AdminService {
     /**
      * Get weekly revenue trend
      */
-    private List<Map<String, Object>> getWeeklyRevenueTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getWeeklyRevenueTrend(LocalDate startDate, LocalDate endDate,
+                                                          NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate weekStart = startDate.with(java.time.DayOfWeek.MONDAY);
@@ -615,7 +632,7 @@ public class AdminService {
                 weekEnd = endDate;
             }
 
-            BigDecimal revenue = orderRepository.calculatePlatformRevenue(weekStart, weekEnd, platformCommissionRate);
+            BigDecimal revenue = sumPlatformRevenue(days, weekStart, weekEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", weekStart.format(java.time.format.DateTimeFormatter.ofPattern("dd MMM")));
@@ -632,7 +649,8 @@ public class AdminService {
     /**
      * Get monthly revenue trend
      */
-    private List<Map<String, Object>> getMonthlyRevenueTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getMonthlyRevenueTrend(LocalDate startDate, LocalDate endDate,
+                                                          NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate monthStart = startDate.withDayOfMonth(1);
@@ -642,7 +660,7 @@ public class AdminService {
                 monthEnd = endDate;
             }
 
-            BigDecimal revenue = orderRepository.calculatePlatformRevenue(monthStart, monthEnd, platformCommissionRate);
+            BigDecimal revenue = sumPlatformRevenue(days, monthStart, monthEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", monthStart.format(java.time.format.DateTimeFormatter.ofPattern("MMM yyyy")));
@@ -659,7 +677,8 @@ public class AdminService {
     /**
      * Get yearly revenue trend
      */
-    private List<Map<String, Object>> getYearlyRevenueTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getYearlyRevenueTrend(LocalDate startDate, LocalDate endDate,
+                                                          NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate yearStart = startDate.withDayOfYear(1);
@@ -669,7 +688,7 @@ public class AdminService {
                 yearEnd = endDate;
             }
 
-            BigDecimal revenue = orderRepository.calculatePlatformRevenue(yearStart, yearEnd, platformCommissionRate);
+            BigDecimal revenue = sumPlatformRevenue(days, yearStart, yearEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", String.valueOf(yearStart.getYear()));
@@ -683,6 +702,30 @@ public class AdminService {
         return result;
     }
 
+    /**
+     * Phí hoa hồng nền tảng của các ngày trong [from, to], cộng từ số liệu ngày đã đọc sẵn
+     */
+    private BigDecimal sumPlatformRevenue(NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days,
+                                          LocalDate from, LocalDate to) {
+        BigDecimal total = BigDecimal.ZERO;
+        for (RevenueRollupService.PlatformTotals day : days.subMap(from, true, to, true).values()) {
+            total = total.add(day.getFinalTotalAmount());
+        }
+        return total.multiply(platformCommissionRate);
+    }
+
+    /**
+     * Số đơn hàng toàn sàn của các ngày trong [from, to], cộng từ số liệu ngày đã đọc sẵn
+     */
+    private long countPlatformOrders(NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days,
+                                     LocalDate from, LocalDate to) {
+        long count = 0;
+        for (RevenueRollupService.PlatformTotals day : days.subMap(from, true, to, true).values()) {
+            count += day.getOrderCount();
+        }
+        return count;
+    }
+
     /**
      * Convert list to JSON array string
      */
@@ -794,12 +837,14 @@ public class AdminService {
     public Map<String, Object> getOrdersAnalytics(LocalDate startDate, LocalDate endDate, String period) {
         Map<String, Object> result = new HashMap<>();
 
+        RevenueRollupService.PlatformTotals totals = revenueRollupService.getPlatformTotals(startDate, endDate);
+
         // Total orders in period
-        long totalOrders = orderRepository.countOrdersByDateRange(startDate, endDate);
+        long totalOrders = totals.getOrderCount();
         result.put("totalOrders", totalOrders);
 
         // Average order value
-        BigDecimal totalOrderValue = orderRepository.calculateTotalOrderValueByDateRange(startDate, endDate);
+        BigDecimal totalOrderValue = totals.getTotalAmount();
         BigDecimal averageOrderValue = totalOrders > 0 ?
             totalOrderValue.divide(BigDecimal.valueOf(totalOrders), 2, RoundingMode.HALF_UP) :
             BigDecimal.ZERO;
@@ -916,7 +961,7 @@ public class AdminService {
         result.put("totalShops", shopRepository.count());
         result.put("activeShops", shopRepository.countByApprovalStatus(Shop.ApprovalStatus.APPROVED));
         result.put("totalBlogs", blogRepository.count());
-        result.put("totalBlogViews", blogRepository.getTotalBlogViews());
+        result.put("totalBlogViews", blogRepository.getTotalBlogViews() + viewCounterService.getTotalPendingBlogViews());
 
         return result;
     }
@@ -931,13 +976,17 @@ public class AdminService {
         try {
             switch (period.toLowerCase()) {
                 case "daily":
-                    return getDailyOrdersTrend(startDate, endDate);
+                    return getDailyOrdersTrend(startDate, endDate,
+                            revenueRollupService.getPlatformDays(startDate, endDate));
                 case "weekly":
-                    return getWeeklyOrdersTrend(startDate, endDate);
+                    return getWeeklyOrdersTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.with(java.time.DayOfWeek.MONDAY), endDate));
                 case "yearly":
-                    return getYearlyOrdersTrend(startDate, endDate);
+                    return getYearlyOrdersTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.withDayOfYear(1), endDate));
                 default: // monthly
-                    return getMonthlyOrdersTrend(startDate, endDate);
+                    return getMonthlyOrdersTrend(startDate, endDate, revenueRollupService.getPlatformDays(
+                            startDate.withDayOfMonth(1), endDate));
             }
         } catch (Exception e) {
             log.error("Error getting orders trend data: {}", e.getMessage(), e);
@@ -948,12 +997,13 @@ public class AdminService {
     /**
      * Get daily orders trend
      */
-    private List<Map<String, Object>> getDailyOrdersTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getDailyOrdersTrend(LocalDate startDate, LocalDate endDate,
+                                                         NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         for (LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1)) {
             LocalDate nextDate = date.plusDays(1);
-            long count = orderRepository.countOrdersByDateRange(date, nextDate.minusDays(1));
+            long count = countPlatformOrders(days, date, nextDate.minusDays(1));
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", date.format(java.time.format.DateTimeFormatter.ofPattern("dd/MM")));
@@ -968,7 +1018,8 @@ public class AdminService {
     /**
      * Get weekly orders trend
      */
-    private List<Map<String, Object>> getWeeklyOrdersTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getWeeklyOrdersTrend(LocalDate startDate, LocalDate endDate,
+                                                         NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate weekStart = startDate.with(java.time.DayOfWeek.MONDAY);
@@ -978,7 +1029,7 @@ public class AdminService {
                 weekEnd = endDate;
             }
 
-            long count = orderRepository.countOrdersByDateRange(weekStart, weekEnd);
+            long count = countPlatformOrders(days, weekStart, weekEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", weekStart.format(java.time.format.DateTimeFormatter.ofPattern("dd MMM")));
@@ -995,7 +1046,8 @@ public class AdminService {
     /**
      * Get monthly orders trend
      */
-    private List<Map<String, Object>> getMonthlyOrdersTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getMonthlyOrdersTrend(LocalDate startDate, LocalDate endDate,
+                                                         NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate monthStart = startDate.withDayOfMonth(1);
@@ -1005,7 +1057,7 @@ public class AdminService {
                 monthEnd = endDate;
             }
 
-            long count = orderRepository.countOrdersByDateRange(monthStart, monthEnd);
+            long count = countPlatformOrders(days, monthStart, monthEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", monthStart.format(java.time.format.DateTimeFormatter.ofPattern("MMM yyyy")));
@@ -1022,7 +1074,8 @@ public class AdminService {
     /**
      * Get yearly orders trend
      */
-    private List<Map<String, Object>> getYearlyOrdersTrend(LocalDate startDate, LocalDate endDate) {
+    private List<Map<String, Object>> getYearlyOrdersTrend(LocalDate startDate, LocalDate endDate,
+                                                         NavigableMap<LocalDate, RevenueRollupService.PlatformTotals> days) {
         List<Map<String, Object>> result = new ArrayList<>();
 
         LocalDate yearStart = startDate.withDayOfYear(1);
@@ -1032,7 +1085,7 @@ public class AdminService {
                 yearEnd = endDate;
             }
 
-            long count = orderRepository.countOrdersByDateRange(yearStart, yearEnd);
+            long count = countPlatformOrders(days, yearStart, yearEnd);
 
             Map<String, Object> item = new HashMap<>();
             item.put("label", String.valueOf(yearStart.getYear()));
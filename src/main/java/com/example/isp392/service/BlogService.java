@@ -23,9 +23,14 @@ import org.springframework.util.StringUtils;
 public class BlogService {
     private static final Logger log = LoggerFactory.getLogger(BlogService.class);
     private final BlogRepository blogRepository;
+    private final ViewCounterService viewCounterService;
+    private final FileStorageService fileStorageService;
 
-    public BlogService(BlogRepository blogRepository) {
+    public BlogService(BlogRepository blogRepository, ViewCounterService viewCounterService,
+                       FileStorageService fileStorageService) {
         this.blogRepository = blogRepository;
+        this.viewCounterService = viewCounterService;
+        this.fileStorageService = fileStorageService;
     }
 
     /**
@@ -124,15 +129,9 @@ public class BlogService {
         return blogRepository.findById(id);
     }
 
-    // Increment blog view count
-    @Transactional
+    // Increment blog view count (gom trong bộ nhớ, ghi xuống DB theo lô)
     public void incrementViewCount(int blogId) {
-        Optional<Blog> blogOpt = blogRepository.findById(blogId);
-        if (blogOpt.isPresent()) {
-            Blog blog = blogOpt.get();
-            blog.setViewsCount(blog.getViewsCount() + 1);
-            blogRepository.save(blog);
-        }
+        viewCounterService.recordBlogView(blogId);
     }
 
     // Get next blog for navigation
@@ -183,6 +182,7 @@ public class BlogService {
         }
 
         blogRepository.delete(blogToDelete);
+        fileStorageService.release(blogToDelete.getImageUrl());
     }
 
     @Transactional(readOnly = true)
@@ -223,10 +223,11 @@ public class BlogService {
      */
     @Transactional
     public void deleteBlogById(Integer blogId) {
-        if (!blogRepository.existsById(blogId)) {
-            throw new EntityNotFoundException("Blog not found with id: " + blogId);
-        }
-        blogRepository.deleteById(blogId);
+        Blog blog = blogRepository.findById(blogId)
+                .orElseThrow(() -> new EntityNotFoundException("Blog not found with id: " + blogId));
+        blogRepository.delete(blog);
+        // Ảnh của bài viết bị xóa sau khi transaction commit (nếu không còn bản ghi nào dùng)
+        fileStorageService.release(blog.getImageUrl());
     }
 
     /**
@@ -0,0 +1,656 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.Book;
+import com.example.isp392.model.Shop;
+import com.example.isp392.repository.BookRepository;
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Nhập danh mục sách của người bán từ CSV theo lô.
+ * <ul>
+ *   <li>Tập ISBN của shop và từ điển nhà xuất bản/thể loại được nạp vào HashMap một lần cho cả job,
+ *       thay vì truy vấn cho từng dòng.</li>
+ *   <li>Mỗi đoạn dòng được phân tích và kiểm tra song song trên pool luồng riêng.</li>
+ *   <li>Sách và liên kết thể loại được ghi bằng JDBC batch, mỗi đoạn một transaction ngắn,
+ *       nên không giữ khóa bảng books suốt cả file và lỗi một đoạn không làm hỏng các đoạn khác.</li>
+ * </ul>
+ * Job chạy nền; tiến độ và lỗi từng dòng được đọc qua {@link #getJob(String, Integer)}.
+ * Mỗi shop chỉ có một job chưa xong tại một thời điểm, vì kiểm tra trùng ISBN dựa trên
+ * tập ISBN nạp ở đầu job.
+ */
+@Service
+public class BookImportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BookImportService.class);
+
+    private static final List<String> REQUIRED_HEADERS = List.of(
+            "title", "authors", "description", "isbn", "stockQuantity", "sellingPrice", "originalPrice",
+            "coverImgUrl", "numberOfPages", "dimensions", "publisherName", "categories");
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    private static final int MAX_ISBN_LENGTH = 20;
+    private static final int MAX_COVER_URL_LENGTH = 500;
+    private static final int MAX_DIMENSIONS_LENGTH = 20;
+
+    private static final String INSERT_BOOK_SQL =
+            "INSERT INTO books (shop_id, title, isbn, number_of_pages, description, views_count, authors, " +
+            "cover_img_url, publisher_id, dimensions, average_rating, date_added, original_price, selling_price, " +
+            "stock_quantity, is_active) VALUES (?, ?, ?, ?, ?, 0, ?, ?, ?, ?, 0, ?, ?, ?, ?, 1)";
+    private static final String INSERT_BOOK_CATEGORY_SQL =
+            "INSERT INTO book_categories (book_id, category_id) VALUES (?, ?)";
+
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    /**
+     * Lỗi của một dòng CSV (số dòng tính cả dòng tiêu đề, khớp với số dòng trong Excel)
+     */
+    public static class RowError {
+        private final long rowNumber;
+        private final String message;
+
+        RowError(long rowNumber, String message) {
+            this.rowNumber = rowNumber;
+            this.message = message;
+        }
+
+        public long getRowNumber() { return rowNumber; }
+        public String getMessage() { return message; }
+    }
+
+    /**
+     * Trạng thái một lần nhập; được cập nhật bởi luồng nhập và đọc bởi request poll
+     */
+    public static class ImportJob {
+        private final String jobId;
+        private final Integer shopId;
+        private final String fileName;
+        private final LocalDateTime createdAt = LocalDateTime.now();
+        private volatile Status status = Status.QUEUED;
+        private volatile String message;
+        private volatile int totalRows;
+        private volatile LocalDateTime finishedAt;
+        private final AtomicInteger processedRows = new AtomicInteger();
+        private final AtomicInteger importedRows = new AtomicInteger();
+        private final AtomicInteger skippedRows = new AtomicInteger();
+        private final AtomicInteger failedRows = new AtomicInteger();
+        private final List<RowError> errors = Collections.synchronizedList(new ArrayList<>());
+
+        ImportJob(String jobId, Integer shopId, String fileName) {
+            this.jobId = jobId;
+            this.shopId = shopId;
+            this.fileName = fileName;
+        }
+
+        public String getJobId() { return jobId; }
+        public Integer getShopId() { return shopId; }
+        public String getFileName() { return fileName; }
+        public LocalDateTime getCreatedAt() { return createdAt; }
+        public Status getStatus() { return status; }
+        public String getMessage() { return message; }
+        public int getTotalRows() { return totalRows; }
+        public LocalDateTime getFinishedAt() { return finishedAt; }
+        public int getProcessedRows() { return processedRows.get(); }
+        public int getImportedRows() { return importedRows.get(); }
+        public int getSkippedRows() { return skippedRows.get(); }
+        public int getFailedRows() { return failedRows.get(); }
+
+        public boolean isFinished() {
+            return status == Status.COMPLETED || status == Status.FAILED;
+        }
+
+        public int getProgressPercent() {
+            if (status == Status.COMPLETED) {
+                return 100;
+            }
+            return totalRows == 0 ? 0 : (int) Math.min(99, processedRows.get() * 100L / totalRows);
+        }
+
+        public List<RowError> getErrors() {
+            synchronized (errors) {
+                return new ArrayList<>(errors);
+            }
+        }
+
+        void addError(long rowNumber, String error) {
+            failedRows.incrementAndGet();
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new RowError(rowNumber, error));
+            }
+        }
+    }
+
+    /**
+     * Một dòng đã được phân tích và kiểm tra hợp lệ
+     */
+    private static class ParsedRow {
+        private final long rowNumber;
+        private String error;
+        private String title;
+        private String authors;
+        private String description;
+        private String isbn;
+        private Integer stockQuantity;
+        private BigDecimal sellingPrice;
+        private BigDecimal originalPrice;
+        private String coverImgUrl;
+        private Integer numberOfPages;
+        private String dimensions;
+        private String publisherName;
+        private Set<String> categoryNames = Collections.emptySet();
+        private Integer bookId;
+
+        ParsedRow(long rowNumber) {
+            this.rowNumber = rowNumber;
+        }
+    }
+
+    private final BookRepository bookRepository;
+    private final ShopService shopService;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BookSearchIndex bookSearchIndex;
+    private final VectorStoreService vectorStoreService;
+    private final HomepageSectionCache homepageSectionCache;
+    private final FileStorageService fileStorageService;
+    private final int chunkSize;
+    private final int parserThreads;
+    private final long finishedJobRetentionMillis;
+
+    // Chạy job (mỗi job tuần tự theo đoạn) và phân tích dòng song song trong một đoạn
+    private final ExecutorService jobRunner;
+    private final ExecutorService parsers;
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+    // Job đang chờ hoặc đang chạy theo shop
+    private final Map<Integer, ImportJob> activeJobsByShop = new ConcurrentHashMap<>();
+
+    public BookImportService(BookRepository bookRepository, ShopService shopService, JdbcTemplate jdbcTemplate,
+                             TransactionTemplate transactionTemplate, BookSearchIndex bookSearchIndex,
+                             VectorStoreService vectorStoreService, HomepageSectionCache homepageSectionCache,
+                             FileStorageService fileStorageService,
+                             @Value("${import.books.chunk-size:1000}") int chunkSize,
+                             @Value("${import.books.concurrent-jobs:2}") int concurrentJobs,
+                             @Value("${import.books.parser-threads:4}") int parserThreads,
+                             @Value("${import.books.job-retention-ms:3600000}") long finishedJobRetentionMillis) {
+        this.bookRepository = bookRepository;
+        this.shopService = shopService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.bookSearchIndex = bookSearchIndex;
+        this.vectorStoreService = vectorStoreService;
+        this.homepageSectionCache = homepageSectionCache;
+        this.fileStorageService = fileStorageService;
+        // Truy vấn ID theo ISBN dùng một tham số mỗi dòng; SQL Server giới hạn 2100 tham số mỗi câu lệnh
+        this.chunkSize = Math.max(1, Math.min(chunkSize, 2000));
+        this.parserThreads = Math.max(1, parserThreads);
+        this.finishedJobRetentionMillis = finishedJobRetentionMillis;
+        this.jobRunner = newDaemonPool(concurrentJobs, "book-import-");
+        this.parsers = newDaemonPool(this.parserThreads, "book-import-parser-");
+    }
+
+    /**
+     * Nhận file và đưa job vào hàng đợi; trả về ngay. File được sao ra thư mục tạm
+     * vì file multipart bị xóa khi request kết thúc.
+     *
+     * @throws IllegalStateException nếu shop đang có một job nhập chưa xong
+     */
+    public ImportJob submit(MultipartFile file, Integer shopId) throws IOException {
+        Shop shop = shopService.getShopById(shopId);
+        if (shop == null) {
+            throw new IllegalArgumentException("Shop not found with ID: " + shopId);
+        }
+
+        ImportJob job = new ImportJob(UUID.randomUUID().toString(), shopId, file.getOriginalFilename());
+        if (activeJobsByShop.putIfAbsent(shopId, job) != null) {
+            throw new IllegalStateException("Another import is still running for this shop. Please wait until it finishes.");
+        }
+        Path csv;
+        try {
+            csv = Files.createTempFile("book-import-", ".csv");
+            try (InputStream inputStream = file.getInputStream()) {
+                Files.copy(inputStream, csv, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            activeJobsByShop.remove(shopId, job);
+            throw e;
+        }
+
+        jobs.put(job.jobId, job);
+        jobRunner.execute(() -> {
+            try {
+                run(job, csv);
+            } finally {
+                activeJobsByShop.remove(job.shopId, job);
+                try {
+                    Files.deleteIfExists(csv);
+                } catch (IOException e) {
+                    log.warn("Could not delete import file {}: {}", csv, e.getMessage());
+                }
+            }
+        });
+        log.info("Queued book import job {} for shop {} ({})", job.jobId, shopId, file.getOriginalFilename());
+        return job;
+    }
+
+    /**
+     * @return job của shop, hoặc null nếu không có (hoặc thuộc shop khác)
+     */
+    public ImportJob getJob(String jobId, Integer shopId) {
+        ImportJob job = jobs.get(jobId);
+        return job != null && job.shopId.equals(shopId) ? job : null;
+    }
+
+    /**
+     * Bỏ các job đã xong quá lâu khỏi bộ nhớ
+     */
+    @Scheduled(fixedDelayString = "${import.books.cleanup-interval-ms:600000}")
+    public void evictFinishedJobs() {
+        LocalDateTime cutoff = LocalDateTime.now().minusNanos(finishedJobRetentionMillis * 1_000_000L);
+        jobs.values().removeIf(job -> job.finishedAt != null && job.finishedAt.isBefore(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobRunner.shutdownNow();
+        parsers.shutdownNow();
+    }
+
+    private void run(ImportJob job, Path csv) {
+        job.status = Status.RUNNING;
+        long startedAt = System.currentTimeMillis();
+        Set<Integer> importedIds = new HashSet<>();
+        try {
+            job.totalRows = countRows(csv);
+
+            // Nạp sẵn dữ liệu tra cứu cho cả job
+            Set<String> existingIsbns = bookRepository.findIsbnsByShopId(job.shopId).stream()
+                    .map(isbn -> key(isbn.trim()))
+                    .collect(Collectors.toCollection(HashSet::new));
+            Map<String, Integer> publishers = loadDictionary("SELECT publisher_id, publisher_name FROM publishers");
+            Map<String, Integer> categories = loadDictionary("SELECT category_id, category_name FROM categories");
+
+            try (Reader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+                 CSVParser parser = new CSVParser(reader, csvFormat())) {
+                List<String> missing = REQUIRED_HEADERS.stream()
+                        .filter(header -> parser.getHeaderMap().keySet().stream().noneMatch(header::equalsIgnoreCase))
+                        .collect(Collectors.toList());
+                if (!missing.isEmpty()) {
+                    fail(job, "Missing CSV columns: " + String.join(", ", missing));
+                    return;
+                }
+
+                Iterator<CSVRecord> records = parser.iterator();
+                List<CSVRecord> chunk = new ArrayList<>(chunkSize);
+                while (records.hasNext()) {
+                    chunk.add(records.next());
+                    if (chunk.size() == chunkSize || !records.hasNext()) {
+                        importChunk(job, chunk, existingIsbns, publishers, categories, importedIds);
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+            }
+
+            job.status = Status.COMPLETED;
+            job.message = String.format("Imported %d, skipped %d duplicate, %d with errors",
+                    job.getImportedRows(), job.getSkippedRows(), job.getFailedRows());
+            log.info("Book import job {} for shop {} finished in {} ms: {}", job.jobId, job.shopId,
+                    System.currentTimeMillis() - startedAt, job.message);
+        } catch (Exception e) {
+            log.error("Book import job {} failed: {}", job.jobId, e.getMessage(), e);
+            fail(job, "Import failed: " + e.getMessage());
+        } finally {
+            job.finishedAt = LocalDateTime.now();
+            if (!importedIds.isEmpty()) {
+                homepageSectionCache.markStale();
+            }
+        }
+    }
+
+    private void importChunk(ImportJob job, List<CSVRecord> records, Set<String> existingIsbns,
+                             Map<String, Integer> publishers, Map<String, Integer> categories,
+                             Set<Integer> importedIds) {
+        List<ParsedRow> parsed = parseInParallel(records);
+
+        // Kiểm tra trùng ISBN theo thứ tự file (cả với sách đã có và với các dòng trước trong file)
+        List<ParsedRow> accepted = new ArrayList<>(parsed.size());
+        for (ParsedRow row : parsed) {
+            if (row.error != null) {
+                job.addError(row.rowNumber, row.error);
+            } else if (!existingIsbns.add(key(row.isbn))) {
+                job.skippedRows.incrementAndGet();
+                log.debug("Skipping book with duplicate ISBN '{}' for Shop ID {}", row.isbn, job.shopId);
+            } else {
+                accepted.add(row);
+            }
+        }
+
+        if (!accepted.isEmpty()) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> insertChunk(job.shopId, accepted, publishers, categories));
+                job.importedRows.addAndGet(accepted.size());
+                afterChunkCommitted(job.shopId, accepted, importedIds);
+            } catch (Exception e) {
+                log.error("Book import job {}: chunk starting at row {} failed: {}",
+                        job.jobId, accepted.get(0).rowNumber, e.getMessage());
+                for (ParsedRow row : accepted) {
+                    existingIsbns.remove(key(row.isbn));
+                    job.addError(row.rowNumber, "Database error: " + e.getMessage());
+                }
+                // Tên mới thêm trong transaction bị rollback: nạp lại từ điển
+                publishers.clear();
+                publishers.putAll(loadDictionary("SELECT publisher_id, publisher_name FROM publishers"));
+                categories.clear();
+                categories.putAll(loadDictionary("SELECT category_id, category_name FROM categories"));
+            }
+        }
+        job.processedRows.addAndGet(records.size());
+    }
+
+    private List<ParsedRow> parseInParallel(List<CSVRecord> records) {
+        int sliceSize = Math.max(1, (records.size() + parserThreads - 1) / parserThreads);
+        List<CompletableFuture<List<ParsedRow>>> slices = new ArrayList<>();
+        for (int from = 0; from < records.size(); from += sliceSize) {
+            List<CSVRecord> slice = records.subList(from, Math.min(records.size(), from + sliceSize));
+            slices.add(CompletableFuture.supplyAsync(
+                    () -> slice.stream().map(BookImportService::parseRow).collect(Collectors.toList()), parsers));
+        }
+        List<ParsedRow> parsed = new ArrayList<>(records.size());
+        for (CompletableFuture<List<ParsedRow>> slice : slices) {
+            parsed.addAll(slice.join());
+        }
+        return parsed;
+    }
+
+    private void insertChunk(Integer shopId, List<ParsedRow> rows,
+                             Map<String, Integer> publishers, Map<String, Integer> categories) {
+        // Nhà xuất bản/thể loại chưa có thì thêm một lần cho cả đoạn
+        for (ParsedRow row : rows) {
+            if (row.publisherName != null) {
+                resolveOrInsert(publishers, row.publisherName,
+                        "INSERT INTO publishers (publisher_name) VALUES (?)");
+            }
+            for (String categoryName : row.categoryNames) {
+                resolveOrInsert(categories, categoryName,
+                        "INSERT INTO categories (category_name, category_description, is_active) VALUES (?, '', 1)");
+            }
+        }
+
+        // Sách mới của đoạn này đều có ID lớn hơn giá trị này (cột IDENTITY tăng dần)
+        Integer maxIdBefore = jdbcTemplate.queryForObject(
+                "SELECT ISNULL(MAX(book_id), 0) FROM books WHERE shop_id = ?", Integer.class, shopId);
+
+        Date today = Date.valueOf(LocalDate.now());
+        jdbcTemplate.batchUpdate(INSERT_BOOK_SQL, rows, rows.size(), (ps, row) -> {
+            ps.setInt(1, shopId);
+            ps.setString(2, row.title);
+            ps.setString(3, row.isbn);
+            setNullableInt(ps, 4, row.numberOfPages);
+            ps.setString(5, row.description);
+            ps.setString(6, row.authors);
+            ps.setString(7, row.coverImgUrl);
+            setNullableInt(ps, 8, row.publisherName != null ? publishers.get(key(row.publisherName)) : null);
+            ps.setString(9, row.dimensions);
+            ps.setDate(10, today);
+            ps.setBigDecimal(11, row.originalPrice);
+            ps.setBigDecimal(12, row.sellingPrice);
+            ps.setInt(13, row.stockQuantity);
+        });
+        // Ảnh bìa trỏ tới file đã upload: sách mới giữ một tham chiếu, như khi người bán tự upload
+        fileStorageService.retainAll(rows.stream().map(row -> row.coverImgUrl).collect(Collectors.toList()));
+
+        // Driver SQL Server không trả khóa sinh ra cho batch: lấy ID theo ISBN, chỉ trong các dòng
+        // vừa thêm (book_id > maxIdBefore), nên sách cùng ISBN đã có từ trước không bị nhận nhầm
+        Map<String, ParsedRow> byIsbn = rows.stream().collect(Collectors.toMap(row -> key(row.isbn), row -> row));
+        String placeholders = String.join(",", Collections.nCopies(rows.size(), "?"));
+        List<Object> params = new ArrayList<>(rows.size() + 2);
+        params.add(shopId);
+        params.add(maxIdBefore);
+        rows.forEach(row -> params.add(row.isbn));
+        jdbcTemplate.query("SELECT book_id, isbn FROM books WHERE shop_id = ? AND book_id > ? AND isbn IN (" +
+                        placeholders + ")",
+                rs -> {
+                    ParsedRow row = byIsbn.get(key(rs.getString("isbn").trim()));
+                    if (row == null) {
+                        return;
+                    }
+                    if (row.bookId != null) {
+                        // Sách cùng ISBN được thêm tay trong lúc nhập: rollback cả đoạn thay vì gắn nhầm sách
+                        throw new IllegalStateException("ISBN " + row.isbn + " was added to the shop during the import");
+                    }
+                    row.bookId = rs.getInt("book_id");
+                }, params.toArray());
+        for (ParsedRow row : rows) {
+            if (row.bookId == null) {
+                throw new IllegalStateException("Could not read back the ID of imported ISBN " + row.isbn);
+            }
+        }
+
+        List<int[]> links = new ArrayList<>();
+        for (ParsedRow row : rows) {
+            for (String categoryName : row.categoryNames) {
+                links.add(new int[]{row.bookId, categories.get(key(categoryName))});
+            }
+        }
+        if (!links.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_BOOK_CATEGORY_SQL, links, links.size(), (ps, link) -> {
+                ps.setInt(1, link[0]);
+                ps.setInt(2, link[1]);
+            });
+        }
+    }
+
+    /**
+     * Cập nhật chỉ mục tìm kiếm và hàng đợi đồng bộ chatbot, như BookService làm khi lưu từng sách
+     */
+    private void afterChunkCommitted(Integer shopId, List<ParsedRow> rows, Set<Integer> importedIds) {
+        Shop shop = new Shop();
+        shop.setShopId(shopId);
+        for (ParsedRow row : rows) {
+            Book book = new Book();
+            book.setBookId(row.bookId);
+            book.setTitle(row.title);
+            book.setAuthors(row.authors);
+            book.setShop(shop);
+            book.setActive(true);
+            bookSearchIndex.index(book);
+            vectorStoreService.markBookDirty(row.bookId);
+            importedIds.add(row.bookId);
+        }
+    }
+
+    private static ParsedRow parseRow(CSVRecord record) {
+        // Dòng 1 là tiêu đề
+        ParsedRow row = new ParsedRow(record.getRecordNumber() + 1);
+        try {
+            row.title = required(record, "title");
+            row.authors = optional(record, "authors");
+            row.description = optional(record, "description");
+            row.isbn = required(record, "isbn");
+            if (row.isbn.length() > MAX_ISBN_LENGTH) {
+                throw new IllegalArgumentException("isbn is longer than " + MAX_ISBN_LENGTH + " characters");
+            }
+            row.stockQuantity = parseInt(record, "stockQuantity", true);
+            row.sellingPrice = parsePrice(record, "sellingPrice");
+            row.originalPrice = parsePrice(record, "originalPrice");
+            row.coverImgUrl = optional(record, "coverImgUrl");
+            if (row.coverImgUrl != null && row.coverImgUrl.length() > MAX_COVER_URL_LENGTH) {
+                throw new IllegalArgumentException("coverImgUrl is longer than " + MAX_COVER_URL_LENGTH + " characters");
+            }
+            row.numberOfPages = parseInt(record, "numberOfPages", false);
+            row.dimensions = optional(record, "dimensions");
+            if (row.dimensions != null && row.dimensions.length() > MAX_DIMENSIONS_LENGTH) {
+                throw new IllegalArgumentException("dimensions is longer than " + MAX_DIMENSIONS_LENGTH + " characters");
+            }
+            row.publisherName = optional(record, "publisherName");
+            String categoriesString = optional(record, "categories");
+            if (categoriesString != null) {
+                Set<String> names = new LinkedHashSet<>();
+                Set<String> keys = new HashSet<>();
+                for (String name : categoriesString.split(",")) {
+                    String trimmed = name.trim();
+                    if (!trimmed.isEmpty() && keys.add(key(trimmed))) {
+                        names.add(trimmed);
+                    }
+                }
+                row.categoryNames = names;
+            }
+        } catch (IllegalArgumentException e) {
+            row.error = e.getMessage();
+        }
+        return row;
+    }
+
+    private static String required(CSVRecord record, String column) {
+        String value = optional(record, column);
+        if (value == null) {
+            throw new IllegalArgumentException(column + " is required");
+        }
+        return value;
+    }
+
+    private static String optional(CSVRecord record, String column) {
+        String value = record.isMapped(column) && record.isSet(column) ? record.get(column) : null;
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    private static Integer parseInt(CSVRecord record, String column, boolean required) {
+        String value = required ? required(record, column) : optional(record, column);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException(column + " must not be negative");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " is not a whole number: " + value);
+        }
+    }
+
+    private static BigDecimal parsePrice(CSVRecord record, String column) {
+        String value = required(record, column);
+        try {
+            BigDecimal price = new BigDecimal(value);
+            if (price.signum() < 0) {
+                throw new IllegalArgumentException(column + " must not be negative");
+            }
+            return price;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " is not a number: " + value);
+        }
+    }
+
+    private void resolveOrInsert(Map<String, Integer> dictionary, String name, String insertSql) {
+        if (dictionary.containsKey(key(name))) {
+            return;
+        }
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, name);
+            return ps;
+        }, keyHolder);
+        dictionary.put(key(name), keyHolder.getKey().intValue());
+    }
+
+    /**
+     * Tên → ID; so khớp không phân biệt hoa thường như collation mặc định của SQL Server (ISBN cũng dùng key này)
+     */
+    private Map<String, Integer> loadDictionary(String sql) {
+        Map<String, Integer> dictionary = new HashMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            String name = rs.getString(2);
+            if (name != null) {
+                dictionary.putIfAbsent(key(name.trim()), rs.getInt(1));
+            }
+        });
+        return dictionary;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static int countRows(Path csv) throws IOException {
+        int rows = 0;
+        try (Reader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+             CSVParser parser = new CSVParser(reader, csvFormat())) {
+            for (CSVRecord ignored : parser) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private static CSVFormat csvFormat() {
+        return CSVFormat.DEFAULT.builder().setHeader().setIgnoreHeaderCase(true).setTrim(true).build();
+    }
+
+    private static void setNullableInt(PreparedStatement ps, int index, Integer value) throws SQLException {
+        if (value != null) {
+            ps.setInt(index, value);
+        } else {
+            ps.setNull(index, Types.INTEGER);
+        }
+    }
+
+    private static void fail(ImportJob job, String message) {
+        job.status = Status.FAILED;
+        job.message = message;
+    }
+
+    private static ExecutorService newDaemonPool(int threads, String namePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
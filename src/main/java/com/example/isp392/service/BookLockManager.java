@@ -0,0 +1,205 @@
+package com.example.isp392.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Khóa theo từng sách cho thanh toán: hai giỏ hàng không chung sách nào chạy song song,
+ * chỉ các giỏ có chung sách mới phải chờ nhau.
+ * <ul>
+ *   <li>Các khóa luôn được lấy theo thứ tự book ID tăng dần, nên hai giao dịch không thể giữ khóa
+ *       chéo nhau (không deadlock).</li>
+ *   <li>Mỗi lần lấy có hạn chờ chung; quá hạn thì trả các khóa đã lấy và ném {@link LockTimeoutException}.</li>
+ *   <li>Khóa của sách không còn ai dùng bị gỡ khỏi bảng, nên bộ nhớ chỉ tỉ lệ với số sách đang được thanh toán.</li>
+ * </ul>
+ * Khóa chỉ có tác dụng trong một JVM; việc chống bán vượt tồn kho vẫn do {@link StockLedger} đảm bảo.
+ */
+@Component
+public class BookLockManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(BookLockManager.class);
+
+    /**
+     * Không lấy được khóa trong thời hạn (sách đang được nhiều người thanh toán cùng lúc)
+     */
+    public static class LockTimeoutException extends RuntimeException {
+        public LockTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Khóa của một sách kèm số luồng đang giữ hoặc chờ; chỉ đổi số này trong compute của map
+     */
+    private static class Entry {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users;
+    }
+
+    /**
+     * Các khóa đã lấy; đóng (hoặc kết thúc transaction) để trả
+     */
+    public class Locks implements AutoCloseable {
+        private final List<Integer> bookIds;
+        private final long acquiredAt = System.nanoTime();
+        private boolean released;
+
+        private Locks(List<Integer> bookIds) {
+            this.bookIds = bookIds;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            // Trả theo thứ tự ngược với lúc lấy
+            for (int i = bookIds.size() - 1; i >= 0; i--) {
+                unlock(bookIds.get(i));
+            }
+            recordMax(maxHoldNanos, System.nanoTime() - acquiredAt);
+        }
+    }
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong maxHoldNanos = new AtomicLong();
+
+    public BookLockManager(@Value("${checkout.book-lock.timeout-ms:5000}") long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Lấy khóa của các sách (bỏ trùng, theo thứ tự ID tăng dần) và giữ tới khi transaction hiện tại
+     * kết thúc (commit hoặc rollback), để giao dịch sau luôn thấy dữ liệu đã commit của giao dịch trước.
+     * Ngoài transaction thì dùng {@link #acquire(Collection)} với try-with-resources.
+     */
+    public void lockForTransaction(Collection<Integer> bookIds) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("lockForTransaction requires an active transaction");
+        }
+        Locks locks = acquire(bookIds);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                locks.close();
+            }
+        });
+    }
+
+    /**
+     * Lấy khóa của các sách theo thứ tự ID tăng dần, chờ tổng cộng tối đa timeout
+     */
+    public Locks acquire(Collection<Integer> bookIds) {
+        List<Integer> ordered = new ArrayList<>(new TreeSet<>(bookIds));
+        List<Integer> held = new ArrayList<>(ordered.size());
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean waited = false;
+        try {
+            for (Integer bookId : ordered) {
+                Entry entry = entries.compute(bookId, (id, existing) -> {
+                    Entry e = existing != null ? existing : new Entry();
+                    e.users++;
+                    return e;
+                });
+                boolean acquired = false;
+                try {
+                    acquired = entry.lock.tryLock();
+                    if (!acquired) {
+                        waited = true;
+                        acquired = entry.lock.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    }
+                } finally {
+                    if (!acquired) {
+                        release(bookId);
+                    }
+                }
+                if (!acquired) {
+                    timeouts.increment();
+                    logger.warn("Timed out after {} ms waiting for checkout lock on book {} (cart books: {})",
+                            timeoutMillis, bookId, ordered);
+                    throw new LockTimeoutException("Sản phẩm đang được nhiều người đặt cùng lúc, vui lòng thử lại.");
+                }
+                held.add(bookId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unlockAll(held);
+            throw new LockTimeoutException("Đặt hàng bị gián đoạn, vui lòng thử lại.");
+        } catch (RuntimeException e) {
+            unlockAll(held);
+            throw e;
+        }
+
+        long waitNanos = System.nanoTime() - start;
+        acquisitions.increment();
+        if (waited) {
+            contended.increment();
+        }
+        totalWaitNanos.add(waitNanos);
+        recordMax(maxWaitNanos, waitNanos);
+        return new Locks(held);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long count = acquisitions.sum();
+        stats.put("acquisitions", count);
+        stats.put("contended", contended.sum());
+        stats.put("timeouts", timeouts.sum());
+        stats.put("lockedBooks", entries.size());
+        stats.put("avgWaitMs", count == 0 ? 0.0 : totalWaitNanos.sum() / (double) count / 1_000_000);
+        stats.put("maxWaitMs", maxWaitNanos.get() / 1_000_000.0);
+        stats.put("maxHoldMs", maxHoldNanos.get() / 1_000_000.0);
+        return stats;
+    }
+
+    private void unlockAll(List<Integer> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            unlock(held.get(i));
+        }
+    }
+
+    private void unlock(Integer bookId) {
+        Entry entry = entries.get(bookId);
+        if (entry != null) {
+            entry.lock.unlock();
+            release(bookId);
+        }
+    }
+
+    /**
+     * Bớt một người dùng của khóa; gỡ khóa khỏi bảng khi không còn ai giữ hoặc chờ
+     */
+    private void release(Integer bookId) {
+        entries.computeIfPresent(bookId, (id, entry) -> --entry.users == 0 ? null : entry);
+    }
+
+    private static void recordMax(AtomicLong max, long value) {
+        max.accumulateAndGet(value, Math::max);
+    }
+}
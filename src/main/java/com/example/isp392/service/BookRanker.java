@@ -0,0 +1,185 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.Book;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.ToIntFunction;
+
+/**
+ * Xếp hạng kết quả tìm kiếm fuzzy bằng heap có giới hạn (Top-K).
+ * Chỉ giữ lại K sách có điểm cao nhất thay vì sắp xếp toàn bộ danh sách khớp,
+ * và chia tập ứng viên cho nhiều lõi CPU bằng fork/join khi danh sách đủ lớn.
+ */
+@Component
+public class BookRanker {
+
+    // Kích thước tối đa của một phần việc trước khi chia nhỏ tiếp
+    private static final int SPLIT_THRESHOLD = 256;
+
+    /**
+     * Sách kèm điểm số. Đối tượng có thể thay đổi để tái sử dụng khi bị đẩy ra khỏi heap.
+     */
+    static class BookWithScore {
+        private Book book;
+        private int score;
+        private int position;
+
+        BookWithScore(Book book, int score, int position) {
+            set(book, score, position);
+        }
+
+        void set(Book book, int score, int position) {
+            this.book = book;
+            this.score = score;
+            this.position = position;
+        }
+
+        public Book getBook() {
+            return book;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Kết quả xếp hạng: các sách tốt nhất theo thứ tự giảm dần và tổng số sách vượt ngưỡng
+     */
+    public static class Ranking {
+        private final List<Book> books;
+        private final int totalMatches;
+
+        Ranking(List<Book> books, int totalMatches) {
+            this.books = books;
+            this.totalMatches = totalMatches;
+        }
+
+        public List<Book> getBooks() {
+            return books;
+        }
+
+        public int getTotalMatches() {
+            return totalMatches;
+        }
+    }
+
+    // Điểm cao hơn đứng trước; cùng điểm thì giữ thứ tự ban đầu của danh sách ứng viên
+    private static final Comparator<BookWithScore> BEST_FIRST = (b1, b2) -> {
+        int byScore = Integer.compare(b2.score, b1.score);
+        return byScore != 0 ? byScore : Integer.compare(b1.position, b2.position);
+    };
+
+    // Heap nhỏ nhất: phần tử "kém nhất" nằm ở đỉnh để bị loại trước
+    private static final Comparator<BookWithScore> WORST_FIRST = BEST_FIRST.reversed();
+
+    /**
+     * Chấm điểm các ứng viên và giữ lại tối đa limit sách có điểm cao nhất
+     *
+     * @param candidates Danh sách sách ứng viên
+     * @param scorer     Hàm chấm điểm cho một sách
+     * @param minScore   Ngưỡng điểm tối thiểu để được tính là khớp
+     * @param limit      Số sách tốt nhất cần giữ lại, thường là (page + 1) * size
+     * @return Kết quả xếp hạng
+     */
+    public Ranking topK(List<Book> candidates, ToIntFunction<Book> scorer, int minScore, int limit) {
+        if (candidates.isEmpty() || limit <= 0) {
+            return new Ranking(new ArrayList<>(), 0);
+        }
+
+        RankTask task = new RankTask(candidates, scorer, minScore, limit, 0, candidates.size());
+        PartialRanking partial = candidates.size() > SPLIT_THRESHOLD
+                ? ForkJoinPool.commonPool().invoke(task)
+                : task.compute();
+
+        List<BookWithScore> best = new ArrayList<>(partial.heap);
+        best.sort(BEST_FIRST);
+
+        List<Book> books = new ArrayList<>(best.size());
+        for (BookWithScore bookWithScore : best) {
+            books.add(bookWithScore.getBook());
+        }
+        return new Ranking(books, partial.matches);
+    }
+
+    /**
+     * Kết quả trung gian của một phần việc: heap Top-K và số sách vượt ngưỡng
+     */
+    private static class PartialRanking {
+        private final PriorityQueue<BookWithScore> heap;
+        private int matches;
+
+        PartialRanking(int limit) {
+            this.heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, WORST_FIRST);
+        }
+
+        void offer(Book book, int score, int position, int limit) {
+            if (heap.size() < limit) {
+                heap.add(new BookWithScore(book, score, position));
+                return;
+            }
+            BookWithScore worst = heap.peek();
+            if (score > worst.score || (score == worst.score && position < worst.position)) {
+                // Tái sử dụng đối tượng bị loại thay vì cấp phát mới
+                heap.poll();
+                worst.set(book, score, position);
+                heap.add(worst);
+            }
+        }
+
+        PartialRanking merge(PartialRanking other, int limit) {
+            matches += other.matches;
+            for (BookWithScore bookWithScore : other.heap) {
+                offer(bookWithScore.book, bookWithScore.score, bookWithScore.position, limit);
+            }
+            return this;
+        }
+    }
+
+    private static class RankTask extends RecursiveTask<PartialRanking> {
+        private final List<Book> candidates;
+        private final ToIntFunction<Book> scorer;
+        private final int minScore;
+        private final int limit;
+        private final int from;
+        private final int to;
+
+        RankTask(List<Book> candidates, ToIntFunction<Book> scorer, int minScore, int limit, int from, int to) {
+            this.candidates = candidates;
+            this.scorer = scorer;
+            this.minScore = minScore;
+            this.limit = limit;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected PartialRanking compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                PartialRanking partial = new PartialRanking(limit);
+                for (int i = from; i < to; i++) {
+                    Book book = candidates.get(i);
+                    int score = scorer.applyAsInt(book);
+                    if (score >= minScore) {
+                        partial.matches++;
+                        partial.offer(book, score, i, limit);
+                    }
+                }
+                return partial;
+            }
+
+            int mid = (from + to) >>> 1;
+            RankTask left = new RankTask(candidates, scorer, minScore, limit, from, mid);
+            RankTask right = new RankTask(candidates, scorer, minScore, limit, mid, to);
+            left.fork();
+            PartialRanking rightResult = right.compute();
+            return left.join().merge(rightResult, limit);
+        }
+    }
+}
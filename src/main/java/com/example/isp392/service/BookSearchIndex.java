@@ -0,0 +1,286 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.Book;
+import com.example.isp392.repository.BookRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Chỉ mục trigram nằm trong bộ nhớ cho tiêu đề và tác giả của các sách đang hoạt động.
+ * Dùng để chọn nhanh tập ứng viên trước khi chấm điểm fuzzy trong BookService,
+ * thay vì tải và chấm điểm toàn bộ danh mục cho mỗi lần tìm kiếm.
+ */
+@Component
+public class BookSearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(BookSearchIndex.class);
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Tỉ lệ trigram tối thiểu của truy vấn mà một sách phải chứa để trở thành ứng viên
+    private static final double MIN_GRAM_OVERLAP = 0.25;
+
+    private final BookRepository bookRepository;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Set<Integer>> postings = new HashMap<>();
+    private final Map<Integer, IndexedBook> books = new HashMap<>();
+    private volatile boolean ready = false;
+
+    /**
+     * Thông tin tối thiểu của một sách được giữ trong chỉ mục
+     */
+    private static class IndexedBook {
+        private final Integer shopId;
+        private final Set<String> grams;
+
+        IndexedBook(Integer shopId, Set<String> grams) {
+            this.shopId = shopId;
+            this.grams = grams;
+        }
+    }
+
+    public BookSearchIndex(BookRepository bookRepository) {
+        this.bookRepository = bookRepository;
+    }
+
+    /**
+     * Xây dựng chỉ mục khi ứng dụng khởi động xong
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        rebuild();
+    }
+
+    /**
+     * Xây dựng lại toàn bộ chỉ mục định kỳ, để bắt các thay đổi không đi qua BookService
+     * (ví dụ: import CSV hoặc cập nhật hàng loạt bằng câu lệnh UPDATE)
+     */
+    @Scheduled(fixedDelayString = "${search.index.rebuild-interval-ms:600000}",
+            initialDelayString = "${search.index.rebuild-interval-ms:600000}")
+    public void rebuild() {
+        long startTime = System.currentTimeMillis();
+        try {
+            List<Object[]> rows = bookRepository.findActiveBookSearchFields();
+
+            Map<String, Set<Integer>> newPostings = new HashMap<>();
+            Map<Integer, IndexedBook> newBooks = new HashMap<>();
+            for (Object[] row : rows) {
+                Integer bookId = ((Number) row[0]).intValue();
+                Integer shopId = row[1] != null ? ((Number) row[1]).intValue() : null;
+                Set<String> grams = gramsOf((String) row[2], (String) row[3]);
+                newBooks.put(bookId, new IndexedBook(shopId, grams));
+                for (String gram : grams) {
+                    newPostings.computeIfAbsent(gram, k -> new HashSet<>()).add(bookId);
+                }
+            }
+
+            lock.writeLock().lock();
+            try {
+                postings.clear();
+                postings.putAll(newPostings);
+                books.clear();
+                books.putAll(newBooks);
+                ready = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            log.info("Book search index rebuilt: {} books, {} grams in {}ms",
+                    newBooks.size(), newPostings.size(), System.currentTimeMillis() - startTime);
+        } catch (Exception e) {
+            log.error("Error rebuilding book search index: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Chỉ mục đã sẵn sàng để trả lời truy vấn hay chưa
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Thêm mới hoặc cập nhật một sách trong chỉ mục. Sách không hoạt động sẽ bị gỡ khỏi chỉ mục.
+     *
+     * @param book Sách vừa được tạo hoặc cập nhật
+     */
+    public void index(Book book) {
+        if (book == null || book.getBookId() == null) {
+            return;
+        }
+        if (!book.isActive()) {
+            remove(book.getBookId());
+            return;
+        }
+
+        Integer shopId = book.getShop() != null ? book.getShop().getShopId() : null;
+        Set<String> grams = gramsOf(book.getTitle(), book.getAuthors());
+
+        lock.writeLock().lock();
+        try {
+            removeLocked(book.getBookId());
+            books.put(book.getBookId(), new IndexedBook(shopId, grams));
+            for (String gram : grams) {
+                postings.computeIfAbsent(gram, k -> new HashSet<>()).add(book.getBookId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gỡ một sách khỏi chỉ mục
+     *
+     * @param bookId ID của sách
+     */
+    public void remove(Integer bookId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(bookId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gỡ toàn bộ sách của một cửa hàng khỏi chỉ mục (khi cửa hàng bị khóa)
+     *
+     * @param shopId ID của cửa hàng
+     */
+    public void removeByShopId(Integer shopId) {
+        lock.writeLock().lock();
+        try {
+            List<Integer> bookIds = new ArrayList<>();
+            for (Map.Entry<Integer, IndexedBook> entry : books.entrySet()) {
+                if (shopId.equals(entry.getValue().shopId)) {
+                    bookIds.add(entry.getKey());
+                }
+            }
+            bookIds.forEach(this::removeLocked);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Chọn các sách ứng viên cho một truy vấn dựa trên số trigram trùng khớp.
+     * Kết quả được sắp xếp theo số trigram trùng giảm dần và giới hạn bởi maxCandidates.
+     *
+     * @param query         Chuỗi tìm kiếm của người dùng
+     * @param maxCandidates Số ứng viên tối đa
+     * @return Danh sách ID sách ứng viên
+     */
+    public List<Integer> findCandidates(String query, int maxCandidates) {
+        Set<String> queryGrams = gramsOf(query, null);
+        if (queryGrams.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        int minOverlap = Math.max(1, (int) Math.ceil(queryGrams.size() * MIN_GRAM_OVERLAP));
+        Map<Integer, int[]> overlaps = new HashMap<>();
+
+        lock.readLock().lock();
+        try {
+            for (String gram : queryGrams) {
+                Set<Integer> bookIds = postings.get(gram);
+                if (bookIds == null) {
+                    continue;
+                }
+                for (Integer bookId : bookIds) {
+                    overlaps.computeIfAbsent(bookId, k -> new int[1])[0]++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Map.Entry<Integer, int[]>> matched = new ArrayList<>();
+        for (Map.Entry<Integer, int[]> entry : overlaps.entrySet()) {
+            if (entry.getValue()[0] >= minOverlap) {
+                matched.add(entry);
+            }
+        }
+        if (matched.size() > maxCandidates) {
+            matched.sort((e1, e2) -> Integer.compare(e2.getValue()[0], e1.getValue()[0]));
+            matched = matched.subList(0, maxCandidates);
+        }
+
+        List<Integer> candidates = new ArrayList<>(matched.size());
+        for (Map.Entry<Integer, int[]> entry : matched) {
+            candidates.add(entry.getKey());
+        }
+        return candidates;
+    }
+
+    /**
+     * Chuẩn hóa chuỗi: chữ thường, bỏ dấu tiếng Việt, gom ký tự không phải chữ/số thành khoảng trắng
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String lower = text.toLowerCase().replace('đ', 'd');
+        String stripped = DIACRITICS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+        return NON_WORD.matcher(stripped).replaceAll(" ").trim();
+    }
+
+    /**
+     * Sinh tập trigram của tiêu đề và tác giả. Mỗi từ được thêm một khoảng trắng phía trước
+     * để tiền tố ngắn (ví dụ "ha" trong "harry") vẫn tạo ra trigram khớp được.
+     */
+    private static Set<String> gramsOf(String title, String authors) {
+        Set<String> grams = new HashSet<>();
+        addGrams(normalize(title), grams);
+        addGrams(normalize(authors), grams);
+        return grams;
+    }
+
+    private static void addGrams(String normalized, Set<String> grams) {
+        if (normalized.isEmpty()) {
+            return;
+        }
+        for (String token : normalized.split(" ")) {
+            String padded = " " + token;
+            if (padded.length() < 3) {
+                grams.add(padded);
+                continue;
+            }
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                grams.add(padded.substring(i, i + 3));
+            }
+        }
+    }
+
+    private void removeLocked(Integer bookId) {
+        IndexedBook existing = books.remove(bookId);
+        if (existing == null) {
+            return;
+        }
+        for (String gram : existing.grams) {
+            Set<Integer> bookIds = postings.get(gram);
+            if (bookIds != null) {
+                bookIds.remove(bookId);
+                if (bookIds.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+}
@@ -18,11 +18,12 @@ import jakarta.persistence.PersistenceContext;
 import jakarta.persistence.TypedQuery;
 import jakarta.persistence.criteria.*;
 import jakarta.transaction.Transactional;
-import org.springframework.transaction.annotation.Isolation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.*;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import me.xdrop.fuzzywuzzy.FuzzySearch;
 
 
@@ -49,30 +50,21 @@ public class BookService {
     private final CategoryRepository categoryRepository;
     private final PublisherRepository publisherRepository;
     private final ShopRepository shopRepository;
+    private final BookSearchIndex bookSearchIndex;
+    private final BookRanker bookRanker;
+    private final VectorStoreService vectorStoreService;
+    private final ViewCounterService viewCounterService;
+    private final StockLedger stockLedger;
 
-    // Lớp nội bộ để giữ sách và điểm số
-    private static class BookWithScore {
-        private final Book book;
-        private final int score;
-
-        public BookWithScore(Book book, int score) {
-            this.book = book;
-            this.score = score;
-        }
-
-        public Book getBook() {
-            return book;
-        }
-
-        public int getScore() {
-            return score;
-        }
-    }
+    // Số ứng viên tối đa lấy từ chỉ mục trigram trước khi chấm điểm fuzzy
+    private static final int MAX_SEARCH_CANDIDATES = 2000;
 
     @Transactional
     public void deactivateBooksByShopId(Integer shopId) {
         log.info("Deactivating all books for shop ID: {}", shopId);
         bookRepository.deactivateBooksByShopId(shopId);
+        afterCommit(() -> bookSearchIndex.removeByShopId(shopId));
+        vectorStoreService.markShopDirty(shopId);
     }
 
     @PersistenceContext
@@ -86,18 +78,33 @@ public class BookService {
      * @param categoryRepository  Repository for category data access
      * @param publisherRepository Repository for publisher data access
      * @param shopRepository      Repository for shop data access
+     * @param bookSearchIndex     In-memory trigram index for title search
+     * @param bookRanker          Top-K ranking engine for fuzzy search results
+     * @param vectorStoreService  Vector store sync for chatbot book documents
+     * @param viewCounterService  Write-behind view counters
+     * @param stockLedger         In-memory stock counters for reservations
      */
     public BookService(
             BookRepository bookRepository,
             BookReviewRepository bookReviewRepository,
             CategoryRepository categoryRepository,
             PublisherRepository publisherRepository,
-            ShopRepository shopRepository) {
+            ShopRepository shopRepository,
+            BookSearchIndex bookSearchIndex,
+            BookRanker bookRanker,
+            VectorStoreService vectorStoreService,
+            ViewCounterService viewCounterService,
+            StockLedger stockLedger) {
         this.bookRepository = bookRepository;
         this.bookReviewRepository = bookReviewRepository;
         this.categoryRepository = categoryRepository;
         this.publisherRepository = publisherRepository;
         this.shopRepository = shopRepository;
+        this.bookSearchIndex = bookSearchIndex;
+        this.bookRanker = bookRanker;
+        this.vectorStoreService = vectorStoreService;
+        this.viewCounterService = viewCounterService;
+        this.stockLedger = stockLedger;
     }
 
     // Lấy tất cả sách
@@ -141,45 +148,64 @@ public class BookService {
             return bookRepository.findAll(pageable);
         }
 
-        // Get all books
-        List<Book> allBooks = bookRepository.findByIsActiveTrue();
+        // Lấy tập ứng viên từ chỉ mục trigram; chỉ quét toàn bộ khi chỉ mục chưa sẵn sàng
+        // hoặc truy vấn quá ngắn để sinh trigram
+        List<Book> candidateBooks;
+        if (bookSearchIndex.isReady() && BookSearchIndex.normalize(title).length() >= 2) {
+            List<Integer> candidateIds = bookSearchIndex.findCandidates(title, MAX_SEARCH_CANDIDATES);
+            candidateBooks = candidateIds.isEmpty()
+                    ? new ArrayList<>()
+                    : bookRepository.findAllById(candidateIds).stream()
+                            .filter(Book::isActive)
+                            .collect(Collectors.toList());
+        } else {
+            candidateBooks = bookRepository.findByIsActiveTrue();
+        }
 
         // Chuyển query về chữ thường để so sánh nhất quán
         final String lowerCaseQuery = title.toLowerCase();
 
-        // Filter books using advanced fuzzy search
-        List<Book> matchedBooks = allBooks.stream()
-                .map(book -> {
-                    String bookTitle = book.getTitle().toLowerCase();
+        // Chỉ giữ lại các sách tốt nhất cần cho trang hiện tại (Top-K), không sắp xếp toàn bộ
+        BookRanker.Ranking ranking = bookRanker.topK(candidateBooks,
+                book -> scoreTitle(lowerCaseQuery, book),
+                60, // Ngưỡng điểm hợp lý là 60
+                (int) pageable.getOffset() + pageable.getPageSize());
+
+        return toPage(ranking, pageable);
+    }
 
-                    // 1. Tính điểm cho lỗi chính tả (so khớp các từ)
-                    int tokenScore = FuzzySearch.tokenSetRatio(lowerCaseQuery, bookTitle);
+    /**
+     * Tính điểm fuzzy của một sách theo tiêu đề
+     */
+    private int scoreTitle(String lowerCaseQuery, Book book) {
+        String bookTitle = book.getTitle().toLowerCase();
 
-                    // 2. Tính điểm cho chuỗi con/tiền tố (để "Har" khớp với "Harry")
-                    int partialScore = FuzzySearch.partialRatio(lowerCaseQuery, bookTitle);
+        // 1. Tính điểm cho lỗi chính tả (so khớp các từ)
+        int tokenScore = FuzzySearch.tokenSetRatio(lowerCaseQuery, bookTitle);
 
-                    // 3. Lấy điểm cao nhất từ hai thuật toán trên làm điểm cuối cùng
-                    int finalScore = Math.max(tokenScore, partialScore);
+        // 2. Tính điểm cho chuỗi con/tiền tố (để "Har" khớp với "Harry")
+        int partialScore = FuzzySearch.partialRatio(lowerCaseQuery, bookTitle);
 
-                    return new BookWithScore(book, finalScore);
-                })
-                .filter(bookWithScore -> bookWithScore.getScore() >= 60) // Ngưỡng điểm hợp lý là 65
-                .sorted((b1, b2) -> Integer.compare(b2.getScore(), b1.getScore()))
-                .map(BookWithScore::getBook)
-                .collect(Collectors.toList());
+        // 3. Lấy điểm cao nhất từ hai thuật toán trên làm điểm cuối cùng
+        return Math.max(tokenScore, partialScore);
+    }
 
-        // Convert list to page
+    /**
+     * Cắt trang hiện tại từ kết quả xếp hạng Top-K
+     */
+    private Page<Book> toPage(BookRanker.Ranking ranking, Pageable pageable) {
+        List<Book> rankedBooks = ranking.getBooks();
         int start = (int) pageable.getOffset();
-        int end = Math.min((start + pageable.getPageSize()), matchedBooks.size());
+        int end = Math.min((start + pageable.getPageSize()), rankedBooks.size());
 
-        if (start >= matchedBooks.size()) {
-            return new PageImpl<>(new ArrayList<>(), pageable, matchedBooks.size());
+        if (start >= rankedBooks.size()) {
+            return new PageImpl<>(new ArrayList<>(), pageable, ranking.getTotalMatches());
         }
 
         return new PageImpl<>(
-                matchedBooks.subList(start, end),
+                new ArrayList<>(rankedBooks.subList(start, end)),
                 pageable,
-                matchedBooks.size()
+                ranking.getTotalMatches()
         );
     }
 
@@ -221,40 +247,12 @@ public class BookService {
         // Chuyển query về chữ thường để so sánh nhất quán
         final String lowerCaseQuery = title.toLowerCase();
 
-        // Filter books using advanced fuzzy search
-        List<Book> matchedBooks = shopBooks.stream()
-                .map(book -> {
-                    String bookTitle = book.getTitle().toLowerCase();
+        BookRanker.Ranking ranking = bookRanker.topK(shopBooks,
+                book -> scoreTitle(lowerCaseQuery, book),
+                65, // Ngưỡng điểm hợp lý là 65
+                (int) pageable.getOffset() + pageable.getPageSize());
 
-                    // 1. Tính điểm cho lỗi chính tả (so khớp các từ)
-                    int tokenScore = FuzzySearch.tokenSetRatio(lowerCaseQuery, bookTitle);
-
-                    // 2. Tính điểm cho chuỗi con/tiền tố (để "Har" khớp với "Harry")
-                    int partialScore = FuzzySearch.partialRatio(lowerCaseQuery, bookTitle);
-
-                    // 3. Lấy điểm cao nhất từ hai thuật toán trên làm điểm cuối cùng
-                    int finalScore = Math.max(tokenScore, partialScore);
-
-                    return new BookWithScore(book, finalScore);
-                })
-                .filter(bookWithScore -> bookWithScore.getScore() >= 65) // Ngưỡng điểm hợp lý là 65
-                .sorted((b1, b2) -> Integer.compare(b2.getScore(), b1.getScore()))
-                .map(BookWithScore::getBook)
-                .collect(Collectors.toList());
-
-        // Convert list to page
-        int start = (int) pageable.getOffset();
-        int end = Math.min((start + pageable.getPageSize()), matchedBooks.size());
-
-        if (start >= matchedBooks.size()) {
-            return new PageImpl<>(new ArrayList<>(), pageable, matchedBooks.size());
-        }
-
-        return new PageImpl<>(
-                matchedBooks.subList(start, end),
-                pageable,
-                matchedBooks.size()
-        );
+        return toPage(ranking, pageable);
     }
 
     /**
@@ -322,6 +320,8 @@ public class BookService {
 
         // Save and return book
         Book savedBook = bookRepository.save(book);
+        afterCommit(() -> bookSearchIndex.index(savedBook));
+        vectorStoreService.markBookDirty(savedBook.getBookId());
         log.info("Book created successfully with ID: {}", savedBook.getBookId());
 
         return savedBook;
@@ -384,6 +384,12 @@ public class BookService {
 
         // Save and return updated book
         Book updatedBook = bookRepository.save(book);
+        afterCommit(() -> bookSearchIndex.index(updatedBook));
+        vectorStoreService.markBookDirty(updatedBook.getBookId());
+        // stock_quantity không được ghi khi lưu entity
+        if (bookForm.getStockQuantity() != null) {
+            stockLedger.setStock(updatedBook.getBookId(), bookForm.getStockQuantity());
+        }
         log.info("Book updated successfully with ID: {}", updatedBook.getBookId());
 
         return updatedBook;
@@ -409,63 +415,49 @@ public class BookService {
      */
     @Transactional
     public void updateStockQuantity(Integer bookId, int quantity) {
-        // Use SELECT FOR UPDATE to prevent race conditions
-        Book book = bookRepository.findByIdForUpdate(bookId)
-                .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy sách với ID: " + bookId));
-
-        int currentStock = book.getStockQuantity();
-        int newQuantity = currentStock + quantity;
-
-        log.info("Updating stock for book ID {}: current={}, change={}, new={}",
-                bookId, currentStock, quantity, newQuantity);
-
-        if (newQuantity < 0) {
+        // Thay đổi qua sổ tồn kho trong bộ nhớ, được ghi xuống DB theo lô
+        if (quantity > 0) {
+            stockLedger.release(bookId, quantity);
+        } else if (quantity < 0 && !stockLedger.tryReserve(bookId, -quantity)) {
+            int currentStock = stockLedger.getAvailable(bookId);
             log.error("Insufficient stock for book ID {}: requested change={}, current stock={}",
                      bookId, quantity, currentStock);
             throw new IllegalArgumentException("Số lượng sách trong kho không đủ. Còn lại: " + currentStock +
                                              ", yêu cầu: " + Math.abs(quantity));
         }
 
-        book.setStockQuantity(newQuantity);
-        bookRepository.save(book);
-        log.info("Successfully updated stock for book ID {} from {} to {}", bookId, currentStock, newQuantity);
+        log.info("Updated stock for book ID {}: change={}", bookId, quantity);
     }
 
     /**
      * Atomic method to check and reserve inventory for multiple items
-     * This prevents race conditions when multiple users order the same items
+     * Reservations are CAS operations on the in-memory stock ledger (no row lock);
+     * either every item is reserved or none is.
      */
-    @org.springframework.transaction.annotation.Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     public void reserveInventoryForOrder(List<OrderItem> orderItems) {
         log.info("Reserving inventory for {} items", orderItems.size());
 
+        List<OrderItem> reserved = new ArrayList<>();
         for (OrderItem item : orderItems) {
             Integer bookId = item.getBook().getBookId();
             int requestedQuantity = item.getQuantity();
 
-            // Use SELECT FOR UPDATE to lock the row
-            Book book = bookRepository.findByIdForUpdate(bookId)
-                    .orElseThrow(() -> new IllegalArgumentException("Không tìm thấy sách với ID: " + bookId));
-
-            int currentStock = book.getStockQuantity();
-
-            log.info("Checking inventory for book ID {}: requested={}, available={}",
-                    bookId, requestedQuantity, currentStock);
-
-            if (requestedQuantity > currentStock) {
+            if (!stockLedger.tryReserve(bookId, requestedQuantity)) {
+                // Trả lại các sản phẩm đã giữ trước đó
+                for (OrderItem reservedItem : reserved) {
+                    stockLedger.release(reservedItem.getBook().getBookId(), reservedItem.getQuantity());
+                }
+                int currentStock = stockLedger.getAvailable(bookId);
                 log.error("Insufficient inventory for book ID {}: requested={}, available={}",
                          bookId, requestedQuantity, currentStock);
-                throw new IllegalArgumentException("Sản phẩm '" + book.getTitle() +
+                throw new IllegalArgumentException("Sản phẩm '" + item.getBook().getTitle() +
                                                  "' không đủ số lượng trong kho. Còn lại: " + currentStock +
                                                  ", yêu cầu: " + requestedQuantity);
             }
+            reserved.add(item);
 
-            // Reserve the inventory
-            book.setStockQuantity(currentStock - requestedQuantity);
-            bookRepository.save(book);
-
-            log.info("Reserved {} units of book ID {}, remaining stock: {}",
-                    requestedQuantity, bookId, book.getStockQuantity());
+            log.debug("Reserved {} units of book ID {}", requestedQuantity, bookId);
         }
 
         log.info("Successfully reserved inventory for all {} items", orderItems.size());
@@ -675,7 +667,19 @@ public class BookService {
     }
 
     public Book save(Book book) {
-        return bookRepository.save(book);
+        Book savedBook = bookRepository.save(book);
+        afterCommit(() -> bookSearchIndex.index(savedBook));
+        vectorStoreService.markBookDirty(savedBook.getBookId());
+        return savedBook;
+    }
+
+    /**
+     * Đặt lại số lượng tồn của sách (admin sửa sản phẩm). Ghi qua StockLedger vì
+     * stock_quantity không được ghi khi lưu entity.
+     */
+    @Transactional
+    public void setStockQuantity(Integer bookId, Integer quantity) {
+        stockLedger.setStock(bookId, quantity);
     }
 
     public long countAllBooks() {
@@ -792,8 +796,8 @@ public class BookService {
         }
 
         int oldQuantity = book.getStockQuantity();
+        stockLedger.setStock(bookId, newQuantity);
         book.setStockQuantity(newQuantity);
-        bookRepository.save(book);
 
         log.info("Stock updated for book ID {}: {} -> {} (Shop: {}, Reason: {}, Notes: {})",
                 bookId, oldQuantity, newQuantity, shopId, reason, notes);
@@ -890,7 +894,12 @@ public class BookService {
      */
     public int getTotalViewsByShopId(Integer shopId) {
         Integer total = bookRepository.getTotalViewsByShopId(shopId);
-        return total != null ? total : 0;
+        long views = total != null ? total : 0;
+        // Cộng thêm các lượt xem chưa được ghi xuống DB
+        if (viewCounterService.hasPendingBookViews()) {
+            views += viewCounterService.getPendingBookViews(bookRepository.findBookIdsByShopId(shopId));
+        }
+        return (int) views;
     }
 
     /**
@@ -906,15 +915,25 @@ public class BookService {
             Map<String, Object> map = new HashMap<>();
             map.put("bookId", row[0]);
             map.put("title", row[1]);
-            map.put("viewsCount", row[2]);
+            map.put("viewsCount", mergePendingViews(row[0], row[2]));
             result.add(map);
         }
         return result;
     }
 
-    @Transactional
+    /**
+     * Record a product page view; the count is flushed to the database in batches
+     */
     public void incrementViewsCount(int bookId) {
-        bookRepository.incrementViewsCount(bookId);
+        viewCounterService.recordBookView(bookId);
+    }
+
+    /**
+     * Lượt xem đã lưu trong DB cộng với lượt xem chưa được ghi xuống
+     */
+    private int mergePendingViews(Object bookId, Object storedViews) {
+        int views = storedViews != null ? ((Number) storedViews).intValue() : 0;
+        return bookId != null ? views + (int) viewCounterService.getPendingBookViews(((Number) bookId).intValue()) : views;
     }
 
     /**
@@ -939,6 +958,25 @@ public class BookService {
                 .orElseThrow(() -> new IllegalArgumentException("Book not found with ID: " + bookId));
         book.setActive(false); // Đặt trạng thái isActive thành false
         bookRepository.save(book);
+        afterCommit(() -> bookSearchIndex.remove(bookId));
+        vectorStoreService.markBookDirty(bookId);
         log.info("Book with ID {} has been successfully deactivated (hidden).", bookId);
     }
+
+    /**
+     * Chạy sau khi transaction hiện tại commit (ngay lập tức nếu không có transaction),
+     * để chỉ mục tìm kiếm trong bộ nhớ không giữ thay đổi đã bị rollback
+     */
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
 }
@@ -33,11 +33,15 @@ public class CartService {
 
     private final CartItemRepository cartItemRepository;
 
-    public CartService(CartItemRepository cartItemRepository, CartRepository cartRepository, BookService bookService, UserService userService) {
+    private final CartSummaryCache cartSummaryCache;
+
+    public CartService(CartItemRepository cartItemRepository, CartRepository cartRepository, BookService bookService,
+                       UserService userService, CartSummaryCache cartSummaryCache) {
         this.cartItemRepository = cartItemRepository;
         this.cartRepository = cartRepository;
         this.bookService = bookService;
         this.userService = userService;
+        this.cartSummaryCache = cartSummaryCache;
     }
 
     public Cart getCartForUser(User user) {
@@ -165,6 +169,7 @@ public class CartService {
             cart.getItems().add(item);
         }
         cartRepository.save(cart);
+        cartSummaryCache.invalidate(user.getUserId());
     }
 
     public void updateQuantity(User user, Integer bookId, int quantity) {
@@ -188,12 +193,14 @@ public class CartService {
             }
         });
         cartRepository.save(cart);
+        cartSummaryCache.invalidate(user.getUserId());
     }
 
     public void clearItems(User user) {
         Cart cart = getCartForUser(user);
         cart.getItems().clear();
         cartRepository.save(cart);
+        cartSummaryCache.invalidate(user.getUserId());
     }
 
     public List<CartItem> getSelectedCartItems(User user, String[] bookIds) {
@@ -232,13 +239,8 @@ public class CartService {
         for (CartItem cartItem : cart.getItems()) {
             Book book = cartItem.getBook();
             
-            // Kiểm tra số lượng sách trong kho trước khi chuyển sang đơn hàng
-            if (book.getStockQuantity() == null || book.getStockQuantity() < cartItem.getQuantity()) {
-                throw new RuntimeException("Sản phẩm " + book.getTitle() + " không đủ số lượng trong kho");
-            }
-            
-            // Trừ số lượng sách trong kho
-            book.setStockQuantity(book.getStockQuantity() - cartItem.getQuantity());
+            // Trừ số lượng sách trong kho qua sổ tồn kho (ném lỗi nếu không đủ hàng)
+            bookService.updateStockQuantity(book.getBookId(), -cartItem.getQuantity());
             
             OrderItem orderItem = new OrderItem();
             orderItem.setBook(book);
@@ -256,6 +258,9 @@ public class CartService {
     public void clearCart(Cart cart) {
         cart.getItems().clear();
         cartRepository.save(cart);
+        if (cart.getUser() != null) {
+            cartSummaryCache.invalidate(cart.getUser().getUserId());
+        }
     }
 
     public CartItem findCartItemByBookId(User user, Integer bookId) {
@@ -275,6 +280,7 @@ public class CartService {
                     item.setQuantity(quantity);
                     cartItemRepository.save(item);
                 });
+        cartSummaryCache.invalidate(user.getUserId());
     }
 
     public void removeItem(User user, Integer bookId) {
@@ -292,6 +298,7 @@ public class CartService {
             cart.getItems().remove(itemToRemove);
             cartItemRepository.delete(itemToRemove);
             cartRepository.save(cart);
+            cartSummaryCache.invalidate(user.getUserId());
         }
     }
 
@@ -301,8 +308,7 @@ public class CartService {
      * @return number of unique items in cart
      */
     public int getUniqueItemCount(User user) {
-        Cart cart = getCartForUser(user);
-        return cart.getItems().size();
+        return getCartSummary(user).getUniqueItemCount();
     }
 
     /**
@@ -311,10 +317,26 @@ public class CartService {
      * @return total quantity of all items
      */
     public int getTotalQuantity(User user) {
-        Cart cart = getCartForUser(user);
-        return cart.getItems().stream()
-                .mapToInt(CartItem::getQuantity)
-                .sum();
+        return getCartSummary(user).getTotalQuantity();
+    }
+
+    /**
+     * Cart item count and total quantity from a single aggregate query, cached briefly per user
+     * @param user the user whose cart to summarize
+     * @return the cart summary
+     */
+    public CartSummaryCache.CartSummary getCartSummary(User user) {
+        if (user == null || user.getUserId() == null) {
+            return CartSummaryCache.CartSummary.EMPTY;
+        }
+        return cartSummaryCache.get(user.getUserId(), () -> {
+            List<Object[]> rows = cartItemRepository.summarizeByUserId(user.getUserId());
+            if (rows.isEmpty() || rows.get(0)[0] == null) {
+                return CartSummaryCache.CartSummary.EMPTY;
+            }
+            Object[] row = rows.get(0);
+            return new CartSummaryCache.CartSummary(((Number) row[0]).intValue(), ((Number) row[1]).intValue());
+        });
     }
 
     /**
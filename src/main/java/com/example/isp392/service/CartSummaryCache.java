@@ -0,0 +1,91 @@
+package com.example.isp392.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Bộ nhớ đệm ngắn hạn cho thông tin tóm tắt giỏ hàng (số loại sản phẩm, tổng số lượng) theo người dùng.
+ * Được đọc ở mỗi lần render trang nên tránh được truy vấn giỏ hàng lặp lại;
+ * CartService xóa mục tương ứng mỗi khi giỏ hàng thay đổi.
+ */
+@Component
+public class CartSummaryCache {
+
+    /**
+     * Tóm tắt giỏ hàng của một người dùng
+     */
+    public static class CartSummary {
+        public static final CartSummary EMPTY = new CartSummary(0, 0);
+
+        private final int uniqueItemCount;
+        private final int totalQuantity;
+
+        public CartSummary(int uniqueItemCount, int totalQuantity) {
+            this.uniqueItemCount = uniqueItemCount;
+            this.totalQuantity = totalQuantity;
+        }
+
+        public int getUniqueItemCount() { return uniqueItemCount; }
+        public int getTotalQuantity() { return totalQuantity; }
+    }
+
+    private static class Entry {
+        private final CartSummary summary;
+        private final long expiresAt;
+
+        Entry(CartSummary summary, long expiresAt) {
+            this.summary = summary;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    public CartSummaryCache(@Value("${cart.summary-cache.ttl-seconds:30}") long ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    public CartSummary get(Integer userId, Supplier<CartSummary> loader) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(userId);
+        if (entry != null && entry.expiresAt > now) {
+            return entry.summary;
+        }
+        CartSummary summary = loader.get();
+        entries.put(userId, new Entry(summary, now + ttlMillis));
+        return summary;
+    }
+
+    /**
+     * Xóa tóm tắt của người dùng ngay lập tức và một lần nữa sau khi transaction commit,
+     * để request khác không nạp lại dữ liệu cũ trong lúc transaction chưa kết thúc
+     */
+    public void invalidate(Integer userId) {
+        if (userId == null) {
+            return;
+        }
+        entries.remove(userId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    entries.remove(userId);
+                }
+            });
+        }
+    }
+
+    @Scheduled(fixedRate = 60000)
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(entry -> entry.getValue().expiresAt <= now);
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.isp392.service;
+
+import com.example.isp392.config.CachingEmbeddingModel;
+import com.example.isp392.config.ChatConfig;
+import com.example.isp392.config.RealEmbeddingConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Cache ngữ nghĩa cho câu trả lời của chatbot.
+ * Một câu hỏi được coi là trùng khi embedding của nó đủ gần với câu hỏi đã lưu
+ * (cosine >= ngưỡng), tập tài liệu truy xuất được vẫn y hệt (cùng ID, cùng hash nội dung)
+ * và đoạn hội thoại gần đây đưa vào prompt cũng giống hệt (so bằng digest).
+ * Chỉ những câu hỏi không mang tính cá nhân mới được lưu.
+ * Với mô hình embedding dự phòng (bag-of-words) cosine cao không có nghĩa là cùng ý,
+ * nên khi đó chỉ khớp câu hỏi giống hệt sau khi chuẩn hóa.
+ */
+@Component
+public class ChatResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatResponseCache.class);
+
+    // Câu hỏi nhắc đến người dùng hoặc ngữ cảnh trước đó thì câu trả lời phụ thuộc vào hội thoại
+    private static final Pattern PERSONAL_MARKERS = Pattern.compile(
+            "\\b(tôi|mình|của tôi|tớ|đơn hàng|đơn của|giỏ hàng|tài khoản|nó|cuốn đó|cuốn này|quyển đó|quyển này|cái đó|cái này|ở trên|vừa rồi|"
+                    + "i|me|my|mine|order|cart|account|it|that one|this one|above)\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS);
+
+    private static final int MAX_CACHEABLE_LENGTH = 300;
+
+    private final ChatConfig chatConfig;
+    // false khi đang dùng mô hình embedding dự phòng: chỉ khớp chính xác câu hỏi
+    private final boolean semanticMatching;
+
+    // Danh sách nhỏ (vài trăm phần tử) nên quét tuyến tính; phần tử mới nhất ở đầu
+    private final LinkedList<Entry> entries = new LinkedList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Một câu trả lời đã lưu cùng embedding câu hỏi và chữ ký tập tài liệu
+     */
+    private static class Entry {
+        private final String question;
+        private final float[] queryVector;
+        private final String historyDigest;
+        private final Set<String> documentSignature;
+        private final Set<String> documentIds;
+        private final String response;
+        private final long createdAt;
+
+        Entry(String question, float[] queryVector, String historyDigest, Set<String> documentSignature,
+              Set<String> documentIds, String response) {
+            this.question = question;
+            this.queryVector = queryVector;
+            this.historyDigest = historyDigest;
+            this.documentSignature = documentSignature;
+            this.documentIds = documentIds;
+            this.response = response;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }
+
+    public ChatResponseCache(ChatConfig chatConfig, EmbeddingModel embeddingModel) {
+        this.chatConfig = chatConfig;
+        EmbeddingModel model = embeddingModel instanceof CachingEmbeddingModel caching
+                ? caching.getDelegate() : embeddingModel;
+        this.semanticMatching = !(model instanceof RealEmbeddingConfig.FallbackEmbeddingModel);
+        if (!semanticMatching) {
+            logger.info("Fallback embedding model active: chat response cache only matches identical questions");
+        }
+    }
+
+    /**
+     * Câu hỏi có thể dùng chung câu trả lời giữa các người dùng hay không
+     */
+    public boolean isCacheable(String userMessage) {
+        return chatConfig.isResponseCacheEnabled()
+                && userMessage != null
+                && userMessage.length() <= MAX_CACHEABLE_LENGTH
+                && !PERSONAL_MARKERS.matcher(userMessage).find();
+    }
+
+    /**
+     * Tìm câu trả lời đã lưu cho một câu hỏi gần giống với cùng tập tài liệu truy xuất và cùng hội thoại gần đây
+     *
+     * @param userMessage    Câu hỏi của người dùng
+     * @param queryEmbedding Embedding của câu hỏi (cũng là vector dùng để truy xuất)
+     * @param documents      Tài liệu vừa truy xuất cho câu hỏi
+     * @param history        Đoạn hội thoại gần đây được đưa vào prompt
+     */
+    public Optional<String> lookup(String userMessage, float[] queryEmbedding, List<Document> documents, String history) {
+        String question = normalizeQuestion(userMessage);
+        float[] query = normalize(queryEmbedding);
+        String historyDigest = digest(history);
+        Set<String> signature = signatureOf(documents);
+        long now = System.currentTimeMillis();
+        long ttlMs = chatConfig.getResponseCacheTtlMinutes() * 60_000L;
+
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (now - entry.createdAt > ttlMs) {
+                    iterator.remove();
+                    continue;
+                }
+                if (entry.documentSignature.equals(signature)
+                        && entry.historyDigest.equals(historyDigest)
+                        && matches(question, query, entry)) {
+                    hits.increment();
+                    logger.debug("Chat response cache hit ({} hits, {} misses)", hits.sum(), misses.sum());
+                    return Optional.of(entry.response);
+                }
+            }
+        }
+
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Lưu câu trả lời vừa sinh ra từ mô hình
+     */
+    public void put(String userMessage, float[] queryEmbedding, List<Document> documents, String history, String response) {
+        Set<String> documentIds = new HashSet<>();
+        for (Document document : documents) {
+            documentIds.add(document.getId());
+        }
+        Entry entry = new Entry(normalizeQuestion(userMessage), normalize(queryEmbedding), digest(history),
+                signatureOf(documents), documentIds, response);
+
+        synchronized (entries) {
+            entries.addFirst(entry);
+            while (entries.size() > Math.max(1, chatConfig.getResponseCacheMaxEntries())) {
+                entries.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Bỏ các câu trả lời dựa trên tài liệu vừa thay đổi hoặc bị xóa
+     *
+     * @param documentIds ID tài liệu ("book_&lt;id&gt;")
+     */
+    public void invalidateDocuments(Collection<String> documentIds) {
+        if (documentIds.isEmpty()) {
+            return;
+        }
+        synchronized (entries) {
+            int before = entries.size();
+            entries.removeIf(entry -> documentIds.stream().anyMatch(entry.documentIds::contains));
+            if (entries.size() < before) {
+                logger.debug("Invalidated {} cached chat responses", before - entries.size());
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (entries) {
+            stats.put("entries", entries.size());
+        }
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("semanticMatching", semanticMatching);
+        return stats;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private boolean matches(String question, float[] query, Entry entry) {
+        if (!semanticMatching) {
+            return entry.question.equals(question);
+        }
+        return dot(query, entry.queryVector) >= chatConfig.getResponseCacheSimilarityThreshold();
+    }
+
+    private static String normalizeQuestion(String userMessage) {
+        return userMessage == null ? "" : userMessage.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static String digest(String history) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest((history != null ? history : "").getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Chữ ký của tập tài liệu: ID kèm hash nội dung (nếu store có lưu), không phụ thuộc thứ tự
+     */
+    private static Set<String> signatureOf(List<Document> documents) {
+        Set<String> signature = new TreeSet<>();
+        for (Document document : documents) {
+            Object hash = document.getMetadata().get("contentHash");
+            signature.add(hash != null ? document.getId() + "@" + hash : document.getId());
+        }
+        return signature;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = norm > 0 ? (float) (vector[i] / norm) : 0f;
+        }
+        return normalized;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return -1;
+        }
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
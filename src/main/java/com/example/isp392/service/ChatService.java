@@ -1,6 +1,8 @@
 package com.example.isp392.service;
 
+import com.example.isp392.config.CachingEmbeddingModel;
 import com.example.isp392.config.ChatConfig;
+import com.example.isp392.config.HnswVectorStore;
 import com.example.isp392.model.ChatMessage;
 import com.example.isp392.model.ChatSession;
 import com.example.isp392.model.User;
@@ -17,11 +19,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import jakarta.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -40,6 +54,12 @@ public class ChatService {
     private final VectorStore vectorStore;
     private final GoogleAIClient googleAIClient;
     private final EmbeddingModel embeddingModel;
+    private final ChatResponseCache responseCache;
+
+    // Luồng xử lý phản hồi streaming, tách khỏi luồng Tomcat trong lúc chờ mô hình
+    private final ThreadPoolExecutor streamExecutor;
+    // Các luồng lưu tin nhắn, chọn theo phiên chat để tin nhắn của cùng phiên được lưu đúng thứ tự
+    private final ThreadPoolExecutor[] persistenceExecutors;
 
     @Autowired
     public ChatService(ChatConfig chatConfig,
@@ -47,13 +67,70 @@ public class ChatService {
                       ChatMessageRepository chatMessageRepository,
                       @Autowired(required = false) VectorStore vectorStore,
                       GoogleAIClient googleAIClient,
-                      EmbeddingModel embeddingModel) {
+                      EmbeddingModel embeddingModel,
+                      ChatResponseCache responseCache) {
         this.chatConfig = chatConfig;
         this.chatSessionRepository = chatSessionRepository;
         this.chatMessageRepository = chatMessageRepository;
         this.vectorStore = vectorStore;
         this.googleAIClient = googleAIClient;
         this.embeddingModel = embeddingModel;
+        this.responseCache = responseCache;
+
+        int maxConcurrency = Math.max(1, chatConfig.getStreamMaxConcurrency());
+        this.streamExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(maxConcurrency * 4), namedThreads("chat-stream"));
+        this.streamExecutor.allowCoreThreadTimeOut(true);
+
+        int persistThreads = Math.max(1, chatConfig.getPersistThreads());
+        int persistQueueCapacity = Math.max(1, chatConfig.getPersistQueueCapacity());
+        ThreadFactory persistThreadFactory = namedThreads("chat-persist");
+        this.persistenceExecutors = new ThreadPoolExecutor[persistThreads];
+        for (int i = 0; i < persistThreads; i++) {
+            persistenceExecutors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(persistQueueCapacity), persistThreadFactory, WAIT_FOR_QUEUE_SPACE);
+        }
+    }
+
+    /**
+     * Hàng đợi lưu đầy thì luồng gửi phải chờ (backpressure) thay vì bỏ tin nhắn hoặc tự lưu lệch thứ tự
+     */
+    private static final RejectedExecutionHandler WAIT_FOR_QUEUE_SPACE = (task, executor) -> {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Chat persistence executor is shut down");
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to persist chat exchange", e);
+        }
+    };
+
+    @PreDestroy
+    public void shutdownExecutors() {
+        streamExecutor.shutdown();
+        for (ThreadPoolExecutor executor : persistenceExecutors) {
+            executor.shutdown();
+        }
+        try {
+            // Chờ các tin nhắn còn trong hàng đợi được lưu xong
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            for (ThreadPoolExecutor executor : persistenceExecutors) {
+                executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     // In-memory conversation history cache for better context preservation
@@ -99,6 +176,103 @@ public class ChatService {
         }
     }
 
+    /**
+     * Process a user message on a background thread and stream the model output.
+     * Messages are persisted asynchronously once the stream has finished.
+     * Cancelling the returned future (e.g. when the client disconnects) stops reading the model
+     * stream at the next fragment; nothing is persisted or cached for a cancelled reply.
+     *
+     * @param onToken Callback for each text fragment produced by the model
+     * @return Future completed with the final (Markdown-cleaned) response
+     * @throws java.util.concurrent.RejectedExecutionException if too many responses are already streaming
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public CompletableFuture<String> streamMessage(String userMessage, String sessionToken, User user,
+                                                   Consumer<String> onToken) {
+        if (user == null) {
+            throw new IllegalArgumentException("User must be authenticated to use chat");
+        }
+
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        streamExecutor.execute(() -> {
+            try {
+                if (!reply.isCancelled()) {
+                    reply.complete(streamReply(userMessage, sessionToken, user, chunk -> {
+                        // Ném lỗi để dừng đọc luồng từ mô hình; RestTemplate đóng kết nối khi callback thất bại
+                        if (reply.isCancelled()) {
+                            throw new CancellationException("Chat stream cancelled");
+                        }
+                        onToken.accept(chunk);
+                    }, reply));
+                }
+            } catch (CancellationException e) {
+                logger.debug("Chat stream for session {} cancelled", sessionToken);
+            } catch (Throwable e) {
+                reply.completeExceptionally(e);
+            }
+        });
+        return reply;
+    }
+
+    /**
+     * Body of a streaming reply, run on the stream executor
+     * @param reply Future of this reply, checked so a cancelled stream does not fall back or persist
+     */
+    private String streamReply(String userMessage, String sessionToken, User user, Consumer<String> onToken,
+                               CompletableFuture<String> reply) {
+        ChatSession session = getOrCreateSession(sessionToken, user);
+
+        String rawResponse;
+        if (!googleAIClient.isConfigured()) {
+            rawResponse = generateFallbackResponse(userMessage);
+            onToken.accept(rawResponse);
+        } else {
+            Retrieval retrieval = retrieve(userMessage);
+            String history = getRecentConversationContext(session);
+            Optional<String> cached = lookupCachedResponse(userMessage, retrieval, history);
+            if (cached.isPresent()) {
+                // Câu trả lời đã có sẵn nên gửi một lần thay vì giả lập từng token
+                onToken.accept(cached.get());
+                persistExchangeAsync(session, user, userMessage, cached.get());
+                return cached.get();
+            }
+
+            try {
+                rawResponse = googleAIClient.streamContent(buildPrompt(userMessage, retrieval, history), onToken);
+                cacheResponse(userMessage, retrieval, history, cleanMarkdownFromResponse(rawResponse));
+            } catch (Exception e) {
+                if (reply.isCancelled()) {
+                    throw new CancellationException("Chat stream cancelled");
+                }
+                logger.error("Error streaming RAG response: {}", e.getMessage());
+                rawResponse = generateFallbackResponse(userMessage);
+            }
+        }
+
+        String response = cleanMarkdownFromResponse(rawResponse);
+        persistExchangeAsync(session, user, userMessage, response);
+        return response;
+    }
+
+    /**
+     * Save both messages and touch the session without blocking the stream
+     */
+    private void persistExchangeAsync(ChatSession session, User user, String userMessage, String response) {
+        int stripe = Math.floorMod(Objects.hashCode(session.getSessionToken()), persistenceExecutors.length);
+        persistenceExecutors[stripe].execute(() -> {
+            try {
+                chatMessageRepository.save(new ChatMessage(session, userMessage, true));
+                chatMessageRepository.save(new ChatMessage(session, response, false));
+                updateConversationContext(user.getUserId().longValue(), userMessage, response);
+
+                session.setUpdatedAt(LocalDateTime.now());
+                chatSessionRepository.save(session);
+            } catch (Exception e) {
+                logger.error("Error persisting chat exchange for session {}: {}", session.getSessionToken(), e.getMessage(), e);
+            }
+        });
+    }
+
     /**
      * Generate response using RAG (Retrieval-Augmented Generation)
      */
@@ -108,11 +282,16 @@ public class ChatService {
                 return generateFallbackResponse(userMessage);
             }
 
-            String context = getContextFromVectorStore(userMessage);
-            String conversationHistory = getRecentConversationContext(session);
-            String systemPrompt = createSystemPrompt(context, conversationHistory);
-            String fullPrompt = systemPrompt + "\n\nUser: " + userMessage + "\nAssistant:";
-            return googleAIClient.generateContent(fullPrompt);
+            Retrieval retrieval = retrieve(userMessage);
+            String history = getRecentConversationContext(session);
+            Optional<String> cached = lookupCachedResponse(userMessage, retrieval, history);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+
+            String response = googleAIClient.generateContent(buildPrompt(userMessage, retrieval, history));
+            cacheResponse(userMessage, retrieval, history, cleanMarkdownFromResponse(response));
+            return response;
 
         } catch (Exception e) {
             logger.error("Error generating RAG response: {}", e.getMessage());
@@ -121,11 +300,35 @@ public class ChatService {
     }
 
     /**
-     * Get relevant context from Vector Store
+     * Build the full RAG prompt: retrieved context, recent conversation and the user message
+     */
+    private String buildPrompt(String userMessage, Retrieval retrieval, String conversationHistory) {
+        String context = retrieval.documents != null ? buildContext(retrieval.documents) : getBasicContext();
+        String systemPrompt = createSystemPrompt(context, conversationHistory);
+        return systemPrompt + "\n\nUser: " + userMessage + "\nAssistant:";
+    }
+
+    /**
+     * Query embedding and documents retrieved for one user message.
+     * Both are null when the vector store is unavailable or the search failed.
      */
-    private String getContextFromVectorStore(String userMessage) {
+    private static class Retrieval {
+        private final float[] queryEmbedding;
+        private final List<Document> documents;
+
+        Retrieval(float[] queryEmbedding, List<Document> documents) {
+            this.queryEmbedding = queryEmbedding;
+            this.documents = documents;
+        }
+    }
+
+    /**
+     * Get relevant documents from Vector Store.
+     * The query is embedded once and the same vector is used for the search and the response cache.
+     */
+    private Retrieval retrieve(String userMessage) {
         if (vectorStore == null) {
-            return getBasicContext();
+            return new Retrieval(null, null);
         }
 
         try {
@@ -136,23 +339,38 @@ public class ChatService {
                     .withTopK(chatConfig.getMaxResults())
                     .withSimilarityThreshold(threshold);
 
-            List<Document> relevantDocs = vectorStore.similaritySearch(searchRequest);
+            float[] queryEmbedding = embeddingModel.embed(userMessage);
+            List<Document> relevantDocs = vectorStore instanceof HnswVectorStore hnswVectorStore
+                    ? hnswVectorStore.similaritySearch(searchRequest, queryEmbedding)
+                    : vectorStore.similaritySearch(searchRequest);
 
             // Log search results for debugging
             logger.debug("Vector search for '{}' returned {} documents with threshold {}",
                         userMessage, relevantDocs.size(), threshold);
 
-            return buildContext(relevantDocs);
+            return new Retrieval(queryEmbedding, relevantDocs);
 
         } catch (Exception e) {
             logger.warn("Error searching vector store: {}", e.getMessage());
-            return getBasicContext();
+            return new Retrieval(null, null);
         }
     }
 
+    /**
+     * Reuse an earlier answer for a near-identical, non-personalized question over the same documents
+     */
+    private Optional<String> lookupCachedResponse(String userMessage, Retrieval retrieval, String history) {
+        if (retrieval.queryEmbedding == null || !responseCache.isCacheable(userMessage)) {
+            return Optional.empty();
+        }
+        return responseCache.lookup(userMessage, retrieval.queryEmbedding, retrieval.documents, history);
+    }
 
-
-
+    private void cacheResponse(String userMessage, Retrieval retrieval, String history, String response) {
+        if (retrieval.queryEmbedding != null && !response.isBlank() && responseCache.isCacheable(userMessage)) {
+            responseCache.put(userMessage, retrieval.queryEmbedding, retrieval.documents, history, response);
+        }
+    }
 
     /**
      * Get basic ReadHub context when vector store is not available
@@ -548,8 +766,11 @@ public class ChatService {
      * Check if using real embeddings (not fallback)
      */
     private boolean isUsingRealEmbeddings() {
-        return embeddingModel != null &&
-               embeddingModel.getClass().getSimpleName().contains("Enhanced");
+        EmbeddingModel model = embeddingModel instanceof CachingEmbeddingModel cachingModel
+                ? cachingModel.getDelegate()
+                : embeddingModel;
+        return model != null &&
+               model.getClass().getSimpleName().contains("Enhanced");
     }
 
     /**
@@ -14,10 +14,9 @@ import org.springframework.stereotype.Service;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 @Service
@@ -33,9 +32,10 @@ public class CheckoutService {
     private final ShopRepository shopRepository;
     private final VNPayService vnPayService;
     private final BookService bookService;
-
-    // Lock for concurrent inventory updates
-    private final Lock inventoryLock = new ReentrantLock();
+    private final CartSummaryCache cartSummaryCache;
+    private final BookLockManager bookLockManager;
+    private final StockLedger stockLedger;
+    private final FileStorageService fileStorageService;
 
     @Transactional
     public CustomerOrder checkout(Integer userId, CheckoutDTO checkoutDTO) {
@@ -53,167 +53,177 @@ public class CheckoutService {
             throw new RuntimeException("Không có sản phẩm nào được chọn");
         }
         
-        // Validate inventory before proceeding
-        try {
-            inventoryLock.lock();
-            logger.info("Validating inventory for {} selected items", selectedItems.size());
-
-            for (CartItem item : selectedItems) {
-                logger.info("Checking inventory for book ID: {}, requested: {}, available: {}",
-                           item.getBook().getBookId(), item.getQuantity(), item.getBook().getStockQuantity());
-
-                if (item.getQuantity() > item.getBook().getStockQuantity()) {
-                    logger.error("Insufficient inventory for book ID: {}, title: {}, requested: {}, available: {}",
-                               item.getBook().getBookId(), item.getBook().getTitle(),
-                               item.getQuantity(), item.getBook().getStockQuantity());
-                    throw new RuntimeException("Sản phẩm '" + item.getBook().getTitle() + "' không đủ số lượng trong kho. " +
-                                             "Yêu cầu: " + item.getQuantity() + ", Có sẵn: " + item.getBook().getStockQuantity());
-                }
+        // Khóa các sách trong giỏ (theo thứ tự book ID) tới khi transaction kết thúc;
+        // các giỏ không chung sách nào thanh toán song song
+        bookLockManager.lockForTransaction(selectedItems.stream()
+                .map(item -> item.getBook().getBookId())
+                .collect(Collectors.toList()));
+
+        // Validate inventory before proceeding. Các entity Book được nạp trước khi khóa nên số tồn trên đó
+        // có thể đã cũ; số tồn hiện tại lấy từ StockLedger (gồm cả phần giữ hàng chưa ghi xuống DB)
+        logger.info("Validating inventory for {} selected items", selectedItems.size());
+
+        Map<Integer, Integer> requestedByBook = new LinkedHashMap<>();
+        for (CartItem item : selectedItems) {
+            requestedByBook.merge(item.getBook().getBookId(), item.getQuantity(), Integer::sum);
+        }
+        for (CartItem item : selectedItems) {
+            Integer bookId = item.getBook().getBookId();
+            int requested = requestedByBook.get(bookId);
+            int available = stockLedger.getAvailable(bookId);
+            logger.info("Checking inventory for book ID: {}, requested: {}, available: {}",
+                       bookId, requested, available);
+
+            if (requested > available) {
+                logger.error("Insufficient inventory for book ID: {}, title: {}, requested: {}, available: {}",
+                           bookId, item.getBook().getTitle(), requested, available);
+                throw new RuntimeException("Sản phẩm '" + item.getBook().getTitle() + "' không đủ số lượng trong kho. " +
+                                         "Yêu cầu: " + requested + ", Có sẵn: " + available);
             }
-            logger.info("Inventory validation passed for all items");
-            
-            // Create customer order with shipping and payment information
-            CustomerOrder customerOrder = new CustomerOrder();
-            customerOrder.setUser(user);
-            customerOrder.setRecipientName(checkoutDTO.getRecipientName());
-            customerOrder.setRecipientPhone(checkoutDTO.getRecipientPhone());
-            customerOrder.setShippingProvince(checkoutDTO.getShippingProvince());
-            customerOrder.setShippingDistrict(checkoutDTO.getShippingDistrict());
-            customerOrder.setShippingWard(checkoutDTO.getShippingWard());
-            customerOrder.setShippingAddressDetail(checkoutDTO.getShippingAddressDetail());
-            customerOrder.setShippingCompany(checkoutDTO.getShippingCompany());
-            customerOrder.setShippingAddressType(checkoutDTO.getShippingAddressType());
-            customerOrder.setPaymentMethod(PaymentMethod.valueOf(checkoutDTO.getPaymentMethod()));
-            customerOrder.setPaymentStatus(PaymentStatus.PENDING);
-            customerOrder.setTotalAmount(BigDecimal.ZERO);
-            customerOrder.setShippingFee(BigDecimal.ZERO);
-            customerOrder.setDiscountAmount(BigDecimal.ZERO);
-            customerOrder.setStatus(OrderStatus.PROCESSING);
-            customerOrder.setNotes(checkoutDTO.getNotes());
-            customerOrder.setCreatedAt(LocalDateTime.now());
-            customerOrder = customerOrderRepository.save(customerOrder);
-
-            // Group cart items by shop
-            Map<Integer, List<CartItem>> itemsByShop = selectedItems.stream()
-                    .collect(Collectors.groupingBy(item -> item.getShop().getShopId()));
-
-            BigDecimal groupTotal = BigDecimal.ZERO;
-
-            // Create orders for each shop
-            List<Order> orders = new ArrayList<>();
-            for (ShopOrderDTO shopOrderDTO : checkoutDTO.getShopOrders()) {
-                Shop shop = shopRepository.findById(shopOrderDTO.getShopId())
-                        .orElseThrow(() -> new RuntimeException("Shop not found"));
-
-                List<CartItem> shopItems = itemsByShop.get(shop.getShopId());
-                if (shopItems == null || shopItems.isEmpty()) {
-                    continue;
-                }
-
-                // Calculate totals
-                BigDecimal subTotal = shopItems.stream()
-                        .map(item -> item.getBook().getSellingPrice().multiply(BigDecimal.valueOf(item.getQuantity())))
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-
-                // Create order for this shop
-                Order order = new Order();
-                order.setShop(shop);
-                order.setCustomerOrder(customerOrder);
-                order.setSubTotal(subTotal);
-                order.setShippingFee(PaymentConfig.DEFAULT_SHIPPING_FEE);
-                order.setDiscountAmount(BigDecimal.ZERO);
-                order.setTotalAmount(subTotal.add(PaymentConfig.DEFAULT_SHIPPING_FEE));
-                order.setOrderStatus(OrderStatus.PROCESSING);
-                order.setNotes(shopOrderDTO.getShopNotes());
-                order.setOrderDate(LocalDateTime.now());
-
-                // Create order items
-                List<OrderItem> orderItems = new ArrayList<>();
-                for (CartItem cartItem : shopItems) {
-                    OrderItem orderItem = new OrderItem();
-                    orderItem.setOrder(order);
-                    orderItem.setBook(cartItem.getBook());
-                    orderItem.setQuantity(cartItem.getQuantity());
-                    orderItem.setUnitPrice(cartItem.getBook().getSellingPrice());
-
-                    // Capture book information at time of order to prevent data loss
-                    Book book = cartItem.getBook();
-                    orderItem.setBookTitle(book.getTitle());
-                    orderItem.setBookAuthors(book.getAuthors());
-                    orderItem.setBookImageUrl(book.getCoverImgUrl());
-
-                    orderItems.add(orderItem);
-                }
-                order.setOrderItems(orderItems);
-
-                // Atomically reserve inventory for this shop's items
-                try {
-                    logger.info("Reserving inventory for shop {} with {} items",
-                               shop.getShopName(), orderItems.size());
-                    bookService.reserveInventoryForOrder(orderItems);
-                    logger.info("Successfully reserved inventory for shop {}", shop.getShopName());
-                } catch (IllegalArgumentException e) {
-                    logger.error("Failed to reserve inventory for shop {}: {}", shop.getShopName(), e.getMessage());
-                    throw new RuntimeException("Đặt hàng thất bại cho shop " + shop.getShopName() + ": " + e.getMessage());
-                }
-
-                // Save order
-                order = orderRepository.save(order);
-                orders.add(order);
-                groupTotal = groupTotal.add(order.getTotalAmount());
-
-                // Remove cart items
-                cartItemRepository.deleteAll(shopItems);
+        }
+        logger.info("Inventory validation passed for all items");
+        
+        // Create customer order with shipping and payment information
+        CustomerOrder customerOrder = new CustomerOrder();
+        customerOrder.setUser(user);
+        customerOrder.setRecipientName(checkoutDTO.getRecipientName());
+        customerOrder.setRecipientPhone(checkoutDTO.getRecipientPhone());
+        customerOrder.setShippingProvince(checkoutDTO.getShippingProvince());
+        customerOrder.setShippingDistrict(checkoutDTO.getShippingDistrict());
+        customerOrder.setShippingWard(checkoutDTO.getShippingWard());
+        customerOrder.setShippingAddressDetail(checkoutDTO.getShippingAddressDetail());
+        customerOrder.setShippingCompany(checkoutDTO.getShippingCompany());
+        customerOrder.setShippingAddressType(checkoutDTO.getShippingAddressType());
+        customerOrder.setPaymentMethod(PaymentMethod.valueOf(checkoutDTO.getPaymentMethod()));
+        customerOrder.setPaymentStatus(PaymentStatus.PENDING);
+        customerOrder.setTotalAmount(BigDecimal.ZERO);
+        customerOrder.setShippingFee(BigDecimal.ZERO);
+        customerOrder.setDiscountAmount(BigDecimal.ZERO);
+        customerOrder.setStatus(OrderStatus.PROCESSING);
+        customerOrder.setNotes(checkoutDTO.getNotes());
+        customerOrder.setCreatedAt(LocalDateTime.now());
+        customerOrder = customerOrderRepository.save(customerOrder);
+
+        // Group cart items by shop
+        Map<Integer, List<CartItem>> itemsByShop = selectedItems.stream()
+                .collect(Collectors.groupingBy(item -> item.getShop().getShopId()));
+
+        BigDecimal groupTotal = BigDecimal.ZERO;
+
+        // Create orders for each shop
+        List<Order> orders = new ArrayList<>();
+        for (ShopOrderDTO shopOrderDTO : checkoutDTO.getShopOrders()) {
+            Shop shop = shopRepository.findById(shopOrderDTO.getShopId())
+                    .orElseThrow(() -> new RuntimeException("Shop not found"));
+
+            List<CartItem> shopItems = itemsByShop.get(shop.getShopId());
+            if (shopItems == null || shopItems.isEmpty()) {
+                continue;
             }
 
-            // Update customer order total and orders
-            BigDecimal totalShippingFee = orders.stream()
-                    .map(Order::getShippingFee)
-                    .reduce(BigDecimal.ZERO, BigDecimal::add);
-            BigDecimal totalDiscountAmount = orders.stream()
-                    .map(Order::getDiscountAmount)
+            // Calculate totals
+            BigDecimal subTotal = shopItems.stream()
+                    .map(item -> item.getBook().getSellingPrice().multiply(BigDecimal.valueOf(item.getQuantity())))
                     .reduce(BigDecimal.ZERO, BigDecimal::add);
 
-            customerOrder.setShippingFee(totalShippingFee);
-            customerOrder.setDiscountAmount(totalDiscountAmount);
-
-            // Calculate and set tracking fields
-            BigDecimal originalTotal = groupTotal.add(totalDiscountAmount); // Add back discount to get original
-            BigDecimal finalTotal = groupTotal; // This is already after discount
-
-            customerOrder.setOriginalTotalAmount(originalTotal);
-            customerOrder.setFinalTotalAmount(finalTotal);
-
-            logger.info("CheckoutService: Set CustomerOrder totals - Original: {}, Final: {}, Shipping: {}, Discount: {}",
-                       originalTotal, finalTotal, totalShippingFee, totalDiscountAmount);
-
-            // Set promotion code if any discount was applied
-            if (totalDiscountAmount.compareTo(BigDecimal.ZERO) > 0) {
-                // Try to get promotion code from the first order that has a discount code
-                String promotionCode = orders.stream()
-                    .filter(order -> order.getDiscountCode() != null && !order.getDiscountCode().isEmpty())
-                    .map(Order::getDiscountCode)
-                    .findFirst()
-                    .orElse(null);
-                customerOrder.setPromotionCode(promotionCode);
-            } else {
-                customerOrder.setPromotionCode(null);
+            // Create order for this shop
+            Order order = new Order();
+            order.setShop(shop);
+            order.setCustomerOrder(customerOrder);
+            order.setSubTotal(subTotal);
+            order.setShippingFee(PaymentConfig.DEFAULT_SHIPPING_FEE);
+            order.setDiscountAmount(BigDecimal.ZERO);
+            order.setTotalAmount(subTotal.add(PaymentConfig.DEFAULT_SHIPPING_FEE));
+            order.setOrderStatus(OrderStatus.PROCESSING);
+            order.setNotes(shopOrderDTO.getShopNotes());
+            order.setOrderDate(LocalDateTime.now());
+
+            // Create order items
+            List<OrderItem> orderItems = new ArrayList<>();
+            for (CartItem cartItem : shopItems) {
+                OrderItem orderItem = new OrderItem();
+                orderItem.setOrder(order);
+                orderItem.setBook(cartItem.getBook());
+                orderItem.setQuantity(cartItem.getQuantity());
+                orderItem.setUnitPrice(cartItem.getBook().getSellingPrice());
+
+                // Capture book information at time of order to prevent data loss
+                Book book = cartItem.getBook();
+                orderItem.setBookTitle(book.getTitle());
+                orderItem.setBookAuthors(book.getAuthors());
+                orderItem.setBookImageUrl(book.getCoverImgUrl());
+                // Ảnh trong lịch sử đơn hàng vẫn phải còn khi người bán thay ảnh bìa
+                fileStorageService.retain(book.getCoverImgUrl());
+
+                orderItems.add(orderItem);
+            }
+            order.setOrderItems(orderItems);
+
+            // Atomically reserve inventory for this shop's items
+            try {
+                logger.info("Reserving inventory for shop {} with {} items",
+                           shop.getShopName(), orderItems.size());
+                bookService.reserveInventoryForOrder(orderItems);
+                logger.info("Successfully reserved inventory for shop {}", shop.getShopName());
+            } catch (IllegalArgumentException e) {
+                logger.error("Failed to reserve inventory for shop {}: {}", shop.getShopName(), e.getMessage());
+                throw new RuntimeException("Đặt hàng thất bại cho shop " + shop.getShopName() + ": " + e.getMessage());
             }
 
-            customerOrder.setOrders(orders);
-            customerOrder = customerOrderRepository.save(customerOrder);
+            // Save order
+            order = orderRepository.save(order);
+            orders.add(order);
+            groupTotal = groupTotal.add(order.getTotalAmount());
 
-            // If payment method is VNPAY, create payment URL
-            if (PaymentMethod.VNPAY.name().equals(checkoutDTO.getPaymentMethod())) {
-                String paymentUrl = vnPayService.createPaymentUrl(customerOrder);
-                customerOrder.setPaymentUrl(paymentUrl);
-            }
+            // Remove cart items
+            cartItemRepository.deleteAll(shopItems);
+            cartSummaryCache.invalidate(userId);
+        }
+
+        // Update customer order total and orders
+        BigDecimal totalShippingFee = orders.stream()
+                .map(Order::getShippingFee)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        BigDecimal totalDiscountAmount = orders.stream()
+                .map(Order::getDiscountAmount)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+
+        customerOrder.setShippingFee(totalShippingFee);
+        customerOrder.setDiscountAmount(totalDiscountAmount);
+
+        // Calculate and set tracking fields
+        BigDecimal originalTotal = groupTotal.add(totalDiscountAmount); // Add back discount to get original
+        BigDecimal finalTotal = groupTotal; // This is already after discount
+
+        customerOrder.setOriginalTotalAmount(originalTotal);
+        customerOrder.setFinalTotalAmount(finalTotal);
+
+        logger.info("CheckoutService: Set CustomerOrder totals - Original: {}, Final: {}, Shipping: {}, Discount: {}",
+                   originalTotal, finalTotal, totalShippingFee, totalDiscountAmount);
+
+        // Set promotion code if any discount was applied
+        if (totalDiscountAmount.compareTo(BigDecimal.ZERO) > 0) {
+            // Try to get promotion code from the first order that has a discount code
+            String promotionCode = orders.stream()
+                .filter(order -> order.getDiscountCode() != null && !order.getDiscountCode().isEmpty())
+                .map(Order::getDiscountCode)
+                .findFirst()
+                .orElse(null);
+            customerOrder.setPromotionCode(promotionCode);
+        } else {
+            customerOrder.setPromotionCode(null);
+        }
+
+        customerOrder.setOrders(orders);
+        customerOrder = customerOrderRepository.save(customerOrder);
 
-            return customerOrder;
-            
-        } finally {
-            inventoryLock.unlock();
+        // If payment method is VNPAY, create payment URL
+        if (PaymentMethod.VNPAY.name().equals(checkoutDTO.getPaymentMethod())) {
+            String paymentUrl = vnPayService.createPaymentUrl(customerOrder);
+            customerOrder.setPaymentUrl(paymentUrl);
         }
+
+        return customerOrder;
     }
 
     @Transactional
@@ -234,43 +244,44 @@ public class CheckoutService {
         CustomerOrder customerOrder = customerOrderRepository.findById(Integer.parseInt(orderId))
                 .orElseThrow(() -> new RuntimeException("Order not found"));
 
-        try {
-            inventoryLock.lock();
-            // Only update if both callback and API check confirm success
-            if ("00".equals(vnpayResponseCode) && "00".equals(apiResponseCode)) {
-                // Payment successful
-                customerOrder.setPaymentStatus(PaymentStatus.PAID);
-
-                // Store VNPAY transaction ID for traceability
-                if (vnpayTransactionNo != null && !vnpayTransactionNo.isEmpty()) {
-                    customerOrder.setVnpayTransactionId(vnpayTransactionNo);
-                    logger.info("Stored VNPAY transaction ID: {} for order: {}", vnpayTransactionNo, orderId);
-                } else if (vnpayBankTranNo != null && !vnpayBankTranNo.isEmpty()) {
-                    customerOrder.setVnpayTransactionId(vnpayBankTranNo);
-                    logger.info("Stored VNPAY bank transaction ID: {} for order: {}", vnpayBankTranNo, orderId);
-                }
+        // Khóa các sách của đơn (trả hàng về kho nếu thanh toán thất bại) tới khi transaction kết thúc
+        bookLockManager.lockForTransaction(customerOrder.getOrders().stream()
+                .flatMap(order -> order.getOrderItems().stream())
+                .map(item -> item.getBook().getBookId())
+                .collect(Collectors.toList()));
+
+        // Only update if both callback and API check confirm success
+        if ("00".equals(vnpayResponseCode) && "00".equals(apiResponseCode)) {
+            // Payment successful
+            customerOrder.setPaymentStatus(PaymentStatus.PAID);
+
+            // Store VNPAY transaction ID for traceability
+            if (vnpayTransactionNo != null && !vnpayTransactionNo.isEmpty()) {
+                customerOrder.setVnpayTransactionId(vnpayTransactionNo);
+                logger.info("Stored VNPAY transaction ID: {} for order: {}", vnpayTransactionNo, orderId);
+            } else if (vnpayBankTranNo != null && !vnpayBankTranNo.isEmpty()) {
+                customerOrder.setVnpayTransactionId(vnpayBankTranNo);
+                logger.info("Stored VNPAY bank transaction ID: {} for order: {}", vnpayBankTranNo, orderId);
+            }
 
-                for (Order order : customerOrder.getOrders()) {
-                    orderRepository.save(order);
-                }
-                customerOrderRepository.save(customerOrder);
-            } else {
-                // Payment failed - rollback inventory
-                customerOrder.setPaymentStatus(PaymentStatus.FAILED);
-                customerOrder.setStatus(OrderStatus.CANCELLED);
-                for (Order order : customerOrder.getOrders()) {
-                    order.setOrderStatus(OrderStatus.CANCELLED);
-                    orderRepository.save(order);
-
-                    // Return items to inventory
-                    for (OrderItem item : order.getOrderItems()) {
-                        bookService.increaseStockQuantity(item.getBook().getBookId(), item.getQuantity());
-                    }
+            for (Order order : customerOrder.getOrders()) {
+                orderRepository.save(order);
+            }
+            customerOrderRepository.save(customerOrder);
+        } else {
+            // Payment failed - rollback inventory
+            customerOrder.setPaymentStatus(PaymentStatus.FAILED);
+            customerOrder.setStatus(OrderStatus.CANCELLED);
+            for (Order order : customerOrder.getOrders()) {
+                order.setOrderStatus(OrderStatus.CANCELLED);
+                orderRepository.save(order);
+
+                // Return items to inventory
+                for (OrderItem item : order.getOrderItems()) {
+                    bookService.increaseStockQuantity(item.getBook().getBookId(), item.getQuantity());
                 }
-                customerOrderRepository.save(customerOrder);
             }
-        } finally {
-            inventoryLock.unlock();
+            customerOrderRepository.save(customerOrder);
         }
     }
 } 
\ No newline at end of file
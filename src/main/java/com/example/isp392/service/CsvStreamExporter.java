@@ -0,0 +1,74 @@
+package com.example.isp392.service;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Ghi CSV từ một Stream JPA chỉ-đọc-tiến theo từng đoạn.
+ * Sau mỗi đoạn, các dòng được đẩy ra response và persistence context được xóa,
+ * nên bộ nhớ dùng chỉ phụ thuộc kích thước đoạn chứ không phụ thuộc số dòng xuất.
+ * Phải được gọi trong một transaction chỉ-đọc còn mở suốt thời gian duyệt Stream.
+ */
+@Component
+public class CsvStreamExporter {
+
+    /**
+     * Ghi một đoạn bản ghi; cho phép nạp dữ liệu phụ cho cả đoạn bằng một truy vấn
+     */
+    @FunctionalInterface
+    public interface ChunkWriter<T> {
+        void write(List<T> chunk, CSVPrinter printer) throws IOException;
+    }
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final int chunkSize;
+
+    public CsvStreamExporter(@Value("${export.csv.chunk-size:500}") int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @return số dòng dữ liệu đã ghi (không tính dòng tiêu đề)
+     */
+    public <T> long export(Stream<T> source, Writer writer, String[] headers, ChunkWriter<T> chunkWriter) throws IOException {
+        long rows = 0;
+        try (Stream<T> stream = source;
+             CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT.builder().setHeader(headers).build())) {
+            List<T> chunk = new ArrayList<>(chunkSize);
+            Iterator<T> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                if (chunk.size() == chunkSize) {
+                    rows += writeChunk(chunk, printer, chunkWriter);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                rows += writeChunk(chunk, printer, chunkWriter);
+            }
+        }
+        return rows;
+    }
+
+    private <T> int writeChunk(List<T> chunk, CSVPrinter printer, ChunkWriter<T> chunkWriter) throws IOException {
+        chunkWriter.write(chunk, printer);
+        printer.flush();
+        int written = chunk.size();
+        chunk.clear();
+        // Bỏ các entity đã ghi khỏi persistence context để chúng được thu hồi
+        entityManager.clear();
+        return written;
+    }
+}
@@ -32,14 +32,17 @@ public class CustomerOrderService {
     private final CustomerOrderRepository customerOrderRepository;
     private final OrderRepository orderRepository;
     private final BookService bookService;
+    private final PromotionService promotionService;
     private final Lock orderStatusLock = new ReentrantLock();
     
     public CustomerOrderService(CustomerOrderRepository customerOrderRepository, 
                                OrderRepository orderRepository,
-                               BookService bookService) {
+                               BookService bookService,
+                               PromotionService promotionService) {
         this.customerOrderRepository = customerOrderRepository;
         this.orderRepository = orderRepository;
         this.bookService = bookService;
+        this.promotionService = promotionService;
     }
     
     /**
@@ -202,9 +205,15 @@ public class CustomerOrderService {
                 return;
             }
             
+            OrderStatus oldStatus = customerOrder.getStatus();
             customerOrder.updateStatusFromOrders();
             customerOrder.setUpdatedAt(LocalDateTime.now());
             customerOrderRepository.save(customerOrder);
+
+            // Cả đơn đã bị hủy: trả lại lượt dùng mã giảm giá
+            if (oldStatus != OrderStatus.CANCELLED && customerOrder.getStatus() == OrderStatus.CANCELLED) {
+                promotionService.releaseCustomerOrderUsage(customerOrderId);
+            }
         } finally {
             orderStatusLock.unlock();
         }
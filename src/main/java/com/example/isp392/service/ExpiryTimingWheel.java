@@ -0,0 +1,202 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bộ hẹn giờ hết hạn dạng bánh xe thời gian phân cấp (hierarchical timing wheel).
+ * Mỗi tick chỉ xử lý đúng một ô của bánh xe thấp nhất, nên chi phí không phụ thuộc vào
+ * tổng số mục đang chờ. Các mục ở xa nằm ở bánh xe cấp cao và được hạ dần xuống khi gần hạn.
+ * Tác vụ hết hạn chạy trên một luồng riêng để tick không bị chậm khi tác vụ truy cập DB.
+ */
+@Component
+public class ExpiryTimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpiryTimingWheel.class);
+
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 60;
+    // 3 cấp: 1 giây x 60, 1 phút x 60, 1 giờ x 60 (tổng khoảng 60 giờ)
+    private static final int LEVELS = 3;
+
+    /**
+     * Một mục đang chờ hết hạn
+     */
+    private static class Timeout {
+        private final String key;
+        private final long deadlineMs;
+        private final Runnable action;
+        private volatile boolean cancelled;
+
+        Timeout(String key, long deadlineMs, Runnable action) {
+            this.key = key;
+            this.deadlineMs = deadlineMs;
+            this.action = action;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Timeout>[][] buckets = new ArrayDeque[LEVELS][WHEEL_SIZE];
+    // Mục có hạn vượt quá tầm của bánh xe cao nhất
+    private final List<Timeout> overflow = new ArrayList<>();
+    private final Map<String, Timeout> pending = new ConcurrentHashMap<>();
+
+    private long currentTick;
+
+    private ScheduledExecutorService ticker;
+    private ExecutorService expiryExecutor;
+
+    public ExpiryTimingWheel() {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                buckets[level][slot] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        currentTick = System.currentTimeMillis() / TICK_MS;
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry-task");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+        expiryExecutor.shutdown();
+    }
+
+    /**
+     * Hẹn chạy action khi tới hạn; lên lịch lại cùng key sẽ thay thế lịch cũ
+     *
+     * @param key        Khóa duy nhất của mục (ví dụ "payment:42")
+     * @param deadlineMs Thời điểm hết hạn (epoch millis)
+     * @param action     Tác vụ chạy khi hết hạn
+     */
+    public void schedule(String key, long deadlineMs, Runnable action) {
+        Timeout timeout = new Timeout(key, deadlineMs, action);
+        Timeout previous = pending.put(key, timeout);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        synchronized (this) {
+            place(timeout);
+        }
+    }
+
+    /**
+     * Hủy lịch của một mục (đã được xác nhận/hủy trước hạn)
+     */
+    public void cancel(String key) {
+        Timeout timeout = pending.remove(key);
+        if (timeout != null) {
+            timeout.cancelled = true;
+        }
+    }
+
+    public boolean isScheduled(String key) {
+        return pending.containsKey(key);
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Đặt mục vào ô phù hợp: cấp thấp nhất mà tầm của nó còn chứa được hạn
+     */
+    private void place(Timeout timeout) {
+        // Tick đầu tiên mà tại đó hạn đã qua (không bao giờ chạy sớm)
+        long deadlineTick = (timeout.deadlineMs + TICK_MS - 1) / TICK_MS;
+        if (deadlineTick <= currentTick) {
+            fire(timeout);
+            return;
+        }
+
+        long ticksAhead = deadlineTick - currentTick;
+        long span = 1;
+        for (int level = 0; level < LEVELS; level++) {
+            long levelSpan = span * WHEEL_SIZE;
+            if (ticksAhead < levelSpan) {
+                int slot = (int) ((deadlineTick / span) % WHEEL_SIZE);
+                buckets[level][slot].add(timeout);
+                return;
+            }
+            span = levelSpan;
+        }
+        overflow.add(timeout);
+    }
+
+    private synchronized void advance() {
+        try {
+            long nowTick = System.currentTimeMillis() / TICK_MS;
+            while (currentTick < nowTick) {
+                currentTick++;
+                cascade();
+                ArrayDeque<Timeout> bucket = buckets[0][(int) (currentTick % WHEEL_SIZE)];
+                while (!bucket.isEmpty()) {
+                    fire(bucket.poll());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error advancing expiry wheel: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Khi bánh xe cấp dưới quay hết một vòng, hạ các mục của ô kế tiếp ở cấp trên xuống
+     */
+    private void cascade() {
+        long span = 1;
+        for (int level = 1; level < LEVELS; level++) {
+            span *= WHEEL_SIZE;
+            if (currentTick % span != 0) {
+                return;
+            }
+            ArrayDeque<Timeout> bucket = buckets[level][(int) ((currentTick / span) % WHEEL_SIZE)];
+            List<Timeout> moved = new ArrayList<>(bucket);
+            bucket.clear();
+            moved.forEach(this::place);
+        }
+        // Bánh xe cao nhất vừa quay hết vòng: xếp lại các mục ở xa
+        List<Timeout> far = new ArrayList<>(overflow);
+        overflow.clear();
+        far.forEach(this::place);
+    }
+
+    private void fire(Timeout timeout) {
+        if (timeout.cancelled || !pending.remove(timeout.key, timeout)) {
+            return;
+        }
+        expiryExecutor.execute(() -> {
+            try {
+                timeout.action.run();
+            } catch (Exception e) {
+                logger.error("Error running expiry task {}: {}", timeout.key, e.getMessage(), e);
+            }
+        });
+    }
+}
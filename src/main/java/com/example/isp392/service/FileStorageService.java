@@ -2,64 +2,275 @@ package com.example.isp392.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.UUID;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
+/**
+ * Lưu file upload theo nội dung: mỗi file nằm ở {@code <subDir>/<aa>/<bb>/<sha256><ext>},
+ * nên cùng một ảnh upload nhiều lần chỉ chiếm một file trên đĩa và có URL không bao giờ đổi nội dung
+ * (trình duyệt/proxy được cache vĩnh viễn). Bảng upload_objects đếm số tham chiếu tới mỗi file;
+ * khi tham chiếu cuối cùng được {@link #release(String) giải phóng} thì file và các bản thu nhỏ bị xóa.
+ */
 @Service
 public class FileStorageService {
     private static final Logger log = LoggerFactory.getLogger(FileStorageService.class);
+    private static final String UPLOAD_URL_PREFIX = "/uploads/";
+    // Thư mục tạm khi đang nhận file; không được phục vụ ra web
+    private static final String INCOMING_DIR = ".incoming";
+    private static final Pattern SAFE_EXTENSION = Pattern.compile("\\.[a-z0-9]{1,8}");
+    private static final Pattern CONTENT_ADDRESSED_NAME = Pattern.compile("[0-9a-f]{64}(__[a-z]+)?(\\.[a-z0-9]{1,8})?");
+    private static final int LOCK_STRIPES = 64;
 
-    // **THAY ĐỔI QUAN TRỌNG**
-    // rootLocation giờ đây cũng trỏ đến thư mục 'uploads' ở gốc project,
-    // khớp hoàn toàn với cấu hình trong FileUploadConfig.
+    // rootLocation trỏ đến thư mục 'uploads' ở gốc project, được phục vụ bởi UploadController
     private final Path rootLocation;
+    private final ImageDerivativeService imageDerivativeService;
+    private final JdbcTemplate jdbcTemplate;
+    // Giải phóng chạy sau commit nên cần transaction riêng
+    private final TransactionTemplate releaseTransaction;
+    // Khóa theo hash: lưu và xóa cùng một nội dung không được chạy xen kẽ
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
 
-    public FileStorageService() {
-        this.rootLocation = Paths.get(System.getProperty("user.dir"), "uploads").toAbsolutePath();
+    public FileStorageService(ImageDerivativeService imageDerivativeService, JdbcTemplate jdbcTemplate,
+                              PlatformTransactionManager transactionManager) {
+        this.imageDerivativeService = imageDerivativeService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.releaseTransaction = new TransactionTemplate(transactionManager);
+        this.releaseTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.rootLocation = Paths.get(System.getProperty("user.dir"), "uploads").toAbsolutePath().normalize();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
         log.info("File storage location set to: {}", this.rootLocation);
     }
 
+    /**
+     * Lưu file và trả về URL web của nó. Nội dung đã có sẵn trong cùng thư mục con thì không ghi lại,
+     * chỉ tăng số tham chiếu.
+     */
     public String storeFile(MultipartFile file, String subDir) throws IOException {
         if (file == null || file.isEmpty()) {
             throw new IOException("Failed to store empty file.");
         }
 
+        Path incomingDir = this.rootLocation.resolve(INCOMING_DIR);
+        Files.createDirectories(incomingDir);
+        Path incoming = Files.createTempFile(incomingDir, "upload-", ".part");
         try {
-            // Tạo đường dẫn đến thư mục con (ví dụ: /project/uploads/reviews)
-            Path destinationDir = this.rootLocation.resolve(subDir).normalize();
-
-            if (!Files.exists(destinationDir)) {
-                Files.createDirectories(destinationDir);
+            // Ghi ra file tạm và tính SHA-256 trong cùng một lần đọc
+            MessageDigest digest = newSha256();
+            try (InputStream inputStream = new DigestInputStream(file.getInputStream(), digest)) {
+                Files.copy(inputStream, incoming, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+            String relativePath = subDir + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/"
+                    + hash + extensionOf(file.getOriginalFilename());
+            Path destinationFile = this.rootLocation.resolve(relativePath).normalize();
+            if (!destinationFile.startsWith(this.rootLocation)) {
+                throw new IOException("Invalid upload directory: " + subDir);
             }
 
-            // Tạo tên file duy nhất
-            String originalFilename = file.getOriginalFilename() != null ? file.getOriginalFilename() : "";
-            String extension = "";
-            if (originalFilename.contains(".")) {
-                extension = originalFilename.substring(originalFilename.lastIndexOf("."));
+            boolean created;
+            ReentrantLock lock = lockFor(hash);
+            lock.lock();
+            try {
+                created = !Files.exists(destinationFile);
+                if (created) {
+                    Files.createDirectories(destinationFile.getParent());
+                    moveIntoPlace(incoming, destinationFile);
+                }
+                addReference(relativePath, hash, Files.size(destinationFile));
+            } finally {
+                lock.unlock();
             }
-            String uniqueFilename = System.currentTimeMillis() + "_" + UUID.randomUUID().toString() + extension;
-            Path destinationFile = destinationDir.resolve(uniqueFilename);
 
-            // Sao chép file
-            try (InputStream inputStream = file.getInputStream()) {
-                Files.copy(inputStream, destinationFile, StandardCopyOption.REPLACE_EXISTING);
+            // Ảnh mới: tạo các bản thu nhỏ ở nền, request upload không phải chờ
+            if (created && file.getContentType() != null && file.getContentType().startsWith("image/")) {
+                imageDerivativeService.submit(destinationFile);
             }
+            log.debug("Stored {} as {} ({})", file.getOriginalFilename(), relativePath, created ? "new" : "deduplicated");
 
             // Trả về URL truy cập web
-            return "/uploads/" + subDir + "/" + uniqueFilename;
+            return UPLOAD_URL_PREFIX + relativePath;
 
         } catch (IOException e) {
             log.error("Failed to store file {}: {}", file.getOriginalFilename(), e.getMessage());
             throw new IOException("Failed to store file: " + file.getOriginalFilename(), e);
+        } finally {
+            Files.deleteIfExists(incoming);
+        }
+    }
+
+    /**
+     * Bỏ một tham chiếu tới file đã lưu (ảnh bị thay hoặc bản ghi bị xóa), sau khi transaction hiện tại commit.
+     * File cũ (trước khi lưu theo nội dung) và URL ngoài được bỏ qua.
+     */
+    public void release(String url) {
+        Path file = resolveUploadUrl(url);
+        if (file == null || !isContentAddressed(file.getFileName().toString())) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    releaseNow(file);
+                }
+            });
+        } else {
+            releaseNow(file);
+        }
+    }
+
+    /**
+     * Thêm tham chiếu khi URL của file đã lưu được chép sang bản ghi khác (ảnh trong đơn hàng,
+     * sách nhập từ CSV), để việc thay ảnh ở bản ghi gốc không xóa mất file mà bản sao vẫn dùng.
+     * Chạy trong transaction hiện tại; URL cũ và URL ngoài được bỏ qua.
+     */
+    public void retain(String url) {
+        retainAll(Collections.singletonList(url));
+    }
+
+    /**
+     * Như {@link #retain(String)} cho nhiều URL, gộp thành một câu lệnh batch
+     */
+    public void retainAll(Collection<String> urls) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String url : urls) {
+            Path file = resolveUploadUrl(url);
+            if (file != null && isContentAddressed(file.getFileName().toString())) {
+                counts.merge(relativePathOf(file), 1, Integer::sum);
+            }
+        }
+        if (counts.isEmpty()) {
+            return;
+        }
+        List<Object[]> batch = new ArrayList<>(counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            batch.add(new Object[]{entry.getValue(), entry.getKey()});
+        }
+        // Không còn dòng nào nghĩa là file đã bị xóa trước đó: URL vốn đã hỏng, không có gì để giữ
+        jdbcTemplate.batchUpdate("UPDATE upload_objects SET ref_count = ref_count + ? WHERE content_path = ?", batch);
+    }
+
+    /**
+     * Chuyển URL "/uploads/..." về file vật lý; trả về null nếu không phải file upload
+     * hoặc đường dẫn trỏ ra ngoài thư mục uploads
+     */
+    public Path resolveUploadUrl(String url) {
+        if (url == null || !url.startsWith(UPLOAD_URL_PREFIX)) {
+            return null;
+        }
+        Path file = this.rootLocation.resolve(url.substring(UPLOAD_URL_PREFIX.length())).normalize();
+        if (!file.startsWith(this.rootLocation) || file.startsWith(this.rootLocation.resolve(INCOMING_DIR))) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Tên file dạng {@code <sha256>[__variant].ext}: nội dung của URL không bao giờ thay đổi
+     */
+    public static boolean isContentAddressed(String fileName) {
+        return CONTENT_ADDRESSED_NAME.matcher(fileName).matches();
+    }
+
+    private void releaseNow(Path file) {
+        String relativePath = relativePathOf(file);
+        String fileName = file.getFileName().toString();
+        String hash = fileName.substring(0, 64);
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            Integer deleted = releaseTransaction.execute(status -> {
+                jdbcTemplate.update(
+                        "UPDATE upload_objects SET ref_count = ref_count - 1 WHERE content_path = ? AND ref_count > 0",
+                        relativePath);
+                return jdbcTemplate.update(
+                        "DELETE FROM upload_objects WHERE content_path = ? AND ref_count = 0", relativePath);
+            });
+            if (deleted == null || deleted == 0) {
+                return;
+            }
+            Files.deleteIfExists(file);
+            try (DirectoryStream<Path> derivatives = Files.newDirectoryStream(file.getParent(), hash + "__*")) {
+                for (Path derivative : derivatives) {
+                    Files.deleteIfExists(derivative);
+                }
+            }
+            log.debug("Deleted unreferenced upload {}", relativePath);
+        } catch (Exception e) {
+            log.error("Failed to release upload {}: {}", relativePath, e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String relativePathOf(Path file) {
+        return this.rootLocation.relativize(file).toString().replace('\\', '/');
+    }
+
+    private void addReference(String relativePath, String hash, long size) {
+        jdbcTemplate.update(
+                "MERGE upload_objects WITH (HOLDLOCK) AS t " +
+                "USING (SELECT ? AS content_path) AS s ON t.content_path = s.content_path " +
+                "WHEN MATCHED THEN UPDATE SET ref_count = t.ref_count + 1 " +
+                "WHEN NOT MATCHED THEN INSERT (content_path, sha256, size_bytes, ref_count) VALUES (?, ?, ?, 1);",
+                relativePath, relativePath, hash, size);
+    }
+
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Cùng nội dung vừa được ghi bởi tiến trình khác
+        }
+    }
+
+    private ReentrantLock lockFor(String hash) {
+        return locks[Integer.parseInt(hash.substring(0, 2), 16) % LOCK_STRIPES];
+    }
+
+    private static String extensionOf(String originalFilename) {
+        if (originalFilename == null || !originalFilename.contains(".")) {
+            return "";
+        }
+        String extension = originalFilename.substring(originalFilename.lastIndexOf('.')).toLowerCase(Locale.ROOT);
+        return SAFE_EXTENSION.matcher(extension).matches() ? extension : "";
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
     }
-}
\ No newline at end of file
+}
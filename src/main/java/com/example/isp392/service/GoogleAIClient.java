@@ -13,9 +13,13 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Google AI Client - Direct HTTP calls to Google AI API
@@ -85,6 +89,85 @@ public class GoogleAIClient {
         }
     }
 
+    /**
+     * Generate content using the streaming endpoint (server-sent events).
+     * Each text fragment is passed to onChunk as soon as the model produces it.
+     *
+     * @param prompt  Full prompt
+     * @param onChunk Callback for each generated text fragment
+     * @return The complete generated text
+     */
+    public String streamContent(String prompt, Consumer<String> onChunk) {
+        if (!isConfigured()) {
+            throw new IllegalStateException("Google AI API key not configured");
+        }
+
+        try {
+            String url = GOOGLE_AI_API_URL + modelName + ":streamGenerateContent?alt=sse&key=" + apiKey;
+
+            Map<String, Object> requestBody = new HashMap<>();
+            Map<String, Object> content = new HashMap<>();
+            Map<String, String> part = new HashMap<>();
+            part.put("text", prompt);
+            content.put("parts", List.of(part));
+            requestBody.put("contents", List.of(content));
+            byte[] body = objectMapper.writeValueAsBytes(requestBody);
+
+            logger.debug("Streaming from Google AI API with model: {}", modelName);
+            String result = restTemplate.execute(url, HttpMethod.POST,
+                request -> {
+                    request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                    request.getBody().write(body);
+                },
+                response -> {
+                    StringBuilder fullText = new StringBuilder();
+                    try (BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(response.getBody(), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            // Mỗi sự kiện SSE có dạng "data: {json}", các dòng khác được bỏ qua
+                            if (!line.startsWith("data:")) {
+                                continue;
+                            }
+                            String chunk = extractChunkText(line.substring(5).trim());
+                            if (!chunk.isEmpty()) {
+                                fullText.append(chunk);
+                                onChunk.accept(chunk);
+                            }
+                        }
+                    }
+                    return fullText.toString();
+                });
+
+            if (result == null || result.isEmpty()) {
+                return "Xin lỗi, tôi không thể tạo phản hồi lúc này.";
+            }
+            return result;
+
+        } catch (Exception e) {
+            logger.error("Error streaming from Google AI API: {}", e.getMessage(), e);
+            throw new RuntimeException("Failed to stream content: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Extract the text of one streamed chunk (empty if the chunk has no text)
+     */
+    private String extractChunkText(String chunkJson) {
+        try {
+            JsonNode parts = objectMapper.readTree(chunkJson)
+                    .path("candidates").path(0).path("content").path("parts");
+            StringBuilder text = new StringBuilder();
+            for (JsonNode part : parts) {
+                text.append(part.path("text").asText(""));
+            }
+            return text.toString();
+        } catch (Exception e) {
+            logger.warn("Error parsing streamed chunk: {}", e.getMessage());
+            return "";
+        }
+    }
+
     /**
      * Extract text from Google AI API response
      */
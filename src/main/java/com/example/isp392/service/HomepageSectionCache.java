@@ -0,0 +1,172 @@
+package com.example.isp392.service;
+
+import com.example.isp392.dto.HomepageBlogDTO;
+import com.example.isp392.dto.HomepageBookDTO;
+import com.example.isp392.dto.HomepageCategoryDTO;
+import com.example.isp392.repository.BlogRepository;
+import com.example.isp392.repository.BookRepository;
+import com.example.isp392.repository.CategoryRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bộ nhớ đệm các mục trên trang chủ (sách đánh giá cao, sách mới, sách giảm giá, danh mục, blog mới).
+ * Dữ liệu là các projection nhẹ, được tính sẵn và thay thế nguyên khối.
+ * Theo kiểu stale-while-revalidate: khi dữ liệu cũ hoặc có thay đổi sách/danh mục/blog,
+ * request vẫn nhận bản hiện có ngay lập tức và việc nạp lại chạy nền trên một luồng riêng.
+ */
+@Service
+public class HomepageSectionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HomepageSectionCache.class);
+
+    private static final int BOOK_SECTION_SIZE = 5;
+    private static final int BLOG_SECTION_SIZE = 4;
+
+    /**
+     * Các mục trang chủ tại một thời điểm
+     */
+    public static class Sections {
+        private final List<HomepageBookDTO> topRatedBooks;
+        private final List<HomepageBookDTO> newAdditions;
+        private final List<HomepageBookDTO> discountedBooks;
+        private final List<HomepageCategoryDTO> categories;
+        private final List<HomepageBlogDTO> recentBlogs;
+        private final long loadedAt;
+
+        Sections(List<HomepageBookDTO> topRatedBooks, List<HomepageBookDTO> newAdditions,
+                 List<HomepageBookDTO> discountedBooks, List<HomepageCategoryDTO> categories,
+                 List<HomepageBlogDTO> recentBlogs, long loadedAt) {
+            this.topRatedBooks = topRatedBooks;
+            this.newAdditions = newAdditions;
+            this.discountedBooks = discountedBooks;
+            this.categories = categories;
+            this.recentBlogs = recentBlogs;
+            this.loadedAt = loadedAt;
+        }
+
+        public List<HomepageBookDTO> getTopRatedBooks() { return topRatedBooks; }
+        public List<HomepageBookDTO> getNewAdditions() { return newAdditions; }
+        public List<HomepageBookDTO> getDiscountedBooks() { return discountedBooks; }
+        public List<HomepageCategoryDTO> getCategories() { return categories; }
+        public List<HomepageBlogDTO> getRecentBlogs() { return recentBlogs; }
+    }
+
+    private final BookRepository bookRepository;
+    private final CategoryRepository categoryRepository;
+    private final BlogRepository blogRepository;
+    private final long maxAgeMillis;
+
+    private volatile Sections sections;
+    private volatile boolean stale;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "homepage-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HomepageSectionCache(BookRepository bookRepository, CategoryRepository categoryRepository,
+                                BlogRepository blogRepository,
+                                @Value("${homepage.cache.max-age-ms:60000}") long maxAgeMillis) {
+        this.bookRepository = bookRepository;
+        this.categoryRepository = categoryRepository;
+        this.blogRepository = blogRepository;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Trả về các mục trang chủ; chỉ chờ truy vấn DB ở lần đầu tiên
+     */
+    public Sections getSections() {
+        Sections current = sections;
+        if (current == null) {
+            return loadIfAbsent();
+        }
+        if (stale || System.currentTimeMillis() - current.loadedAt > maxAgeMillis) {
+            refreshInBackground();
+        }
+        return current;
+    }
+
+    /**
+     * Đánh dấu dữ liệu cũ sau khi transaction hiện tại kết thúc (sách, danh mục hoặc blog vừa thay đổi).
+     * Lần truy cập trang chủ kế tiếp sẽ kích hoạt nạp lại nền.
+     */
+    public void markStale() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    stale = true;
+                }
+            });
+        } else {
+            stale = true;
+        }
+    }
+
+    /**
+     * Nạp lại định kỳ để trang chủ không phụ thuộc hoàn toàn vào lượt truy cập
+     */
+    @Scheduled(fixedDelayString = "${homepage.cache.refresh-interval-ms:300000}")
+    public void scheduledRefresh() {
+        if (sections != null) {
+            refreshInBackground();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private void refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.execute(() -> {
+            try {
+                loadNow();
+            } catch (Exception e) {
+                // Giữ bản cũ, lần truy cập sau sẽ thử lại
+                stale = true;
+                logger.error("Error refreshing homepage sections: {}", e.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private synchronized Sections loadIfAbsent() {
+        Sections current = sections;
+        return current != null ? current : loadNow();
+    }
+
+    private synchronized Sections loadNow() {
+        // Bỏ cờ trước khi truy vấn: thay đổi xảy ra trong lúc nạp sẽ đánh dấu lại
+        stale = false;
+        PageRequest bookPage = PageRequest.of(0, BOOK_SECTION_SIZE);
+        Sections loaded = new Sections(
+                List.copyOf(bookRepository.findTopRatedBookSummaries(bookPage)),
+                List.copyOf(bookRepository.findNewAdditionSummaries(bookPage)),
+                List.copyOf(bookRepository.findDiscountedBookSummaries(bookPage)),
+                List.copyOf(categoryRepository.findActiveCategorySummaries()),
+                List.copyOf(blogRepository.findLatestBlogSummaries(PageRequest.of(0, BLOG_SECTION_SIZE))),
+                System.currentTimeMillis());
+        sections = loaded;
+        return loaded;
+    }
+}
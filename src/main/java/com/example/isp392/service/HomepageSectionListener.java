@@ -0,0 +1,25 @@
+package com.example.isp392.service;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+
+/**
+ * JPA entity listener cho Book, Category và Blog: mọi thay đổi qua JPA đều đánh dấu
+ * bộ nhớ đệm trang chủ là cũ. Hibernate tạo listener qua Spring nên có thể inject bean.
+ */
+public class HomepageSectionListener {
+
+    private final HomepageSectionCache homepageSectionCache;
+
+    public HomepageSectionListener(HomepageSectionCache homepageSectionCache) {
+        this.homepageSectionCache = homepageSectionCache;
+    }
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onChange(Object entity) {
+        homepageSectionCache.markStale();
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tạo các bản thu nhỏ (thumb, card, detail) cho ảnh đã upload, lưu cạnh file gốc.
+ * Việc tạo ảnh chạy trên một pool luồng có giới hạn nên request upload không phải chờ;
+ * khi hàng đợi đầy, ảnh bị bỏ qua và trang vẫn dùng ảnh gốc cho tới lần yêu cầu sau.
+ */
+@Service
+public class ImageDerivativeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageDerivativeService.class);
+
+    /**
+     * Một kích thước ảnh dẫn xuất (giữ tỉ lệ, nằm gọn trong khung maxWidth x maxHeight)
+     */
+    public static class Variant {
+        private final String name;
+        private final int maxWidth;
+        private final int maxHeight;
+
+        Variant(String name, int maxWidth, int maxHeight) {
+            this.name = name;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        public String getName() { return name; }
+        public int getMaxWidth() { return maxWidth; }
+        public int getMaxHeight() { return maxHeight; }
+    }
+
+    // Từ lớn đến nhỏ: mỗi bản được thu nhỏ tiếp từ bản trước
+    public static final List<Variant> VARIANTS = List.of(
+            new Variant("detail", 800, 1200),
+            new Variant("card", 400, 600),
+            new Variant("thumb", 160, 240));
+
+    private static final String DERIVATIVE_SEPARATOR = "__";
+
+    private final ThreadPoolExecutor workers;
+    // File gốc đang chờ/đang được xử lý, tránh tạo trùng
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    // File gốc ImageIO không đọc hoặc không giải mã được, không thử lại
+    private final Set<Path> unsupported = ConcurrentHashMap.newKeySet();
+
+    public ImageDerivativeService(@Value("${upload.image.derivative-threads:2}") int threads,
+                                  @Value("${upload.image.derivative-queue-capacity:200}") int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-derivative-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                },
+                (task, executor) -> {
+                    // Hàng đợi đầy: bỏ qua, lần resolve sau sẽ thử lại
+                    Path original = ((DerivativeTask) task).original;
+                    inFlight.remove(original);
+                    logger.warn("Image derivative queue is full, skipping {}", original.getFileName());
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    private class DerivativeTask implements Runnable {
+        private final Path original;
+
+        DerivativeTask(Path original) {
+            this.original = original;
+        }
+
+        @Override
+        public void run() {
+            try {
+                generate(original);
+            } catch (Exception e) {
+                logger.error("Error generating image derivatives for {}: {}", original.getFileName(), e.getMessage());
+            } finally {
+                inFlight.remove(original);
+            }
+        }
+    }
+
+    /**
+     * Tên file của một bản dẫn xuất, ví dụ "123_abc.png" + card -> "123_abc__card.png".
+     * Ảnh không phải PNG đều được ghi dưới dạng JPEG.
+     */
+    public static String derivativeFileName(String originalFileName, String variant) {
+        int dot = originalFileName.lastIndexOf('.');
+        String baseName = dot > 0 ? originalFileName.substring(0, dot) : originalFileName;
+        return baseName + DERIVATIVE_SEPARATOR + variant + "." + outputFormat(originalFileName);
+    }
+
+    public static boolean isDerivative(String fileName) {
+        return fileName.contains(DERIVATIVE_SEPARATOR);
+    }
+
+    /**
+     * Đưa ảnh gốc vào hàng đợi tạo bản dẫn xuất; trả về ngay
+     */
+    public void submit(Path original) {
+        Path key = original.toAbsolutePath().normalize();
+        if (isDerivative(key.getFileName().toString()) || unsupported.contains(key) || !inFlight.add(key)) {
+            return;
+        }
+        workers.execute(new DerivativeTask(key));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    private void generate(Path original) throws IOException {
+        if (!Files.exists(original)) {
+            return;
+        }
+        BufferedImage source;
+        try {
+            source = ImageIO.read(original.toFile());
+        } catch (IOException | RuntimeException e) {
+            // Không giải mã được (JPEG CMYK, file bị cắt cụt...): lần sau cũng sẽ lỗi, không thử lại
+            logger.warn("Cannot decode image {}, skipping derivatives: {}", original.getFileName(), e.getMessage());
+            unsupported.add(original);
+            return;
+        }
+        if (source == null) {
+            // Định dạng ImageIO không đọc được (webp, svg...): trang dùng ảnh gốc
+            logger.debug("Skipping derivatives for unsupported image {}", original.getFileName());
+            unsupported.add(original);
+            return;
+        }
+
+        String fileName = original.getFileName().toString();
+        String format = outputFormat(fileName);
+        boolean keepAlpha = "png".equals(format) && source.getColorModel().hasAlpha();
+        BufferedImage current = toCompatible(source, keepAlpha);
+
+        for (Variant variant : VARIANTS) {
+            current = downscale(current, variant.maxWidth, variant.maxHeight, keepAlpha);
+            Path target = original.resolveSibling(derivativeFileName(fileName, variant.name));
+            writeAtomically(current, format, target);
+        }
+        logger.debug("Generated image derivatives for {}", fileName);
+    }
+
+    /**
+     * Thu nhỏ nhanh: giảm một nửa liên tiếp bằng nội suy song tuyến tới khi gần kích thước đích,
+     * rồi thu nhỏ bước cuối. Cho chất lượng gần với bicubic một bước nhưng nhanh hơn nhiều với ảnh lớn.
+     */
+    private static BufferedImage downscale(BufferedImage image, int maxWidth, int maxHeight, boolean keepAlpha) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        while (width != targetWidth || height != targetHeight) {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            current = draw(current, width, height, keepAlpha);
+        }
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height, boolean keepAlpha) {
+        BufferedImage scaled = new BufferedImage(width, height,
+                keepAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Chuyển ảnh về kiểu pixel INT_RGB/INT_ARGB để Java2D dùng đường vẽ nhanh
+     */
+    private static BufferedImage toCompatible(BufferedImage image, boolean keepAlpha) {
+        int type = keepAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (image.getType() == type) {
+            return image;
+        }
+        return draw(image, image.getWidth(), image.getHeight(), keepAlpha);
+    }
+
+    /**
+     * Ghi ra file tạm rồi đổi tên, để trang không bao giờ đọc phải ảnh ghi dở
+     */
+    private static void writeAtomically(BufferedImage image, String format, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            if (!ImageIO.write(image, format, temp.toFile())) {
+                throw new IOException("No ImageIO writer for format " + format);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String outputFormat(String fileName) {
+        return fileName.toLowerCase(Locale.ROOT).endsWith(".png") ? "png" : "jpg";
+    }
+}
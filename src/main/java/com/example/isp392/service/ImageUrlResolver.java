@@ -0,0 +1,82 @@
+package com.example.isp392.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chọn URL ảnh theo kích thước hiển thị cho template, ví dụ
+ * {@code th:src="${@imageUrls.resolve(book.coverImgUrl, 'card')}"}.
+ * Nếu bản thu nhỏ chưa có (ảnh cũ, đang tạo, hoặc không tạo được) thì trả về URL gốc
+ * và yêu cầu tạo ở nền, nên ảnh cũ cũng dần có bản thu nhỏ khi được xem.
+ */
+@Component("imageUrls")
+public class ImageUrlResolver {
+
+    private static final int MAX_CACHED_URLS = 10000;
+
+    private final FileStorageService fileStorageService;
+    private final ImageDerivativeService imageDerivativeService;
+    private final long missRecheckMillis;
+
+    // URL gốc + kích thước -> URL bản thu nhỏ đã có trên đĩa
+    private final Map<String, String> resolved = new ConcurrentHashMap<>();
+    // URL gốc + kích thước -> thời điểm được kiểm tra lại đĩa, tránh gọi Files.exists mỗi lần render
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+    public ImageUrlResolver(FileStorageService fileStorageService, ImageDerivativeService imageDerivativeService,
+                            @Value("${upload.image.derivative-miss-recheck-ms:10000}") long missRecheckMillis) {
+        this.fileStorageService = fileStorageService;
+        this.imageDerivativeService = imageDerivativeService;
+        this.missRecheckMillis = missRecheckMillis;
+    }
+
+    /**
+     * @param url     URL ảnh gốc (có thể null, hoặc URL ngoài không thuộc /uploads/)
+     * @param variant "thumb", "card" hoặc "detail"
+     * @return URL bản thu nhỏ nếu đã có, ngược lại URL gốc
+     */
+    public String resolve(String url, String variant) {
+        Path original = fileStorageService.resolveUploadUrl(url);
+        if (original == null || ImageDerivativeService.isDerivative(original.getFileName().toString())) {
+            return url;
+        }
+
+        String key = url + '|' + variant;
+        String cached = resolved.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long now = System.currentTimeMillis();
+        Long recheckAt = misses.get(key);
+        if (recheckAt != null && now < recheckAt) {
+            return url;
+        }
+
+        String derivativeName = ImageDerivativeService.derivativeFileName(original.getFileName().toString(), variant);
+        if (Files.exists(original.resolveSibling(derivativeName))) {
+            String derivativeUrl = url.substring(0, url.lastIndexOf('/') + 1) + derivativeName;
+            evictIfFull(resolved);
+            resolved.put(key, derivativeUrl);
+            misses.remove(key);
+            return derivativeUrl;
+        }
+
+        evictIfFull(misses);
+        misses.put(key, now + missRecheckMillis);
+        if (Files.exists(original)) {
+            imageDerivativeService.submit(original);
+        }
+        return url;
+    }
+
+    private static void evictIfFull(Map<String, ?> cache) {
+        if (cache.size() >= MAX_CACHED_URLS) {
+            cache.clear();
+        }
+    }
+}
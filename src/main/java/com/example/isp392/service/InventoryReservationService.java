@@ -6,22 +6,36 @@ import com.example.isp392.model.Book;
 import com.example.isp392.model.CustomerOrder;
 import com.example.isp392.model.Order;
 import com.example.isp392.model.OrderItem;
+import com.example.isp392.model.OrderStatus;
 import com.example.isp392.model.PaymentReservation;
+import com.example.isp392.model.PaymentStatus;
+import com.example.isp392.model.enums.PaymentReservationStatus;
 import com.example.isp392.repository.BookRepository;
+import com.example.isp392.repository.CustomerOrderRepository;
+import com.example.isp392.repository.PaymentReservationRepository;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing inventory reservations during payment processing
+ * Service for managing inventory reservations during payment processing.
+ * Reservation deadlines are tracked by {@link ExpiryTimingWheel}; payment reservations are
+ * backed by the payment_reservations table and customer-order reservations by
+ * customer_orders.reservation_expires_at, so pending deadlines survive a restart.
  */
 @Service
 @RequiredArgsConstructor
@@ -29,12 +43,18 @@ public class InventoryReservationService {
     
     private static final Logger logger = LoggerFactory.getLogger(InventoryReservationService.class);
     
+    // 1-minute timeout for testing
+    private static final long ORDER_RESERVATION_TIMEOUT_MS = 60_000;
+    
     private final BookRepository bookRepository;
     private final CustomerOrderService customerOrderService;
+    private final CustomerOrderRepository customerOrderRepository;
     private final PaymentReservationService paymentReservationService;
-    
-    // Map to track reserved inventory: CustomerOrderId -> ReservationInfo
-    private final Map<Integer, ReservationInfo> reservations = new ConcurrentHashMap<>();
+    private final PaymentReservationRepository paymentReservationRepository;
+    private final StockLedger stockLedger;
+    private final PromotionService promotionService;
+    private final ExpiryTimingWheel expiryWheel;
+    private final TransactionTemplate transactionTemplate;
     
     /**
      * Reserve inventory for a customer order
@@ -44,19 +64,20 @@ public class InventoryReservationService {
         logger.info("Reserving inventory for CustomerOrder ID: {}", customerOrder.getCustomerOrderId());
         
         try {
+            // Lưu hạn giữ hàng vào DB để khôi phục bộ hẹn giờ sau khi khởi động lại
+            Integer customerOrderId = customerOrder.getCustomerOrderId();
+            long deadline = System.currentTimeMillis() + ORDER_RESERVATION_TIMEOUT_MS;
+            customerOrderRepository.openReservation(customerOrderId,
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(deadline), ZoneId.systemDefault()));
+
             for (Order order : customerOrder.getOrders()) {
                 for (OrderItem item : order.getOrderItems()) {
                     reserveBookInventory(item.getBook().getBookId(), item.getQuantity());
                 }
             }
             
-            // Track the reservation
-            ReservationInfo reservation = new ReservationInfo(
-                customerOrder.getCustomerOrderId(),
-                LocalDateTime.now(),
-                LocalDateTime.now().plusMinutes(1) // 1-minute timeout for testing
-            );
-            reservations.put(customerOrder.getCustomerOrderId(), reservation);
+            // Track the reservation until its deadline
+            afterCommit(() -> scheduleOrderExpiry(customerOrderId, deadline));
             
             logger.info("Successfully reserved inventory for CustomerOrder ID: {}", customerOrder.getCustomerOrderId());
             
@@ -73,20 +94,14 @@ public class InventoryReservationService {
      */
     @Transactional
     public void reserveBookInventory(Integer bookId, int quantity) {
-        Book book = bookRepository.findByIdForUpdate(bookId)
-                .orElseThrow(() -> new IllegalArgumentException("Book not found: " + bookId));
-        
-        if (book.getStockQuantity() < quantity) {
-            throw new IllegalArgumentException("Insufficient stock for book: " + book.getTitle() + 
-                ". Available: " + book.getStockQuantity() + ", Requested: " + quantity);
+        // Deduct from available stock in the in-memory ledger (this is the reservation)
+        if (!stockLedger.tryReserve(bookId, quantity)) {
+            String title = bookRepository.findById(bookId).map(Book::getTitle).orElse(String.valueOf(bookId));
+            throw new IllegalArgumentException("Insufficient stock for book: " + title + 
+                ". Available: " + stockLedger.getAvailable(bookId) + ", Requested: " + quantity);
         }
         
-        // Deduct from available stock (this is the reservation)
-        book.setStockQuantity(book.getStockQuantity() - quantity);
-        bookRepository.save(book);
-        
-        logger.info("Reserved {} units of book ID: {}, remaining stock: {}", 
-                   quantity, bookId, book.getStockQuantity());
+        logger.info("Reserved {} units of book ID: {}", quantity, bookId);
     }
     
     /**
@@ -96,15 +111,16 @@ public class InventoryReservationService {
     public void confirmReservation(Integer customerOrderId) {
         logger.info("Confirming inventory reservation for CustomerOrder ID: {}", customerOrderId);
         
-        ReservationInfo reservation = reservations.remove(customerOrderId);
-        if (reservation != null) {
+        customerOrderRepository.closeReservation(customerOrderId);
+        if (expiryWheel.isScheduled(orderKey(customerOrderId))) {
+            expiryWheel.cancel(orderKey(customerOrderId));
             logger.info("Inventory reservation confirmed for CustomerOrder ID: {}", customerOrderId);
         } else {
             logger.warn("No reservation found for CustomerOrder ID: {}", customerOrderId);
         }
         
         // Inventory is already deducted, so no further action needed
-        // Just remove from tracking
+        // Just stop the expiry timer
     }
     
     /**
@@ -115,6 +131,13 @@ public class InventoryReservationService {
         logger.info("Rolling back inventory reservation for CustomerOrder ID: {}", customerOrderId);
         
         try {
+            // Chỉ trả hàng một lần: bộ hẹn giờ khôi phục sau khởi động và lệnh hủy có thể cùng gọi vào đây
+            if (customerOrderRepository.closeReservation(customerOrderId) == 0) {
+                expiryWheel.cancel(orderKey(customerOrderId));
+                logger.info("No open reservation for CustomerOrder ID: {}", customerOrderId);
+                return;
+            }
+
             CustomerOrder customerOrder = customerOrderService.findById(customerOrderId)
                     .orElse(null);
             
@@ -126,7 +149,7 @@ public class InventoryReservationService {
                 }
             }
             
-            reservations.remove(customerOrderId);
+            expiryWheel.cancel(orderKey(customerOrderId));
             logger.info("Successfully rolled back inventory reservation for CustomerOrder ID: {}", customerOrderId);
             
         } catch (Exception e) {
@@ -139,76 +162,19 @@ public class InventoryReservationService {
      */
     @Transactional
     public void returnBookInventory(Integer bookId, int quantity) {
-        Book book = bookRepository.findByIdForUpdate(bookId)
-                .orElseThrow(() -> new IllegalArgumentException("Book not found: " + bookId));
-        
         // Return to available stock
-        book.setStockQuantity(book.getStockQuantity() + quantity);
-        bookRepository.save(book);
+        stockLedger.release(bookId, quantity);
         
-        logger.info("Returned {} units of book ID: {}, new stock: {}", 
-                   quantity, bookId, book.getStockQuantity());
-    }
-    
-    /**
-     * Scheduled task to clean up expired reservations (runs every minute)
-     */
-    @Scheduled(fixedRate = 60000) // Run every minute
-    @Transactional
-    public void cleanupExpiredReservations() {
-        LocalDateTime now = LocalDateTime.now();
-        
-        reservations.entrySet().removeIf(entry -> {
-            ReservationInfo reservation = entry.getValue();
-            if (reservation.getExpiresAt().isBefore(now)) {
-                logger.info("Cleaning up expired reservation for CustomerOrder ID: {}", entry.getKey());
-                rollbackReservation(entry.getKey());
-                return true;
-            }
-            return false;
-        });
+        logger.info("Returned {} units of book ID: {}", quantity, bookId);
     }
     
     /**
      * Check if a reservation exists and is still valid
      */
     public boolean isReservationValid(Integer customerOrderId) {
-        ReservationInfo reservation = reservations.get(customerOrderId);
-        if (reservation == null) {
-            return false;
-        }
-        
-        if (reservation.getExpiresAt().isBefore(LocalDateTime.now())) {
-            // Expired, clean it up
-            rollbackReservation(customerOrderId);
-            return false;
-        }
-        
-        return true;
-    }
-    
-    /**
-     * Inner class to track reservation information
-     */
-    private static class ReservationInfo {
-        private final Integer customerOrderId;
-        private final LocalDateTime createdAt;
-        private final LocalDateTime expiresAt;
-        
-        public ReservationInfo(Integer customerOrderId, LocalDateTime createdAt, LocalDateTime expiresAt) {
-            this.customerOrderId = customerOrderId;
-            this.createdAt = createdAt;
-            this.expiresAt = expiresAt;
-        }
-        
-        public Integer getCustomerOrderId() { return customerOrderId; }
-        public LocalDateTime getCreatedAt() { return createdAt; }
-        public LocalDateTime getExpiresAt() { return expiresAt; }
+        return expiryWheel.isScheduled(orderKey(customerOrderId));
     }
 
-    // Map to track PaymentReservation inventory: TxnRef -> PaymentReservationInfo
-    private final Map<String, PaymentReservationInfo> paymentReservations = new ConcurrentHashMap<>();
-
     /**
      * Reserve inventory for a payment reservation
      */
@@ -225,13 +191,9 @@ public class InventoryReservationService {
                 reserveBookInventory(item.getBookId(), item.getQuantity());
             }
 
-            // Track the payment reservation
-            PaymentReservationInfo reservation = new PaymentReservationInfo(
-                paymentReservation.getVnpayTxnRef(),
-                paymentReservation.getCreatedAt(),
-                paymentReservation.getExpiresAt()
-            );
-            paymentReservations.put(paymentReservation.getVnpayTxnRef(), reservation);
+            // Hold the stock until the reservation deadline (only once the reservation is committed)
+            afterCommit(() -> schedulePaymentExpiry(paymentReservation.getReservationId(),
+                    paymentReservation.getExpiresAt()));
 
             logger.info("Successfully reserved inventory for PaymentReservation TxnRef: {}",
                        paymentReservation.getVnpayTxnRef());
@@ -244,41 +206,100 @@ public class InventoryReservationService {
     }
 
     /**
-     * Confirm inventory reservation for payment (permanently deduct)
+     * Claim the stock held by a payment reservation for the paid order.
+     * Must run in the same transaction that inserts the order: the reservation row stays locked
+     * until commit, so expiry cannot release the stock under the order, and a rollback leaves the
+     * reservation (and its stock) as it was.
+     * A late payment whose reservation already EXPIRED re-reserves the stock instead.
+     *
+     * @return false if the reservation expired and the stock can no longer be re-reserved;
+     *         the caller must then refund the payment instead of creating the order
+     * @throws IllegalStateException if the reservation was already confirmed or cancelled
      */
-    @Transactional
-    public void confirmReservationByTxnRef(String vnpayTxnRef) {
-        logger.info("Confirming inventory reservation for TxnRef: {}", vnpayTxnRef);
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean claimPaymentReservation(PaymentReservation paymentReservation) {
+        Integer reservationId = paymentReservation.getReservationId();
+        String vnpayTxnRef = paymentReservation.getVnpayTxnRef();
+        logger.info("Claiming inventory reservation for TxnRef: {}", vnpayTxnRef);
 
-        PaymentReservationInfo reservation = paymentReservations.get(vnpayTxnRef);
-        if (reservation == null) {
-            logger.warn("No inventory reservation found for TxnRef: {}", vnpayTxnRef);
-            return;
+        LocalDateTime now = LocalDateTime.now();
+        if (paymentReservationRepository.confirmIfPending(reservationId, now) == 1) {
+            afterCommit(() -> expiryWheel.cancel(paymentKey(reservationId)));
+            logger.info("Claimed inventory reservation for TxnRef: {}", vnpayTxnRef);
+            return true;
         }
 
-        // Remove from tracking (inventory already deducted during reservation)
-        paymentReservations.remove(vnpayTxnRef);
+        PaymentReservationStatus status = paymentReservationRepository.findById(reservationId)
+                .map(PaymentReservation::getStatus)
+                .orElseThrow(() -> new IllegalStateException("Payment reservation not found for TxnRef: " + vnpayTxnRef));
+        if (status != PaymentReservationStatus.EXPIRED) {
+            throw new IllegalStateException("Payment reservation for TxnRef: " + vnpayTxnRef + " is already " + status);
+        }
 
-        logger.info("Successfully confirmed inventory reservation for TxnRef: {}", vnpayTxnRef);
+        // Thanh toán đến sau khi hết hạn: hàng đã được trả về kho, thử giữ lại.
+        // tryReserve tự trả hàng nếu transaction bị rollback.
+        OrderDTO orderDTO = paymentReservationService.getOrderDTOFromReservation(paymentReservation);
+        List<CartItemDTO> reserved = new ArrayList<>();
+        for (CartItemDTO item : orderDTO.getSelectedItems()) {
+            if (!stockLedger.tryReserve(item.getBookId(), item.getQuantity())) {
+                for (CartItemDTO held : reserved) {
+                    stockLedger.release(held.getBookId(), held.getQuantity());
+                }
+                logger.warn("Late payment for expired TxnRef: {} - book {} no longer has {} units in stock",
+                           vnpayTxnRef, item.getBookId(), item.getQuantity());
+                return false;
+            }
+            reserved.add(item);
+        }
+        // Lượt dùng mã cũng đã được trả lại khi hết hạn; mã hết lượt thì hoàn tiền như hết hàng
+        String promotionCode = orderDTO.getPromotionCode();
+        if (promotionCode != null
+                && !promotionService.reservePromotionUsage(promotionCode, paymentReservation.getUser().getUserId())) {
+            for (CartItemDTO held : reserved) {
+                stockLedger.release(held.getBookId(), held.getQuantity());
+            }
+            logger.warn("Late payment for expired TxnRef: {} - promotion {} has no usage left", vnpayTxnRef, promotionCode);
+            return false;
+        }
+        if (paymentReservationRepository.confirmIfInStatus(reservationId, PaymentReservationStatus.EXPIRED, now) == 0) {
+            throw new IllegalStateException("Payment reservation for TxnRef: " + vnpayTxnRef + " changed while re-reserving");
+        }
+        logger.info("Re-reserved inventory for late payment, TxnRef: {}", vnpayTxnRef);
+        return true;
+    }
+
+    /**
+     * Close an expired reservation whose late payment could not be fulfilled, so the refund
+     * for it is issued only once (a replayed return URL finds it CANCELLED)
+     *
+     * @return true if this call closed the reservation
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean closeExpiredForRefund(PaymentReservation paymentReservation) {
+        return paymentReservationRepository.closeIfInStatus(paymentReservation.getReservationId(),
+                PaymentReservationStatus.EXPIRED, PaymentReservationStatus.CANCELLED, LocalDateTime.now()) == 1;
     }
 
     /**
-     * Rollback inventory reservation for payment
+     * Rollback inventory reservation for payment.
+     * Stock is returned only if this call moves the reservation out of PENDING,
+     * so a rollback racing with expiry never returns the same stock twice.
      */
     @Transactional
     public void rollbackReservationByTxnRef(String vnpayTxnRef, PaymentReservation paymentReservation) {
         logger.info("Rolling back inventory reservation for TxnRef: {}", vnpayTxnRef);
 
         try {
-            // Parse OrderDTO from reservation data to get cart items
-            OrderDTO orderDTO = paymentReservationService.getOrderDTOFromReservation(paymentReservation);
+            expiryWheel.cancel(paymentKey(paymentReservation.getReservationId()));
 
-            for (CartItemDTO item : orderDTO.getSelectedItems()) {
-                returnBookInventory(item.getBookId(), item.getQuantity());
+            int closed = paymentReservationRepository.closeIfInStatus(paymentReservation.getReservationId(),
+                    PaymentReservationStatus.PENDING, PaymentReservationStatus.CANCELLED, LocalDateTime.now());
+            if (closed == 0) {
+                logger.info("Inventory reservation for TxnRef: {} was already released or confirmed", vnpayTxnRef);
+                return;
             }
 
-            // Remove from tracking
-            paymentReservations.remove(vnpayTxnRef);
+            releasePaymentInventory(paymentReservation);
 
             logger.info("Successfully rolled back inventory reservation for TxnRef: {}", vnpayTxnRef);
 
@@ -289,39 +310,104 @@ public class InventoryReservationService {
     }
 
     /**
-     * Clean up expired payment reservations
+     * Rebuild pending expirations from the database after startup.
+     * Reservations whose deadline already passed are expired on the next tick.
      */
-    @Scheduled(fixedRate = 300000) // Run every 5 minutes
-    public void cleanupExpiredPaymentReservations() {
-        LocalDateTime now = LocalDateTime.now();
+    @EventListener(ApplicationReadyEvent.class)
+    public void restorePendingPaymentReservations() {
+        List<PaymentReservation> pending = paymentReservationRepository.findByStatus(PaymentReservationStatus.PENDING);
+        for (PaymentReservation reservation : pending) {
+            schedulePaymentExpiry(reservation.getReservationId(), reservation.getExpiresAt());
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Restored expiry timers for {} pending payment reservations", pending.size());
+        }
+    }
 
-        paymentReservations.entrySet().removeIf(entry -> {
-            PaymentReservationInfo reservation = entry.getValue();
-            if (now.isAfter(reservation.getExpiresAt())) {
-                logger.info("Cleaning up expired payment reservation for TxnRef: {}", entry.getKey());
-                // Note: We don't rollback inventory here as it should be handled by payment failure
-                return true;
-            }
-            return false;
-        });
+    /**
+     * Rebuild customer-order reservation expirations (orders still awaiting payment) after startup.
+     * Reservations whose deadline already passed are expired on the next tick.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restorePendingOrderReservations() {
+        List<CustomerOrder> pending = customerOrderRepository.findWithOpenReservation(
+                OrderStatus.PROCESSING, PaymentStatus.PENDING);
+        for (CustomerOrder customerOrder : pending) {
+            long deadline = customerOrder.getReservationExpiresAt()
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            scheduleOrderExpiry(customerOrder.getCustomerOrderId(), deadline);
+        }
+        if (!pending.isEmpty()) {
+            logger.info("Restored expiry timers for {} pending customer-order reservations", pending.size());
+        }
+    }
+
+    private void scheduleOrderExpiry(Integer customerOrderId, long deadline) {
+        expiryWheel.schedule(orderKey(customerOrderId), deadline, () -> expireOrderReservation(customerOrderId));
+    }
+
+    private void schedulePaymentExpiry(Integer reservationId, LocalDateTime expiresAt) {
+        long deadline = expiresAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        expiryWheel.schedule(paymentKey(reservationId), deadline, () -> expirePaymentReservation(reservationId));
     }
 
     /**
-     * Information about payment reservation
+     * Called by the expiry wheel once the reservation deadline has passed
      */
-    private static class PaymentReservationInfo {
-        private final String vnpayTxnRef;
-        private final LocalDateTime createdAt;
-        private final LocalDateTime expiresAt;
-
-        public PaymentReservationInfo(String vnpayTxnRef, LocalDateTime createdAt, LocalDateTime expiresAt) {
-            this.vnpayTxnRef = vnpayTxnRef;
-            this.createdAt = createdAt;
-            this.expiresAt = expiresAt;
+    private void expirePaymentReservation(Integer reservationId) {
+        transactionTemplate.executeWithoutResult(status -> {
+            PaymentReservation reservation = paymentReservationRepository.findById(reservationId).orElse(null);
+            if (reservation == null) {
+                return;
+            }
+            int closed = paymentReservationRepository.closeIfInStatus(reservationId,
+                    PaymentReservationStatus.PENDING, PaymentReservationStatus.EXPIRED, LocalDateTime.now());
+            if (closed == 0) {
+                // Đã được xác nhận hoặc hủy trước khi hết hạn
+                return;
+            }
+            releasePaymentInventory(reservation);
+            logger.info("Expired payment reservation ID: {}, TxnRef: {}, inventory returned",
+                       reservationId, reservation.getVnpayTxnRef());
+        });
+    }
+
+    private void expireOrderReservation(Integer customerOrderId) {
+        logger.info("Cleaning up expired reservation for CustomerOrder ID: {}", customerOrderId);
+        transactionTemplate.executeWithoutResult(status -> rollbackReservation(customerOrderId));
+    }
+
+    private void releasePaymentInventory(PaymentReservation paymentReservation) {
+        // Parse OrderDTO from reservation data to get cart items
+        OrderDTO orderDTO = paymentReservationService.getOrderDTOFromReservation(paymentReservation);
+
+        for (CartItemDTO item : orderDTO.getSelectedItems()) {
+            returnBookInventory(item.getBookId(), item.getQuantity());
+        }
+        // Trả lại lượt dùng mã đã giành khi tạo reservation
+        if (orderDTO.getPromotionCode() != null) {
+            promotionService.releasePromotionUsage(orderDTO.getPromotionCode(), paymentReservation.getUser().getUserId());
         }
+    }
+
+    private static String orderKey(Integer customerOrderId) {
+        return "order:" + customerOrderId;
+    }
 
-        public String getVnpayTxnRef() { return vnpayTxnRef; }
-        public LocalDateTime getCreatedAt() { return createdAt; }
-        public LocalDateTime getExpiresAt() { return expiresAt; }
+    private static String paymentKey(Integer reservationId) {
+        return "payment:" + reservationId;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 }
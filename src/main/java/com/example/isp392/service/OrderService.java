@@ -50,6 +50,7 @@ public class OrderService {
     private final CustomerOrderService customerOrderService;
     private final CartService cartService;
     private final WalletService walletService;
+    private final RevenueRollupService revenueRollupService;
     private final Lock orderStatusLock = new ReentrantLock();
 
     public OrderService(OrderRepository orderRepository,
@@ -59,7 +60,8 @@ public class OrderService {
                        BookService bookService,
                        CustomerOrderService customerOrderService,
                        CartService cartService,
-                       WalletService walletService) {
+                       WalletService walletService,
+                       RevenueRollupService revenueRollupService) {
         this.orderRepository = orderRepository;
         this.customerOrderRepository = customerOrderRepository;
         this.promotionService = promotionService;
@@ -68,6 +70,7 @@ public class OrderService {
         this.customerOrderService = customerOrderService;
         this.cartService = cartService;
         this.walletService = walletService;
+        this.revenueRollupService = revenueRollupService;
     }
 
     public List<Order> getOrdersForSeller(Integer sellerId) {
@@ -269,9 +272,16 @@ public class OrderService {
         logger.info("Promotion application successful. Discount amount: {}, Final total: {}",
                    result.getDiscountAmount(), result.getFinalTotal());
 
+        Integer userId = order.getCustomerOrder().getUser().getUserId();
+        // Take the usage slot before the discount is applied, so an exhausted code is never used
+        if (!promotionCalculationService.reservePromotionUsage(promotionCode, userId)) {
+            logger.error("Promotion {} has no usage left for user: {}", promotionCode, userId);
+            throw new RuntimeException("Mã giảm giá đã hết lượt sử dụng");
+        }
+
         order.setDiscountAmount(result.getDiscountAmount());
         order.setDiscountCode(promotionCode);
-        promotionCalculationService.recordPromotionUsage(promotionCode, order.getCustomerOrder().getUser().getUserId());
+        promotionCalculationService.recordPromotionUsage(promotionCode, userId);
 
         logger.info("Order discount amount set to: {}, discount code set to: {}",
                    order.getDiscountAmount(), order.getDiscountCode());
@@ -398,63 +408,25 @@ public class OrderService {
     }
     
     public BigDecimal getTodayRevenue(Integer shopId) {
-        LocalDateTime startOfDay = LocalDate.now().atStartOfDay();
-        LocalDateTime endOfDay = LocalDate.now().plusDays(1).atStartOfDay();
-
         // Only count revenue from DELIVERED orders
-        List<Order> orders = orderRepository.findByShopShopIdAndOrderDateBetweenAndOrderStatus(
-            shopId, startOfDay, endOfDay, OrderStatus.DELIVERED);
-
-        return orders.stream()
-            .map(Order::getTotalAmount)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
+        LocalDate today = LocalDate.now();
+        return revenueRollupService.getShopDeliveredRevenue(shopId, today, today);
     }
     
     public BigDecimal getTotalRevenue(Integer shopId, LocalDate startDate, LocalDate endDate) {
-        LocalDateTime start = startDate.atStartOfDay();
-        LocalDateTime end = endDate.plusDays(1).atStartOfDay();
-
         // Only count revenue from DELIVERED orders
-        List<Order> orders = orderRepository.findByShopShopIdAndOrderDateBetweenAndOrderStatus(
-            shopId, start, end, OrderStatus.DELIVERED);
-
-        return orders.stream()
-            .map(Order::getTotalAmount)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return revenueRollupService.getShopDeliveredRevenue(shopId, startDate, endDate);
     }
     
     public Long getTotalOrders(Integer shopId, LocalDate startDate, LocalDate endDate) {
-        LocalDateTime start = startDate.atStartOfDay();
-        LocalDateTime end = endDate.plusDays(1).atStartOfDay();
-
         // Only count DELIVERED orders for accurate revenue statistics
-        return orderRepository.countByShopShopIdAndOrderDateBetweenAndOrderStatus(shopId, start, end, OrderStatus.DELIVERED);
+        return revenueRollupService.getShopDeliveredOrderCount(shopId, startDate, endDate);
     }
     
     public List<BigDecimal> getWeeklyRevenue(Integer shopId) {
-        LocalDateTime startDate = LocalDate.now().minusDays(6).atStartOfDay();
-        LocalDateTime endDate = LocalDate.now().plusDays(1).atStartOfDay();
-
-        // Only count revenue from DELIVERED orders
-        List<Order> orders = orderRepository.findByShopShopIdAndOrderDateBetweenAndOrderStatus(
-            shopId, startDate, endDate, OrderStatus.DELIVERED);
-
-        Map<LocalDate, BigDecimal> revenueByDate = orders.stream()
-            .collect(Collectors.groupingBy(
-                order -> order.getOrderDate().toLocalDate(),
-                Collectors.mapping(
-                    Order::getTotalAmount,
-                    Collectors.reducing(BigDecimal.ZERO, BigDecimal::add)
-                )
-            ));
-            
-        List<BigDecimal> weeklyRevenue = new ArrayList<>();
-        for (int i = 6; i >= 0; i--) {
-            LocalDate date = LocalDate.now().minusDays(i);
-            weeklyRevenue.add(revenueByDate.getOrDefault(date, BigDecimal.ZERO));
-        }
-        
-        return weeklyRevenue;
+        // Only count revenue from DELIVERED orders, one entry per day for the last 7 days
+        LocalDate today = LocalDate.now();
+        return revenueRollupService.getShopDailyDeliveredRevenue(shopId, today.minusDays(6), today);
     }
     
     public Optional<Order> findOrderByIdForSeller(Integer orderId, Integer sellerId) {
@@ -504,16 +476,7 @@ public class OrderService {
      * @return Danh sách dữ liệu doanh thu
      */
     public List<Map<String, Object>> getRevenueByPeriod(Integer shopId, LocalDate startDate, LocalDate endDate, String period) {
-        switch (period.toLowerCase()) {
-            case "daily":
-                return orderRepository.getRevenueByDay(shopId, startDate, endDate);
-            case "weekly":
-                return orderRepository.getRevenueByWeek(shopId, startDate, endDate);
-            case "monthly":
-                return orderRepository.getRevenueByMonth(shopId, startDate, endDate);
-            default:
-                throw new IllegalArgumentException("Invalid period: " + period);
-        }
+        return revenueRollupService.getShopRevenueByPeriod(shopId, startDate, endDate, period);
     }
     
     /**
@@ -523,7 +486,7 @@ public class OrderService {
      * @return Danh sách sách bán chạy
      */
     public List<Map<String, Object>> getBestsellingBooks(Integer shopId, int limit) {
-        return orderRepository.getBestsellingBooksByQuantity(shopId, limit);
+        return revenueRollupService.getShopBestsellingBooks(shopId, limit);
     }
     
     /**
@@ -532,7 +495,7 @@ public class OrderService {
      * @return Phân bố địa lý
      */
     public List<Map<String, Object>> getGeographicDistribution(Integer shopId) {
-        return orderRepository.getGeographicDistribution(shopId);
+        return revenueRollupService.getShopGeographicDistribution(shopId);
     }
     
     /**
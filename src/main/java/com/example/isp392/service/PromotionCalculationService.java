@@ -102,7 +102,7 @@ public class PromotionCalculationService {
 
         // Check total usage limit if applicable
         if (promotion.getTotalUsageLimit() != null && promotion.getTotalUsageLimit() > 0) {
-            if (promotion.getCurrentUsageCount() >= promotion.getTotalUsageLimit()) {
+            if (promotionService.getCurrentUsageCount(promotion) >= promotion.getTotalUsageLimit()) {
                 return PromotionValidationResult.error("Mã giảm giá đã hết lượt sử dụng");
             }
         }
@@ -243,19 +243,34 @@ public class PromotionCalculationService {
     }
 
     /**
-     * Record promotion usage after successful order completion
+     * Take a usage slot before the discounted order is saved
+     * @return false if the promotion has no usage left, in which case checkout must not continue
      */
-    public void recordPromotionUsage(String promotionCode, Integer userId) {
+    public boolean reservePromotionUsage(String promotionCode, Integer userId) {
+        return promotionService.reservePromotionUsage(promotionCode, userId);
+    }
+
+    /**
+     * Give back a slot taken with reservePromotionUsage when the order is not completed
+     */
+    public void releasePromotionUsage(String promotionCode, Integer userId) {
+        promotionService.releasePromotionUsage(promotionCode, userId);
+    }
+
+    /**
+     * Record promotion usage after successful order completion (slot already reserved)
+     */
+    public boolean recordPromotionUsage(String promotionCode, Integer userId) {
         logger.info("Recording promotion usage for code: {} by user: {}", promotionCode, userId);
-        promotionService.updatePromotionUsage(promotionCode, userId);
+        return promotionService.updatePromotionUsage(promotionCode, userId);
     }
 
     /**
-     * Record promotion usage with customer order details
+     * Record promotion usage with customer order details (slot already reserved)
      */
-    public void recordPromotionUsage(String promotionCode, Integer userId, Integer customerOrderId, BigDecimal discountAmount) {
+    public boolean recordPromotionUsage(String promotionCode, Integer userId, Integer customerOrderId, BigDecimal discountAmount) {
         logger.info("Recording promotion usage for code: {} by user: {} with customer order: {} and discount: {}",
                    promotionCode, userId, customerOrderId, discountAmount);
-        promotionService.updatePromotionUsage(promotionCode, userId, customerOrderId, discountAmount);
+        return promotionService.updatePromotionUsage(promotionCode, userId, customerOrderId, discountAmount);
     }
 }
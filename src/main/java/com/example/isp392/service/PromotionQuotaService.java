@@ -0,0 +1,291 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hạn mức sử dụng mã giảm giá giữ trong bộ nhớ.
+ * Mỗi mã có một bộ đếm số lượt còn lại (AtomicInteger) được khởi tạo từ
+ * total_usage_limit - current_usage_count; mỗi người dùng có một bộ đếm số lượt đã dùng.
+ * Dùng mã chỉ là các phép CAS có chặn trên, nên cả hai giới hạn luôn được giữ đúng
+ * mà không cần khóa dòng promotions. Số lượt tăng thêm được ghi xuống
+ * promotions.current_usage_count theo lô.
+ */
+@Service
+public class PromotionQuotaService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PromotionQuotaService.class);
+
+    // Giá trị đánh dấu hạn mức đã bị gỡ khỏi bộ nhớ (mã vừa được sửa)
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    private static final String LOAD_QUOTA_SQL =
+            "SELECT total_usage_limit, current_usage_count, usage_limit_per_user FROM promotions WHERE promotion_id = ?";
+    private static final String LOAD_USER_USAGE_SQL =
+            "SELECT COUNT(*) FROM promotion_usage WHERE promotion_id = ? AND user_id = ?";
+    private static final String FLUSH_USAGE_SQL =
+            "UPDATE promotions SET current_usage_count = current_usage_count + ? WHERE promotion_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final WriteBehindFlusher writeBehindFlusher;
+
+    private final Map<Integer, Quota> quotas = new ConcurrentHashMap<>();
+    // Số lượt đã dùng theo (promotionId, userId) gộp thành một khóa long
+    private final Map<Long, AtomicInteger> userUsage = new ConcurrentHashMap<>();
+    // Số lượt dùng chưa ghi xuống DB theo promotionId
+    private final Map<Integer, LongAdder> pendingUsage = new ConcurrentHashMap<>();
+
+    /**
+     * Hạn mức của một mã tại thời điểm nạp từ DB
+     */
+    private static class Quota {
+        private final AtomicInteger remaining;
+        private final boolean limited;
+        // 0 nghĩa là không giới hạn theo người dùng
+        private final int perUserLimit;
+
+        Quota(int remaining, boolean limited, int perUserLimit) {
+            this.remaining = new AtomicInteger(remaining);
+            this.limited = limited;
+            this.perUserLimit = perUserLimit;
+        }
+    }
+
+    public PromotionQuotaService(JdbcTemplate jdbcTemplate, WriteBehindFlusher writeBehindFlusher) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeBehindFlusher = writeBehindFlusher;
+    }
+
+    /**
+     * Giành một lượt sử dụng mã cho người dùng
+     *
+     * @return true nếu còn lượt (cả tổng và theo người dùng), false nếu đã hết
+     * @throws IllegalArgumentException nếu không tìm thấy mã
+     */
+    public boolean tryAcquire(int promotionId, int userId) {
+        while (true) {
+            Quota quota = quotaFor(promotionId);
+
+            AtomicInteger used = quota.perUserLimit > 0 ? userCounter(promotionId, userId) : null;
+            if (used != null && !incrementIfBelow(used, quota.perUserLimit)) {
+                return false;
+            }
+
+            // Ghi nhận trước khi trừ hạn mức để lần nạp lại hạn mức luôn tính cả lượt đang xử lý
+            LongAdder pending = pendingUsage.computeIfAbsent(promotionId, id -> new LongAdder());
+            pending.increment();
+
+            int result = takeOne(quota);
+            if (result > 0) {
+                return true;
+            }
+
+            pending.decrement();
+            if (used != null) {
+                used.decrementAndGet();
+            }
+            if (result == 0) {
+                return false;
+            }
+            // Hạn mức vừa bị gỡ (mã được sửa): thử lại với hạn mức mới
+        }
+    }
+
+    /**
+     * Giành một lượt như tryAcquire; nếu đang trong transaction thì lượt được trả lại
+     * khi transaction rollback (đơn hàng dùng mã không được lưu)
+     */
+    public boolean tryAcquireInTransaction(int promotionId, int userId) {
+        if (!tryAcquire(promotionId, userId)) {
+            return false;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_ROLLED_BACK) {
+                        release(promotionId, userId);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Trả lại một lượt đã giành (đơn hàng bị hủy, thanh toán thất bại hoặc hết hạn).
+     * Phần giảm được ghi xuống current_usage_count ở lần flush sau.
+     */
+    public void release(int promotionId, int userId) {
+        pendingUsage.computeIfAbsent(promotionId, id -> new LongAdder()).decrement();
+
+        long key = userKey(promotionId, userId);
+        AtomicInteger used = userUsage.get(key);
+        if (used != null) {
+            used.updateAndGet(current -> Math.max(0, current - 1));
+        }
+
+        Quota quota = quotas.get(promotionId);
+        if (quota != null && quota.limited) {
+            // Hạn mức đã bị gỡ thì lần nạp lại đã tính phần giảm ở pendingUsage
+            quota.remaining.updateAndGet(current -> current == RETIRED ? RETIRED : current + 1);
+        }
+    }
+
+    /**
+     * Kiểm tra còn lượt hay không mà không giành lượt (dùng khi áp mã vào giỏ hàng)
+     */
+    public boolean hasRemaining(int promotionId, int userId) {
+        Quota quota = quotaFor(promotionId);
+        if (quota.limited) {
+            int remaining = quota.remaining.get();
+            if (remaining != RETIRED && remaining <= 0) {
+                return false;
+            }
+        }
+        return quota.perUserLimit <= 0 || userCounter(promotionId, userId).get() < quota.perUserLimit;
+    }
+
+    /**
+     * Số lượt đã dùng nhưng chưa được ghi xuống current_usage_count
+     */
+    public long getPendingUsage(int promotionId) {
+        LongAdder pending = pendingUsage.get(promotionId);
+        return pending != null ? pending.sum() : 0;
+    }
+
+    /**
+     * Gỡ hạn mức của mã sau khi transaction hiện tại commit (giới hạn vừa được sửa).
+     * Lần dùng mã sau sẽ nạp lại từ DB.
+     */
+    public void evictAfterCommit(int promotionId) {
+        if (!quotas.containsKey(promotionId)) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(promotionId);
+                }
+            });
+        } else {
+            evict(promotionId);
+        }
+    }
+
+    /**
+     * Ghi số lượt dùng đã gom được xuống DB trong một câu lệnh batch
+     */
+    @Scheduled(fixedDelayString = "${promotion.quota.flush-interval-ms:1000}")
+    public synchronized void flush() {
+        writeBehindFlusher.flushDeltas(pendingUsage, FLUSH_USAGE_SQL, "promotion usage counts");
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    /**
+     * @return 1 nếu giành được lượt, 0 nếu đã hết lượt, -1 nếu hạn mức đã bị gỡ
+     */
+    private static int takeOne(Quota quota) {
+        while (true) {
+            int current = quota.remaining.get();
+            if (current == RETIRED) {
+                return -1;
+            }
+            if (!quota.limited) {
+                return 1;
+            }
+            if (current <= 0) {
+                return 0;
+            }
+            if (quota.remaining.compareAndSet(current, current - 1)) {
+                return 1;
+            }
+        }
+    }
+
+    private static boolean incrementIfBelow(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void evict(int promotionId) {
+        Quota quota = quotas.remove(promotionId);
+        if (quota != null) {
+            quota.remaining.set(RETIRED);
+        }
+    }
+
+    private Quota quotaFor(int promotionId) {
+        Quota quota = quotas.get(promotionId);
+        if (quota != null) {
+            return quota;
+        }
+        return loadQuota(promotionId);
+    }
+
+    /**
+     * Nạp hạn mức từ DB. Chạy dưới cùng monitor với flush để current_usage_count
+     * và phần chưa ghi luôn được đọc nhất quán với nhau.
+     */
+    private synchronized Quota loadQuota(int promotionId) {
+        Quota existing = quotas.get(promotionId);
+        if (existing != null) {
+            return existing;
+        }
+        Quota loaded;
+        try {
+            loaded = jdbcTemplate.queryForObject(LOAD_QUOTA_SQL, (rs, rowNum) -> {
+                int totalLimit = rs.getInt("total_usage_limit");
+                boolean limited = !rs.wasNull() && totalLimit > 0;
+                long used = rs.getLong("current_usage_count") + getPendingUsage(promotionId);
+                int perUserLimit = rs.getInt("usage_limit_per_user");
+                int remaining = limited ? (int) Math.max(0, totalLimit - used) : Integer.MAX_VALUE;
+                return new Quota(remaining, limited, perUserLimit);
+            }, promotionId);
+        } catch (EmptyResultDataAccessException e) {
+            throw new IllegalArgumentException("Promotion not found with ID: " + promotionId);
+        }
+        quotas.put(promotionId, loaded);
+        return loaded;
+    }
+
+    private AtomicInteger userCounter(int promotionId, int userId) {
+        long key = userKey(promotionId, userId);
+        AtomicInteger counter = userUsage.get(key);
+        if (counter != null) {
+            return counter;
+        }
+        Integer count = jdbcTemplate.queryForObject(LOAD_USER_USAGE_SQL, Integer.class, promotionId, userId);
+        AtomicInteger loaded = new AtomicInteger(count != null ? count : 0);
+        AtomicInteger existing = userUsage.putIfAbsent(key, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private static long userKey(int promotionId, int userId) {
+        return ((long) promotionId << 32) | (userId & 0xFFFFFFFFL);
+    }
+}
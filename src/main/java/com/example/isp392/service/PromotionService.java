@@ -4,14 +4,14 @@ import com.example.isp392.dto.PromotionFormDTO;
 import com.example.isp392.model.*;
 import com.example.isp392.repository.*;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.transaction.annotation.Isolation;
-import org.springframework.transaction.annotation.Propagation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -29,17 +29,23 @@ public class PromotionService {
     private final PromotionUsageRepository promotionUsageRepository;
     private final CustomerOrderRepository customerOrderRepository;
     private final UserRepository userRepository;
+    private final VectorStoreService vectorStoreService;
+    private final PromotionQuotaService promotionQuotaService;
 
     public PromotionService(PromotionRepository promotionRepository,
                            CategoryRepository categoryRepository,
                            PromotionUsageRepository promotionUsageRepository,
                            CustomerOrderRepository customerOrderRepository,
-                           UserRepository userRepository) {
+                           UserRepository userRepository,
+                           VectorStoreService vectorStoreService,
+                           PromotionQuotaService promotionQuotaService) {
         this.promotionRepository = promotionRepository;
         this.categoryRepository = categoryRepository;
         this.promotionUsageRepository = promotionUsageRepository;
         this.customerOrderRepository = customerOrderRepository;
         this.userRepository = userRepository;
+        this.vectorStoreService = vectorStoreService;
+        this.promotionQuotaService = promotionQuotaService;
     }
     
     // ==================== CRUD Operations ====================
@@ -155,6 +161,7 @@ public class PromotionService {
         setScopeRelationships(promotion, dto);
 
         promotion = promotionRepository.save(promotion);
+        vectorStoreService.markAllBooksDirty();
         logger.info("Successfully created promotion with ID: {}", promotion.getPromotionId());
 
         return promotion;
@@ -179,7 +186,8 @@ public class PromotionService {
         validatePromotionBusinessRules(dto);
 
         // MODIFICATION: Check if promotion has been used or is active before editing
-        if (existingPromotion.hasBeenUsed() || existingPromotion.getIsActive()) {
+        if (existingPromotion.hasBeenUsed() || promotionQuotaService.getPendingUsage(id) > 0
+                || existingPromotion.getIsActive()) {
             throw new IllegalStateException("Promotion cannot be edited. It must be deactivated and have zero usage.");
         }
 
@@ -194,6 +202,8 @@ public class PromotionService {
         setScopeRelationships(existingPromotion, dto);
 
         existingPromotion = promotionRepository.save(existingPromotion);
+        promotionQuotaService.evictAfterCommit(id);
+        vectorStoreService.markAllBooksDirty();
         logger.info("Successfully updated promotion with ID: {}", id);
 
         return existingPromotion;
@@ -232,7 +242,7 @@ public class PromotionService {
             result.put("isActive", promotion.getIsActive());
             result.put("neverUsed", promotion.isNeverUsed());
             result.put("hasBeenUsed", promotion.hasBeenUsed());
-            result.put("currentUsageCount", promotion.getCurrentUsageCount());
+            result.put("currentUsageCount", getCurrentUsageCount(promotion));
             result.put("editableFields", promotion.getEditableFields());
             result.put("nonEditableFields", promotion.getNonEditableFieldsWithReasons());
 
@@ -253,7 +263,7 @@ public class PromotionService {
             .orElseThrow(() -> new IllegalArgumentException("Promotion not found with ID: " + id));
 
         // Check if promotion can be deleted
-        if (promotion.getCurrentUsageCount() > 0) {
+        if (getCurrentUsageCount(promotion) > 0) {
             throw new IllegalArgumentException("Cannot delete a promotion that has been used. Set it to inactive instead.");
         }
 
@@ -263,6 +273,7 @@ public class PromotionService {
         promotion.setUpdatedAt(LocalDateTime.now());
 
         promotionRepository.save(promotion);
+        vectorStoreService.markAllBooksDirty();
         logger.info("Successfully deleted promotion with ID: {}", id);
     }
 
@@ -279,7 +290,9 @@ public class PromotionService {
         promotion.setUpdatedBy(currentUser);
         promotion.setUpdatedAt(LocalDateTime.now());
 
-        return promotionRepository.save(promotion);
+        Promotion savedPromotion = promotionRepository.save(promotion);
+        vectorStoreService.markAllBooksDirty();
+        return savedPromotion;
     }
 
     // ==================== Helper Methods ====================
@@ -366,31 +379,25 @@ public class PromotionService {
      * @param promotionId the promotion ID
      */
     public void recordUsage(Integer userId, Integer promotionId) {
-        // This would typically insert a record in a usage tracking table
-        // and increment the current_usage_count in the promotion
-        
-        // Get the promotion
-        Optional<Promotion> promotionOpt = promotionRepository.findById(promotionId);
-        if (promotionOpt.isPresent()) {
-            Promotion promotion = promotionOpt.get();
-            
-            // Increment usage count
-            Integer currentCount = promotion.getCurrentUsageCount();
-            if (currentCount == null) {
-                currentCount = 0;
-            }
-            promotion.setCurrentUsageCount(currentCount + 1);
-            
-            // Save the updated promotion
-            promotionRepository.save(promotion);
+        // current_usage_count is written in batches by PromotionQuotaService
+        if (promotionRepository.existsById(promotionId) && !promotionQuotaService.tryAcquire(promotionId, userId)) {
+            logger.warn("Promotion {} has no usage left for user: {}", promotionId, userId);
         }
     }
 
     /**
-     * Update promotion usage statistics when a promotion is applied to an order
+     * Usage count including redemptions not yet flushed to current_usage_count
+     */
+    public long getCurrentUsageCount(Promotion promotion) {
+        long persisted = promotion.getCurrentUsageCount() != null ? promotion.getCurrentUsageCount() : 0;
+        return persisted + promotionQuotaService.getPendingUsage(promotion.getPromotionId());
+    }
+
+    /**
+     * Record a promotion usage for a slot already taken with reservePromotionUsage
      * @param code the promotion code
      * @param userId the user ID who used the promotion
-     * @return true if updated successfully, false otherwise
+     * @return true if recorded successfully, false otherwise
      */
     @Transactional
     public boolean updatePromotionUsage(String code, Integer userId) {
@@ -398,52 +405,78 @@ public class PromotionService {
     }
 
     /**
-     * Update promotion usage statistics with customer order details
-     * Uses SERIALIZABLE isolation to prevent race conditions in usage counting
+     * Record a promotion usage with customer order details
+     * The usage slot must already have been taken with reservePromotionUsage before the order was saved,
+     * so this only writes the promotion_usage row, in the caller's transaction
      * @param code the promotion code
      * @param userId the user ID who used the promotion
      * @param customerOrderId the customer order ID (optional)
      * @param discountAmount the discount amount applied
-     * @return true if updated successfully, false otherwise
+     * @return true if recorded successfully, false if the promotion no longer exists
      */
-    @Transactional(isolation = Isolation.SERIALIZABLE, propagation = Propagation.REQUIRES_NEW)
+    @Transactional
     public boolean updatePromotionUsage(String code, Integer userId, Integer customerOrderId, BigDecimal discountAmount) {
-        Optional<Promotion> promotionOpt = promotionRepository.findByCodeAndIsActiveTrue(code);
-        if (promotionOpt.isPresent()) {
-            Promotion promotion = promotionOpt.get();
+        // The code may have been deactivated after the slot was reserved
+        Optional<Promotion> promotionOpt = promotionRepository.findByCode(code);
+        if (promotionOpt.isEmpty()) {
+            logger.warn("Promotion {} not found while recording usage for user: {}", code, userId);
+            return false;
+        }
 
-            // Increment total usage count
-            if (promotion.getCurrentUsageCount() == null) {
-                promotion.setCurrentUsageCount(1);
-            } else {
-                promotion.setCurrentUsageCount(promotion.getCurrentUsageCount() + 1);
-            }
+        User user = new User();
+        user.setUserId(userId);
 
-            // Create usage record
-            try {
-                User user = new User();
-                user.setUserId(userId);
+        CustomerOrder customerOrder = null;
+        if (customerOrderId != null) {
+            customerOrder = customerOrderRepository.findById(customerOrderId).orElse(null);
+        }
 
-                CustomerOrder customerOrder = null;
-                if (customerOrderId != null) {
-                    customerOrder = customerOrderRepository.findById(customerOrderId).orElse(null);
-                }
+        PromotionUsage usage = new PromotionUsage(promotionOpt.get(), user, customerOrder, discountAmount, code);
+        promotionUsageRepository.save(usage);
 
-                PromotionUsage usage = new PromotionUsage(promotion, user, customerOrder, discountAmount, code);
-                promotionUsageRepository.save(usage);
+        logger.info("Created promotion usage record for code: {} by user: {} with discount: {}",
+                   code, userId, discountAmount);
+        return true;
+    }
 
-                logger.info("Created promotion usage record for code: {} by user: {} with discount: {}",
-                           code, userId, discountAmount);
-            } catch (Exception e) {
-                logger.error("Failed to create promotion usage record for code: {} by user: {}: {}",
-                           code, userId, e.getMessage());
-                // Don't fail the promotion update if usage tracking fails
-            }
+    /**
+     * Give back a usage slot taken with reservePromotionUsage (payment failed or expired).
+     * Inside a transaction the slot is returned only after commit.
+     */
+    public void releasePromotionUsage(String promotionCode, Integer userId) {
+        Optional<Promotion> promotionOpt = promotionRepository.findByCode(promotionCode);
+        if (promotionOpt.isEmpty()) {
+            return;
+        }
+        releaseAfterCommit(promotionOpt.get().getPromotionId(), userId);
+        logger.info("Released promotion usage for: {} by user: {}", promotionCode, userId);
+    }
 
-            promotionRepository.save(promotion);
-            return true;
+    /**
+     * Remove the usage records of a cancelled customer order and give their slots back
+     */
+    public void releaseCustomerOrderUsage(Integer customerOrderId) {
+        List<PromotionUsage> usages = promotionUsageRepository.findByCustomerOrderId(customerOrderId);
+        for (PromotionUsage usage : usages) {
+            releaseAfterCommit(usage.getPromotion().getPromotionId(), usage.getUser().getUserId());
+        }
+        if (!usages.isEmpty()) {
+            promotionUsageRepository.deleteAll(usages);
+            logger.info("Released {} promotion usage(s) of cancelled customer order {}", usages.size(), customerOrderId);
+        }
+    }
+
+    private void releaseAfterCommit(Integer promotionId, Integer userId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    promotionQuotaService.release(promotionId, userId);
+                }
+            });
+        } else {
+            promotionQuotaService.release(promotionId, userId);
         }
-        return false;
     }
 
     /**
@@ -467,14 +500,14 @@ public class PromotionService {
     }
 
     /**
-     * Validate promotion usage limits with concurrency control
-     * This method checks both global and per-user limits atomically
+     * Validate promotion usage limits against the live quota
+     * This method checks both global and per-user limits, including usage not yet flushed
      *
      * @param promotionCode the promotion code to validate
      * @param userId the user ID attempting to use the promotion
      * @return true if the promotion can be used, false if limits are exceeded
      */
-    @Transactional(isolation = Isolation.REPEATABLE_READ, readOnly = true)
+    @Transactional(readOnly = true)
     public boolean validatePromotionUsageLimits(String promotionCode, Integer userId) {
         logger.info("Validating usage limits for promotion: {} by user: {}", promotionCode, userId);
 
@@ -484,28 +517,9 @@ public class PromotionService {
             return false;
         }
 
-        Promotion promotion = promotionOpt.get();
-
-        // Check global usage limit
-        if (promotion.getTotalUsageLimit() != null && promotion.getCurrentUsageCount() != null) {
-            if (promotion.getCurrentUsageCount() >= promotion.getTotalUsageLimit()) {
-                logger.warn("Promotion {} has reached global usage limit: {}/{}",
-                           promotionCode, promotion.getCurrentUsageCount(), promotion.getTotalUsageLimit());
-                return false;
-            }
-        }
-
-        // Check per-user usage limit
-        if (promotion.getUsageLimitPerUser() != null) {
-            User user = userRepository.findById(userId).orElse(null);
-            if (user != null) {
-                long userUsageCount = promotionUsageRepository.countByPromotionAndUser(promotion, user);
-                if (userUsageCount >= promotion.getUsageLimitPerUser()) {
-                    logger.warn("User {} has reached usage limit for promotion {}: {}/{}",
-                               userId, promotionCode, userUsageCount, promotion.getUsageLimitPerUser());
-                    return false;
-                }
-            }
+        if (!promotionQuotaService.hasRemaining(promotionOpt.get().getPromotionId(), userId)) {
+            logger.warn("Promotion {} has reached its usage limit for user: {}", promotionCode, userId);
+            return false;
         }
 
         logger.info("Promotion usage validation passed for: {} by user: {}", promotionCode, userId);
@@ -514,50 +528,29 @@ public class PromotionService {
 
     /**
      * Atomically reserve a promotion usage slot to prevent race conditions
-     * This method should be called before order processing to ensure usage limits are respected
+     * This method must be called before the discounted order is saved; when called inside the
+     * order's transaction the slot is given back if that transaction rolls back
      *
      * @param promotionCode the promotion code to reserve
      * @param userId the user ID attempting to use the promotion
      * @return true if reservation successful, false if limits would be exceeded
      */
-    @Transactional(isolation = Isolation.SERIALIZABLE, propagation = Propagation.REQUIRES_NEW)
     public boolean reservePromotionUsage(String promotionCode, Integer userId) {
         logger.info("Attempting to reserve promotion usage for: {} by user: {}", promotionCode, userId);
 
-        // Re-validate limits within the serializable transaction
-        if (!validatePromotionUsageLimits(promotionCode, userId)) {
-            logger.warn("Promotion usage validation failed during reservation for: {} by user: {}", promotionCode, userId);
+        Optional<Promotion> promotionOpt = promotionRepository.findByCodeAndIsActiveTrue(promotionCode);
+        if (promotionOpt.isEmpty()) {
+            logger.error("Promotion not found during reservation: {}", promotionCode);
             return false;
         }
 
-        // Increment usage count atomically
-        Optional<Promotion> promotionOpt = promotionRepository.findByCodeAndIsActiveTrue(promotionCode);
-        if (promotionOpt.isPresent()) {
-            Promotion promotion = promotionOpt.get();
-
-            // Double-check limits one more time within the same transaction
-            if (promotion.getTotalUsageLimit() != null && promotion.getCurrentUsageCount() != null) {
-                if (promotion.getCurrentUsageCount() >= promotion.getTotalUsageLimit()) {
-                    logger.warn("Promotion {} usage limit exceeded during reservation", promotionCode);
-                    return false;
-                }
-            }
-
-            // Increment the usage count to reserve the slot
-            if (promotion.getCurrentUsageCount() == null) {
-                promotion.setCurrentUsageCount(1);
-            } else {
-                promotion.setCurrentUsageCount(promotion.getCurrentUsageCount() + 1);
-            }
-
-            promotionRepository.save(promotion);
-            logger.info("Successfully reserved promotion usage for: {} by user: {}, new count: {}",
-                       promotionCode, userId, promotion.getCurrentUsageCount());
-            return true;
+        if (!promotionQuotaService.tryAcquireInTransaction(promotionOpt.get().getPromotionId(), userId)) {
+            logger.warn("Promotion {} usage limit exceeded during reservation", promotionCode);
+            return false;
         }
 
-        logger.error("Promotion not found during reservation: {}", promotionCode);
-        return false;
+        logger.info("Successfully reserved promotion usage for: {} by user: {}", promotionCode, userId);
+        return true;
     }
 
     /**
@@ -565,7 +558,10 @@ public class PromotionService {
      */
     @Transactional
     public Promotion save(Promotion promotion) {
-        return promotionRepository.save(promotion);
+        Promotion savedPromotion = promotionRepository.save(promotion);
+        promotionQuotaService.evictAfterCommit(savedPromotion.getPromotionId());
+        vectorStoreService.markAllBooksDirty();
+        return savedPromotion;
     }
 
     /**
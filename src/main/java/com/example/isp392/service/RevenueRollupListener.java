@@ -0,0 +1,37 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.CustomerOrder;
+import com.example.isp392.model.Order;
+import com.example.isp392.model.OrderItem;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+
+/**
+ * JPA entity listener cho Order, CustomerOrder và OrderItem: mọi thay đổi (tạo đơn, đổi trạng thái,
+ * hủy, sửa dòng hàng) đánh dấu ngày của đơn hàng để bảng tổng hợp doanh thu được tính lại.
+ */
+public class RevenueRollupListener {
+
+    private final RevenueRollupService revenueRollupService;
+
+    public RevenueRollupListener(RevenueRollupService revenueRollupService) {
+        this.revenueRollupService = revenueRollupService;
+    }
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onChange(Object entity) {
+        if (entity instanceof Order) {
+            revenueRollupService.markDirty(((Order) entity).getOrderDate());
+        } else if (entity instanceof CustomerOrder) {
+            revenueRollupService.markDirty(((CustomerOrder) entity).getCreatedAt());
+        } else if (entity instanceof OrderItem) {
+            Order order = ((OrderItem) entity).getOrder();
+            if (order != null) {
+                revenueRollupService.markDirty(order.getOrderDate());
+            }
+        }
+    }
+}
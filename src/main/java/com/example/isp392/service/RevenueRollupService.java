@@ -0,0 +1,440 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bảng tổng hợp doanh thu theo ngày (toàn sàn, theo shop, theo sách, theo tỉnh/thành).
+ * Mỗi khi đơn hàng của một ngày thay đổi (tạo mới, đổi trạng thái, hủy...), ngày đó được đánh dấu
+ * và được tính lại từ dữ liệu gốc sau khi transaction commit. Việc tính lại một ngày là idempotent,
+ * nên đánh dấu trùng hay chạy lại backfill đều không làm sai số liệu.
+ * Báo cáo chỉ đọc các dòng tổng hợp trong khoảng ngày cần xem, không quét lại lịch sử đơn hàng.
+ */
+@Service
+public class RevenueRollupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RevenueRollupService.class);
+
+    private static final String COUNTED = "NOT IN ('CANCELLED', 'REFUNDED')";
+
+    private static final String DELETE_PLATFORM_SQL =
+            "DELETE FROM revenue_daily_platform WHERE stat_date >= ? AND stat_date < ?";
+    private static final String INSERT_PLATFORM_SQL =
+            "INSERT INTO revenue_daily_platform (stat_date, order_count, total_amount, final_total_amount) " +
+            "SELECT CAST(created_at AS DATE), COUNT(*), COALESCE(SUM(total_amount), 0), COALESCE(SUM(final_total_amount), 0) " +
+            "FROM customer_orders " +
+            "WHERE status " + COUNTED + " AND created_at >= ? AND created_at < ? " +
+            "GROUP BY CAST(created_at AS DATE)";
+
+    private static final String DELETE_SHOP_SQL =
+            "DELETE FROM revenue_daily_shop WHERE stat_date >= ? AND stat_date < ?";
+    private static final String INSERT_SHOP_SQL =
+            "INSERT INTO revenue_daily_shop (stat_date, shop_id, order_count, order_total, delivered_order_count, " +
+            "delivered_order_total, delivered_items_sold, delivered_items_revenue) " +
+            "SELECT CAST(o.order_date AS DATE), o.shop_id, " +
+            "SUM(CASE WHEN o.order_status " + COUNTED + " THEN 1 ELSE 0 END), " +
+            "COALESCE(SUM(CASE WHEN o.order_status " + COUNTED + " THEN o.total_amount END), 0), " +
+            "SUM(CASE WHEN o.order_status = 'DELIVERED' THEN 1 ELSE 0 END), " +
+            "COALESCE(SUM(CASE WHEN o.order_status = 'DELIVERED' THEN o.total_amount END), 0), " +
+            "COALESCE(SUM(CASE WHEN o.order_status = 'DELIVERED' THEN i.items_sold END), 0), " +
+            "COALESCE(SUM(CASE WHEN o.order_status = 'DELIVERED' THEN i.items_revenue END), 0) " +
+            "FROM orders o " +
+            "OUTER APPLY (SELECT SUM(oi.quantity) AS items_sold, SUM(oi.unit_price * oi.quantity) AS items_revenue " +
+            "FROM order_items oi WHERE oi.order_id = o.order_id) i " +
+            "WHERE o.order_date >= ? AND o.order_date < ? " +
+            "GROUP BY CAST(o.order_date AS DATE), o.shop_id";
+
+    private static final String DELETE_BOOK_SQL =
+            "DELETE FROM revenue_daily_book WHERE stat_date >= ? AND stat_date < ?";
+    private static final String INSERT_BOOK_SQL =
+            "INSERT INTO revenue_daily_book (stat_date, book_id, shop_id, items_sold, items_revenue, " +
+            "delivered_items_sold, delivered_items_revenue) " +
+            "SELECT CAST(o.order_date AS DATE), oi.book_id, b.shop_id, " +
+            "SUM(CASE WHEN o.order_status " + COUNTED + " THEN oi.quantity ELSE 0 END), " +
+            "COALESCE(SUM(CASE WHEN o.order_status " + COUNTED + " THEN oi.unit_price * oi.quantity END), 0), " +
+            "SUM(CASE WHEN o.order_status = 'DELIVERED' THEN oi.quantity ELSE 0 END), " +
+            "COALESCE(SUM(CASE WHEN o.order_status = 'DELIVERED' THEN oi.unit_price * oi.quantity END), 0) " +
+            "FROM order_items oi " +
+            "JOIN orders o ON oi.order_id = o.order_id " +
+            "JOIN books b ON oi.book_id = b.book_id " +
+            "WHERE o.order_date >= ? AND o.order_date < ? " +
+            "GROUP BY CAST(o.order_date AS DATE), oi.book_id, b.shop_id";
+
+    private static final String DELETE_PROVINCE_SQL =
+            "DELETE FROM revenue_daily_province WHERE stat_date >= ? AND stat_date < ?";
+    private static final String INSERT_PROVINCE_SQL =
+            "INSERT INTO revenue_daily_province (stat_date, shop_id, province, order_count, order_total) " +
+            "SELECT CAST(o.order_date AS DATE), o.shop_id, COALESCE(co.shipping_province, 'Unknown'), " +
+            "COUNT(*), COALESCE(SUM(o.total_amount), 0) " +
+            "FROM orders o " +
+            "JOIN customer_orders co ON o.customer_order_id = co.customer_order_id " +
+            "WHERE o.order_status " + COUNTED + " AND o.order_date >= ? AND o.order_date < ? " +
+            "GROUP BY CAST(o.order_date AS DATE), o.shop_id, COALESCE(co.shipping_province, 'Unknown')";
+
+    private static final String HAS_ROLLUPS_SQL =
+            "SELECT CASE WHEN EXISTS (SELECT 1 FROM revenue_daily_shop) " +
+            "OR EXISTS (SELECT 1 FROM revenue_daily_platform) THEN 1 ELSE 0 END";
+    private static final String HISTORY_START_SQL =
+            "SELECT MIN(d) FROM (SELECT MIN(CAST(order_date AS DATE)) AS d FROM orders " +
+            "UNION ALL SELECT MIN(CAST(created_at AS DATE)) FROM customer_orders) x";
+
+    private static final String PLATFORM_DAYS_SQL =
+            "SELECT stat_date, order_count, total_amount, final_total_amount FROM revenue_daily_platform " +
+            "WHERE stat_date BETWEEN ? AND ? ORDER BY stat_date";
+    private static final String PLATFORM_TOTALS_SQL =
+            "SELECT COALESCE(SUM(order_count), 0) AS order_count, COALESCE(SUM(total_amount), 0) AS total_amount, " +
+            "COALESCE(SUM(final_total_amount), 0) AS final_total_amount " +
+            "FROM revenue_daily_platform WHERE stat_date BETWEEN ? AND ?";
+    private static final String MONTHLY_ORDER_TOTALS_SQL =
+            "SELECT FORMAT(stat_date, 'yyyy-MM') AS month, COALESCE(SUM(order_total), 0) AS revenue " +
+            "FROM revenue_daily_shop WHERE stat_date BETWEEN ? AND ? " +
+            "GROUP BY FORMAT(stat_date, 'yyyy-MM') ORDER BY month";
+    private static final String DELIVERED_ITEMS_SOLD_SQL =
+            "SELECT COALESCE(SUM(delivered_items_sold), 0) FROM revenue_daily_shop WHERE stat_date BETWEEN ? AND ?";
+    private static final String TOP_PRODUCTS_SQL =
+            "SELECT TOP(?) b.title, SUM(r.delivered_items_sold) AS total_quantity, " +
+            "SUM(r.delivered_items_revenue) AS total_revenue " +
+            "FROM revenue_daily_book r JOIN books b ON r.book_id = b.book_id " +
+            "WHERE r.stat_date BETWEEN ? AND ? AND r.delivered_items_sold > 0 " +
+            "GROUP BY b.title ORDER BY total_revenue DESC";
+
+    private static final String SHOP_DELIVERED_TOTALS_SQL =
+            "SELECT COALESCE(SUM(delivered_order_count), 0) AS order_count, " +
+            "COALESCE(SUM(delivered_order_total), 0) AS revenue " +
+            "FROM revenue_daily_shop WHERE shop_id = ? AND stat_date BETWEEN ? AND ?";
+    private static final String SHOP_DAILY_DELIVERED_SQL =
+            "SELECT stat_date, delivered_order_total FROM revenue_daily_shop " +
+            "WHERE shop_id = ? AND stat_date BETWEEN ? AND ?";
+    private static final String SHOP_BESTSELLING_SQL =
+            "SELECT TOP(?) b.book_id, b.title, SUM(r.items_sold) AS total_quantity, SUM(r.items_revenue) AS total_revenue " +
+            "FROM revenue_daily_book r JOIN books b ON r.book_id = b.book_id " +
+            "WHERE r.shop_id = ? " +
+            "GROUP BY b.book_id, b.title HAVING SUM(r.items_sold) > 0 " +
+            "ORDER BY SUM(r.items_sold) DESC";
+    private static final String SHOP_PROVINCES_SQL =
+            "SELECT province AS region, SUM(order_count) AS order_count FROM revenue_daily_province " +
+            "WHERE shop_id = ? GROUP BY province ORDER BY SUM(order_count) DESC";
+
+    /**
+     * Tổng số liệu toàn sàn của một ngày hoặc một khoảng ngày
+     */
+    public static class PlatformTotals {
+        public static final PlatformTotals EMPTY = new PlatformTotals(0, BigDecimal.ZERO, BigDecimal.ZERO);
+
+        private final long orderCount;
+        private final BigDecimal totalAmount;
+        private final BigDecimal finalTotalAmount;
+
+        public PlatformTotals(long orderCount, BigDecimal totalAmount, BigDecimal finalTotalAmount) {
+            this.orderCount = orderCount;
+            this.totalAmount = totalAmount;
+            this.finalTotalAmount = finalTotalAmount;
+        }
+
+        public long getOrderCount() { return orderCount; }
+        public BigDecimal getTotalAmount() { return totalAmount; }
+        public BigDecimal getFinalTotalAmount() { return finalTotalAmount; }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int reconcileDays;
+    private final boolean backfillOnStartup;
+    private final int backfillChunkDays;
+
+    // Các ngày có đơn hàng thay đổi, chờ tính lại
+    private final Set<LocalDate> dirtyDays = ConcurrentHashMap.newKeySet();
+    private final ExecutorService backfillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "revenue-rollup-backfill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RevenueRollupService(JdbcTemplate jdbcTemplate,
+                                TransactionTemplate transactionTemplate,
+                                @Value("${revenue.rollup.reconcile-days:3}") int reconcileDays,
+                                @Value("${revenue.rollup.backfill-on-startup:true}") boolean backfillOnStartup,
+                                @Value("${revenue.rollup.backfill-chunk-days:31}") int backfillChunkDays) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.reconcileDays = reconcileDays;
+        this.backfillOnStartup = backfillOnStartup;
+        this.backfillChunkDays = Math.max(1, backfillChunkDays);
+    }
+
+    /**
+     * Đánh dấu ngày chứa thời điểm này cần tính lại, sau khi transaction hiện tại commit
+     */
+    public void markDirty(LocalDateTime timestamp) {
+        if (timestamp == null) {
+            return;
+        }
+        LocalDate day = timestamp.toLocalDate();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dirtyDays.add(day);
+                }
+            });
+        } else {
+            dirtyDays.add(day);
+        }
+    }
+
+    /**
+     * Tính lại các ngày vừa có đơn hàng thay đổi
+     */
+    @Scheduled(fixedDelayString = "${revenue.rollup.refresh-interval-ms:5000}")
+    public void refreshDirtyDays() {
+        if (dirtyDays.isEmpty()) {
+            return;
+        }
+        for (LocalDate day : new ArrayList<>(dirtyDays)) {
+            // Bỏ đánh dấu trước khi tính: thay đổi commit trong lúc tính sẽ đánh dấu lại
+            dirtyDays.remove(day);
+            try {
+                rebuild(day, day.plusDays(1));
+            } catch (Exception e) {
+                dirtyDays.add(day);
+                logger.error("Error rebuilding revenue rollup for {}: {}", day, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Đối soát định kỳ vài ngày gần nhất, phòng trường hợp đánh dấu bị mất khi ứng dụng dừng đột ngột
+     */
+    @Scheduled(cron = "${revenue.rollup.reconcile-cron:0 30 2 * * *}")
+    public void reconcileRecentDays() {
+        LocalDate today = LocalDate.now();
+        try {
+            rebuild(today.minusDays(reconcileDays), today.plusDays(1));
+            logger.info("Reconciled revenue rollups for the last {} days", reconcileDays);
+        } catch (Exception e) {
+            logger.error("Error reconciling revenue rollups: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Lần chạy đầu tiên (bảng tổng hợp còn trống): dựng lại toàn bộ lịch sử trên luồng nền
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillIfEmpty() {
+        if (!backfillOnStartup) {
+            return;
+        }
+        backfillExecutor.execute(() -> {
+            try {
+                Integer hasRollups = jdbcTemplate.queryForObject(HAS_ROLLUPS_SQL, Integer.class);
+                if (hasRollups != null && hasRollups == 1) {
+                    return;
+                }
+                Date start = jdbcTemplate.queryForObject(HISTORY_START_SQL, Date.class);
+                if (start != null) {
+                    backfill(start.toLocalDate(), LocalDate.now());
+                }
+            } catch (Exception e) {
+                logger.error("Error backfilling revenue rollups: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Dựng lại số liệu tổng hợp cho một khoảng ngày (bao gồm cả hai đầu), theo từng đoạn
+     * để mỗi transaction chỉ giữ khóa trên một phần nhỏ dữ liệu
+     */
+    public void backfill(LocalDate startDate, LocalDate endDate) {
+        logger.info("Backfilling revenue rollups from {} to {}", startDate, endDate);
+        LocalDate chunkStart = startDate;
+        while (!chunkStart.isAfter(endDate)) {
+            LocalDate chunkEnd = chunkStart.plusDays(backfillChunkDays);
+            if (chunkEnd.isAfter(endDate.plusDays(1))) {
+                chunkEnd = endDate.plusDays(1);
+            }
+            rebuild(chunkStart, chunkEnd);
+            chunkStart = chunkEnd;
+        }
+        logger.info("Finished backfilling revenue rollups");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        backfillExecutor.shutdownNow();
+    }
+
+    // ------------------------------------------------------------------
+    // Truy vấn báo cáo toàn sàn
+    // ------------------------------------------------------------------
+
+    /**
+     * Số liệu toàn sàn theo từng ngày trong khoảng (chỉ các ngày có dữ liệu)
+     */
+    public NavigableMap<LocalDate, PlatformTotals> getPlatformDays(LocalDate startDate, LocalDate endDate) {
+        NavigableMap<LocalDate, PlatformTotals> days = new TreeMap<>();
+        jdbcTemplate.query(PLATFORM_DAYS_SQL, rs -> {
+            days.put(rs.getDate("stat_date").toLocalDate(), new PlatformTotals(
+                    rs.getLong("order_count"), rs.getBigDecimal("total_amount"), rs.getBigDecimal("final_total_amount")));
+        }, Date.valueOf(startDate), Date.valueOf(endDate));
+        return days;
+    }
+
+    /**
+     * Tổng số liệu toàn sàn trong khoảng ngày (bao gồm cả hai đầu)
+     */
+    public PlatformTotals getPlatformTotals(LocalDate startDate, LocalDate endDate) {
+        return jdbcTemplate.queryForObject(PLATFORM_TOTALS_SQL, (rs, rowNum) -> new PlatformTotals(
+                        rs.getLong("order_count"), rs.getBigDecimal("total_amount"), rs.getBigDecimal("final_total_amount")),
+                Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    /**
+     * Tổng giá trị đơn hàng của các shop theo tháng ("month" dạng yyyy-MM, "revenue")
+     */
+    public List<Map<String, Object>> getMonthlyOrderTotals(LocalDate startDate, LocalDate endDate) {
+        return jdbcTemplate.queryForList(MONTHLY_ORDER_TOTALS_SQL, Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    /**
+     * Tổng số sản phẩm đã giao thành công trong khoảng ngày
+     */
+    public long getDeliveredItemsSold(LocalDate startDate, LocalDate endDate) {
+        Long sold = jdbcTemplate.queryForObject(DELIVERED_ITEMS_SOLD_SQL, Long.class,
+                Date.valueOf(startDate), Date.valueOf(endDate));
+        return sold != null ? sold : 0L;
+    }
+
+    /**
+     * Sách bán chạy toàn sàn (đơn đã giao) trong khoảng ngày, xếp theo doanh thu
+     */
+    public List<Map<String, Object>> getTopSellingProducts(LocalDate startDate, LocalDate endDate, int limit) {
+        return jdbcTemplate.queryForList(TOP_PRODUCTS_SQL, limit, Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    // ------------------------------------------------------------------
+    // Truy vấn báo cáo của shop
+    // ------------------------------------------------------------------
+
+    /**
+     * Doanh thu đơn đã giao của shop trong khoảng ngày
+     */
+    public BigDecimal getShopDeliveredRevenue(Integer shopId, LocalDate startDate, LocalDate endDate) {
+        return (BigDecimal) getShopDeliveredTotals(shopId, startDate, endDate).get("revenue");
+    }
+
+    /**
+     * Số đơn đã giao của shop trong khoảng ngày
+     */
+    public long getShopDeliveredOrderCount(Integer shopId, LocalDate startDate, LocalDate endDate) {
+        return ((Number) getShopDeliveredTotals(shopId, startDate, endDate).get("order_count")).longValue();
+    }
+
+    /**
+     * Doanh thu đơn đã giao của shop theo từng ngày (ngày không có đơn trả về 0)
+     */
+    public List<BigDecimal> getShopDailyDeliveredRevenue(Integer shopId, LocalDate startDate, LocalDate endDate) {
+        Map<LocalDate, BigDecimal> byDay = new TreeMap<>();
+        jdbcTemplate.query(SHOP_DAILY_DELIVERED_SQL, rs -> {
+            byDay.put(rs.getDate("stat_date").toLocalDate(), rs.getBigDecimal("delivered_order_total"));
+        }, shopId, Date.valueOf(startDate), Date.valueOf(endDate));
+
+        List<BigDecimal> result = new ArrayList<>();
+        for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(1)) {
+            result.add(byDay.getOrDefault(day, BigDecimal.ZERO));
+        }
+        return result;
+    }
+
+    /**
+     * Doanh thu đơn đã giao của shop theo kỳ ("time_period", "revenue", "order_count")
+     *
+     * @param period daily, weekly hoặc monthly
+     */
+    public List<Map<String, Object>> getShopRevenueByPeriod(Integer shopId, LocalDate startDate, LocalDate endDate, String period) {
+        String bucket;
+        switch (period.toLowerCase()) {
+            case "daily":
+                bucket = "CONVERT(varchar, stat_date, 120)";
+                break;
+            case "weekly":
+                bucket = "CONCAT(YEAR(stat_date), '-W', DATEPART(week, stat_date))";
+                break;
+            case "monthly":
+                bucket = "CONCAT(YEAR(stat_date), '-', FORMAT(stat_date, 'MM'))";
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid period: " + period);
+        }
+        String sql = "SELECT " + bucket + " AS time_period, " +
+                "SUM(delivered_items_revenue) AS revenue, SUM(delivered_order_count) AS order_count " +
+                "FROM revenue_daily_shop " +
+                "WHERE shop_id = ? AND stat_date BETWEEN ? AND ? AND delivered_order_count > 0 " +
+                "GROUP BY " + bucket + " ORDER BY time_period";
+        return jdbcTemplate.queryForList(sql, shopId, Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    /**
+     * Sách bán chạy nhất của shop (mọi đơn chưa hủy/hoàn)
+     */
+    public List<Map<String, Object>> getShopBestsellingBooks(Integer shopId, int limit) {
+        return jdbcTemplate.queryForList(SHOP_BESTSELLING_SQL, limit, shopId);
+    }
+
+    /**
+     * Phân bố đơn hàng của shop theo tỉnh/thành ("region", "order_count")
+     */
+    public List<Map<String, Object>> getShopGeographicDistribution(Integer shopId) {
+        return jdbcTemplate.queryForList(SHOP_PROVINCES_SQL, shopId);
+    }
+
+    private Map<String, Object> getShopDeliveredTotals(Integer shopId, LocalDate startDate, LocalDate endDate) {
+        return jdbcTemplate.queryForMap(SHOP_DELIVERED_TOTALS_SQL, shopId, Date.valueOf(startDate), Date.valueOf(endDate));
+    }
+
+    /**
+     * Xóa và tính lại các dòng tổng hợp của [startDate, endDate) trong một transaction.
+     * Chạy tuần tự để lần tính theo đánh dấu và backfill không chèn trùng khóa của nhau.
+     */
+    private synchronized void rebuild(LocalDate startDate, LocalDate endDate) {
+        Date fromDay = Date.valueOf(startDate);
+        Date toDay = Date.valueOf(endDate);
+        Timestamp from = Timestamp.valueOf(startDate.atStartOfDay());
+        Timestamp to = Timestamp.valueOf(endDate.atStartOfDay());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update(DELETE_PLATFORM_SQL, fromDay, toDay);
+            jdbcTemplate.update(INSERT_PLATFORM_SQL, from, to);
+            jdbcTemplate.update(DELETE_SHOP_SQL, fromDay, toDay);
+            jdbcTemplate.update(INSERT_SHOP_SQL, from, to);
+            jdbcTemplate.update(DELETE_BOOK_SQL, fromDay, toDay);
+            jdbcTemplate.update(INSERT_BOOK_SQL, from, to);
+            jdbcTemplate.update(DELETE_PROVINCE_SQL, fromDay, toDay);
+            jdbcTemplate.update(INSERT_PROVINCE_SQL, from, to);
+        });
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.Book;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Nạp dữ liệu trang tổng quan của người bán.
+ * Các widget độc lập với nhau nên được truy vấn song song trên một pool luồng riêng;
+ * mỗi widget chỉ được chờ tới hạn chung của lần nạp, quá hạn hoặc lỗi thì dùng giá trị mặc định.
+ * Thời gian tải trang vì vậy bằng widget chậm nhất chứ không phải tổng của tất cả widget.
+ */
+@Service
+public class SellerDashboardService {
+
+    private static final Logger logger = LoggerFactory.getLogger(SellerDashboardService.class);
+
+    private static final int NEW_ORDERS_DAYS = 7;
+    private static final int LOW_STOCK_THRESHOLD = 5;
+    private static final int RECENT_ORDERS_LIMIT = 5;
+    // Shop chưa có ngày đăng ký: tính từ mốc đủ xa
+    private static final LocalDate DEFAULT_REGISTRATION_DATE = LocalDate.of(2000, 1, 1);
+
+    /**
+     * Dữ liệu các widget của trang tổng quan
+     */
+    public static class Dashboard {
+        private int newOrdersCount;
+        private BigDecimal todayRevenue = BigDecimal.ZERO;
+        private long activeProductsCount;
+        private List<Book> lowStockProducts = Collections.emptyList();
+        private List<Map<String, Object>> recentOrders = Collections.emptyList();
+        private List<BigDecimal> weeklyRevenue = Collections.emptyList();
+        private BigDecimal totalRevenue = BigDecimal.ZERO;
+        private long totalOrders;
+        private int totalViews;
+        private List<Map<String, Object>> productViews = Collections.emptyList();
+        // Các widget không nạp được (quá hạn hoặc lỗi), đang hiển thị giá trị mặc định
+        private final List<String> unavailableWidgets = new ArrayList<>();
+
+        public int getNewOrdersCount() { return newOrdersCount; }
+        public BigDecimal getTodayRevenue() { return todayRevenue; }
+        public long getActiveProductsCount() { return activeProductsCount; }
+        public List<Book> getLowStockProducts() { return lowStockProducts; }
+        public List<Map<String, Object>> getRecentOrders() { return recentOrders; }
+        public List<BigDecimal> getWeeklyRevenue() { return weeklyRevenue; }
+        public BigDecimal getTotalRevenue() { return totalRevenue; }
+        public long getTotalOrders() { return totalOrders; }
+        public int getTotalViews() { return totalViews; }
+        public List<Map<String, Object>> getProductViews() { return productViews; }
+        public List<String> getUnavailableWidgets() { return unavailableWidgets; }
+    }
+
+    private final OrderService orderService;
+    private final BookService bookService;
+    private final ShopService shopService;
+    private final long widgetTimeoutMillis;
+    private final ExecutorService loader;
+
+    public SellerDashboardService(OrderService orderService, BookService bookService, ShopService shopService,
+                                  @Value("${seller.dashboard.loader-threads:16}") int loaderThreads,
+                                  @Value("${seller.dashboard.widget-timeout-ms:3000}") long widgetTimeoutMillis) {
+        this.orderService = orderService;
+        this.bookService = bookService;
+        this.shopService = shopService;
+        this.widgetTimeoutMillis = widgetTimeoutMillis;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.loader = Executors.newFixedThreadPool(loaderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "seller-dashboard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Nạp toàn bộ widget của shop; không bao giờ ném lỗi vì một widget
+     */
+    public Dashboard load(Integer shopId) {
+        LocalDate today = LocalDate.now();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(widgetTimeoutMillis);
+
+        CompletableFuture<Integer> newOrdersCount = submit(() -> orderService.getNewOrdersCount(shopId, NEW_ORDERS_DAYS));
+        CompletableFuture<BigDecimal> todayRevenue = submit(() -> orderService.getTodayRevenue(shopId));
+        CompletableFuture<Long> activeProductsCount = submit(() -> bookService.countActiveBooksByShopId(shopId));
+        CompletableFuture<List<Book>> lowStockProducts =
+                submit(() -> bookService.findLowStockBooksByShopId(shopId, LOW_STOCK_THRESHOLD));
+        CompletableFuture<List<Map<String, Object>>> recentOrders =
+                submit(() -> orderService.getRecentOrders(shopId, RECENT_ORDERS_LIMIT));
+        CompletableFuture<List<BigDecimal>> weeklyRevenue = submit(() -> orderService.getWeeklyRevenue(shopId));
+        CompletableFuture<Integer> totalViews = submit(() -> bookService.getTotalViewsByShopId(shopId));
+        CompletableFuture<List<Map<String, Object>>> productViews =
+                submit(() -> bookService.getViewsByProductInShop(shopId));
+
+        // Tổng doanh thu và tổng đơn (từ ngày đăng ký shop) phụ thuộc ngày đăng ký
+        CompletableFuture<LocalDate> registrationDate = submit(() -> {
+            LocalDateTime registered = shopService.getRegistrationDateByShopId(shopId);
+            return registered != null ? registered.toLocalDate() : DEFAULT_REGISTRATION_DATE;
+        });
+        CompletableFuture<BigDecimal> totalRevenue = registrationDate.thenApplyAsync(
+                since -> orderService.getTotalRevenue(shopId, since, today), loader);
+        CompletableFuture<Long> totalOrders = registrationDate.thenApplyAsync(
+                since -> orderService.getTotalOrders(shopId, since, today), loader);
+
+        Dashboard dashboard = new Dashboard();
+        dashboard.newOrdersCount = await(dashboard, "newOrdersCount", newOrdersCount, deadline, 0);
+        dashboard.todayRevenue = await(dashboard, "todayRevenue", todayRevenue, deadline, BigDecimal.ZERO);
+        dashboard.activeProductsCount = await(dashboard, "activeProductsCount", activeProductsCount, deadline, 0L);
+        dashboard.lowStockProducts = await(dashboard, "lowStockProducts", lowStockProducts, deadline, Collections.emptyList());
+        dashboard.recentOrders = await(dashboard, "recentOrders", recentOrders, deadline, Collections.emptyList());
+        dashboard.weeklyRevenue = await(dashboard, "weeklyRevenue", weeklyRevenue, deadline, emptyWeek());
+        dashboard.totalViews = await(dashboard, "totalViews", totalViews, deadline, 0);
+        dashboard.productViews = await(dashboard, "productViews", productViews, deadline, Collections.emptyList());
+        dashboard.totalRevenue = await(dashboard, "totalRevenue", totalRevenue, deadline, BigDecimal.ZERO);
+        dashboard.totalOrders = await(dashboard, "totalOrders", totalOrders, deadline, 0L);
+
+        if (!dashboard.unavailableWidgets.isEmpty()) {
+            logger.warn("Seller dashboard for shop {} loaded without: {}", shopId, dashboard.unavailableWidgets);
+        }
+        return dashboard;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, loader);
+    }
+
+    /**
+     * Chờ kết quả của một widget tới hạn chung; quá hạn thì hủy (tác vụ còn trong hàng đợi sẽ không chạy)
+     */
+    private <T> T await(Dashboard dashboard, String widget, CompletableFuture<T> future, long deadline, T fallback) {
+        try {
+            T value = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return value != null ? value : fallback;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            dashboard.unavailableWidgets.add(widget);
+            logger.warn("Dashboard widget {} timed out after {} ms", widget, widgetTimeoutMillis);
+        } catch (ExecutionException e) {
+            dashboard.unavailableWidgets.add(widget);
+            logger.error("Error loading dashboard widget {}: {}", widget, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            dashboard.unavailableWidgets.add(widget);
+        }
+        return fallback;
+    }
+
+    private static List<BigDecimal> emptyWeek() {
+        return new ArrayList<>(Collections.nCopies(7, BigDecimal.ZERO));
+    }
+}
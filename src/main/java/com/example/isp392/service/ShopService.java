@@ -43,13 +43,14 @@ public class ShopService {
     private final EmailService emailService;
     private final OtpService otpService;
     private final BookService bookService;
+    private final VectorStoreService vectorStoreService;
 
     /**
      * Constructor for dependency injection
      * @param shopRepository repository for shop data
      * @param userRepository repository for user data
      */
-    public ShopService(ShopRepository shopRepository, UserRepository userRepository, UserService userService, FileStorageService fileStorageService, ShopApprovalHistoryRepository historyRepository, OrderRepository orderRepository, EmailService emailService, OtpService otpService, BookService bookService) {
+    public ShopService(ShopRepository shopRepository, UserRepository userRepository, UserService userService, FileStorageService fileStorageService, ShopApprovalHistoryRepository historyRepository, OrderRepository orderRepository, EmailService emailService, OtpService otpService, BookService bookService, VectorStoreService vectorStoreService) {
         // Constructor injection instead of using @Autowired
         this.shopRepository = shopRepository;
         this.userRepository = userRepository;
@@ -60,6 +61,7 @@ public class ShopService {
         this.emailService = emailService;
         this.otpService = otpService;
         this.bookService = bookService;
+        this.vectorStoreService = vectorStoreService;
     }
 
     /**
@@ -137,7 +139,9 @@ public class ShopService {
         }
 
         // Save the shop
-        return shopRepository.save(shop);
+        Shop savedShop = shopRepository.save(shop);
+        vectorStoreService.markShopDirty(savedShop.getShopId());
+        return savedShop;
     }
 
     public Shop getShopById(Integer shopId) {
@@ -189,6 +193,7 @@ public class ShopService {
         historyRepository.save(new ShopApprovalHistory(shop, adminUser, Shop.ApprovalStatus.APPROVED, "Shop approved."));
 
         userService.upgradeUserToSeller(shop.getUser().getUserId());
+        vectorStoreService.markShopDirty(shopId);
     }
     public long countPendingShops() {
         return shopRepository.countByApprovalStatus(Shop.ApprovalStatus.PENDING);
@@ -263,20 +268,34 @@ public class ShopService {
         existingShop.setContactEmail(shopDTO.getContactEmail());
         existingShop.setContactPhone(shopDTO.getContactPhone());
 
-        // 3. Xử lý file logo nếu có file mới
-        if (logoFile != null && !logoFile.isEmpty()) {
+        // 3. Xử lý file logo nếu có file mới (ảnh cũ được giải phóng sau khi commit)
+        // Mỗi lần tải lên lấy một tham chiếu mới, kể cả khi trùng nội dung ảnh hiện tại, nên ảnh cũ
+        // luôn được trả lại; nếu transaction rollback thì tham chiếu mới cũng bị hủy theo
+        String previousLogoUrl = existingShop.getLogoUrl();
+        String previousCoverImageUrl = existingShop.getCoverImageUrl();
+        boolean logoUploaded = logoFile != null && !logoFile.isEmpty();
+        boolean coverImageUploaded = coverImageFile != null && !coverImageFile.isEmpty();
+        if (logoUploaded) {
             String logoUrl = fileStorageService.storeFile(logoFile, "shop-logos");
             existingShop.setLogoUrl(logoUrl);
         }
 
         // 4. Xử lý file ảnh bìa nếu có file mới
-        if (coverImageFile != null && !coverImageFile.isEmpty()) {
+        if (coverImageUploaded) {
             String coverImageUrl = fileStorageService.storeFile(coverImageFile, "shop-covers");
             existingShop.setCoverImageUrl(coverImageUrl);
         }
 
-        // 5. Lưu lại và trả về
-        return shopRepository.save(existingShop);
+        // 5. Lưu lại, đồng bộ lại tài liệu chatbot của các sách trong shop và trả về
+        Shop savedShop = shopRepository.save(existingShop);
+        if (logoUploaded) {
+            fileStorageService.release(previousLogoUrl);
+        }
+        if (coverImageUploaded) {
+            fileStorageService.release(previousCoverImageUrl);
+        }
+        vectorStoreService.markShopDirty(shopId);
+        return savedShop;
     }
     /**
      * Check if a shop has any active orders.
@@ -0,0 +1,280 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sổ tồn kho trong bộ nhớ cho việc giữ hàng khi đặt mua.
+ * Mỗi sách có một bộ đếm số lượng còn lại (AtomicInteger); giữ/trả hàng chỉ là một phép CAS,
+ * không cần khóa dòng trong DB. Chênh lệch so với DB được ghi xuống books.stock_quantity
+ * theo lô (write-behind). Bộ đếm được nạp từ cột stock_quantity ở lần dùng đầu tiên,
+ * nên sau khi khởi động lại sổ tự phục hồi từ DB.
+ */
+@Component
+public class StockLedger {
+
+    private static final Logger logger = LoggerFactory.getLogger(StockLedger.class);
+
+    // Giá trị đánh dấu bộ đếm đã bị gỡ khỏi sổ (đang ghi phần chênh lệch cuối cùng xuống DB)
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    private static final String LOAD_STOCK_SQL = "SELECT stock_quantity FROM books WHERE book_id = ?";
+    private static final String FLUSH_STOCK_SQL =
+            "UPDATE books SET stock_quantity = stock_quantity + ? WHERE book_id = ?";
+    private static final String SET_STOCK_SQL = "UPDATE books SET stock_quantity = ? WHERE book_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final WriteBehindFlusher writeBehindFlusher;
+    private final Map<Integer, Counter> counters = new ConcurrentHashMap<>();
+    // Tăng mỗi khi một bộ đếm bị gỡ; lần nạp bắt đầu trước một lần gỡ không được đưa vào sổ
+    private final AtomicLong evictions = new AtomicLong();
+    // Sách cần nạp lại từ DB, được xử lý trên luồng flush (không nằm trong transaction nào)
+    private final Set<Integer> pendingEvictions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Bộ đếm của một sách. Phần chưa ghi xuống DB luôn là available - persisted,
+     * nên không có bước "ghi nhận delta" riêng có thể bị lệch với phép CAS.
+     */
+    private static class Counter {
+        private final AtomicInteger available;
+        // Giá trị mà DB đang phản ánh; chỉ được đổi khi giữ monitor của StockLedger
+        private int persisted;
+
+        Counter(int stock) {
+            this.available = new AtomicInteger(stock);
+            this.persisted = stock;
+        }
+    }
+
+    public StockLedger(JdbcTemplate jdbcTemplate, WriteBehindFlusher writeBehindFlusher) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeBehindFlusher = writeBehindFlusher;
+    }
+
+    /**
+     * Giữ hàng nếu còn đủ số lượng
+     *
+     * @return true nếu giữ thành công, false nếu không đủ hàng
+     * @throws IllegalArgumentException nếu không tìm thấy sách
+     */
+    public boolean tryReserve(int bookId, int quantity) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Số lượng giữ hàng phải lớn hơn 0");
+        }
+        while (true) {
+            Counter counter = counterFor(bookId);
+            int current = counter.available.get();
+            if (current == RETIRED) {
+                Thread.yield();
+                continue;
+            }
+            if (current < quantity) {
+                return false;
+            }
+            if (counter.available.compareAndSet(current, current - quantity)) {
+                // Transaction đặt hàng bị rollback thì trả lại số hàng đã giữ
+                onRollback(() -> adjust(bookId, quantity));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Trả hàng về kho (hủy đơn, thanh toán thất bại...)
+     */
+    public void release(int bookId, int quantity) {
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Số lượng trả hàng phải lớn hơn 0");
+        }
+        adjust(bookId, quantity);
+        onRollback(() -> adjust(bookId, -quantity));
+    }
+
+    /**
+     * Số lượng còn lại hiện tại (bao gồm cả phần chưa ghi xuống DB)
+     */
+    public int getAvailable(int bookId) {
+        while (true) {
+            int current = counterFor(bookId).available.get();
+            if (current != RETIRED) {
+                return current;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Đặt số lượng tồn trực tiếp trong DB (người bán/admin sửa kho), trong transaction hiện tại.
+     * Bộ đếm luôn được gỡ sau commit, kể cả khi nó được nạp trong lúc transaction chưa commit.
+     */
+    public void setStock(int bookId, int quantity) {
+        if (quantity < 0) {
+            throw new IllegalArgumentException("Số lượng tồn không được âm");
+        }
+        jdbcTemplate.update(SET_STOCK_SQL, quantity, bookId);
+        evictAfterCommit(bookId);
+    }
+
+    /**
+     * Ghi phần chênh lệch của tất cả sách xuống DB trong một câu lệnh batch.
+     * Batch chạy trong một transaction nên lỗi giữa chừng không ghi dòng nào và persisted giữ nguyên.
+     */
+    @Scheduled(fixedDelayString = "${inventory.ledger.flush-interval-ms:500}")
+    public synchronized void flush() {
+        for (Integer bookId : pendingEvictions) {
+            pendingEvictions.remove(bookId);
+            evict(bookId);
+        }
+
+        List<Counter> dirty = new ArrayList<>();
+        List<Integer> snapshots = new ArrayList<>();
+        List<Object[]> batch = new ArrayList<>();
+
+        for (Map.Entry<Integer, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            int current = counter.available.get();
+            if (current == RETIRED || current == counter.persisted) {
+                continue;
+            }
+            dirty.add(counter);
+            snapshots.add(current);
+            batch.add(new Object[]{current - counter.persisted, entry.getKey()});
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Thất bại thì persisted không đổi nên phần chênh lệch sẽ được ghi lại nguyên vẹn ở lần sau
+        if (writeBehindFlusher.writeBatch(FLUSH_STOCK_SQL, batch, "stock deltas")) {
+            for (int i = 0; i < dirty.size(); i++) {
+                dirty.get(i).persisted = snapshots.get(i);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    private synchronized void evict(int bookId) {
+        Counter counter = counters.get(bookId);
+        if (counter == null) {
+            return;
+        }
+        // Chặn các thao tác mới trên bộ đếm cũ rồi ghi nốt phần chênh lệch
+        int last = counter.available.getAndSet(RETIRED);
+        try {
+            if (last != counter.persisted) {
+                jdbcTemplate.update(FLUSH_STOCK_SQL, last - counter.persisted, bookId);
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing stock delta for book {} on evict: {}", bookId, e.getMessage());
+            counter.available.set(last);
+            pendingEvictions.add(bookId);
+            return;
+        }
+        // Tăng bộ đếm lần gỡ trong cùng thao tác nguyên tử với việc gỡ, để loadCounter nhận ra lần nạp cũ
+        counters.computeIfPresent(bookId, (id, current) -> {
+            if (current != counter) {
+                return current;
+            }
+            evictions.incrementAndGet();
+            return null;
+        });
+    }
+
+    /**
+     * Gỡ sách khỏi sổ sau khi transaction hiện tại commit; lần dùng sau sẽ nạp lại từ DB
+     */
+    private void evictAfterCommit(int bookId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    pendingEvictions.add(bookId);
+                }
+            });
+        } else {
+            pendingEvictions.add(bookId);
+        }
+    }
+
+    private void adjust(int bookId, int delta) {
+        while (true) {
+            Counter counter = counterFor(bookId);
+            int current = counter.available.get();
+            if (current == RETIRED) {
+                Thread.yield();
+                continue;
+            }
+            if (counter.available.compareAndSet(current, current + delta)) {
+                return;
+            }
+        }
+    }
+
+    private Counter counterFor(int bookId) {
+        Counter counter = counters.get(bookId);
+        if (counter != null) {
+            return counter;
+        }
+        return loadCounter(bookId);
+    }
+
+    /**
+     * Nạp bộ đếm từ DB, ngoài monitor của flush/evict (truy vấn có thể phải chờ khóa dòng).
+     * Bộ đếm nạp trước được giữ lại. Nếu có bộ đếm bị gỡ trong lúc đọc, giá trị vừa đọc có thể
+     * chưa gồm phần chênh lệch cuối cùng của nó nên bị bỏ và đọc lại.
+     */
+    private Counter loadCounter(int bookId) {
+        while (true) {
+            long generation = evictions.get();
+            Integer stock;
+            try {
+                stock = jdbcTemplate.queryForObject(LOAD_STOCK_SQL, Integer.class, bookId);
+            } catch (EmptyResultDataAccessException e) {
+                throw new IllegalArgumentException("Không tìm thấy sách với ID: " + bookId);
+            }
+            Counter loaded = new Counter(stock != null ? stock : 0);
+            Counter published = counters.compute(bookId, (id, existing) -> {
+                if (existing != null) {
+                    return existing;
+                }
+                return evictions.get() == generation ? loaded : null;
+            });
+            if (published != null) {
+                return published;
+            }
+        }
+    }
+
+    private static void onRollback(Runnable compensation) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_ROLLED_BACK) {
+                        compensation.run();
+                    }
+                }
+            });
+        }
+    }
+}
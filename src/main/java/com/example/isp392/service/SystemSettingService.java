@@ -4,9 +4,12 @@ import com.example.isp392.model.SystemSetting;
 import com.example.isp392.repository.SystemSettingRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 @Service
@@ -14,6 +17,9 @@ public class SystemSettingService {
 
     private final SystemSettingRepository settingRepository;
 
+    // Cài đặt chỉ đổi qua saveSettings nên được giữ trong bộ nhớ theo nhóm key đã yêu cầu
+    private final Map<List<String>, Map<String, String>> settingsCache = new ConcurrentHashMap<>();
+
     public SystemSettingService(SystemSettingRepository settingRepository) {
         this.settingRepository = settingRepository;
     }
@@ -25,8 +31,14 @@ public class SystemSettingService {
      */
     @Transactional(readOnly = true)
     public Map<String, String> getSettings(List<String> keys) {
-        return settingRepository.findAllById(keys).stream()
+        Map<String, String> cached = settingsCache.get(keys);
+        if (cached != null) {
+            return cached;
+        }
+        Map<String, String> settings = settingRepository.findAllById(keys).stream()
                 .collect(Collectors.toMap(SystemSetting::getSettingKey, SystemSetting::getSettingValue));
+        settingsCache.put(List.copyOf(keys), settings);
+        return settings;
     }
 
     /**
@@ -39,5 +51,15 @@ public class SystemSettingService {
                 .map(entry -> new SystemSetting(entry.getKey(), entry.getValue()))
                 .collect(Collectors.toList());
         settingRepository.saveAll(settingEntities);
+
+        settingsCache.clear();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    settingsCache.clear();
+                }
+            });
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+package com.example.isp392.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bộ nhớ đệm thông tin đăng nhập theo email: ID, mật khẩu đã mã hóa, trạng thái kích hoạt và các vai trò.
+ * Dùng cho đăng nhập/remember-me và cho việc xác định người dùng hiện tại ở mỗi request, nên không phải
+ * truy vấn users + user_roles lặp lại. UserService xóa mục tương ứng khi vai trò, trạng thái hoặc mật khẩu thay đổi.
+ */
+@Component
+public class UserPrincipalCache {
+
+    /**
+     * Ảnh chụp bất biến của một người dùng tại thời điểm nạp
+     */
+    public static final class Principal {
+        private final Integer userId;
+        private final String email;
+        private final String passwordHash;
+        private final boolean active;
+        private final List<String> roles;
+
+        public Principal(Integer userId, String email, String passwordHash, boolean active, List<String> roles) {
+            this.userId = userId;
+            this.email = email;
+            this.passwordHash = passwordHash;
+            this.active = active;
+            this.roles = List.copyOf(roles);
+        }
+
+        public Integer getUserId() { return userId; }
+        public String getEmail() { return email; }
+        public String getPasswordHash() { return passwordHash; }
+        public boolean isActive() { return active; }
+        /** Vai trò đang hiệu lực, có tiền tố ROLE_ */
+        public List<String> getRoles() { return roles; }
+    }
+
+    private static class Entry {
+        private final Principal principal;
+        private final long expiresAt;
+
+        Entry(Principal principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Tra email theo ID, cho nơi chỉ có tham chiếu User (chưa nạp) trong tay
+    private final Map<Integer, String> keysByUserId = new ConcurrentHashMap<>();
+    // Tăng ở mỗi lần xóa; kết quả nạp bắt đầu trước một lần xóa không được ghi vào cache
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public UserPrincipalCache(@Value("${auth.principal-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    /**
+     * @param loader nạp từ DB; trả về null nếu không có người dùng (kết quả null không được cache)
+     */
+    public Principal get(String email, Supplier<Principal> loader) {
+        if (email == null) {
+            return null;
+        }
+        String key = key(email);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > now) {
+            hits.increment();
+            return entry.principal;
+        }
+        misses.increment();
+        long generation = invalidations.get();
+        Principal principal = loader.get();
+        if (principal != null) {
+            entries.put(key, new Entry(principal, now + ttlMillis));
+            keysByUserId.put(principal.getUserId(), key);
+            if (invalidations.get() != generation) {
+                // Có thay đổi trong lúc nạp: dữ liệu vừa đọc có thể đã cũ
+                entries.remove(key);
+            }
+        }
+        return principal;
+    }
+
+    /**
+     * Chỉ đọc cache theo ID người dùng; trả về null nếu chưa có hoặc đã hết hạn
+     */
+    public Principal getIfPresent(Integer userId) {
+        String key = userId != null ? keysByUserId.get(userId) : null;
+        Entry entry = key != null ? entries.get(key) : null;
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis() || !userId.equals(entry.principal.getUserId())) {
+            return null;
+        }
+        hits.increment();
+        return entry.principal;
+    }
+
+    /**
+     * Xóa mục của người dùng ngay lập tức và một lần nữa khi transaction kết thúc,
+     * để request khác không giữ lại vai trò/mật khẩu cũ đã nạp trong lúc transaction chưa commit
+     */
+    public void invalidate(String email) {
+        if (email == null) {
+            return;
+        }
+        String key = key(email);
+        remove(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    remove(key);
+                }
+            });
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    @Scheduled(fixedRateString = "${auth.principal-cache.evict-interval-ms:60000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(entry -> entry.getValue().expiresAt <= now);
+        keysByUserId.values().removeIf(key -> !entries.containsKey(key));
+    }
+
+    private void remove(String key) {
+        invalidations.incrementAndGet();
+        entries.remove(key);
+    }
+
+    private static String key(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
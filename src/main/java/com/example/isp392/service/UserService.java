@@ -42,6 +42,7 @@ public class UserService implements UserDetailsService {
     private final PasswordEncoder passwordEncoder;
     private final OrderRepository orderRepository;
     private final WalletService walletService;
+    private final UserPrincipalCache principalCache;
 
     /**
      * Constructor with explicit dependency injection
@@ -52,19 +53,22 @@ public class UserService implements UserDetailsService {
      * @param roleRepository Repository for role data access
      * @param userRoleRepository Repository for user-role relationship data access
      * @param passwordEncoder Password encoder for securely storing passwords
+     * @param principalCache Cache of login data (id, password hash, active flag, roles) by email
      */
     public UserService(UserRepository userRepository,
                        RoleRepository roleRepository,
                        UserRoleRepository userRoleRepository,
                        PasswordEncoder passwordEncoder,
                        OrderRepository orderRepository,
-                       WalletService walletService) {
+                       WalletService walletService,
+                       UserPrincipalCache principalCache) {
         this.userRepository = userRepository;
         this.roleRepository = roleRepository;
         this.userRoleRepository = userRoleRepository;
         this.passwordEncoder = passwordEncoder;
         this.orderRepository = orderRepository;
         this.walletService = walletService;
+        this.principalCache = principalCache;
     }
 
     /**
@@ -76,24 +80,20 @@ public class UserService implements UserDetailsService {
     @Override
     @Transactional(readOnly = true)
     public UserDetails loadUserByUsername(String email) throws UsernameNotFoundException {
-        // Find user by email
-        User user = userRepository.findByEmail(email)
+        // Find user and roles (from the principal cache when possible)
+        UserPrincipalCache.Principal principal = findPrincipal(email)
                 .orElseThrow(() -> new UsernameNotFoundException("User not found with email: " + email));
 
-        // Get user roles
-        List<UserRole> userRoles = userRoleRepository.findByUser(user);
-
         // Map roles to authorities
-        Collection<SimpleGrantedAuthority> authorities = userRoles.stream()
-                .filter(UserRole::isRoleActiveForUser)
-                .map(userRole -> new SimpleGrantedAuthority("ROLE_" + userRole.getRole().getRoleName()))
+        Collection<SimpleGrantedAuthority> authorities = principal.getRoles().stream()
+                .map(SimpleGrantedAuthority::new)
                 .collect(Collectors.toList());
 
         // Return Spring Security UserDetails
         return new org.springframework.security.core.userdetails.User(
-                user.getEmail(),
-                user.getPassword(),
-                user.isActive(), // <-- THÊM THAM SỐ NÀY
+                principal.getEmail(),
+                principal.getPasswordHash(),
+                principal.isActive(), // <-- THÊM THAM SỐ NÀY
                 true,           // accountNonExpired
                 true,           // credentialsNonExpired
                 true,           // accountNonLocked
@@ -202,6 +202,43 @@ public class UserService implements UserDetailsService {
         return userRepository.findByEmail(username).orElse(null);
     }
 
+    /**
+     * Find the cached login snapshot (id, email, active flag, roles) of a user without touching the database
+     * on a cache hit. Use this when only the identity or roles of the current user are needed.
+     * @param email the email to search for
+     * @return Optional containing the snapshot if the user exists
+     */
+    @Transactional(readOnly = true)
+    public Optional<UserPrincipalCache.Principal> findPrincipal(String email) {
+        return Optional.ofNullable(principalCache.get(email, () -> userRepository.findByEmail(email)
+                .map(user -> new UserPrincipalCache.Principal(
+                        user.getUserId(),
+                        user.getEmail(),
+                        user.getPassword(),
+                        user.isActive(),
+                        loadRoleNames(user)))
+                .orElse(null)));
+    }
+
+    /**
+     * Resolve a logged-in user from the principal cache as a lazy reference: no query is made
+     * unless a property other than the ID is read (e.g. a sidebar rendering the full name)
+     * @param email the email of the authenticated user
+     * @return Optional containing the user reference if the user exists
+     */
+    public Optional<User> findUserReferenceByEmail(String email) {
+        return findPrincipal(email).map(principal -> getUserReference(principal.getUserId()));
+    }
+
+    /**
+     * Lazy reference to a user by ID (no query until a non-ID property is read)
+     * @param userId the user ID, usually taken from {@link #findPrincipal(String)}
+     * @return the user reference
+     */
+    public User getUserReference(Integer userId) {
+        return userRepository.getReferenceById(userId);
+    }
+
     /**
      * Get user roles with the ROLE_ prefix for Spring Security
      * @param user the user
@@ -209,6 +246,21 @@ public class UserService implements UserDetailsService {
      */
     @Transactional(readOnly = true)
     public List<String> getUserRoles(User user) {
+        // By ID first: user may be an uninitialized reference from findUserReferenceByEmail
+        UserPrincipalCache.Principal cached = principalCache.getIfPresent(user.getUserId());
+        if (cached != null) {
+            return new ArrayList<>(cached.getRoles());
+        }
+        if (user.getEmail() != null) {
+            Optional<UserPrincipalCache.Principal> principal = findPrincipal(user.getEmail());
+            if (principal.isPresent() && principal.get().getUserId().equals(user.getUserId())) {
+                return new ArrayList<>(principal.get().getRoles());
+            }
+        }
+        return loadRoleNames(user);
+    }
+
+    private List<String> loadRoleNames(User user) {
         return userRoleRepository.findByUser(user).stream()
                 .filter(UserRole::isRoleActiveForUser)
                 .map(userRole -> "ROLE_" + userRole.getRole().getRoleName())
@@ -277,6 +329,7 @@ public class UserService implements UserDetailsService {
         user.getUserRoles().removeIf(userRole -> userRole.getRole().equals(sellerRole));
 
         userRepository.save(user);
+        principalCache.invalidate(user.getEmail());
     }
 
 
@@ -301,6 +354,7 @@ public class UserService implements UserDetailsService {
             user.setFullName("Google User");
         }
 
+        principalCache.invalidate(user.getEmail());
         return userRepository.save(user);
     }
 
@@ -378,6 +432,7 @@ public class UserService implements UserDetailsService {
         // Update password
         user.setPassword(passwordEncoder.encode(newPassword));
         userRepository.save(user);
+        principalCache.invalidate(user.getEmail());
 
         return true;
     }
@@ -397,6 +452,7 @@ public class UserService implements UserDetailsService {
 
         // Encode and update the password
         user.setPassword(passwordEncoder.encode(newPassword));
+        principalCache.invalidate(user.getEmail());
         return userRepository.save(user);
     }
 
@@ -505,6 +561,7 @@ public class UserService implements UserDetailsService {
         }
 
         userRepository.save(user);
+        principalCache.invalidate(user.getEmail());
     }
     @Transactional
     public void updateUserActivationStatus(Integer userId, boolean isActive) {
@@ -513,6 +570,7 @@ public class UserService implements UserDetailsService {
 
         user.setActive(isActive);
         userRepository.save(user);
+        principalCache.invalidate(user.getEmail());
         log.info("Activation status for user ID {} has been updated to {}.", userId, isActive);
     }
 
@@ -531,6 +589,7 @@ public class UserService implements UserDetailsService {
             UserRole newUserRole = new UserRole(user, sellerRole);
             user.getUserRoles().add(newUserRole);
             userRepository.save(user);
+            principalCache.invalidate(user.getEmail());
             log.info("Upgraded user with ID {} to SELLER.", userId);
         } else {
             // Ghi log nếu người dùng đã là SELLER để tránh xử lý thừa
@@ -552,15 +611,16 @@ public class UserService implements UserDetailsService {
         user.setActive(false);
 
         userRepository.save(user);
+        principalCache.invalidate(email);
         log.info("User account for {} has been deactivated.", email);
     }
 
     @Transactional
     public void deleteUserById(Integer userId) {
         // Kiểm tra xem user có tồn tại không trước khi xóa
-        if (!userRepository.existsById(userId)) {
-            throw new RuntimeException("User not found with ID: " + userId);
-        }
+        User user = userRepository.findById(userId)
+                .orElseThrow(() -> new RuntimeException("User not found with ID: " + userId));
+        principalCache.invalidate(user.getEmail());
         userRepository.deleteById(userId);
         log.info("Successfully deleted user with ID: {}", userId);
     }
@@ -589,6 +649,7 @@ public class UserService implements UserDetailsService {
                 .orElseThrow(() -> new RuntimeException("User not found with ID: " + userId));
         user.setActive(false);
         userRepository.save(user);
+        principalCache.invalidate(user.getEmail());
         log.info("User with ID {} has been soft-deleted (deactivated).", userId);
     }
 
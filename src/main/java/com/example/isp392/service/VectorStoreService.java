@@ -4,25 +4,48 @@ import com.example.isp392.model.Book;
 import com.example.isp392.model.Promotion;
 import com.example.isp392.model.Shop;
 import com.example.isp392.model.PaymentMethod;
-import com.example.isp392.model.BookReview;
 import com.example.isp392.repository.BookRepository;
 import com.example.isp392.repository.PromotionRepository;
 import com.example.isp392.repository.BookReviewRepository;
+import com.example.isp392.config.HnswVectorStore;
 import com.example.isp392.config.PaymentConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.vectorstore.SearchRequest;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -38,22 +61,77 @@ public class VectorStoreService {
     private final PromotionRepository promotionRepository;
     private final BookReviewRepository bookReviewRepository;
     private final PaymentConfig paymentConfig;
+    private final EmbeddingModel embeddingModel;
+    private final ChatResponseCache chatResponseCache;
+
+    // Số sách mỗi lô khi nạp toàn bộ danh mục
+    @Value("${vectorstore.load.batch-size:100}")
+    private int loadBatchSize;
+
+    // Số lô được embedding đồng thời
+    @Value("${vectorstore.load.embed-concurrency:4}")
+    private int embedConcurrency;
+
+    // Số lô tối đa đang nằm trong pipeline trước khi tạm dừng đọc DB
+    @Value("${vectorstore.load.max-in-flight-batches:8}")
+    private int maxInFlightBatches;
+
+    // Điểm đánh giá cửa hàng được dùng lại trong thời gian ngắn thay vì tính lại cho từng sách
+    private static final long SHOP_RATING_TTL_MS = 60000;
+    private final Map<Integer, CachedShopRating> shopRatings = new ConcurrentHashMap<>();
+
+    private volatile LoadProgress currentLoad = LoadProgress.idle();
+
+    // Khóa metadata lưu hash nội dung của tài liệu, để nhận biết tài liệu nào thực sự thay đổi
+    private static final String CONTENT_HASH_KEY = "contentHash";
+    private static final int SYNC_BATCH_SIZE = 100;
+    // Metadata đổi theo từng lượt mua/xem: không nằm trong nội dung được embedding, không tính vào hash,
+    // mà được ghi đè trực tiếp trong store (HnswVectorStore) khi khác giá trị đang lưu
+    private static final List<String> VOLATILE_METADATA_KEYS = List.of("stockQuantity", "inStock", "viewsCount", "shopPopularity");
+
+    // Hash nội dung hiện có trong store theo ID tài liệu ("book_<id>")
+    private final Map<String, String> documentHashes = new ConcurrentHashMap<>();
+    // Giá trị metadata đổi thường xuyên đã ghi vào store theo ID tài liệu
+    private final Map<String, Map<String, Object>> volatileMetadata = new ConcurrentHashMap<>();
+    // Sách cần được dựng lại tài liệu ở lần đồng bộ kế tiếp
+    private final Set<Integer> dirtyBookIds = ConcurrentHashMap.newKeySet();
 
     @Autowired
     public VectorStoreService(BookRepository bookRepository,
                              @Autowired(required = false) VectorStore vectorStore,
                              PromotionRepository promotionRepository,
                              BookReviewRepository bookReviewRepository,
-                             PaymentConfig paymentConfig) {
+                             PaymentConfig paymentConfig,
+                             @Autowired(required = false) EmbeddingModel embeddingModel,
+                             ChatResponseCache chatResponseCache) {
         this.bookRepository = bookRepository;
         this.vectorStore = vectorStore;
         this.promotionRepository = promotionRepository;
         this.bookReviewRepository = bookReviewRepository;
         this.paymentConfig = paymentConfig;
+        this.embeddingModel = embeddingModel;
+        this.chatResponseCache = chatResponseCache;
+        loadDocumentHashes();
     }
 
     /**
-     * Load all books into Vector Store
+     * Đọc lại hash nội dung đã lưu trong store để lần nạp đầu tiên sau khi khởi động
+     * không phải embedding lại các tài liệu không đổi
+     */
+    private void loadDocumentHashes() {
+        if (vectorStore instanceof HnswVectorStore hnswVectorStore) {
+            hnswVectorStore.metadataValues(CONTENT_HASH_KEY)
+                    .forEach((id, hash) -> documentHashes.put(id, hash.toString()));
+            for (String key : VOLATILE_METADATA_KEYS) {
+                hnswVectorStore.metadataValues(key).forEach((id, value) ->
+                        volatileMetadata.computeIfAbsent(id, documentId -> new HashMap<>()).put(key, value));
+            }
+            logger.info("Loaded {} document content hashes from vector store", documentHashes.size());
+        }
+    }
+
+    /**
+     * Load all books into Vector Store and wait until the pipeline finishes
      */
     public void loadBooksToVectorStore() {
         if (vectorStore == null) {
@@ -61,58 +139,234 @@ public class VectorStoreService {
             return;
         }
 
+        LoadProgress progress = startLoadBooks();
         try {
-            logger.info("Loading books into Vector Store with batch processing...");
+            progress.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for vector store load");
+        }
+    }
 
-            List<Book> books = bookRepository.findAllActiveWithCompleteInfo();
-            logger.info("Found {} books in database", books.size());
+    /**
+     * Bắt đầu nạp sách vào Vector Store ở nền. Nếu đang có lần nạp chạy dở thì trả về tiến độ của lần đó.
+     *
+     * @return Tiến độ của lần nạp
+     */
+    public synchronized LoadProgress startLoadBooks() {
+        LoadProgress running = currentLoad;
+        if (running.isRunning()) {
+            return running;
+        }
 
-            if (books.isEmpty()) {
-                logger.warn("No books found in database");
-                return;
-            }
+        LoadProgress progress = new LoadProgress();
+        currentLoad = progress;
+        Thread thread = new Thread(() -> runLoadPipeline(progress), "vector-load");
+        thread.setDaemon(true);
+        thread.start();
+        return progress;
+    }
 
-            // Process in batches for better performance and error handling
-            int batchSize = 100;
-            int totalBooks = books.size();
-            int processedBooks = 0;
-            int failedBooks = 0;
+    /**
+     * Tiến độ của lần nạp gần nhất
+     */
+    public LoadProgress getLoadProgress() {
+        return currentLoad;
+    }
 
-            for (int i = 0; i < totalBooks; i += batchSize) {
-                int endIndex = Math.min(i + batchSize, totalBooks);
-                List<Book> batch = books.subList(i, endIndex);
+    /**
+     * Pipeline nạp sách: đọc từ DB theo lô -> dựng tài liệu song song -> embedding các lô đồng thời
+     * -> ghi vào store trên một luồng. Semaphore giới hạn số lô đang xử lý nên việc đọc DB
+     * tạm dừng khi các bước sau chưa theo kịp.
+     */
+    private void runLoadPipeline(LoadProgress progress) {
+        int batchSize = Math.max(1, loadBatchSize);
+        ExecutorService renderPool = Executors.newFixedThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors()), daemonThreads("vector-render"));
+        ExecutorService embedPool = Executors.newFixedThreadPool(Math.max(1, embedConcurrency), daemonThreads("vector-embed"));
+        ExecutorService writePool = Executors.newSingleThreadExecutor(daemonThreads("vector-write"));
+        Semaphore inFlight = new Semaphore(Math.max(1, maxInFlightBatches));
 
-                try {
-                    List<Document> documents = new ArrayList<>();
-
-                    for (Book book : batch) {
-                        try {
-                            Document document = createRichDocumentFromBook(book);
-                            documents.add(document);
-                            processedBooks++;
-                        } catch (Exception e) {
-                            logger.warn("Failed to create document for book {} ({}): {}",
-                                      book.getBookId(), book.getTitle(), e.getMessage());
-                            failedBooks++;
-                        }
-                    }
+        try {
+            logger.info("Loading books into Vector Store with pipeline (batch size {}, embed concurrency {})...",
+                    batchSize, embedConcurrency);
 
-                    if (!documents.isEmpty()) {
-                        vectorStore.add(documents);
-                        logger.debug("Processed batch {}-{} ({} documents)", i + 1, endIndex, documents.size());
-                    }
+            List<Integer> bookIds = bookRepository.findActiveBookIds();
+            progress.start(bookIds.size());
+            logger.info("Found {} books in database", bookIds.size());
 
+            List<CompletableFuture<Void>> batches = new ArrayList<>();
+            for (int i = 0; i < bookIds.size(); i += batchSize) {
+                List<Integer> batchIds = bookIds.subList(i, Math.min(i + batchSize, bookIds.size()));
+                inFlight.acquire();
+
+                List<Book> books;
+                try {
+                    books = bookRepository.findWithCompleteInfoByBookIdIn(batchIds);
                 } catch (Exception e) {
-                    logger.error("Error processing batch {}-{}: {}", i + 1, endIndex, e.getMessage());
-                    failedBooks += batch.size();
+                    logger.error("Error reading books {}-{}: {}", i + 1, i + batchIds.size(), e.getMessage());
+                    progress.failed.addAndGet(batchIds.size());
+                    inFlight.release();
+                    continue;
                 }
+
+                batches.add(CompletableFuture
+                        .supplyAsync(() -> renderDocuments(books, progress), renderPool)
+                        .thenApplyAsync(documents -> embedDocuments(documents, progress), embedPool)
+                        .thenAcceptAsync(documents -> writeDocuments(documents, progress), writePool)
+                        .whenComplete((result, error) -> inFlight.release()));
             }
 
-            logger.info("Vector Store loading completed: {} books processed, {} failed",
-                       processedBooks, failedBooks);
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+            progress.complete();
+            logger.info("Vector Store loading completed: {} books rendered, {} re-embedded, {} unchanged, {} failed",
+                    progress.rendered.get(), progress.embedded.get(), progress.unchanged.get(), progress.failed.get());
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.fail("Interrupted");
         } catch (Exception e) {
             logger.error("Critical error loading books into Vector Store: {}", e.getMessage(), e);
+            progress.fail(e.getMessage());
+        } finally {
+            renderPool.shutdown();
+            embedPool.shutdown();
+            writePool.shutdown();
+        }
+    }
+
+    private List<Document> renderDocuments(List<Book> books, LoadProgress progress) {
+        List<Document> documents = new ArrayList<>(books.size());
+        for (Book book : books) {
+            try {
+                documents.add(createRichDocumentFromBook(book));
+                progress.rendered.incrementAndGet();
+            } catch (Exception e) {
+                logger.warn("Failed to create document for book {} ({}): {}",
+                          book.getBookId(), book.getTitle(), e.getMessage());
+                progress.failed.incrementAndGet();
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Bỏ qua tài liệu không đổi và tính embedding cho cả lô trong một lần gọi mô hình
+     */
+    private List<Document> embedDocuments(List<Document> documents, LoadProgress progress) {
+        List<Document> changed = selectChangedDocuments(documents);
+        progress.unchanged.addAndGet(documents.size() - changed.size());
+        if (changed.isEmpty() || embeddingModel == null) {
+            return changed;
+        }
+
+        try {
+            List<float[]> embeddings = embeddingModel.embed(changed.stream()
+                    .map(Document::getContent)
+                    .collect(Collectors.toList()));
+            for (int i = 0; i < changed.size(); i++) {
+                changed.get(i).setEmbedding(embeddings.get(i));
+            }
+            return changed;
+        } catch (Exception e) {
+            logger.error("Error embedding batch of {} documents: {}", changed.size(), e.getMessage());
+            progress.failed.addAndGet(changed.size());
+            return new ArrayList<>();
+        }
+    }
+
+    private void writeDocuments(List<Document> documents, LoadProgress progress) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        try {
+            vectorStore.add(documents);
+            recordDocumentHashes(documents);
+            progress.embedded.addAndGet(documents.size());
+        } catch (Exception e) {
+            logger.error("Error writing batch of {} documents: {}", documents.size(), e.getMessage());
+            progress.failed.addAndGet(documents.size());
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Tiến độ nạp sách vào Vector Store, được trang quản trị hỏi định kỳ
+     */
+    public static class LoadProgress {
+        public enum State { IDLE, RUNNING, COMPLETED, FAILED }
+
+        private volatile State state = State.RUNNING;
+        private volatile int total;
+        private final AtomicInteger rendered = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger embedded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+        private volatile String message;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        static LoadProgress idle() {
+            LoadProgress progress = new LoadProgress();
+            progress.state = State.IDLE;
+            progress.done.countDown();
+            return progress;
+        }
+
+        void start(int total) {
+            this.total = total;
+            this.startedAt = LocalDateTime.now();
+        }
+
+        void complete() {
+            finish(State.COMPLETED, null);
+        }
+
+        void fail(String message) {
+            finish(State.FAILED, message);
+        }
+
+        private void finish(State state, String message) {
+            this.message = message;
+            this.finishedAt = LocalDateTime.now();
+            this.state = state;
+            done.countDown();
+        }
+
+        boolean isRunning() {
+            return done.getCount() > 0;
+        }
+
+        void awaitCompletion() throws InterruptedException {
+            done.await();
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("state", state.name());
+            map.put("total", total);
+            // Mỗi sách kết thúc ở đúng một trong ba nhóm: embedded, unchanged hoặc failed
+            map.put("processed", embedded.get() + unchanged.get() + failed.get());
+            map.put("embedded", embedded.get());
+            map.put("unchanged", unchanged.get());
+            map.put("failed", failed.get());
+            map.put("startedAt", startedAt != null ? startedAt.toString() : null);
+            map.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+            map.put("message", message);
+            return map;
         }
     }
 
@@ -170,9 +424,6 @@ public class VectorStoreService {
             content.append("\n");
         }
 
-        // Availability
-        content.append("Stock: ").append(book.getStockQuantity()).append(" available\n");
-
         // === MARKETPLACE INFORMATION ===
         addMarketplaceInformation(content, book);
 
@@ -181,10 +432,7 @@ public class VectorStoreService {
             content.append("Description: ").append(book.getDescription()).append("\n");
         }
 
-        // Additional metadata
-        if (book.getViewsCount() != null && book.getViewsCount() > 0) {
-            content.append("Views: ").append(book.getViewsCount()).append("\n");
-        }
+        // Tồn kho và lượt xem chỉ nằm trong metadata (xem VOLATILE_METADATA_KEYS)
 
         // Create comprehensive metadata
         Map<String, Object> metadata = createBookMetadata(book);
@@ -269,11 +517,6 @@ public class VectorStoreService {
             content.append(shop.getApprovalStatus().toString()).append("\n");
         }
 
-        // Shop views/popularity
-        if (shop.getViewsCount() != null && shop.getViewsCount() > 0) {
-            content.append("Store Popularity: ").append(shop.getViewsCount()).append(" views\n");
-        }
-
         // Registration date for trust factor
         if (shop.getRegistrationDate() != null) {
             content.append("Store Since: ").append(shop.getRegistrationDate().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"))).append("\n");
@@ -325,12 +568,6 @@ public class VectorStoreService {
                         content.append("Valid Until: ").append(promotion.getEndDate().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"))).append("\n");
                     }
 
-                    // Usage limit (using available fields)
-                    if (promotion.getTotalUsageLimit() != null && promotion.getCurrentUsageCount() != null) {
-                        int remaining = promotion.getTotalUsageLimit() - promotion.getCurrentUsageCount();
-                        content.append("Remaining Uses: ").append(remaining).append("\n");
-                    }
-
                     // Scope information
                     content.append("Scope: ");
                     if (promotion.getScopeType().equals("SITE_WIDE")) {
@@ -453,44 +690,26 @@ public class VectorStoreService {
     }
 
     /**
-     * Calculate shop rating from actual book reviews
+     * Calculate shop rating from actual book reviews.
+     * Kết quả được nhớ trong SHOP_RATING_TTL_MS vì mọi sách của cùng cửa hàng dùng chung một điểm.
      */
     private ShopRatingInfo calculateShopRating(Shop shop) {
-        try {
-            // Get all books from this shop using available repository method
-            List<Book> shopBooks = bookRepository.findByShop_ShopIdAndIsActiveTrue(shop.getShopId(),
-                    org.springframework.data.domain.Pageable.unpaged()).getContent();
-
-            if (shopBooks.isEmpty()) {
-                return new ShopRatingInfo(0.0, 0);
-            }
-
-            // Get all reviews for books from this shop
-            List<Integer> bookIds = shopBooks.stream()
-                    .map(Book::getBookId)
-                    .collect(Collectors.toList());
-
-            List<BookReview> allReviews = new ArrayList<>();
-            for (Integer bookId : bookIds) {
-                List<BookReview> bookReviews = bookReviewRepository.findByBookId(bookId);
-                // Filter for approved reviews
-                List<BookReview> approvedReviews = bookReviews.stream()
-                        .filter(review -> review.isApproved())
-                        .collect(Collectors.toList());
-                allReviews.addAll(approvedReviews);
-            }
-
-            if (allReviews.isEmpty()) {
-                return new ShopRatingInfo(0.0, 0);
-            }
+        long now = System.currentTimeMillis();
+        CachedShopRating cached = shopRatings.get(shop.getShopId());
+        if (cached != null && now - cached.computedAt < SHOP_RATING_TTL_MS) {
+            return cached.info;
+        }
 
-            // Calculate average rating
-            double averageRating = allReviews.stream()
-                    .mapToInt(BookReview::getRating)
-                    .average()
-                    .orElse(0.0);
+        try {
+            // Một câu truy vấn tổng hợp thay vì tải đánh giá của từng sách trong shop
+            Object[] row = firstRow(bookReviewRepository.calculateApprovedRatingByShopId(shop.getShopId()));
+            long totalReviews = row != null && row[1] != null ? ((Number) row[1]).longValue() : 0;
+            ShopRatingInfo info = totalReviews == 0
+                    ? new ShopRatingInfo(0.0, 0)
+                    : new ShopRatingInfo(((Number) row[0]).doubleValue(), (int) totalReviews);
 
-            return new ShopRatingInfo(averageRating, allReviews.size());
+            shopRatings.put(shop.getShopId(), new CachedShopRating(info, now));
+            return info;
 
         } catch (Exception e) {
             logger.warn("Error calculating shop rating for shop {}: {}", shop.getShopId(), e.getMessage());
@@ -498,6 +717,20 @@ public class VectorStoreService {
         }
     }
 
+    private static Object[] firstRow(List<Object[]> rows) {
+        return rows == null || rows.isEmpty() ? null : rows.get(0);
+    }
+
+    private static class CachedShopRating {
+        private final ShopRatingInfo info;
+        private final long computedAt;
+
+        CachedShopRating(ShopRatingInfo info, long computedAt) {
+            this.info = info;
+            this.computedAt = computedAt;
+        }
+    }
+
     /**
      * Helper class to hold shop rating information
      */
@@ -546,6 +779,9 @@ public class VectorStoreService {
         // Availability
         metadata.put("stockQuantity", book.getStockQuantity().toString());
         metadata.put("inStock", book.getStockQuantity() > 0);
+        if (book.getViewsCount() != null) {
+            metadata.put("viewsCount", book.getViewsCount().toString());
+        }
 
         // Quality indicators
         if (book.getAverageRating() != null) {
@@ -563,6 +799,10 @@ public class VectorStoreService {
                     .map(category -> category.getCategoryName())
                     .collect(Collectors.joining(", "));
             metadata.put("categories", categories);
+            // Danh sách thể loại riêng lẻ để lọc theo "category" khi tìm kiếm
+            metadata.put("category", book.getCategories().stream()
+                    .map(category -> category.getCategoryName())
+                    .collect(Collectors.toList()));
         }
 
         // === MARKETPLACE METADATA ===
@@ -588,6 +828,191 @@ public class VectorStoreService {
 
     // ===== REAL-TIME SYNCHRONIZATION METHODS =====
 
+    /**
+     * Đánh dấu một sách cần đồng bộ lại tài liệu. Nếu đang trong transaction,
+     * sách chỉ được đưa vào hàng đợi sau khi commit để lần đồng bộ không đọc phải dữ liệu cũ.
+     */
+    public void markBookDirty(Integer bookId) {
+        if (bookId != null) {
+            enqueueDirty(List.of(bookId));
+        }
+    }
+
+    /**
+     * Đánh dấu toàn bộ sách của một cửa hàng (thông tin cửa hàng nằm trong nội dung tài liệu)
+     */
+    public void markShopDirty(Integer shopId) {
+        if (shopId != null) {
+            enqueueDirty(bookRepository.findBookIdsByShopId(shopId));
+        }
+    }
+
+    /**
+     * Đánh dấu mọi sách đang hoạt động sau khi khuyến mãi thay đổi. Chỉ những tài liệu có
+     * nội dung thực sự khác (ví dụ sách thuộc thể loại của khuyến mãi) mới bị embedding lại.
+     */
+    public void markAllBooksDirty() {
+        enqueueDirty(bookRepository.findActiveBookIds());
+    }
+
+    private void enqueueDirty(Collection<Integer> bookIds) {
+        if (vectorStore == null || bookIds.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            List<Integer> pending = new ArrayList<>(bookIds);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dirtyBookIds.addAll(pending);
+                }
+            });
+        } else {
+            dirtyBookIds.addAll(bookIds);
+        }
+    }
+
+    /**
+     * Đồng bộ các sách đã bị đánh dấu: dựng lại tài liệu, bỏ qua tài liệu có hash không đổi,
+     * chỉ embedding lại tài liệu thay đổi và xóa tài liệu của sách đã ngừng bán
+     */
+    @Scheduled(fixedDelayString = "${vectorstore.sync.interval-ms:15000}")
+    public void syncDirtyDocuments() {
+        if (vectorStore == null || dirtyBookIds.isEmpty()) {
+            return;
+        }
+
+        List<Integer> bookIds = new ArrayList<>(dirtyBookIds);
+        dirtyBookIds.removeAll(bookIds);
+
+        int embedded = 0;
+        int removed = 0;
+        for (int i = 0; i < bookIds.size(); i += SYNC_BATCH_SIZE) {
+            List<Integer> batch = bookIds.subList(i, Math.min(i + SYNC_BATCH_SIZE, bookIds.size()));
+            try {
+                List<Book> books = bookRepository.findWithCompleteInfoByBookIdIn(batch);
+
+                Set<Integer> activeIds = new HashSet<>();
+                List<Document> documents = new ArrayList<>();
+                for (Book book : books) {
+                    if (!book.isActive()) {
+                        continue;
+                    }
+                    activeIds.add(book.getBookId());
+                    try {
+                        documents.add(createRichDocumentFromBook(book));
+                    } catch (Exception e) {
+                        logger.warn("Failed to create document for book {} during sync: {}", book.getBookId(), e.getMessage());
+                    }
+                }
+
+                List<String> staleIds = batch.stream()
+                        .filter(bookId -> !activeIds.contains(bookId))
+                        .map(bookId -> "book_" + bookId)
+                        .filter(documentHashes::containsKey)
+                        .collect(Collectors.toList());
+                if (!staleIds.isEmpty()) {
+                    vectorStore.delete(staleIds);
+                    staleIds.forEach(documentHashes::remove);
+                    staleIds.forEach(volatileMetadata::remove);
+                    chatResponseCache.invalidateDocuments(staleIds);
+                    removed += staleIds.size();
+                }
+
+                embedded += addChangedDocuments(documents);
+            } catch (Exception e) {
+                // Đưa lại vào hàng đợi để thử ở lần đồng bộ sau
+                dirtyBookIds.addAll(batch);
+                logger.error("Error syncing vector store batch: {}", e.getMessage(), e);
+            }
+        }
+
+        logger.info("Vector store sync: {} books checked, {} re-embedded, {} removed", bookIds.size(), embedded, removed);
+    }
+
+    /**
+     * Thêm vào store các tài liệu có nội dung khác với phiên bản đang lưu
+     *
+     * @return Số tài liệu thực sự được embedding lại
+     */
+    private int addChangedDocuments(List<Document> documents) {
+        List<Document> changed = selectChangedDocuments(documents);
+        if (!changed.isEmpty()) {
+            vectorStore.add(changed);
+            recordDocumentHashes(changed);
+        }
+        return changed.size();
+    }
+
+    /**
+     * Lọc ra các tài liệu có hash khác phiên bản đang lưu và gắn hash mới vào metadata.
+     * Tài liệu không đổi chỉ được ghi đè metadata đổi thường xuyên (nếu khác), không embedding lại.
+     */
+    private List<Document> selectChangedDocuments(List<Document> documents) {
+        List<Document> changed = new ArrayList<>();
+        Map<String, Map<String, Object>> refreshed = new HashMap<>();
+        for (Document document : documents) {
+            String hash = contentHash(document);
+            if (hash.equals(documentHashes.get(document.getId()))) {
+                Map<String, Object> values = volatileValues(document);
+                if (!values.equals(volatileMetadata.get(document.getId()))) {
+                    refreshed.put(document.getId(), values);
+                }
+                continue;
+            }
+            document.getMetadata().put(CONTENT_HASH_KEY, hash);
+            changed.add(document);
+        }
+        if (!refreshed.isEmpty() && vectorStore instanceof HnswVectorStore hnswVectorStore) {
+            hnswVectorStore.updateMetadata(refreshed);
+            volatileMetadata.putAll(refreshed);
+        }
+        return changed;
+    }
+
+    /**
+     * Ghi nhận hash của các tài liệu vừa được thêm vào store và bỏ các câu trả lời chat dựa trên phiên bản cũ
+     */
+    private void recordDocumentHashes(List<Document> documents) {
+        for (Document document : documents) {
+            documentHashes.put(document.getId(), (String) document.getMetadata().get(CONTENT_HASH_KEY));
+            volatileMetadata.put(document.getId(), volatileValues(document));
+        }
+        chatResponseCache.invalidateDocuments(documents.stream().map(Document::getId).collect(Collectors.toList()));
+    }
+
+    private static Map<String, Object> volatileValues(Document document) {
+        Map<String, Object> values = new HashMap<>();
+        for (String key : VOLATILE_METADATA_KEYS) {
+            Object value = document.getMetadata().get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * SHA-256 của nội dung và metadata (sắp theo khóa) của tài liệu. Metadata đổi thường xuyên
+     * không được tính khi store ghi đè được metadata; store khác thì phải thêm lại tài liệu để cập nhật.
+     */
+    private String contentHash(Document document) {
+        Map<String, Object> metadata = new TreeMap<>(document.getMetadata());
+        metadata.remove(CONTENT_HASH_KEY);
+        if (vectorStore instanceof HnswVectorStore) {
+            VOLATILE_METADATA_KEYS.forEach(metadata::remove);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(document.getContent().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(metadata.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
     /**
      * Update a single book document in vector store when book details change
      */
@@ -598,14 +1023,11 @@ public class VectorStoreService {
         }
 
         try {
-            // Remove old document
-            removeBookDocument(book.getBookId());
-
-            // Add updated document
+            // Tài liệu cùng ID sẽ được thay thế; bỏ qua nếu nội dung không đổi
             Document updatedDocument = createRichDocumentFromBook(book);
-            vectorStore.add(List.of(updatedDocument));
-
-            logger.info("Updated book document in vector store: {} (ID: {})", book.getTitle(), book.getBookId());
+            if (addChangedDocuments(List.of(updatedDocument)) > 0) {
+                logger.info("Updated book document in vector store: {} (ID: {})", book.getTitle(), book.getBookId());
+            }
 
         } catch (Exception e) {
             logger.error("Error updating book document in vector store for book {}: {}", book.getBookId(), e.getMessage(), e);
@@ -624,6 +1046,9 @@ public class VectorStoreService {
         try {
             String documentId = "book_" + bookId;
             vectorStore.delete(List.of(documentId));
+            documentHashes.remove(documentId);
+            volatileMetadata.remove(documentId);
+            chatResponseCache.invalidateDocuments(List.of(documentId));
             logger.info("Removed book document from vector store: {}", documentId);
 
         } catch (Exception e) {
@@ -632,7 +1057,8 @@ public class VectorStoreService {
     }
 
     /**
-     * Refresh promotion information across all relevant book documents
+     * Refresh promotion information across all relevant book documents.
+     * Only documents whose rendered content changed are re-embedded.
      */
     public void refreshPromotionInformation() {
         if (vectorStore == null) {
@@ -640,36 +1066,14 @@ public class VectorStoreService {
             return;
         }
 
-        try {
-            logger.info("Starting promotion information refresh across all book documents");
-
-            // Get all books and refresh their documents
-            List<Book> allBooks = bookRepository.findAll();
-            List<Document> updatedDocuments = new ArrayList<>();
-
-            for (Book book : allBooks) {
-                try {
-                    Document updatedDocument = createRichDocumentFromBook(book);
-                    updatedDocuments.add(updatedDocument);
-                } catch (Exception e) {
-                    logger.warn("Error creating document for book {} during promotion refresh: {}", book.getBookId(), e.getMessage());
-                }
-            }
-
-            if (!updatedDocuments.isEmpty()) {
-                // Clear and reload all documents
-                clearVectorStore();
-                vectorStore.add(updatedDocuments);
-                logger.info("Refreshed promotion information for {} book documents", updatedDocuments.size());
-            }
-
-        } catch (Exception e) {
-            logger.error("Error refreshing promotion information in vector store: {}", e.getMessage(), e);
-        }
+        logger.info("Starting promotion information refresh across all book documents");
+        markAllBooksDirty();
+        syncDirtyDocuments();
     }
 
     /**
      * Update shop information for all books belonging to a modified shop
+     * (the documents are rebuilt by the next background sync)
      */
     public void updateShopInformation(Shop shop) {
         if (vectorStore == null) {
@@ -677,28 +1081,8 @@ public class VectorStoreService {
             return;
         }
 
-        try {
-            logger.info("Updating shop information for shop: {} (ID: {})", shop.getShopName(), shop.getShopId());
-
-            // Get all books from this shop
-            List<Book> shopBooks = bookRepository.findByShop_ShopIdAndIsActiveTrue(shop.getShopId(),
-                    org.springframework.data.domain.Pageable.unpaged()).getContent();
-
-            if (shopBooks.isEmpty()) {
-                logger.info("No books found for shop {}", shop.getShopId());
-                return;
-            }
-
-            // Update documents for all books from this shop
-            for (Book book : shopBooks) {
-                updateBookDocument(book);
-            }
-
-            logger.info("Updated {} book documents for shop {}", shopBooks.size(), shop.getShopName());
-
-        } catch (Exception e) {
-            logger.error("Error updating shop information in vector store for shop {}: {}", shop.getShopId(), e.getMessage(), e);
-        }
+        logger.info("Scheduling shop information update for shop: {} (ID: {})", shop.getShopName(), shop.getShopId());
+        markShopDirty(shop.getShopId());
     }
 
     /**
@@ -719,6 +1103,9 @@ public class VectorStoreService {
 
             if (!documentIds.isEmpty()) {
                 vectorStore.delete(documentIds);
+                documentHashes.clear();
+                volatileMetadata.clear();
+                chatResponseCache.clear();
                 logger.info("Cleared {} documents from vector store", documentIds.size());
             }
 
@@ -841,7 +1228,7 @@ public class VectorStoreService {
 
         try {
             Document document = createRichDocumentFromBook(book);
-            vectorStore.add(List.of(document));
+            addChangedDocuments(List.of(document));
             logger.info("Added book '{}' to Vector Store", book.getTitle());
         } catch (Exception e) {
             logger.error("Error adding book to Vector Store: {}", e.getMessage());
@@ -860,12 +1247,43 @@ public class VectorStoreService {
         try {
             String documentId = "book_" + bookId;
             vectorStore.delete(List.of(documentId));
+            documentHashes.remove(documentId);
+            volatileMetadata.remove(documentId);
+            chatResponseCache.invalidateDocuments(List.of(documentId));
             logger.info("Removed book ID {} from Vector Store", bookId);
         } catch (Exception e) {
             logger.error("Error removing book from Vector Store: {}", e.getMessage());
         }
     }
 
+    /**
+     * Semantic book search with optional metadata filters (shopId, category, inStock).
+     * With the HNSW store the filters are applied while traversing the graph.
+     */
+    public List<Document> searchBooks(String query, int topK, Integer shopId, String category, boolean inStockOnly) {
+        if (vectorStore == null) {
+            logger.warn("Vector Store not available");
+            return new ArrayList<>();
+        }
+
+        FilterExpressionBuilder b = new FilterExpressionBuilder();
+        FilterExpressionBuilder.Op filter = b.eq("type", "book");
+        if (shopId != null) {
+            filter = b.and(filter, b.eq("shopId", shopId.toString()));
+        }
+        if (category != null && !category.isBlank()) {
+            filter = b.and(filter, b.eq("category", category));
+        }
+        if (inStockOnly) {
+            filter = b.and(filter, b.eq("inStock", true));
+        }
+
+        SearchRequest searchRequest = SearchRequest.query(query)
+                .withTopK(topK)
+                .withFilterExpression(filter.build());
+        return vectorStore.similaritySearch(searchRequest);
+    }
+
     /**
      * Check if Vector Store is available
      */
@@ -877,6 +1295,9 @@ public class VectorStoreService {
      * Get document count (simplified implementation)
      */
     public int getDocumentCount() {
+        if (vectorStore instanceof HnswVectorStore hnswVectorStore) {
+            return hnswVectorStore.size();
+        }
         // For SimpleVectorStore, we can't easily get document count
         // Return 0 for now - this is just for admin display
         return 0;
@@ -0,0 +1,104 @@
+package com.example.isp392.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Đếm lượt xem sách và blog trong bộ nhớ rồi ghi xuống DB theo lô (write-behind).
+ * Mỗi lượt xem chỉ cộng vào một LongAdder thay vì mở một transaction UPDATE riêng,
+ * nên các sách/blog được xem nhiều không còn tranh chấp khóa dòng.
+ */
+@Service
+public class ViewCounterService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ViewCounterService.class);
+
+    private static final String FLUSH_BOOK_VIEWS_SQL =
+            "UPDATE books SET views_count = views_count + ? WHERE book_id = ?";
+    private static final String FLUSH_BLOG_VIEWS_SQL =
+            "UPDATE blogs SET views_count = views_count + ? WHERE blog_id = ?";
+
+    private final WriteBehindFlusher writeBehindFlusher;
+
+    // Lượt xem chưa ghi xuống DB theo ID
+    private final Map<Integer, LongAdder> pendingBookViews = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> pendingBlogViews = new ConcurrentHashMap<>();
+
+    public ViewCounterService(WriteBehindFlusher writeBehindFlusher) {
+        this.writeBehindFlusher = writeBehindFlusher;
+    }
+
+    public void recordBookView(int bookId) {
+        pendingBookViews.computeIfAbsent(bookId, id -> new LongAdder()).increment();
+    }
+
+    public void recordBlogView(int blogId) {
+        pendingBlogViews.computeIfAbsent(blogId, id -> new LongAdder()).increment();
+    }
+
+    /**
+     * Số lượt xem của một sách chưa được ghi xuống DB
+     */
+    public long getPendingBookViews(int bookId) {
+        LongAdder adder = pendingBookViews.get(bookId);
+        return adder != null ? adder.sum() : 0;
+    }
+
+    /**
+     * Tổng lượt xem chưa ghi xuống DB của một nhóm sách
+     */
+    public long getPendingBookViews(Collection<Integer> bookIds) {
+        long total = 0;
+        for (Integer bookId : bookIds) {
+            total += getPendingBookViews(bookId);
+        }
+        return total;
+    }
+
+    public long getTotalPendingBookViews() {
+        return sum(pendingBookViews);
+    }
+
+    public long getTotalPendingBlogViews() {
+        return sum(pendingBlogViews);
+    }
+
+    public boolean hasPendingBookViews() {
+        return getTotalPendingBookViews() > 0;
+    }
+
+    /**
+     * Ghi các lượt xem đã gom được xuống DB, mỗi bảng một câu lệnh batch
+     */
+    @Scheduled(fixedDelayString = "${views.flush-interval-ms:5000}")
+    public void flush() {
+        flush(pendingBookViews, FLUSH_BOOK_VIEWS_SQL, "book");
+        flush(pendingBlogViews, FLUSH_BLOG_VIEWS_SQL, "blog");
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    private synchronized void flush(Map<Integer, LongAdder> pending, String sql, String type) {
+        // Bộ đếm được giữ lại trong map (kể cả khi bằng 0) để không mất lượt xem của luồng đang cộng dở
+        writeBehindFlusher.flushDeltas(pending, sql, type + " view counts");
+    }
+
+    private static long sum(Map<Integer, LongAdder> pending) {
+        long total = 0;
+        for (LongAdder adder : pending.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+}
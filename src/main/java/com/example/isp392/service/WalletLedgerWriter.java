@@ -0,0 +1,282 @@
+package com.example.isp392.service;
+
+import com.example.isp392.model.User;
+import com.example.isp392.model.enums.WalletReferenceType;
+import com.example.isp392.model.enums.WalletTransactionStatus;
+import com.example.isp392.model.enums.WalletTransactionType;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Batched ledger writer for bulk wallet flows (shop-wide refunds, settlements).
+ * Ledger rows are appended with one JDBC batch insert and each wallet's balance is
+ * changed by a single version-checked UPDATE, instead of one wallet save plus one
+ * transaction save per entry. Interactive calls keep using WalletService.addFunds/deductFunds.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WalletLedgerWriter {
+
+    // Số lần đọc lại ví khi bị cập nhật đồng thời trước khi hủy cả lô
+    private static final int MAX_UPDATE_ATTEMPTS = 5;
+
+    // Các loại tham chiếu chỉ được ghi sổ một lần cho mỗi referenceId
+    private static final Set<WalletReferenceType> IDEMPOTENT_REFERENCE_TYPES =
+            EnumSet.of(WalletReferenceType.ORDER_REFUND, WalletReferenceType.ORDER_PAYMENT);
+
+    private static final String UPDATE_BALANCE_SQL =
+            "UPDATE wallets SET balance = ?, version = version + 1, updated_at = ? WHERE wallet_id = ? AND version = ?";
+
+    private static final String INSERT_TRANSACTION_SQL =
+            "INSERT INTO wallet_transactions (wallet_id, transaction_type, amount, balance_before, balance_after, " +
+            "description, reference_type, reference_id, created_at, created_by, status) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // Số dư tính lại từ sổ cái (các giao dịch COMPLETED) so với số dư đang lưu trên ví
+    private static final String RECONCILE_SQL =
+            "SELECT w.wallet_id, w.user_id, w.balance, " +
+            "COALESCE(SUM(CASE WHEN t.transaction_type = 'CREDIT' THEN t.amount " +
+            "WHEN t.transaction_type = 'DEBIT' THEN -t.amount ELSE 0 END), 0) AS ledger_balance " +
+            "FROM wallets w LEFT JOIN wallet_transactions t ON t.wallet_id = w.wallet_id AND t.status = 'COMPLETED' " +
+            "GROUP BY w.wallet_id, w.user_id, w.balance";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    /**
+     * One ledger entry to post
+     */
+    @Getter
+    public static class LedgerEntry {
+        private final User user;
+        private final WalletTransactionType transactionType;
+        private final BigDecimal amount;
+        private final String description;
+        private final WalletReferenceType referenceType;
+        private final Integer referenceId;
+        private final Integer createdBy;
+
+        private LedgerEntry(User user, WalletTransactionType transactionType, BigDecimal amount, String description,
+                            WalletReferenceType referenceType, Integer referenceId, Integer createdBy) {
+            if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+                throw new IllegalArgumentException("Amount must be positive");
+            }
+            this.user = user;
+            this.transactionType = transactionType;
+            this.amount = amount;
+            this.description = description;
+            this.referenceType = referenceType;
+            this.referenceId = referenceId;
+            this.createdBy = createdBy;
+        }
+
+        public static LedgerEntry credit(User user, BigDecimal amount, String description,
+                                         WalletReferenceType referenceType, Integer referenceId, Integer createdBy) {
+            return new LedgerEntry(user, WalletTransactionType.CREDIT, amount, description, referenceType, referenceId, createdBy);
+        }
+
+        public static LedgerEntry debit(User user, BigDecimal amount, String description,
+                                        WalletReferenceType referenceType, Integer referenceId, Integer createdBy) {
+            return new LedgerEntry(user, WalletTransactionType.DEBIT, amount, description, referenceType, referenceId, createdBy);
+        }
+
+        private BigDecimal signedAmount() {
+            return transactionType == WalletTransactionType.CREDIT ? amount : amount.negate();
+        }
+    }
+
+    /**
+     * Result of posting a batch
+     */
+    @Getter
+    public static class BatchResult {
+        private int posted;
+        private int duplicates;
+        private final List<LedgerEntry> rejected = new ArrayList<>();
+    }
+
+    /**
+     * Post a batch of entries in the current transaction.
+     * Entries already recorded for the same order are skipped; debits that would make a
+     * balance negative are rejected individually.
+     * @param entries Entries to post
+     * @param walletIdByUserId Wallet ID of every user in the batch
+     * @return Counts of posted, duplicate and rejected entries
+     */
+    @Transactional
+    public BatchResult post(List<LedgerEntry> entries, Map<Integer, Integer> walletIdByUserId) {
+        BatchResult result = new BatchResult();
+        List<LedgerEntry> accepted = removeDuplicates(entries);
+        result.duplicates = entries.size() - accepted.size();
+
+        // Nhóm theo ví, giữ nguyên thứ tự các bút toán trong từng ví
+        Map<Integer, List<LedgerEntry>> entriesByWallet = new LinkedHashMap<>();
+        for (LedgerEntry entry : accepted) {
+            Integer walletId = walletIdByUserId.get(entry.getUser().getUserId());
+            if (walletId == null) {
+                throw new IllegalArgumentException("Wallet not found for user: " + entry.getUser().getUserId());
+            }
+            entriesByWallet.computeIfAbsent(walletId, id -> new ArrayList<>()).add(entry);
+        }
+
+        List<Object[]> transactionRows = new ArrayList<>();
+        Set<Integer> pendingWallets = new LinkedHashSet<>(entriesByWallet.keySet());
+
+        for (int attempt = 1; !pendingWallets.isEmpty(); attempt++) {
+            if (attempt > MAX_UPDATE_ATTEMPTS) {
+                throw new OptimisticLockingFailureException(
+                        "Wallets " + pendingWallets + " were updated concurrently, ledger batch aborted");
+            }
+
+            Map<Integer, Long> versions = new HashMap<>();
+            Map<Integer, BigDecimal> balances = new HashMap<>();
+            namedParameterJdbcTemplate.query(
+                    "SELECT wallet_id, balance, version FROM wallets WHERE wallet_id IN (:walletIds)",
+                    new MapSqlParameterSource("walletIds", pendingWallets),
+                    rs -> {
+                        balances.put(rs.getInt("wallet_id"), rs.getBigDecimal("balance"));
+                        versions.put(rs.getInt("wallet_id"), rs.getLong("version"));
+                    });
+
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            List<Integer> walletOrder = new ArrayList<>();
+            List<Object[]> updates = new ArrayList<>();
+            Map<Integer, List<Object[]>> rowsByWallet = new HashMap<>();
+            Map<Integer, List<LedgerEntry>> rejectedByWallet = new HashMap<>();
+
+            for (Integer walletId : pendingWallets) {
+                BigDecimal balance = balances.get(walletId);
+                if (balance == null) {
+                    throw new IllegalArgumentException("Wallet not found: " + walletId);
+                }
+                List<Object[]> rows = new ArrayList<>();
+                List<LedgerEntry> rejected = new ArrayList<>();
+
+                for (LedgerEntry entry : entriesByWallet.get(walletId)) {
+                    BigDecimal balanceAfter = balance.add(entry.signedAmount());
+                    if (balanceAfter.signum() < 0) {
+                        rejected.add(entry);
+                        continue;
+                    }
+                    rows.add(new Object[]{walletId, entry.getTransactionType().name(), entry.getAmount(), balance,
+                            balanceAfter, entry.getDescription(),
+                            entry.getReferenceType() != null ? entry.getReferenceType().name() : null,
+                            entry.getReferenceId(), now, entry.getCreatedBy(), WalletTransactionStatus.COMPLETED.name()});
+                    balance = balanceAfter;
+                }
+
+                rowsByWallet.put(walletId, rows);
+                rejectedByWallet.put(walletId, rejected);
+                if (!rows.isEmpty()) {
+                    walletOrder.add(walletId);
+                    updates.add(new Object[]{balance, now, walletId, versions.get(walletId)});
+                }
+            }
+
+            int[] counts = updates.isEmpty() ? new int[0] : jdbcTemplate.batchUpdate(UPDATE_BALANCE_SQL, updates);
+
+            Set<Integer> conflicts = new LinkedHashSet<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    conflicts.add(walletOrder.get(i));
+                }
+            }
+            for (Integer walletId : pendingWallets) {
+                if (!conflicts.contains(walletId)) {
+                    transactionRows.addAll(rowsByWallet.get(walletId));
+                    result.rejected.addAll(rejectedByWallet.get(walletId));
+                }
+            }
+
+            if (!conflicts.isEmpty()) {
+                log.debug("Version conflict on {} wallets (attempt {}), re-reading balances", conflicts.size(), attempt);
+            }
+            pendingWallets = conflicts;
+        }
+
+        if (!transactionRows.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_TRANSACTION_SQL, transactionRows);
+        }
+        result.posted = transactionRows.size();
+
+        log.info("Posted ledger batch: {} entries on {} wallets, {} duplicates skipped, {} rejected",
+                result.posted, entriesByWallet.size(), result.duplicates, result.rejected.size());
+        return result;
+    }
+
+    /**
+     * Bỏ các bút toán đã được ghi sổ (hoặc trùng ngay trong lô) cho cùng một đơn hàng
+     */
+    private List<LedgerEntry> removeDuplicates(List<LedgerEntry> entries) {
+        Map<WalletReferenceType, Set<Integer>> referenceIds = new EnumMap<>(WalletReferenceType.class);
+        for (LedgerEntry entry : entries) {
+            if (IDEMPOTENT_REFERENCE_TYPES.contains(entry.getReferenceType()) && entry.getReferenceId() != null) {
+                referenceIds.computeIfAbsent(entry.getReferenceType(), type -> new HashSet<>()).add(entry.getReferenceId());
+            }
+        }
+
+        Map<WalletReferenceType, Set<Integer>> recorded = new EnumMap<>(WalletReferenceType.class);
+        referenceIds.forEach((type, ids) -> recorded.put(type, new HashSet<>(namedParameterJdbcTemplate.queryForList(
+                "SELECT reference_id FROM wallet_transactions WHERE reference_type = :type AND reference_id IN (:ids)",
+                new MapSqlParameterSource("type", type.name()).addValue("ids", ids),
+                Integer.class))));
+
+        List<LedgerEntry> accepted = new ArrayList<>();
+        for (LedgerEntry entry : entries) {
+            Set<Integer> seen = recorded.get(entry.getReferenceType());
+            if (seen != null && entry.getReferenceId() != null && !seen.add(entry.getReferenceId())) {
+                continue;
+            }
+            accepted.add(entry);
+        }
+        return accepted;
+    }
+
+    /**
+     * Recompute every wallet balance from its completed ledger rows and report drift
+     * @return Wallets whose stored balance differs from the ledger
+     */
+    @Scheduled(cron = "${wallet.reconciliation.cron:0 30 3 * * *}")
+    @Transactional(readOnly = true)
+    public List<Map<String, Object>> reconcileBalances() {
+        List<Map<String, Object>> drifts = new ArrayList<>();
+        jdbcTemplate.query(RECONCILE_SQL, rs -> {
+            BigDecimal balance = rs.getBigDecimal("balance");
+            BigDecimal ledgerBalance = rs.getBigDecimal("ledger_balance");
+            if (balance.compareTo(ledgerBalance) != 0) {
+                Map<String, Object> drift = new LinkedHashMap<>();
+                drift.put("walletId", rs.getInt("wallet_id"));
+                drift.put("userId", rs.getInt("user_id"));
+                drift.put("balance", balance);
+                drift.put("ledgerBalance", ledgerBalance);
+                drift.put("drift", balance.subtract(ledgerBalance));
+                drifts.add(drift);
+            }
+        });
+
+        if (drifts.isEmpty()) {
+            log.info("Wallet reconciliation: all balances match the ledger");
+        } else {
+            for (Map<String, Object> drift : drifts) {
+                log.warn("Wallet reconciliation drift: wallet {} (user {}) balance {} but ledger {} (drift {})",
+                        drift.get("walletId"), drift.get("userId"), drift.get("balance"),
+                        drift.get("ledgerBalance"), drift.get("drift"));
+            }
+        }
+        return drifts;
+    }
+}
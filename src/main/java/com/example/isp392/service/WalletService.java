@@ -5,16 +5,26 @@ import com.example.isp392.model.enums.WalletReferenceType;
 import com.example.isp392.model.enums.WalletTransactionType;
 import com.example.isp392.repository.WalletRepository;
 import com.example.isp392.repository.WalletTransactionRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.TreeSet;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -27,7 +37,80 @@ public class WalletService {
     
     private final WalletRepository walletRepository;
     private final WalletTransactionRepository walletTransactionRepository;
-    private final ReentrantLock walletLock = new ReentrantLock();
+    private final WalletLedgerWriter walletLedgerWriter;
+
+    // Khóa theo ví (chia sọc theo userId): giao dịch của các người dùng khác nhau chạy song song
+    private static final int LOCK_STRIPES = 64;
+    // Số lần thử lại khi ví bị cập nhật đồng thời (ví dụ từ một instance khác)
+    private static final int MAX_BALANCE_UPDATE_ATTEMPTS = 5;
+
+    private final ReentrantLock[] walletLocks = createLocks(LOCK_STRIPES);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private static ReentrantLock[] createLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private ReentrantLock lockFor(User user) {
+        return walletLocks[stripeFor(user)];
+    }
+
+    private static int stripeFor(User user) {
+        return Math.floorMod(Objects.hashCode(user.getUserId()), LOCK_STRIPES);
+    }
+
+    /**
+     * Stripe locks of many users, in ascending stripe order so two batches cannot deadlock
+     */
+    private List<ReentrantLock> locksFor(Collection<User> users) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (User user : users) {
+            stripes.add(stripeFor(user));
+        }
+        List<ReentrantLock> locks = new ArrayList<>(stripes.size());
+        for (Integer stripe : stripes) {
+            locks.add(walletLocks[stripe]);
+        }
+        return locks;
+    }
+
+    /**
+     * Apply a balance change with an optimistic version check.
+     * The in-process stripe lock removes most conflicts; the version check covers other instances.
+     * @param wallet The managed wallet entity
+     * @param amount The (positive) amount
+     * @param credit true to add the amount, false to deduct it
+     * @return {balanceBefore, balanceAfter}
+     */
+    private BigDecimal[] updateBalance(Wallet wallet, BigDecimal amount, boolean credit) {
+        for (int attempt = 1; ; attempt++) {
+            BigDecimal balanceBefore = wallet.getBalance();
+            if (!credit && !wallet.hasSufficientBalance(amount)) {
+                throw new RuntimeException("Insufficient wallet balance. Current balance: " + balanceBefore);
+            }
+            BigDecimal balanceAfter = credit ? balanceBefore.add(amount) : balanceBefore.subtract(amount);
+
+            int updated = walletRepository.updateBalanceIfVersionMatches(
+                    wallet.getWalletId(), wallet.getVersion(), balanceAfter, LocalDateTime.now());
+            // Đồng bộ entity với DB: số dư/version mới nếu thành công, bản mới nhất nếu bị xung đột
+            entityManager.refresh(wallet);
+
+            if (updated == 1) {
+                return new BigDecimal[]{balanceBefore, balanceAfter};
+            }
+            if (attempt >= MAX_BALANCE_UPDATE_ATTEMPTS) {
+                throw new OptimisticLockingFailureException(
+                        "Wallet " + wallet.getWalletId() + " was updated concurrently, please try again");
+            }
+            log.debug("Version conflict on wallet {} (attempt {}), retrying", wallet.getWalletId(), attempt);
+        }
+    }
     
     /**
      * Create a new wallet for a user
@@ -36,6 +119,7 @@ public class WalletService {
      */
     @Transactional
     public Wallet createWalletForUser(User user) {
+        ReentrantLock walletLock = lockFor(user);
         try {
             walletLock.lock();
             
@@ -109,17 +193,16 @@ public class WalletService {
             throw new IllegalArgumentException("Amount must be positive");
         }
         
+        ReentrantLock walletLock = lockFor(user);
         try {
             walletLock.lock();
             
             Wallet wallet = getWalletByUser(user)
                     .orElseGet(() -> createWalletForUser(user));
             
-            BigDecimal balanceBefore = wallet.getBalance();
-            wallet.addBalance(amount);
-            BigDecimal balanceAfter = wallet.getBalance();
-            
-            walletRepository.save(wallet);
+            BigDecimal[] balances = updateBalance(wallet, amount, true);
+            BigDecimal balanceBefore = balances[0];
+            BigDecimal balanceAfter = balances[1];
             
             WalletTransaction transaction = WalletTransaction.createCredit(
                     wallet, amount, balanceBefore, balanceAfter, description,
@@ -153,21 +236,16 @@ public class WalletService {
             throw new IllegalArgumentException("Amount must be positive");
         }
 
+        ReentrantLock walletLock = lockFor(user);
         try {
             walletLock.lock();
 
             Wallet wallet = getWalletByUser(user)
                     .orElseThrow(() -> new RuntimeException("Wallet not found for user: " + user.getEmail()));
 
-            if (!wallet.hasSufficientBalance(amount)) {
-                throw new RuntimeException("Insufficient wallet balance. Current balance: " + wallet.getBalance());
-            }
-
-            BigDecimal balanceBefore = wallet.getBalance();
-            wallet.deductBalance(amount);
-            BigDecimal balanceAfter = wallet.getBalance();
-
-            walletRepository.save(wallet);
+            BigDecimal[] balances = updateBalance(wallet, amount, false);
+            BigDecimal balanceBefore = balances[0];
+            BigDecimal balanceAfter = balances[1];
 
             WalletTransaction transaction = WalletTransaction.createDebit(
                     wallet, amount, balanceBefore, balanceAfter, description,
@@ -257,6 +335,98 @@ public class WalletService {
         }
     }
 
+    /**
+     * Refund many cancelled orders at once (e.g. all open orders of a blocked shop).
+     * Uses the batched ledger writer: one insert batch for all refund rows and one
+     * balance update per customer wallet. Orders that do not qualify or were already
+     * refunded are skipped, with the same rules as processOrderRefund.
+     * @param orders The cancelled orders
+     * @return Result with posted, duplicate and rejected counts
+     */
+    @Transactional
+    public WalletLedgerWriter.BatchResult processOrderRefunds(Collection<Order> orders) {
+        List<WalletLedgerWriter.LedgerEntry> entries = new ArrayList<>();
+        for (Order order : orders) {
+            CustomerOrder customerOrder = order.getCustomerOrder();
+            if (customerOrder == null
+                    || customerOrder.getPaymentMethod() != PaymentMethod.VNPAY
+                    || customerOrder.getPaymentStatus() != PaymentStatus.PAID
+                    || order.getTotalAmount() == null
+                    || order.getTotalAmount().compareTo(BigDecimal.ZERO) <= 0) {
+                continue;
+            }
+
+            String description = String.format("Refund for cancelled order #%d (Shop: %s)",
+                    order.getOrderId(),
+                    order.getShop() != null ? order.getShop().getShopName() : "Unknown");
+            entries.add(WalletLedgerWriter.LedgerEntry.credit(
+                    customerOrder.getUser(),
+                    order.getTotalAmount(),
+                    description,
+                    WalletReferenceType.ORDER_REFUND,
+                    order.getOrderId(),
+                    customerOrder.getUser().getUserId()));
+        }
+
+        return postLedgerEntries(entries);
+    }
+
+    /**
+     * Post a batch of ledger entries, creating missing wallets for credited users
+     * @param entries The entries to post
+     * @return Result with posted, duplicate and rejected counts
+     */
+    @Transactional
+    public WalletLedgerWriter.BatchResult postLedgerEntries(List<WalletLedgerWriter.LedgerEntry> entries) {
+        if (entries.isEmpty()) {
+            return new WalletLedgerWriter.BatchResult();
+        }
+
+        Map<Integer, User> users = new HashMap<>();
+        for (WalletLedgerWriter.LedgerEntry entry : entries) {
+            users.putIfAbsent(entry.getUser().getUserId(), entry.getUser());
+        }
+
+        // Cùng khóa sọc với addFunds/deductFunds để lô JDBC không chen giữa một giao dịch ví đang chạy
+        List<ReentrantLock> locks = locksFor(users.values());
+        List<ReentrantLock> acquired = new ArrayList<>(locks.size());
+        try {
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+                acquired.add(lock);
+            }
+
+            List<Wallet> wallets = new ArrayList<>(walletRepository.findByUserIdIn(users.keySet()));
+            Map<Integer, Integer> walletIdByUserId = new HashMap<>();
+            for (Wallet wallet : wallets) {
+                walletIdByUserId.put(wallet.getUser().getUserId(), wallet.getWalletId());
+            }
+            for (User user : users.values()) {
+                if (!walletIdByUserId.containsKey(user.getUserId())) {
+                    Wallet wallet = createWalletForUser(user);
+                    wallets.add(wallet);
+                    walletIdByUserId.put(user.getUserId(), wallet.getWalletId());
+                }
+            }
+
+            // Ghi các thay đổi đang chờ trước khi JDBC đọc/ghi trực tiếp bảng wallets
+            entityManager.flush();
+            WalletLedgerWriter.BatchResult result = walletLedgerWriter.post(entries, walletIdByUserId);
+
+            // Lô JDBC không đi qua persistence context: nạp lại số dư/version cho các entity Wallet đang được quản lý
+            for (Wallet wallet : wallets) {
+                if (entityManager.contains(wallet)) {
+                    entityManager.refresh(wallet);
+                }
+            }
+            return result;
+        } finally {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                acquired.get(i).unlock();
+            }
+        }
+    }
+
     /**
      * Process refund to wallet for cancelled customer order (legacy method)
      * @param customerOrder The cancelled customer order
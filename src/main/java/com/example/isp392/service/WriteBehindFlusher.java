@@ -0,0 +1,78 @@
+package com.example.isp392.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ghi xuống DB các bộ đếm được gom trong bộ nhớ (write-behind): lượt xem, lượt dùng mã giảm giá, tồn kho.
+ * Mỗi lần ghi là một câu lệnh batch chạy trong một transaction riêng, nên hoặc tất cả các dòng được ghi,
+ * hoặc không dòng nào; bộ đếm chỉ bị trừ sau khi transaction đã commit, vì vậy một lô lỗi giữa chừng
+ * được thử lại nguyên vẹn ở lần sau mà không cộng trùng.
+ */
+@Component
+public class WriteBehindFlusher {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindFlusher.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    public WriteBehindFlusher(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Chạy một batch trong một transaction
+     *
+     * @return true nếu toàn bộ batch đã được commit, false nếu lỗi (không dòng nào được ghi)
+     */
+    public boolean writeBatch(String sql, List<Object[]> batch, String description) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(sql, batch));
+            logger.debug("Flushed {} for {} rows", description, batch.size());
+            return true;
+        } catch (Exception e) {
+            logger.error("Error flushing {}: {}", description, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Ghi phần chênh lệch của các LongAdder bằng câu lệnh dạng "SET col = col + ? WHERE id = ?".
+     * Chỉ trừ đúng phần đã đọc sau khi ghi thành công, để không mất giá trị được cộng trong lúc flush.
+     * Người gọi phải đảm bảo không có hai lần flush đồng thời trên cùng một map.
+     *
+     * @param pending Bộ đếm chưa ghi theo ID (giữ lại trong map, kể cả khi bằng 0)
+     */
+    public <K> void flushDeltas(Map<K, LongAdder> pending, String sql, String description) {
+        List<Object[]> batch = new ArrayList<>();
+        List<LongAdder> adders = new ArrayList<>();
+
+        for (Map.Entry<K, LongAdder> entry : pending.entrySet()) {
+            long delta = entry.getValue().sum();
+            if (delta == 0) {
+                continue;
+            }
+            batch.add(new Object[]{delta, entry.getKey()});
+            adders.add(entry.getValue());
+        }
+
+        if (writeBatch(sql, batch, description)) {
+            for (int i = 0; i < adders.size(); i++) {
+                adders.get(i).add(-(Long) batch.get(i)[0]);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+-- Add optimistic locking version to wallets
+-- Balance updates only succeed when the version read by the application is still current
+
+IF NOT EXISTS (
+    SELECT * FROM INFORMATION_SCHEMA.COLUMNS
+    WHERE TABLE_NAME = 'wallets' AND COLUMN_NAME = 'version'
+)
+BEGIN
+    ALTER TABLE wallets ADD version BIGINT NOT NULL DEFAULT 0;
+    PRINT 'Added version column to wallets table';
+END
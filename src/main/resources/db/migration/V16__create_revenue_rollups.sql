@@ -0,0 +1,72 @@
+-- Daily revenue rollups for admin and seller analytics
+-- Rows are rebuilt per day by RevenueRollupService whenever an order on that day changes,
+-- so reports read a bounded number of pre-aggregated rows instead of scanning order history.
+-- "counted" = status NOT IN ('CANCELLED', 'REFUNDED'); "delivered" = status = 'DELIVERED'
+
+-- Platform-wide, from customer_orders (by created_at)
+IF OBJECT_ID('revenue_daily_platform', 'U') IS NULL
+BEGIN
+    CREATE TABLE revenue_daily_platform (
+        stat_date DATE NOT NULL PRIMARY KEY,
+        order_count INT NOT NULL DEFAULT 0,
+        total_amount DECIMAL(18,0) NOT NULL DEFAULT 0,
+        final_total_amount DECIMAL(18,0) NOT NULL DEFAULT 0
+    );
+    PRINT 'Created revenue_daily_platform table';
+END
+
+-- Per shop, from orders (by order_date)
+IF OBJECT_ID('revenue_daily_shop', 'U') IS NULL
+BEGIN
+    CREATE TABLE revenue_daily_shop (
+        stat_date DATE NOT NULL,
+        shop_id INT NOT NULL,
+        order_count INT NOT NULL DEFAULT 0,
+        order_total DECIMAL(18,0) NOT NULL DEFAULT 0,
+        delivered_order_count INT NOT NULL DEFAULT 0,
+        delivered_order_total DECIMAL(18,0) NOT NULL DEFAULT 0,
+        delivered_items_sold INT NOT NULL DEFAULT 0,
+        delivered_items_revenue DECIMAL(18,0) NOT NULL DEFAULT 0,
+        CONSTRAINT PK_revenue_daily_shop PRIMARY KEY (stat_date, shop_id)
+    );
+    CREATE INDEX IX_revenue_daily_shop_shop_date ON revenue_daily_shop(shop_id, stat_date);
+    PRINT 'Created revenue_daily_shop table';
+END
+
+-- Per book, from order_items (by order_date of the owning order)
+IF OBJECT_ID('revenue_daily_book', 'U') IS NULL
+BEGIN
+    CREATE TABLE revenue_daily_book (
+        stat_date DATE NOT NULL,
+        book_id INT NOT NULL,
+        shop_id INT NOT NULL,
+        items_sold INT NOT NULL DEFAULT 0,
+        items_revenue DECIMAL(18,0) NOT NULL DEFAULT 0,
+        delivered_items_sold INT NOT NULL DEFAULT 0,
+        delivered_items_revenue DECIMAL(18,0) NOT NULL DEFAULT 0,
+        CONSTRAINT PK_revenue_daily_book PRIMARY KEY (stat_date, book_id)
+    );
+    CREATE INDEX IX_revenue_daily_book_shop_date ON revenue_daily_book(shop_id, stat_date);
+    PRINT 'Created revenue_daily_book table';
+END
+
+-- Per shop and shipping province, from orders joined to customer_orders
+IF OBJECT_ID('revenue_daily_province', 'U') IS NULL
+BEGIN
+    CREATE TABLE revenue_daily_province (
+        stat_date DATE NOT NULL,
+        shop_id INT NOT NULL,
+        province NVARCHAR(255) NOT NULL,
+        order_count INT NOT NULL DEFAULT 0,
+        order_total DECIMAL(18,0) NOT NULL DEFAULT 0,
+        CONSTRAINT PK_revenue_daily_province PRIMARY KEY (stat_date, shop_id, province)
+    );
+    CREATE INDEX IX_revenue_daily_province_shop ON revenue_daily_province(shop_id, stat_date);
+    PRINT 'Created revenue_daily_province table';
+END
+
+-- Rebuilding a day filters the source tables by date
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_orders_order_date')
+    CREATE INDEX IX_orders_order_date ON orders(order_date);
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_customer_orders_created_at')
+    CREATE INDEX IX_customer_orders_created_at ON customer_orders(created_at);
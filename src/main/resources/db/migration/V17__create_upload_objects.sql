@@ -0,0 +1,15 @@
+-- Reference counts for content-addressed uploads
+-- FileStorageService stores each upload once at <subDir>/<aa>/<bb>/<sha256><ext>;
+-- every entity pointing at the file holds one reference and the file (with its image
+-- derivatives) is deleted when the last reference is released.
+IF OBJECT_ID('upload_objects', 'U') IS NULL
+BEGIN
+    CREATE TABLE upload_objects (
+        content_path NVARCHAR(255) NOT NULL PRIMARY KEY,
+        sha256 CHAR(64) NOT NULL,
+        size_bytes BIGINT NOT NULL,
+        ref_count INT NOT NULL DEFAULT 0,
+        created_at DATETIME2 NOT NULL DEFAULT SYSDATETIME()
+    );
+    PRINT 'Created upload_objects table';
+END
@@ -0,0 +1,8 @@
+-- Deadline of the in-memory stock reservation held for a customer order awaiting payment.
+-- InventoryReservationService sets it when stock is reserved and clears it on confirm/rollback,
+-- so reservations still open at shutdown are re-armed (or expired) on the next startup.
+IF COL_LENGTH('customer_orders', 'reservation_expires_at') IS NULL
+BEGIN
+    ALTER TABLE customer_orders ADD reservation_expires_at DATETIME2 NULL;
+    PRINT 'Added reservation_expires_at to customer_orders';
+END
@@ -397,10 +397,11 @@ class ReadHubChatWidget {
         this.showTypingIndicator();
 
         try {
-            const response = await fetch('/api/chat/send', {
+            const response = await fetch('/api/chat/stream', {
                 method: 'POST',
                 headers: {
                     'Content-Type': 'application/json',
+                    'Accept': 'text/event-stream'
                 },
                 body: JSON.stringify({ 
                     message: message,
@@ -408,20 +409,59 @@ class ReadHubChatWidget {
                 })
             });
 
-            const data = await response.json();
-
-            // Hide typing indicator
-            this.hideTypingIndicator();
+            if (!response.ok || !response.body) {
+                throw new Error(`HTTP ${response.status}`);
+            }
 
-            if (data.success) {
-                this.addMessage(data.message, 'bot');
-                // Update session token if provided
-                if (data.sessionToken) {
-                    this.sessionToken = data.sessionToken;
-                    localStorage.setItem('readhub_chat_session', this.sessionToken);
+            // Read the server-sent events as they arrive and render tokens incrementally
+            const reader = response.body.getReader();
+            const decoder = new TextDecoder();
+            let buffer = '';
+            let botMessage = null;
+            let streamedText = '';
+            let finished = false;
+
+            while (!finished) {
+                const { value, done } = await reader.read();
+                if (done) break;
+                buffer += decoder.decode(value, { stream: true });
+
+                let boundary;
+                while ((boundary = buffer.indexOf('\n\n')) >= 0) {
+                    const event = this.parseStreamEvent(buffer.slice(0, boundary));
+                    buffer = buffer.slice(boundary + 2);
+                    if (!event) continue;
+
+                    if (event.name === 'session' && event.data.sessionToken) {
+                        this.sessionToken = event.data.sessionToken;
+                        localStorage.setItem('readhub_chat_session', this.sessionToken);
+                    } else if (event.name === 'token') {
+                        streamedText += event.data.text;
+                        if (!botMessage) {
+                            this.hideTypingIndicator();
+                            botMessage = this.addMessage(streamedText, 'bot');
+                        } else {
+                            this.updateMessageContent(botMessage, streamedText);
+                        }
+                    } else if (event.name === 'done') {
+                        this.hideTypingIndicator();
+                        if (botMessage) {
+                            this.updateMessageContent(botMessage, event.data.message);
+                        } else {
+                            this.addMessage(event.data.message, 'bot');
+                        }
+                        finished = true;
+                    } else if (event.name === 'error') {
+                        this.hideTypingIndicator();
+                        this.addMessage(event.data.message || 'Sorry, I encountered an error.', 'bot', true);
+                        finished = true;
+                    }
                 }
-            } else {
-                this.addMessage(data.message || 'Sorry, I encountered an error.', 'bot', true);
+            }
+
+            this.hideTypingIndicator();
+            if (!finished && !botMessage) {
+                this.addMessage('Sorry, I encountered an error.', 'bot', true);
             }
 
         } catch (error) {
@@ -433,6 +473,48 @@ class ReadHubChatWidget {
         }
     }
 
+    /**
+     * Parse one server-sent event block ("event: name" + "data: json" lines)
+     */
+    parseStreamEvent(block) {
+        let name = 'message';
+        const dataLines = [];
+        block.split('\n').forEach(line => {
+            if (line.startsWith('event:')) {
+                name = line.slice(6).trim();
+            } else if (line.startsWith('data:')) {
+                dataLines.push(line.slice(5).replace(/^ /, ''));
+            }
+        });
+        if (dataLines.length === 0) return null;
+        try {
+            return { name, data: JSON.parse(dataLines.join('\n')) };
+        } catch (e) {
+            console.warn('Invalid stream event:', block);
+            return null;
+        }
+    }
+
+    /**
+     * Replace the text of a message that is being streamed
+     */
+    updateMessageContent(messageDiv, content) {
+        const contentDiv = messageDiv.querySelector('.message-content');
+        const timeDiv = contentDiv.querySelector('.message-time');
+        contentDiv.innerHTML = this.formatMessageContent(content);
+        if (timeDiv) {
+            contentDiv.appendChild(timeDiv);
+        }
+
+        const stored = this.messages[this.messages.length - 1];
+        if (stored && stored.sender === 'bot') {
+            stored.content = content;
+        }
+
+        const messagesContainer = document.getElementById('chatMessages');
+        messagesContainer.scrollTop = messagesContainer.scrollHeight;
+    }
+
     /**
      * Add a message to the chat UI with proper attribution
      */
@@ -484,6 +566,7 @@ class ReadHubChatWidget {
         });
 
         console.log(`Message added: ${sender} - ${content.substring(0, 50)}...`);
+        return messageDiv;
     }
 
     /**